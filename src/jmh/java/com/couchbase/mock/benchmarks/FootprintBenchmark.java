@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.benchmarks;
+
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.Storage;
+import com.couchbase.mock.memcached.VBucketInfo;
+import com.couchbase.mock.memcached.protocol.Datatype;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The heap used per document by the storage of a node: one million small
+ * documents are loaded (cached and persisted), and the growth of the heap is
+ * reported as the {@code bytesPerItem} counter. The time is that of the load.
+ * With {@code offHeap}, the items are kept outside of the heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class FootprintBenchmark {
+    private static final int NUM_VBUCKETS = 1024;
+    private static final int NUM_ITEMS = 1000000;
+    private static final int BATCH_SIZE = 1024;
+
+    @Param({"false", "true"})
+    public boolean offHeap;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public long bytesPerItem;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Benchmark
+    public Storage load(Footprint footprint) throws IOException {
+        VBucketInfo[] vbi = new VBucketInfo[NUM_VBUCKETS];
+        for (int i = 0; i < vbi.length; i++) {
+            vbi[i] = new VBucketInfo();
+        }
+
+        long before = usedMemory();
+        Storage storage = new Storage(vbi, null, null, offHeap);
+        List<Item> batch = new ArrayList<Item>(BATCH_SIZE);
+        for (int i = 0; i < NUM_ITEMS; i++) {
+            KeySpec ks = new KeySpec("key_" + i, (short) (i % NUM_VBUCKETS));
+            byte[] value = ("{\"id\":" + i + ",\"name\":\"doc\"}").getBytes();
+            batch.add(new Item(ks, 0, 0, value, null, 0, Datatype.JSON.value()));
+            if (batch.size() == BATCH_SIZE) {
+                storage.loadItems(batch);
+                batch = new ArrayList<Item>(BATCH_SIZE);
+            }
+        }
+        storage.loadItems(batch);
+        footprint.bytesPerItem = (usedMemory() - before) / NUM_ITEMS;
+        return storage;
+    }
+}
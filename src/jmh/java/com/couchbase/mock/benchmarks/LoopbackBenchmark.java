@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.benchmarks;
+
+import com.couchbase.mock.Bucket;
+import com.couchbase.mock.BucketConfiguration;
+import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips of GET and SET over a loopback connection to a single
+ * {@link MemcachedServer}, including the selector and protocol handling.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+    private static final String KEY = "benchmark_key";
+    private static final String VALUE = "{\"name\":\"benchmark\",\"counter\":0}";
+
+    private CouchbaseMock mock;
+    private MemcachedServer server;
+    private short vbucket;
+
+    @State(Scope.Thread)
+    public static class Connection {
+        MemcachedClient client;
+        byte[] get;
+        byte[] set;
+
+        @Setup(Level.Trial)
+        public void connect(LoopbackBenchmark benchmark) throws IOException {
+            Socket sock = new Socket();
+            sock.setTcpNoDelay(true);
+            sock.connect(new InetSocketAddress(benchmark.server.getHostname(), benchmark.server.getPort()));
+            client = new MemcachedClient(sock);
+            get = new CommandBuilder(CommandCode.GET).key(KEY, benchmark.vbucket).build();
+            set = CommandBuilder.buildStore(KEY, benchmark.vbucket, VALUE);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            client.close();
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        BucketConfiguration config = new BucketConfiguration();
+        config.name = "default";
+        config.numNodes = 1;
+        config.numReplicas = 0;
+        List<BucketConfiguration> configs = new ArrayList<BucketConfiguration>();
+        configs.add(config);
+        mock = new CouchbaseMock(0, configs);
+        mock.start();
+        mock.waitForStartup();
+
+        Bucket bucket = mock.getBuckets().get("default");
+        server = bucket.getServers()[0];
+        vbucket = bucket.getVbIndexForKey(KEY);
+        if (bucket.storeItem(KEY, VALUE.getBytes()) != ErrorCode.SUCCESS) {
+            throw new IllegalStateException("Couldn't store " + KEY);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mock.stop();
+    }
+
+    @Benchmark
+    public ClientResponse get(Connection connection) throws IOException {
+        return connection.client.sendRequest(connection.get);
+    }
+
+    @Benchmark
+    public ClientResponse set(Connection connection) throws IOException {
+        return connection.client.sendRequest(connection.set);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ClientResponse getConcurrent(Connection connection) throws IOException {
+        return connection.client.sendRequest(connection.get);
+    }
+}
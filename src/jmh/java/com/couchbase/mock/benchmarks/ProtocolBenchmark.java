@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.benchmarks;
+
+import com.couchbase.mock.memcached.CompressionMode;
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.protocol.BinaryCommand;
+import com.couchbase.mock.memcached.protocol.BinaryGetResponse;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.couchbase.mock.memcached.protocol.CommandFactory;
+import com.couchbase.mock.memcached.protocol.Datatype;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of binary protocol commands and encoding of responses, as done
+ * by {@code MemcachedConnection} for every packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+    private static final int HEADER_SIZE = 24;
+
+    @Param({"16", "1024", "65536"})
+    public int valueSize;
+
+    private byte[] getPacket;
+    private byte[] setPacket;
+    private BinaryCommand getCommand;
+    private Item item;
+
+    @Setup
+    public void setup() throws ProtocolException {
+        byte[] value = new byte[valueSize];
+        Arrays.fill(value, (byte) 'x');
+        getPacket = new CommandBuilder(CommandCode.GET).key("benchmark_key", (short) 0).build();
+        setPacket = new CommandBuilder(CommandCode.SET).key("benchmark_key", (short) 0).value(value, 0).build();
+        getCommand = decode(getPacket);
+        item = new Item(new KeySpec("benchmark_key", (short) 0), 0, 0, value, null, 1, Datatype.RAW.value());
+    }
+
+    private static BinaryCommand decode(byte[] packet) throws ProtocolException {
+        BinaryCommand cmd = CommandFactory.create(ByteBuffer.wrap(packet, 0, HEADER_SIZE));
+        ByteBuffer body = cmd.getInputBuffer();
+        if (body != null) {
+            body.put(packet, HEADER_SIZE, packet.length - HEADER_SIZE);
+        }
+        cmd.process();
+        return cmd;
+    }
+
+    @Benchmark
+    public BinaryCommand decodeGet() throws ProtocolException {
+        return decode(getPacket);
+    }
+
+    @Benchmark
+    public BinaryCommand decodeSet() throws ProtocolException {
+        return decode(setPacket);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeGetResponse() {
+        return new BinaryGetResponse(getCommand, item, CompressionMode.DISABLED).getBuffer();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.benchmarks;
+
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.MutationStatus;
+import com.couchbase.mock.memcached.VBucketCoordinates;
+import com.couchbase.mock.memcached.VBucketInfo;
+import com.couchbase.mock.memcached.VBucketStore;
+import com.couchbase.mock.memcached.protocol.Datatype;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Operations on a {@link VBucketStore}, with a single thread and with
+ * several threads contending for the same keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+    private static final int NUM_VBUCKETS = 1024;
+    private static final int NUM_KEYS = 10000;
+    private static final int NUM_HOT_KEYS = 16;
+
+    private VBucketStore store;
+    private KeySpec[] keys;
+    private byte[] value;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        final Random random = new Random();
+    }
+
+    @Setup
+    public void setup() {
+        VBucketInfo[] vbi = new VBucketInfo[NUM_VBUCKETS];
+        for (int i = 0; i < vbi.length; i++) {
+            vbi[i] = new VBucketInfo();
+        }
+        store = new VBucketStore(vbi);
+        VBucketStore.ItemAction nothing = new VBucketStore.ItemAction() {
+            @Override
+            public void onAction(VBucketStore store, Item itm, VBucketCoordinates ms) {
+            }
+        };
+        store.onItemMutated = nothing;
+        store.onItemDelete = nothing;
+
+        value = "{\"name\":\"benchmark\",\"counter\":0}".getBytes();
+        keys = new KeySpec[NUM_KEYS];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new KeySpec("key_" + i, (short) (i % NUM_VBUCKETS));
+            store.set(newItem(keys[i], 0), false);
+        }
+    }
+
+    private Item newItem(KeySpec ks, long cas) {
+        return new Item(ks, 0, 0, value, null, cas, Datatype.JSON.value());
+    }
+
+    @Benchmark
+    public Item get(ThreadState state) {
+        return store.get(keys[state.random.nextInt(NUM_KEYS)]);
+    }
+
+    @Benchmark
+    public MutationStatus set(ThreadState state) {
+        return store.set(newItem(keys[state.random.nextInt(NUM_KEYS)], 0), false);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Item getContended(ThreadState state) {
+        return store.get(keys[state.random.nextInt(NUM_HOT_KEYS)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public MutationStatus setContended(ThreadState state) {
+        return store.set(newItem(keys[state.random.nextInt(NUM_HOT_KEYS)], 0), false);
+    }
+
+    /**
+     * Read-modify-write with CAS on a small set of keys; some of the
+     * updates fail with {@code KEY_EEXISTS}, as they would for clients.
+     */
+    @Benchmark
+    @Threads(4)
+    public MutationStatus casContended(ThreadState state) {
+        KeySpec ks = keys[state.random.nextInt(NUM_HOT_KEYS)];
+        Item current = store.get(ks);
+        return store.replace(newItem(ks, current.getCas()), false);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.benchmarks;
+
+import com.couchbase.mock.subdoc.Executor;
+import com.couchbase.mock.subdoc.Operation;
+import com.couchbase.mock.subdoc.Result;
+import com.couchbase.mock.subdoc.SubdocException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sub-document operations on small and large documents. The multi
+ * benchmarks chain several operations on the same document, like
+ * {@code SubdocMultiCommandExecutor} does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubdocBenchmark {
+    private static final String[] LOOKUP_PATHS = {
+            "name", "address.city", "tags[0]", "items[-1].id", "address.geo.lat"
+    };
+
+    /** Number of elements in the {@code items} array of the document */
+    @Param({"4", "4096"})
+    public int numItems;
+
+    private String doc;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"name\":\"benchmark\",\"tags\":[\"a\",\"b\",\"c\"],");
+        sb.append("\"address\":{\"city\":\"Oslo\",\"geo\":{\"lat\":59.9,\"lon\":10.7}},");
+        sb.append("\"counter\":0,\"items\":[");
+        for (int i = 0; i < numItems; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"id\":").append(i).append(",\"value\":\"item ").append(i).append("\"}");
+        }
+        sb.append("]}");
+        doc = sb.toString();
+    }
+
+    @Benchmark
+    public Result get() throws SubdocException {
+        return Executor.execute(doc, "address.geo.lat", Operation.GET);
+    }
+
+    @Benchmark
+    public Result dictUpsert() throws SubdocException {
+        return Executor.execute(doc, "address.zip", Operation.DICT_UPSERT, "\"0150\"");
+    }
+
+    @Benchmark
+    public Result counter() throws SubdocException {
+        return Executor.execute(doc, "counter", Operation.COUNTER, "1");
+    }
+
+    @Benchmark
+    public void multiLookup(Blackhole bh) throws SubdocException {
+        for (String path : LOOKUP_PATHS) {
+            bh.consume(Executor.execute(doc, path, Operation.GET));
+        }
+    }
+
+    @Benchmark
+    public String multiMutation() throws SubdocException {
+        String current = doc;
+        current = Executor.execute(current, "address.zip", Operation.DICT_UPSERT, "\"0150\"").getNewDocString();
+        current = Executor.execute(current, "counter", Operation.COUNTER, "1").getNewDocString();
+        current = Executor.execute(current, "tags", Operation.ARRAY_APPEND, "\"d\"").getNewDocString();
+        return Executor.execute(current, "name", Operation.REPLACE, "\"renamed\"").getNewDocString();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.benchmarks;
+
+import com.couchbase.mock.Bucket;
+import com.couchbase.mock.BucketConfiguration;
+import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.DocumentLoader;
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.Storage;
+import com.couchbase.mock.views.Configuration;
+import com.couchbase.mock.views.Indexer;
+import com.couchbase.mock.views.View;
+import org.mozilla.javascript.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexing and querying a view over the {@code beer-sample} documents.
+ * {@link #indexBuild()} indexes every document from scratch, while queries
+ * reuse the index of the view and only re-index modified documents.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ViewBenchmark {
+    private static final String MAP_BY_ABV =
+            "function(doc, meta) { if (doc.type == 'beer' && doc.abv) { emit(doc.abv, doc.name); } }";
+
+    private CouchbaseMock mock;
+    private List<Item> items;
+    private View view;
+    private Configuration range;
+
+    @Setup
+    public void setup() throws Exception {
+        BucketConfiguration config = new BucketConfiguration();
+        config.name = "beer-sample";
+        config.numNodes = 1;
+        config.numReplicas = 0;
+        List<BucketConfiguration> configs = new ArrayList<BucketConfiguration>();
+        configs.add(config);
+        mock = new CouchbaseMock(0, configs);
+        mock.start();
+        mock.waitForStartup();
+        DocumentLoader.loadBeerSample(mock);
+
+        Bucket bucket = mock.getBuckets().get("beer-sample");
+        items = new ArrayList<Item>();
+        for (Item item : bucket.getMasterItems(Storage.StorageType.CACHE)) {
+            items.add(item);
+        }
+
+        view = new View("by_abv", MAP_BY_ABV);
+        range = new Configuration();
+        range.setStartKey(5);
+        range.setEndKey(6);
+        range.setLimit(100);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mock.stop();
+    }
+
+    @Benchmark
+    public Indexer indexBuild() {
+        Indexer indexer = Indexer.create(MAP_BY_ABV);
+        Context cx = Context.enter();
+        try {
+            indexer.run(items, cx);
+        } finally {
+            Context.exit();
+        }
+        return indexer;
+    }
+
+    @Benchmark
+    public String rangeQuery() throws Exception {
+        return view.executeRaw(items, range);
+    }
+}
@@ -17,20 +17,25 @@ package com.couchbase.mock;
 
 import com.couchbase.mock.http.BucketAdminServer;
 import com.couchbase.mock.http.capi.CAPIServer;
+import com.couchbase.mock.memcached.EventLoopGroup;
 import com.couchbase.mock.memcached.Item;
 import com.couchbase.mock.memcached.MemcachedServer;
 import com.couchbase.mock.memcached.Storage;
 import com.couchbase.mock.memcached.VBucketInfo;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
 import java.util.UUID;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
@@ -64,8 +69,22 @@ public abstract class Bucket {
     protected final String name;
     protected final CouchbaseMock cluster;
     protected final String password;
+    protected final String persistencePath;
+    protected final boolean offHeap;
     protected final ReentrantReadWriteLock configurationRwLock;
     private final UUID uuid;
+    private final Map<MemcachedServer, Integer> serverIndexes = new IdentityHashMap<MemcachedServer, Integer>();
+    private final ConfigObservable configObservable = new ConfigObservable();
+    private final Object renderLock = new Object();
+    private volatile RenderedConfig renderedConfig = null;
+    private long warmupItemCount = 0;
+
+    private static class ConfigObservable extends Observable {
+        void changed() {
+            setChanged();
+            notifyObservers();
+        }
+    }
 
     /**
      * Returns the vBucket map for the given bucket. This is only relevant for {@link CouchbaseBucket}
@@ -83,6 +102,16 @@ public abstract class Bucket {
         return servers;
     }
 
+    /**
+     * Get the index of a server within {@link #getServers()}
+     * @param server The server
+     * @return its index, or -1 if it is null or not a server of this bucket
+     */
+    int getServerIndex(MemcachedServer server) {
+        Integer index = serverIndexes.get(server);
+        return index == null ? -1 : index;
+    }
+
     private Iterator<Item> getMasterItemsIterator(final Storage.StorageType type) {
         return new Iterator<Item>() {
             private int curIndex = -1;
@@ -125,8 +154,8 @@ public abstract class Bucket {
      * @param type The storage location to fetch from
      * @return An iterable which will return all items in the bucket.
      *
-     * Note this currently makes a copy of the items list, making it thread safe. It also means
-     * that this will potentially return stale data
+     * Note the returned iterators are weakly consistent: they are safe to use while the bucket
+     * is being modified, but may not reflect mutations made during the iteration
      */
     public Iterable<Item> getMasterItems(final Storage.StorageType type) {
         return new Iterable<Item>() {
@@ -146,6 +175,19 @@ public abstract class Bucket {
         return -1;
     }
 
+    /**
+     * Get the vBuckets of many keys at once. This is preferable to
+     * {@link #getVbIndexForKey(String)} when loading many items.
+     *
+     * @param keys The keys to look up
+     * @return the vBucket of each key, or -1 for buckets without vBuckets
+     */
+    public short[] getVbIndexesForKeys(List<String> keys) {
+        short[] ret = new short[keys.size()];
+        Arrays.fill(ret, (short) -1);
+        return ret;
+    }
+
     public Bucket(CouchbaseMock cluster, BucketConfiguration config) throws IOException {
         if (config.numVBuckets < 0) {
             throw new IllegalArgumentException("Vbucket count must be > 0");
@@ -175,14 +217,61 @@ public abstract class Bucket {
         if (this.getClass() != MemcachedBucket.class && this.getClass() != CouchbaseBucket.class) {
             throw new FileNotFoundException("I don't know about this type...");
         }
+        boolean persistent = config.persistencePath != null && getType() == BucketType.COUCHBASE;
+        persistencePath = persistent ? config.persistencePath : null;
+        offHeap = config.offHeap;
         for (int ii = 0; ii < servers.length; ii++) {
+            File dataDir = null;
+            if (persistent) {
+                dataDir = new File(new File(config.persistencePath, name), "node" + ii);
+            }
             servers[ii] = new MemcachedServer(this,
                     config.hostname,
                     (config.bucketStartPort == 0 ? 0 : config.bucketStartPort + ii),
-                    vbInfo, cluster.isCccpBootstrap());
+                    vbInfo, cluster.isCccpBootstrap(), dataDir, config.offHeap);
+            servers[ii].getStorage().getDcpConsumer().setLag(config.replicationLag);
+            servers[ii].getStorage().setMemoryQuota(config.memoryQuota);
+            serverIndexes.put(servers[ii], ii);
         }
 
         rebalance();
+        if (persistent) {
+            warmup();
+        }
+    }
+
+    /**
+     * Load the items persisted by a previous run into the nodes which are now responsible for them.
+     * For each vBucket, the copy with the highest persisted seqno is used.
+     */
+    private void warmup() {
+        for (short vb = 0; vb < numVBuckets; vb++) {
+            Storage source = null;
+            long maxSeqno = 0;
+            for (MemcachedServer server : servers) {
+                long seqno = server.getStorage().getPersistedCoords(vb).getSeqno();
+                if (seqno > maxSeqno) {
+                    maxSeqno = seqno;
+                    source = server.getStorage();
+                }
+            }
+            if (source == null) {
+                continue;
+            }
+
+            warmupItemCount += vbInfo[vb].getOwner().getStorage().warmup(vb, source);
+            for (MemcachedServer replica : vbInfo[vb].getReplicas()) {
+                replica.getStorage().warmup(vb, source);
+            }
+        }
+    }
+
+    /**
+     * Get the number of items which were loaded from disk when the bucket was created.
+     * @return the number of items
+     */
+    public long getWarmupItemCount() {
+        return warmupItemCount;
     }
 
     /**
@@ -258,9 +347,12 @@ public abstract class Bucket {
     protected Map<String,Object> getCommonConfig() {
         Map<String,Object> mm = new HashMap<String, Object>();
         mm.put("replicaNumber", numReplicas);
+        // As for a real cluster, rawRAM is the quota of each node, and ram the total for the bucket
+        long nodeQuota = servers[0].getStorage().getMemoryQuota();
+        long ram = nodeQuota == 0 ? 1024 * 1024 * 100 : nodeQuota * servers.length;
         Map<String,Object> ramQuota = new HashMap<String, Object>();
-        ramQuota.put("rawRAM", 1024 * 1024 * 100);
-        ramQuota.put("ram", 1024 * 1024 * 100);
+        ramQuota.put("rawRAM", nodeQuota == 0 ? 1024 * 1024 * 100 : nodeQuota);
+        ramQuota.put("ram", ram);
         mm.put("quota", ramQuota);
         return mm;
     }
@@ -274,6 +366,35 @@ public abstract class Bucket {
         return JsonUtils.encode(getConfigMap());
     }
 
+    /**
+     * Get the JSON-encoded configuration for the current configuration revision.
+     * The configuration is only rendered once per revision, and the returned object
+     * is shared by all callers.
+     *
+     * @return The rendered configuration
+     */
+    public RenderedConfig getRenderedConfig() {
+        configReadLock();
+        try {
+            int revision = Info.getConfigRevision();
+            int httpPort = cluster == null ? 0 : cluster.getHttpPort();
+            RenderedConfig config = renderedConfig;
+            if (config != null && config.getRevision() == revision && config.getHttpPort() == httpPort) {
+                return config;
+            }
+            synchronized (renderLock) {
+                config = renderedConfig;
+                if (config == null || config.getRevision() != revision || config.getHttpPort() != httpPort) {
+                    config = new RenderedConfig(revision, httpPort, getJSON());
+                    renderedConfig = config;
+                }
+                return config;
+            }
+        } finally {
+            configReadUnlock();
+        }
+    }
+
     /**
      * Lock the current configuration for reading. As long as this lock is held, any
      * configuration changes to the bucket (such as failover, removing a node, rebalances,
@@ -294,6 +415,26 @@ public abstract class Bucket {
         configurationRwLock.readLock().unlock();
     }
 
+    /**
+     * Register an observer which is notified whenever the configuration of the
+     * bucket changes (i.e. after failover, respawn, rebalance or regenCoords).
+     * Observers are invoked from the thread which changed the configuration,
+     * and should therefore not block.
+     *
+     * @param observer The observer to add
+     */
+    public void addConfigObserver(Observer observer) {
+        configObservable.addObserver(observer);
+    }
+
+    /**
+     * Remove an observer previously added via {@link #addConfigObserver(Observer)}
+     * @param observer The observer to remove
+     */
+    public void removeConfigObserver(Observer observer) {
+        configObservable.deleteObserver(observer);
+    }
+
     /**
      * Convenience method to store an item in a bucket
      * @param key The key of the item
@@ -326,6 +467,7 @@ public abstract class Bucket {
             Info.incrementConfigRevision();
             configurationRwLock.writeLock().unlock();
         }
+        configObservable.changed();
     }
 
     /**
@@ -344,22 +486,39 @@ public abstract class Bucket {
             Info.incrementConfigRevision();
             configurationRwLock.writeLock().unlock();
         }
+        configObservable.changed();
     }
 
     void start() {
+        EventLoopGroup group = cluster.getEventLoopGroup();
         for (int ii = 0; ii < servers.length; ii++) {
             servers[ii].setName(String.format("%s:MCD[%d]", name, ii));
-            servers[ii].setDaemon(true);
-            servers[ii].start();
+            if (group != null) {
+                servers[ii].start(group.next());
+            } else {
+                servers[ii].setDaemon(true);
+                servers[ii].start();
+            }
         }
     }
 
     void stop() {
         for (MemcachedServer t : servers) {
+            if (t.isOnSharedEventLoop()) {
+                try {
+                    t.detach();
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(CouchbaseMock.class.getName()).log(Level.SEVERE, null, ex);
+                    Thread.currentThread().interrupt();
+                }
+                t.getStorage().close();
+                continue;
+            }
             t.interrupt();
             do {
                 try {
                     t.join();
+                    t.getStorage().close();
                     t = null;
                 } catch (InterruptedException ex) {
                     Logger.getLogger(CouchbaseMock.class.getName()).log(Level.SEVERE, null, ex);
@@ -386,39 +545,94 @@ public abstract class Bucket {
 
     /**
      * Issues a rebalance within the bucket. vBuckets which are mapped to failed-over
-     * nodes are relocated with their first replica being promoted to active.
+     * nodes are relocated with their first replica being promoted to active, and
+     * the vBuckets are then balanced over the active nodes, moving as few of them
+     * as possible.
+     *
+     * @see VBucketPlacement
      */
     final void rebalance() {
-        // Let's start distribute the vbuckets across the servers
         configurationRwLock.writeLock().lock();
         try {
             Info.incrementConfigRevision();
-            List<MemcachedServer> nodes = activeServers();
+            boolean[] active = new boolean[servers.length];
+            for (int ii = 0; ii < servers.length; ii++) {
+                active[ii] = servers[ii].isActive();
+            }
+            int[] owners = new int[numVBuckets];
+            int[][] replicas = new int[numVBuckets][];
             for (int ii = 0; ii < numVBuckets; ++ii) {
-                Collections.shuffle(nodes);
-                vbInfo[ii].setOwner(nodes.get(0));
-                if (nodes.size() < 2) {
-                    continue;
+                owners[ii] = getServerIndex(vbInfo[ii].getOwner());
+                List<MemcachedServer> rl = vbInfo[ii].getReplicas();
+                replicas[ii] = new int[rl.size()];
+                for (int jj = 0; jj < replicas[ii].length; jj++) {
+                    replicas[ii][jj] = getServerIndex(rl.get(jj));
                 }
-                List<MemcachedServer> replicas = nodes.subList(1, nodes.size());
-                if (replicas.size() > numReplicas) {
-                    replicas = replicas.subList(0, numReplicas);
+            }
+
+            VBucketPlacement.rebalance(active, owners, replicas, numReplicas);
+
+            for (int ii = 0; ii < numVBuckets; ++ii) {
+                vbInfo[ii].setOwner(owners[ii] < 0 ? null : servers[owners[ii]]);
+                List<MemcachedServer> rl = new ArrayList<MemcachedServer>(replicas[ii].length);
+                for (int index : replicas[ii]) {
+                    rl.add(servers[index]);
                 }
-                vbInfo[ii].setReplicas(replicas);
+                vbInfo[ii].setReplicas(rl);
             }
         } finally {
             Info.incrementConfigRevision();
             configurationRwLock.writeLock().unlock();
         }
+        configObservable.changed();
     }
 
-    public void regenCoords() {
-        for (VBucketInfo cur : vbInfo) {
-            cur.regenerateUuid();
+    /**
+     * Replace the vBucket map, as when restoring a snapshot.
+     *
+     * @param owners The index of the node owning each vBucket, or -1 if there is none
+     * @param replicas The indexes of the replica nodes of each vBucket
+     * @param uuids The UUID of each vBucket
+     */
+    void restoreVBucketMap(int[] owners, int[][] replicas, long[] uuids) {
+        configurationRwLock.writeLock().lock();
+        try {
+            Info.incrementConfigRevision();
+            for (int ii = 0; ii < numVBuckets; ++ii) {
+                vbInfo[ii].setOwner(owners[ii] < 0 ? null : servers[owners[ii]]);
+                List<MemcachedServer> rl = new ArrayList<MemcachedServer>(replicas[ii].length);
+                for (int index : replicas[ii]) {
+                    rl.add(servers[index]);
+                }
+                vbInfo[ii].setReplicas(rl);
+                vbInfo[ii].setUuid(uuids[ii]);
+            }
+        } finally {
+            Info.incrementConfigRevision();
+            configurationRwLock.writeLock().unlock();
         }
-        for (MemcachedServer s : servers) {
-            s.getStorage().updateCoordinateInfo(vbInfo);
+        configObservable.changed();
+    }
+
+    /**
+     * Regenerate the UUIDs of all the vBuckets, as happens when a vBucket
+     * is recreated on another node. This bumps the configuration revision so
+     * that clients are notified about it.
+     */
+    public void regenCoords() {
+        configurationRwLock.writeLock().lock();
+        try {
+            for (VBucketInfo cur : vbInfo) {
+                cur.regenerateUuid();
+            }
+            for (MemcachedServer s : servers) {
+                s.getStorage().updateCoordinateInfo(vbInfo);
+            }
+        } finally {
+            Info.incrementConfigRevision();
+            configurationRwLock.writeLock().unlock();
         }
+        configObservable.changed();
     }
 
     /**
@@ -429,6 +643,24 @@ public abstract class Bucket {
         return password;
     }
 
+    /**
+     * Get the directory in which the nodes persist their items
+     * @return the directory, or null if the items are only persisted in memory
+     * @see BucketConfiguration#persistencePath
+     */
+    public String getPersistencePath() {
+        return persistencePath;
+    }
+
+    /**
+     * Whether the nodes keep their items outside of the Java heap
+     * @return true if the items are kept off the heap
+     * @see BucketConfiguration#offHeap
+     */
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
     /** Get the name of the bucket
      * @return name
      * */
@@ -44,8 +44,26 @@ public class BucketConfiguration {
      * 5, then the nodes will listen on ports 1100 through 1104 */
     public int bucketStartPort = 0;
 
+    /** The delay, in milliseconds, between a mutation on the active node and it being applied on the replicas */
+    public int replicationLag = 0;
+
+    /** The directory in which the nodes persist items (one subdirectory per bucket and node). Items persisted
+     * by a previous run are loaded into the cache when the bucket is created. If null, persisted items are
+     * only kept in memory */
+    public String persistencePath = null;
+
+    /** Whether the nodes keep items outside of the Java heap, so that large data sets don't cause long garbage
+     * collection pauses. Items are then copied on each access */
+    public boolean offHeap = false;
+
+    /** The memory quota of each node, in bytes, or 0 for none. Above 85% of the quota, the values of the persisted
+     * items are evicted from the cache, and read again when accessed. Mutations are rejected when eviction can't
+     * keep the memory used below the quota. Note that evicted values only free memory if the persisted items are
+     * not kept on the heap (see {@link #persistencePath} and {@link #offHeap}) */
+    public long memoryQuota = 0;
+
     public boolean validate() {
-        return name != null && bucketStartPort >= 0;
+        return name != null && bucketStartPort >= 0 && replicationLag >= 0;
     }
 
     /**
@@ -67,6 +85,10 @@ public class BucketConfiguration {
         numReplicas = other.numReplicas;
         type = other.type;
         hostname = other.hostname;
+        replicationLag = other.replicationLag;
+        persistencePath = other.persistencePath;
+        offHeap = other.offHeap;
+        memoryQuota = other.memoryQuota;
     }
 
     /** Gets the {@link #name }
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock;
+
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.VBucketInfo;
+import com.couchbase.mock.memcached.protocol.Datatype;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Loads many documents into a bucket.
+ *
+ * Documents are accumulated in batches, whose keys are hashed to their
+ * vBuckets at once. Each batch is split by node, and the items of each node
+ * are stored in parallel through {@link com.couchbase.mock.memcached.Storage#loadItems(List)}.
+ * The items of a given node are always stored by the same thread, so that
+ * when a key is loaded more than once, the last document wins.
+ */
+public class BulkLoader {
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    private final Bucket bucket;
+    private final int batchSize;
+    private final ExecutorService[] lanes;
+    private final Semaphore inFlight;
+    private final Map<MemcachedServer, Integer> laneOf = new IdentityHashMap<MemcachedServer, Integer>();
+    private final AtomicLong numLoaded = new AtomicLong();
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private List<String> keys;
+    private List<byte[]> values;
+    private boolean finished;
+
+    /**
+     * Create a loader using one thread per available processor
+     *
+     * @param bucket The bucket into which the documents should be loaded
+     */
+    public BulkLoader(Bucket bucket) {
+        this(bucket, DEFAULT_BATCH_SIZE, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param bucket The bucket into which the documents should be loaded
+     * @param batchSize The number of documents hashed and split by node at once
+     * @param numThreads The maximum number of threads storing the documents
+     */
+    public BulkLoader(Bucket bucket, int batchSize, int numThreads) {
+        if (bucket.getType() != Bucket.BucketType.COUCHBASE) {
+            throw new UnsupportedOperationException("Storing items not yet supported for memcached buckets!");
+        }
+        if (batchSize < 1 || numThreads < 1) {
+            throw new IllegalArgumentException("Batch size and number of threads must be > 0");
+        }
+        this.bucket = bucket;
+        this.batchSize = batchSize;
+
+        MemcachedServer[] servers = bucket.getServers();
+        lanes = new ExecutorService[Math.min(numThreads, servers.length)];
+        for (int ii = 0; ii < servers.length; ii++) {
+            laneOf.put(servers[ii], ii % lanes.length);
+        }
+        final String prefix = bucket.getName() + ":loader-";
+        for (int ii = 0; ii < lanes.length; ii++) {
+            final String name = prefix + ii;
+            lanes[ii] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        // Bound the memory used by the documents not stored yet
+        inFlight = new Semaphore(lanes.length * 2);
+        keys = new ArrayList<String>(batchSize);
+        values = new ArrayList<byte[]>(batchSize);
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure.get();
+        if (t != null) {
+            throw new IOException("Failed to store documents", t);
+        }
+    }
+
+    /**
+     * Queue a document to be stored
+     *
+     * @param key The key of the document
+     * @param value The document
+     * @throws IOException If storing previous documents failed. The loader
+     *         is then aborted
+     */
+    public void add(String key, byte[] value) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("The loader is finished");
+        }
+        keys.add(key);
+        values.add(value);
+        if (keys.size() >= batchSize) {
+            boolean flushed = false;
+            try {
+                flush();
+                flushed = true;
+            } finally {
+                if (!flushed) {
+                    abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop loading, and release the threads of the loader. The documents
+     * queued but not handed over to the threads are discarded, while those
+     * already handed over are still stored in the background.
+     */
+    public void abort() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        keys = null;
+        values = null;
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    private void flush() throws IOException {
+        checkFailure();
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        short[] vbuckets = bucket.getVbIndexesForKeys(keys);
+        VBucketInfo[] vbInfo = bucket.getVBucketInfo();
+        Map<MemcachedServer, List<Item>> byNode = new IdentityHashMap<MemcachedServer, List<Item>>();
+        for (int ii = 0; ii < vbuckets.length; ii++) {
+            MemcachedServer owner = vbInfo[vbuckets[ii]].getOwner();
+            if (owner == null) {
+                throw new IOException("No node owns vBucket " + vbuckets[ii]);
+            }
+            List<Item> items = byNode.get(owner);
+            if (items == null) {
+                items = new ArrayList<Item>();
+                byNode.put(owner, items);
+            }
+            items.add(new Item(new KeySpec(keys.get(ii), vbuckets[ii]), 0, 0, values.get(ii), null, 0, Datatype.RAW.value()));
+        }
+        keys = new ArrayList<String>(batchSize);
+        values = new ArrayList<byte[]>(batchSize);
+
+        for (Map.Entry<MemcachedServer, List<Item>> entry : byNode.entrySet()) {
+            final MemcachedServer server = entry.getKey();
+            final List<Item> items = entry.getValue();
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading documents", ex);
+            }
+            lanes[laneOf.get(server)].execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        server.getStorage().loadItems(items);
+                        numLoaded.addAndGet(items.size());
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Store the queued documents, and wait for all the documents to be stored
+     *
+     * @return The number of documents loaded
+     * @throws IOException If the documents could not be stored
+     */
+    public long finish() throws IOException {
+        if (finished) {
+            return numLoaded.get();
+        }
+        try {
+            flush();
+        } finally {
+            finished = true;
+            for (ExecutorService lane : lanes) {
+                lane.shutdown();
+            }
+            try {
+                for (ExecutorService lane : lanes) {
+                    while (!lane.awaitTermination(1, TimeUnit.SECONDS)) {
+                        // Keep waiting
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading documents", ex);
+            }
+        }
+        checkFailure();
+        return numLoaded.get();
+    }
+}
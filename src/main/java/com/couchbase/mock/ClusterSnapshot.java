@@ -0,0 +1,385 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock;
+
+import com.couchbase.mock.http.User;
+import com.couchbase.mock.http.capi.CAPIServer;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.VBucketInfo;
+import com.couchbase.mock.views.DesignDocument;
+import com.couchbase.mock.views.DesignParseException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Saves the complete state of a cluster to a file, and restores it.
+ *
+ * The snapshot contains the users, and for each bucket its vBucket map,
+ * its design documents and the cached and persisted items and vBucket
+ * coordinates of each node. It is restored from a read-only memory mapping
+ * of the file, so that forked test JVMs restoring the same fixture share
+ * its pages. The nodes of each bucket are restored in parallel.
+ *
+ * A bucket of the running cluster with the same name and layout as a saved
+ * one is restored in place, so that its nodes keep their ports and clients
+ * stay connected. Other buckets are recreated, and buckets missing from the
+ * snapshot are removed. Recreated buckets persist their items in the
+ * directory configured for the restoring cluster, never in that of the
+ * saved one, which may still be in use.
+ *
+ * Layout (big endian):
+ * <pre>
+ * int    magic, "CBMS"
+ * int    version
+ * bytes  the users, as a JSON array
+ * int    number of buckets
+ * -- per bucket --
+ * bytes  name, password and hostname
+ * byte   type (the ordinal of {@link Bucket.BucketType})
+ * int    number of nodes, vBuckets and replicas, and the replication lag
+ * -- storage settings (since version 2) --
+ * byte   1 if the items are kept off the heap, else 0
+ * long   memory quota of each node
+ * -- per vBucket --
+ * long   uuid
+ * short  index of the owner (-1 for none)
+ * byte   number of replicas, followed by their indexes (shorts)
+ * -- design documents --
+ * int    number of design documents
+ * bytes  id and body of each design document
+ * -- per node --
+ * byte   1 if the node is active, 0 if it is failed over
+ * int    length of the node's storage, as written by
+ *        {@link com.couchbase.mock.memcached.Storage#writeSnapshot(java.io.DataOutput)}
+ * </pre>
+ * where <i>bytes</i> is an int length followed by as many bytes (UTF-8 for strings).
+ */
+public final class ClusterSnapshot {
+    private static final int MAGIC = 0x43424d53; // "CBMS"
+    private static final int VERSION = 2;
+    private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+    private static final String DESIGN_PREFIX = "_design/";
+
+    private ClusterSnapshot() {
+    }
+
+    /**
+     * Save the state of a cluster. Mutations performed while the snapshot is
+     * written may or may not be part of it, so clients should be idle.
+     *
+     * @param mock The cluster
+     * @param file The file to write to. It is replaced atomically.
+     * @throws IOException if the file could not be written
+     */
+    public static void save(CouchbaseMock mock, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, JsonUtils.encode(new ArrayList<User>(mock.getUsers().values())));
+
+            List<Bucket> buckets;
+            synchronized (mock.getBuckets()) {
+                buckets = new ArrayList<Bucket>(mock.getBuckets().values());
+            }
+            out.writeInt(buckets.size());
+            for (Bucket bucket : buckets) {
+                writeBucket(out, bucket);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Failed to rename " + tmp + " to " + file);
+        }
+    }
+
+    private static void writeBucket(DataOutputStream out, Bucket bucket) throws IOException {
+        MemcachedServer[] servers = bucket.getServers();
+        VBucketInfo[] vbInfo = bucket.getVBucketInfo();
+        writeString(out, bucket.getName());
+        writeString(out, bucket.getPassword());
+        writeString(out, servers[0].getHostname());
+        out.writeByte(bucket.getType().ordinal());
+        out.writeInt(servers.length);
+        out.writeInt(vbInfo.length);
+        out.writeInt(bucket.numReplicas);
+        out.writeInt(servers[0].getStorage().getDcpConsumer().getLag());
+        out.writeByte(bucket.isOffHeap() ? 1 : 0);
+        out.writeLong(servers[0].getStorage().getMemoryQuota());
+
+        bucket.configReadLock();
+        try {
+            for (VBucketInfo vbi : vbInfo) {
+                out.writeLong(vbi.getUuid());
+                MemcachedServer owner = vbi.getOwner();
+                out.writeShort(bucket.getServerIndex(owner));
+                List<MemcachedServer> replicas = vbi.getReplicas();
+                out.writeByte(replicas.size());
+                for (MemcachedServer replica : replicas) {
+                    out.writeShort(bucket.getServerIndex(replica));
+                }
+            }
+        } finally {
+            bucket.configReadUnlock();
+        }
+
+        CAPIServer capi = bucket.getCAPIServer();
+        List<DesignDocument> designs = capi == null ? new ArrayList<DesignDocument>() : capi.getDesigns();
+        out.writeInt(designs.size());
+        for (DesignDocument design : designs) {
+            writeString(out, design.getId());
+            writeString(out, design.getBody());
+        }
+
+        ByteArrayOutputStream node = new ByteArrayOutputStream();
+        for (MemcachedServer server : servers) {
+            node.reset();
+            DataOutputStream nodeOut = new DataOutputStream(node);
+            server.getStorage().writeSnapshot(nodeOut);
+            nodeOut.flush();
+            out.writeByte(server.isActive() ? 1 : 0);
+            out.writeInt(node.size());
+            node.writeTo(out);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(UTF8_CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, UTF8_CHARSET);
+    }
+
+    /**
+     * Restore the state of a cluster. This should not be done while clients
+     * are performing operations.
+     *
+     * @param mock The cluster, which may be running or freshly started
+     * @param file The snapshot, as written by {@link #save(CouchbaseMock, File)}
+     * @throws IOException if the snapshot could not be read, or the buckets could not be recreated
+     */
+    public static void restore(CouchbaseMock mock, File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer in;
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large: " + file);
+            }
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // The mapping stays valid once the file is closed
+            raf.close();
+        }
+
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            int version = in.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            }
+            restore(mock, in, version);
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Truncated snapshot: " + file, ex);
+        }
+    }
+
+    private static void restore(CouchbaseMock mock, ByteBuffer in, int version) throws IOException {
+        User[] users = JsonUtils.decode(readString(in), User[].class);
+        Map<String, User> userMap = mock.getUsers();
+        userMap.clear();
+        for (User user : users) {
+            userMap.put(user.getId(), user);
+        }
+
+        int numBuckets = in.getInt();
+        Set<String> names = new HashSet<String>();
+        List<Callable<Void>> nodes = new ArrayList<Callable<Void>>();
+        for (int ii = 0; ii < numBuckets; ii++) {
+            names.add(restoreBucket(mock, in, version, nodes));
+        }
+
+        List<String> removed = new ArrayList<String>();
+        synchronized (mock.getBuckets()) {
+            for (String name : mock.getBuckets().keySet()) {
+                if (!names.contains(name)) {
+                    removed.add(name);
+                }
+            }
+        }
+        for (String name : removed) {
+            mock.removeBucket(name);
+        }
+
+        int numThreads = Math.max(1, Math.min(nodes.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (Future<Void> future : executor.invokeAll(nodes)) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while restoring the snapshot", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Failed to restore the snapshot", ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Restore the configuration of a bucket, and queue the restoration of its nodes.
+     * Snapshots of version 1 have no storage settings, and use those of the
+     * default configuration of the cluster. The persistence directory is
+     * never taken from the snapshot, which may come from another cluster
+     * still using it: recreated buckets use that of the default configuration.
+     *
+     * @return the name of the bucket
+     */
+    private static String restoreBucket(CouchbaseMock mock, ByteBuffer in, int version,
+                                        List<Callable<Void>> nodes) throws IOException {
+        BucketConfiguration config = mock.getDefaultConfig();
+        config.name = readString(in);
+        config.password = readString(in);
+        config.hostname = readString(in);
+        config.type = Bucket.BucketType.values()[in.get()];
+        config.numNodes = in.getInt();
+        config.numVBuckets = in.getInt();
+        config.numReplicas = in.getInt();
+        config.replicationLag = in.getInt();
+        if (version >= 2) {
+            config.offHeap = in.get() != 0;
+            config.memoryQuota = in.getLong();
+        }
+
+        int[] owners = new int[config.numVBuckets];
+        int[][] replicas = new int[config.numVBuckets][];
+        long[] uuids = new long[config.numVBuckets];
+        for (int vb = 0; vb < config.numVBuckets; vb++) {
+            uuids[vb] = in.getLong();
+            owners[vb] = in.getShort();
+            replicas[vb] = new int[in.get()];
+            for (int ii = 0; ii < replicas[vb].length; ii++) {
+                replicas[vb][ii] = in.getShort();
+            }
+        }
+
+        Bucket bucket = mock.getBuckets().get(config.name);
+        if (bucket != null && !isSameLayout(bucket, config)) {
+            mock.removeBucket(config.name);
+            bucket = null;
+        }
+        if (bucket == null) {
+            try {
+                mock.createBucket(config);
+            } catch (BucketAlreadyExistsException ex) {
+                throw new IOException(ex);
+            }
+            bucket = mock.getBuckets().get(config.name);
+        }
+        bucket.restoreVBucketMap(owners, replicas, uuids);
+
+        int numDesigns = in.getInt();
+        CAPIServer capi = bucket.getCAPIServer();
+        if (capi != null) {
+            for (DesignDocument design : capi.getDesigns()) {
+                capi.removeDesign(design);
+            }
+        }
+        for (int ii = 0; ii < numDesigns; ii++) {
+            String id = readString(in);
+            String body = readString(in);
+            if (capi == null) {
+                continue;
+            }
+            String name = id.startsWith(DESIGN_PREFIX) ? id.substring(DESIGN_PREFIX.length()) : id;
+            try {
+                capi.addDesign(DesignDocument.create(body, name));
+            } catch (DesignParseException ex) {
+                throw new IOException("Invalid design document " + id, ex);
+            }
+        }
+
+        for (final MemcachedServer server : bucket.getServers()) {
+            boolean active = in.get() != 0;
+            if (active) {
+                server.startup();
+            } else {
+                server.shutdown();
+            }
+            server.getStorage().getDcpConsumer().setLag(config.replicationLag);
+            server.getStorage().setMemoryQuota(config.memoryQuota);
+
+            int length = in.getInt();
+            ByteBuffer slice = in.duplicate();
+            slice.limit(slice.position() + length);
+            final ByteBuffer section = slice.slice();
+            in.position(in.position() + length);
+            nodes.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    server.getStorage().restoreSnapshot(section);
+                    return null;
+                }
+            });
+        }
+        return config.name;
+    }
+
+    /**
+     * Check whether a bucket can be restored in place. Its nodes must keep
+     * their items on or off the heap as in the snapshot, while the memory
+     * quota is simply applied to them. They keep their own persistence
+     * directory.
+     */
+    private static boolean isSameLayout(Bucket bucket, BucketConfiguration config) {
+        return bucket.getType() == config.type &&
+                bucket.isOffHeap() == config.offHeap &&
+                bucket.getServers().length == config.numNodes &&
+                bucket.getVBucketInfo().length == config.numVBuckets &&
+                bucket.numReplicas == config.numReplicas &&
+                bucket.getPassword().equals(config.password);
+    }
+}
@@ -21,6 +21,7 @@ import com.couchbase.mock.memcached.MemcachedServer;
 import com.couchbase.mock.memcached.VBucketStore;
 import com.couchbase.mock.memcached.protocol.Datatype;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
+import com.couchbase.mock.util.VBucketHash;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -28,7 +29,6 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.CRC32;
 
 /**
  * Representation of a membase bucket
@@ -44,11 +44,14 @@ public class CouchbaseBucket extends Bucket {
 
     @Override
     public short getVbIndexForKey(String key) {
-        CRC32 crc32 = new CRC32();
-        crc32.update(key.getBytes());
-        long digest = ( crc32.getValue() >> 16 ) & 0x7fff;
-        long vbKey = digest & ( vbInfo.length - 1 );
-        return (short) vbKey;
+        return VBucketHash.vbucketOf(key, vbInfo.length);
+    }
+
+    @Override
+    public short[] getVbIndexesForKeys(List<String> keys) {
+        short[] ret = new short[keys.size()];
+        VBucketHash.vbucketsOf(keys, vbInfo.length, ret);
+        return ret;
     }
 
     @Override
@@ -105,14 +108,21 @@ public class CouchbaseBucket extends Bucket {
             serverList.add(server.getSocketName());
         }
         vbm.put("serverList", serverList);
+        // The index in the server list of each server, offset by one so
+        // that a missing server (index -1) maps to -1
+        int[] indexes = new int[servers.length + 1];
+        Arrays.fill(indexes, -1);
+        for (int ii = 0; ii < active.size(); ii++) {
+            indexes[getServerIndex(active.get(ii)) + 1] = ii;
+        }
         ArrayList<ArrayList<Integer>> m = new ArrayList<ArrayList<Integer>>();
         for (short ii = 0; ii < numVBuckets; ++ii) {
             MemcachedServer master = vbInfo[ii].getOwner();
             List<MemcachedServer> replicas = vbInfo[ii].getReplicas();
-            ArrayList<Integer> line = new ArrayList<Integer>();
-            line.add(active.indexOf(master));
+            ArrayList<Integer> line = new ArrayList<Integer>(numReplicas + 1);
+            line.add(indexes[getServerIndex(master) + 1]);
             for (MemcachedServer replica : replicas) {
-                line.add(active.indexOf(replica));
+                line.add(indexes[getServerIndex(replica) + 1]);
             }
 
             // If numReplicas is greater than list.size() - 1
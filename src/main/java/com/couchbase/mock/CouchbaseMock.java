@@ -30,11 +30,14 @@ import com.couchbase.mock.http.capi.CAPIServer;
 import com.couchbase.mock.http.PingServer;
 import com.couchbase.mock.http.query.QueryServer;
 import com.couchbase.mock.httpio.HttpServer;
+import com.couchbase.mock.memcached.EventLoopGroup;
 import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.security.sasl.ScramCredentialStore;
 import com.couchbase.mock.util.Getopt;
 import com.couchbase.mock.util.Getopt.CommandLineOption;
 import com.couchbase.mock.util.Getopt.Entry;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -78,6 +81,8 @@ public class CouchbaseMock {
 
     private int port = 8091;
     private HarakiriMonitor harakiriMonitor;
+    private int numEventLoops = -1;
+    private EventLoopGroup eventLoopGroup;
 
     public boolean isCccpBootstrap() {
         return cccpBootstrap;
@@ -131,6 +136,25 @@ public class CouchbaseMock {
         startHarakiriMonitor(new InetSocketAddress(h, p), terminate);
     }
 
+    /**
+     * Multiplex the nodes of all the buckets on a fixed number of shared event
+     * loops, rather than running one thread per node. Must be called before
+     * the mock is started.
+     *
+     * @param numLoops The number of loops, 0 for one per available processor,
+     *                 or a negative value for one thread per node (the default)
+     */
+    public void setEventLoops(int numLoops) {
+        numEventLoops = numLoops;
+    }
+
+    /**
+     * @return The loops serving the nodes, or null if each node runs its own thread
+     */
+    EventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
     public String getPoolName() {
         return "default";
     }
@@ -396,11 +420,12 @@ public class CouchbaseMock {
      * when all the command line parameters have been initialized; so that when the monitor
      * finally sends the port over the socket, all the items will have already been initialized.
      * @param docsFile Document file to load
+     * @param docsKey The field holding the key of the documents of a JSON document file
      * @param monitorAddress Monitor address
      * @param useBeerSample Whether to load the beer-sample bucket
      * @throws IOException if an I/O error occurs
      */
-    private void start(String docsFile, String monitorAddress, boolean useBeerSample) throws IOException {
+    private void start(String docsFile, String docsKey, String monitorAddress, boolean useBeerSample) throws IOException {
         try {
             if (port == 0) {
                 ServerSocketChannel ch = ServerSocketChannel.open();
@@ -418,6 +443,10 @@ public class CouchbaseMock {
             System.exit(-1);
         }
 
+        if (numEventLoops >= 0 && eventLoopGroup == null) {
+            eventLoopGroup = numEventLoops == 0 ? new EventLoopGroup() : new EventLoopGroup(numEventLoops);
+        }
+
         for (BucketConfiguration config : initialConfigs.values()) {
             try {
                 createBucket(config);
@@ -430,7 +459,11 @@ public class CouchbaseMock {
         // See if we need to load documents:
         if (docsFile != null) {
             DocumentLoader loader = new DocumentLoader(this, "default");
-            loader.loadDocuments(docsFile);
+            if (docsFile.endsWith(".zip")) {
+                loader.loadDocuments(docsFile);
+            } else {
+                loader.loadJson(docsFile, docsKey);
+            }
         } else if (useBeerSample) {
             RestAPIUtil.loadBeerSample(this);
         }
@@ -472,7 +505,7 @@ public class CouchbaseMock {
      * @throws IOException If an I/O error occurs
      */
     public void start() throws IOException {
-        start(null, null, false);
+        start(null, null, null, false);
     }
 
     /**
@@ -482,8 +515,16 @@ public class CouchbaseMock {
     public void stop() {
         httpServer.stopServer();
         for (Bucket bucket : buckets.values()) {
+            BucketAdminServer adminServer = bucket.getAdminServer();
+            if (adminServer != null) {
+                adminServer.shutdown();
+            }
             bucket.stop();
         }
+        if (eventLoopGroup != null) {
+            eventLoopGroup.shutdown();
+            eventLoopGroup = null;
+        }
     }
 
     private static void printVersion() {
@@ -505,10 +546,19 @@ public class CouchbaseMock {
         o.printf("-p --port             The REST port to listen on. If 0, port will be sent via --harakiri-monitor%n");
         o.printf("-S --with-beer-sample Initialize the cluster with the `beer-sample` bucket active%n");
         o.printf("-D --docs             Specify a ZIP file that should contain documents to be loaded%n");
-        o.printf("                      into the `default` bucket%n");
+        o.printf("                      into the `default` bucket, or a JSON file exported by cbexport%n");
+        o.printf("   --docs-key         The field holding the key of the documents of a JSON file. Default=key%n");
         o.printf("-E --empty            Initialize a blank cluster without any buckets. Buckets may then%n");
         o.printf("                      be later added via the REST API%n");
         o.printf("-c --cccp             Enable Carrier Publication bootstrap protocol by default%n");
+        o.printf("   --replication-lag  Delay (in ms) before mutations are applied on replicas. Default=%d%n", defaultConfig.replicationLag);
+        o.printf("   --persistence-dir  Keep persisted items in this directory, and reload them on startup%n");
+        o.printf("   --off-heap         Keep the items of the nodes outside of the Java heap%n");
+        o.printf("   --memory-quota     The memory quota (in MB) of each node; values are evicted above it%n");
+        o.printf("   --scram-iterations The number of PBKDF2 iterations used for SCRAM-SHA authentication. Default=%d%n",
+                ScramCredentialStore.DEFAULT_ITERATION_COUNT);
+        o.printf("   --event-loops      Serve the nodes of all buckets from this many shared threads rather than%n");
+        o.printf("                      one thread per node. 0 uses one thread per available processor%n");
         o.printf("-d --debug            Enable debug mode%n");
         o.printf("%n");
         o.printf("=== -- bucket option ===%n");
@@ -526,11 +576,18 @@ public class CouchbaseMock {
         int nodes = defaultConfig.numNodes;
         int vbuckets = defaultConfig.numVBuckets;
         int replicaCount = defaultConfig.numReplicas;
+        int replicationLag = defaultConfig.replicationLag;
+        String persistencePath = null;
+        boolean offHeap = false;
+        long memoryQuota = 0;
+        int scramIterations = ScramCredentialStore.DEFAULT_ITERATION_COUNT;
+        int eventLoops = -1;
 
         String harakiriMonitorAddress = null;
         String hostname = null;
         String bucketsSpec = null;
         String docsFile = null;
+        String docsKey = "key";
         boolean useBeerSample = false;
         boolean emptyCluster = false;
 
@@ -543,9 +600,16 @@ public class CouchbaseMock {
                 addOption(new CommandLineOption('\0', "--harakiri-monitor", true)).
                 addOption(new CommandLineOption('R', "--replicas", true)).
                 addOption(new CommandLineOption('D', "--docs", true)).
+                addOption(new CommandLineOption('\0', "--docs-key", true)).
                 addOption(new CommandLineOption('S', "--with-beer-sample", false)).
                 addOption(new CommandLineOption('E', "--empty", false)).
                 addOption(new CommandLineOption('c', "--cccp", false)).
+                addOption(new CommandLineOption('\0', "--replication-lag", true)).
+                addOption(new CommandLineOption('\0', "--persistence-dir", true)).
+                addOption(new CommandLineOption('\0', "--off-heap", false)).
+                addOption(new CommandLineOption('\0', "--memory-quota", true)).
+                addOption(new CommandLineOption('\0', "--scram-iterations", true)).
+                addOption(new CommandLineOption('\0', "--event-loops", true)).
                 addOption(new CommandLineOption('d', "--debug", false)).
                 addOption(new CommandLineOption('\0', "--version", false)).
                 addOption(new CommandLineOption('?', "--help", false));
@@ -566,12 +630,26 @@ public class CouchbaseMock {
                 replicaCount = Integer.parseInt(e.value);
             } else if (e.key.equals("-D") || e.key.equals("--docs")) {
                 docsFile = e.value;
+            } else if (e.key.equals("--docs-key")) {
+                docsKey = e.value;
             } else if (e.key.equals("-S") || e.key.equals("--with-beer-sample")) {
                 useBeerSample = true;
             } else if (e.key.equals("-E") || e.key.equals("--empty")) {
                 emptyCluster = true;
             } else if (e.key.equals("-c") || e.key.equals("--cccp")) {
                 cccpBootstrap = true;
+            } else if (e.key.equals("--replication-lag")) {
+                replicationLag = Integer.parseInt(e.value);
+            } else if (e.key.equals("--persistence-dir")) {
+                persistencePath = e.value;
+            } else if (e.key.equals("--off-heap")) {
+                offHeap = true;
+            } else if (e.key.equals("--memory-quota")) {
+                memoryQuota = Long.parseLong(e.value) * 1024 * 1024;
+            } else if (e.key.equals("--scram-iterations")) {
+                scramIterations = Integer.parseInt(e.value);
+            } else if (e.key.equals("--event-loops")) {
+                eventLoops = Integer.parseInt(e.value);
             } else if (e.key.equals("-d") || e.key.equals("--debug")) {
                 debug = true;
             } else if (e.key.equals("--harakiri-monitor")) {
@@ -590,12 +668,24 @@ public class CouchbaseMock {
         }
 
         try {
+            ScramCredentialStore.getDefault().setIterationCount(scramIterations);
             CouchbaseMock mock = new CouchbaseMock(hostname, port, nodes, 0, vbuckets, bucketsSpec, replicaCount);
             if (emptyCluster) {
                 mock.clearInitialConfigs();
             }
+            mock.setEventLoops(eventLoops);
+            mock.defaultConfig.replicationLag = replicationLag;
+            mock.defaultConfig.persistencePath = persistencePath;
+            mock.defaultConfig.offHeap = offHeap;
+            mock.defaultConfig.memoryQuota = memoryQuota;
+            for (BucketConfiguration config : mock.getInitialConfigs().values()) {
+                config.replicationLag = replicationLag;
+                config.persistencePath = persistencePath;
+                config.offHeap = offHeap;
+                config.memoryQuota = memoryQuota;
+            }
 
-            mock.start(docsFile, harakiriMonitorAddress, useBeerSample);
+            mock.start(docsFile, docsKey, harakiriMonitorAddress, useBeerSample);
 
         } catch (Exception e) {
             Logger.getLogger(CouchbaseMock.class.getName()).log(Level.SEVERE, "Could not create cluster: ", e);
@@ -606,4 +696,26 @@ public class CouchbaseMock {
     public Map<String, User> getUsers() {
         return users;
     }
+
+    /**
+     * Save the state of the cluster to a file
+     *
+     * @param file The file to write to
+     * @throws IOException if the file could not be written
+     * @see ClusterSnapshot
+     */
+    public void saveSnapshot(File file) throws IOException {
+        ClusterSnapshot.save(this, file);
+    }
+
+    /**
+     * Restore the state of the cluster from a file written by {@link #saveSnapshot(File)}
+     *
+     * @param file The snapshot
+     * @throws IOException if the snapshot could not be restored
+     * @see ClusterSnapshot
+     */
+    public void restoreSnapshot(File file) throws IOException {
+        ClusterSnapshot.restore(this, file);
+    }
 }
@@ -17,16 +17,24 @@
 package com.couchbase.mock;
 
 import com.couchbase.mock.client.RestAPIUtil;
-import com.couchbase.mock.memcached.protocol.ErrorCode;
 import com.couchbase.mock.util.ReaderUtils;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 import org.tukaani.xz.LZMA2Options;
 import org.tukaani.xz.XZInputStream;
 import org.tukaani.xz.XZOutputStream;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -41,13 +49,20 @@ import java.util.zip.ZipFile;
 
 /**
  * This is a miniature version of the {@code cbdocloader} tool.
+ *
+ * Besides the ZIP files of {@code cbdocloader}, documents may be loaded
+ * from the JSON files written by {@code cbexport}, either one document per
+ * line or a single array of documents. The documents are stored in bulk
+ * through a {@link BulkLoader}.
  */
 public class DocumentLoader {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     static final Pattern ptnDESIGN = Pattern.compile(".*/design_docs/(.*)\\.json$");
     static final Pattern ptnDOCUMENT = Pattern.compile(".*/docs/(.*)\\.json$");
 
     private final CouchbaseMock mock;
     private final Bucket bucket;
+    private BulkLoader bulkLoader;
 
     /**
      * Create a new document loader
@@ -67,11 +82,34 @@ public class DocumentLoader {
         }
     }
 
-    protected void handleDocument(String docId, String contents) {
-        ErrorCode result = bucket.storeItem(docId, contents.getBytes(Charset.forName("UTF-8")));
+    protected void handleDocument(String docId, byte[] contents) throws IOException {
+        if (bulkLoader == null) {
+            bulkLoader = new BulkLoader(bucket);
+        }
+        bulkLoader.add(docId, contents);
+    }
 
-        if (result.value() != ErrorCode.SUCCESS.value()) {
-            throw new RuntimeException("Couldn't store: " + result.value());
+    /**
+     * Wait for all the documents passed to {@link #handleDocument(String, byte[])} to be stored
+     */
+    protected void finishDocuments() throws IOException {
+        if (bulkLoader != null) {
+            try {
+                bulkLoader.finish();
+            } finally {
+                bulkLoader = null;
+            }
+        }
+    }
+
+    /**
+     * Give up on the documents passed to {@link #handleDocument(String, byte[])}
+     * and not stored yet, when loading failed
+     */
+    protected void abortDocuments() {
+        if (bulkLoader != null) {
+            bulkLoader.abort();
+            bulkLoader = null;
         }
     }
 
@@ -91,30 +129,139 @@ public class DocumentLoader {
 
         int numDocs = 0;
         int numDesigns = 0;
+        boolean skipDocs = isWarm();
+
+        try {
+            while (entries.hasMoreElements()) {
+                ZipEntry ent = entries.nextElement();
+                String fName = ent.getName();
+
+                Matcher mIsDoc = ptnDOCUMENT.matcher(fName);
+
+                if (mIsDoc.matches()) {
+                    if (skipDocs) {
+                        continue;
+                    }
+                    String docId = mIsDoc.group(1);
+                    handleDocument(docId, ReaderUtils.bytesFromStream(zipFile.getInputStream(ent)));
+                    numDocs++;
+                    continue;
+                }
+
+                Matcher mIsDesign = ptnDESIGN.matcher(fName);
+                if (mIsDesign.matches()) {
+                    String designName = mIsDesign.group(1);
+                    handleDesign(designName, ReaderUtils.fromStream(zipFile.getInputStream(ent)));
+                    numDesigns++;
+                }
+            }
+            finishDocuments();
+        } finally {
+            abortDocuments();
+            zipFile.close();
+        }
+        if (skipDocs) {
+            System.err.printf("Reused %d documents restored from disk. %d design documents%n", bucket.getWarmupItemCount(), numDesigns);
+        } else {
+            System.err.printf("Loaded %d documents. %d design documents%n", numDocs, numDesigns);
+        }
+    }
 
-        while (entries.hasMoreElements()) {
-            ZipEntry ent = entries.nextElement();
-            String fName = ent.getName();
-            InputStream is = zipFile.getInputStream(ent);
-            String contents = ReaderUtils.fromStream(is);
+    /**
+     * Load the documents of a JSON file written by {@code cbexport}. The
+     * format ({@code lines}: one document per line, or {@code list}: an array
+     * of documents) is detected from the contents. The key of each document
+     * is taken from one of its fields, which is kept in the stored document.
+     *
+     * @param path The path to the file
+     * @param keyField The name of the field holding the key of each document
+     * @throws IOException if an I/O error occurs, or if a document has no key
+     */
+    public void loadJson(String path, String keyField) throws IOException {
+        InputStream is = new FileInputStream(path);
+        try {
+            loadJson(is, keyField);
+        } finally {
+            is.close();
+        }
+    }
 
-            Matcher mIsDoc = ptnDOCUMENT.matcher(fName);
+    /**
+     * @see #loadJson(String, String)
+     * @param input The stream from which the documents are read
+     * @param keyField The name of the field holding the key of each document
+     * @throws IOException if an I/O error occurs, or if a document has no key
+     */
+    public void loadJson(InputStream input, String keyField) throws IOException {
+        if (isWarm()) {
+            System.err.printf("Reused %d documents restored from disk%n", bucket.getWarmupItemCount());
+            return;
+        }
+
+        BufferedInputStream bis = new BufferedInputStream(input);
+        int first;
+        do {
+            bis.mark(1);
+            first = bis.read();
+        } while (first != -1 && Character.isWhitespace(first));
+        if (first != -1) {
+            bis.reset();
+        }
 
-            if (mIsDoc.matches()) {
-                String docId = mIsDoc.group(1);
-                handleDocument(docId, contents);
-                numDocs++;
-                continue;
+        JsonParser parser = new JsonParser();
+        int numDocs = 0;
+        try {
+            if (first == '[') {
+                JsonReader reader = new JsonReader(new InputStreamReader(bis, UTF8));
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    JsonElement doc = parser.parse(reader);
+                    handleDocument(getKey(doc, keyField), doc.toString().getBytes(UTF8));
+                    numDocs++;
+                }
+                reader.endArray();
+            } else {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(bis, UTF8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    handleDocument(getKey(parser.parse(line), keyField), line.getBytes(UTF8));
+                    numDocs++;
+                }
             }
+            finishDocuments();
+        } catch (JsonParseException ex) {
+            throw new IOException("Invalid JSON document", ex);
+        } catch (IllegalStateException ex) {
+            throw new IOException("Invalid JSON document", ex);
+        } finally {
+            abortDocuments();
+        }
+        System.err.printf("Loaded %d documents%n", numDocs);
+    }
 
-            Matcher mIsDesign = ptnDESIGN.matcher(fName);
-            if (mIsDesign.matches()) {
-                String designName = mIsDesign.group(1);
-                handleDesign(designName, contents);
-                numDesigns++;
+    private static String getKey(JsonElement doc, String keyField) throws IOException {
+        if (doc.isJsonObject()) {
+            JsonElement key = ((JsonObject) doc).get(keyField);
+            if (key != null && key.isJsonPrimitive()) {
+                return key.getAsString();
             }
         }
-        System.err.printf("Loaded %d documents. %d design documents%n", numDocs, numDesigns);
+        throw new IOException("Document without a \"" + keyField + "\" field: " + doc);
+    }
+
+    /**
+     * Check whether the target bucket was already populated from its persisted
+     * items, in which case the documents don't need to be loaded again. Design
+     * documents are not persisted, and are always loaded.
+     *
+     * @return true if the documents should not be loaded
+     */
+    private boolean isWarm() {
+        return bucket != null && bucket.getWarmupItemCount() > 0;
     }
 
     static class StoredInfo implements Serializable {
@@ -129,8 +276,8 @@ public class DocumentLoader {
         }
 
         @Override
-        protected void handleDocument(String id, String contents) {
-            toStore.documents.put(id, contents);
+        protected void handleDocument(String id, byte[] contents) {
+            toStore.documents.put(id, new String(contents, UTF8));
         }
 
         @Override
@@ -159,8 +306,15 @@ public class DocumentLoader {
         }
 
         DocumentLoader loader = new DocumentLoader(mock, bucketName);
-        for (Map.Entry<String,String> ent : si.documents.entrySet()) {
-            loader.handleDocument(ent.getKey(), ent.getValue());
+        if (!loader.isWarm()) {
+            try {
+                for (Map.Entry<String,String> ent : si.documents.entrySet()) {
+                    loader.handleDocument(ent.getKey(), ent.getValue().getBytes(UTF8));
+                }
+                loader.finishDocuments();
+            } finally {
+                loader.abortDocuments();
+            }
         }
         for (Map.Entry<String,String> ent: si.designs.entrySet()) {
             loader.handleDesign(ent.getKey(), ent.getValue());
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The JSON configuration of a bucket, rendered once for a given configuration
+ * revision and shared by everything which needs to send it (CCCP, the
+ * {@code NOT_MY_VBUCKET} payload, and the HTTP handlers).
+ *
+ * Instances are obtained via {@link Bucket#getRenderedConfig()} and must not
+ * be modified.
+ */
+public final class RenderedConfig {
+    private static final String HOST_PLACEHOLDER = "$HOST";
+
+    private final int revision;
+    private final int httpPort;
+    private final String json;
+    private final byte[] bytes;
+    private final ConcurrentMap<String, byte[]> hostBytes = new ConcurrentHashMap<String, byte[]>();
+
+    RenderedConfig(int revision, int httpPort, String json) {
+        this.revision = revision;
+        this.httpPort = httpPort;
+        this.json = json;
+        this.bytes = json.getBytes();
+    }
+
+    /**
+     * @return the configuration revision this was rendered for
+     */
+    public int getRevision() {
+        return revision;
+    }
+
+    int getHttpPort() {
+        return httpPort;
+    }
+
+    /**
+     * @return the JSON-encoded configuration
+     */
+    public String getJSON() {
+        return json;
+    }
+
+    /**
+     * @return the JSON-encoded configuration. The returned array is shared and
+     * must not be modified
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the configuration as sent over the memcached protocol, where the
+     * hostname of the node the client is connected to is replaced with
+     * {@code $HOST}.
+     *
+     * @param hostname the hostname of the node
+     * @return the JSON-encoded configuration. The returned array is shared and
+     * must not be modified
+     */
+    public byte[] getBytesForHost(String hostname) {
+        byte[] ret = hostBytes.get(hostname);
+        if (ret == null) {
+            ret = json.replace(hostname, HOST_PLACEHOLDER).getBytes();
+            hostBytes.putIfAbsent(hostname, ret);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock;
+
+import java.util.Arrays;
+
+/**
+ * Computes the placement of the vBuckets on the nodes of a bucket.
+ *
+ * The placement is deterministic and balanced: each active node owns
+ * either floor or ceil of vBuckets / nodes vBuckets, and the replicas of
+ * the vBuckets of each node are spread the same way over the other nodes,
+ * so that if the node fails its vBuckets are taken over evenly. Starting
+ * from the previous placement, as few copies as possible are moved:
+ * copies on active nodes are kept unless their node has more than its
+ * share, and a vBucket whose owner is gone is preferably given to one of
+ * its replicas, which already has its items.
+ *
+ * Nodes are designated by their index in the bucket, and the placement is
+ * computed in O(vBuckets * replicas * nodes).
+ */
+final class VBucketPlacement {
+    private static final int[] NO_NODES = new int[0];
+
+    private VBucketPlacement() {
+    }
+
+    /**
+     * Place the owners. The owner of each vBucket is kept, or else replaced
+     * by the least loaded of its replicas, as long as the node stays within
+     * its share; the remaining vBuckets go to the least loaded nodes.
+     *
+     * @param active    Whether each node is active
+     * @param numActive The number of active nodes
+     * @param owners    The previous owner of each vBucket, or -1
+     * @param replicas  The previous replicas of each vBucket
+     * @param counts    The number of vBuckets owned by each node, updated
+     * @return the new owner of each vBucket
+     */
+    private static int[] placeOwners(boolean[] active, int numActive, int[] owners, int[][] replicas, int[] counts) {
+        int[] result = new int[owners.length];
+        Arrays.fill(result, -1);
+        int base = owners.length / numActive;
+        int extra = owners.length % numActive;
+
+        // Keep owners in place up to the share of each node, then allow the
+        // remaining few nodes to have one more. Only then are the vBuckets
+        // which can't stay in place moved to their replicas, so that they
+        // never displace an owner in place
+        for (int pass = 0; pass < 4; pass++) {
+            for (int vb = 0; vb < owners.length; vb++) {
+                if (result[vb] != -1) {
+                    continue;
+                }
+                int best = -1;
+                if (pass < 2) {
+                    best = isEligible(owners[vb], NO_NODES, active) ? owners[vb] : -1;
+                } else {
+                    for (int node : replicas[vb]) {
+                        if (isEligible(node, NO_NODES, active) && (best == -1 || counts[node] < counts[best])) {
+                            best = node;
+                        }
+                    }
+                }
+                if (best != -1 && (counts[best] < base || (pass % 2 == 1 && counts[best] == base && extra > 0))) {
+                    if (counts[best] == base) {
+                        extra--;
+                    }
+                    counts[best]++;
+                    result[vb] = best;
+                }
+            }
+        }
+
+        for (int vb = 0; vb < owners.length; vb++) {
+            if (result[vb] == -1) {
+                result[vb] = leastLoaded(NO_NODES, active, counts);
+                counts[result[vb]]++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Place the replicas of the vBuckets of a single owner. Each of the other
+     * active nodes gets its share of them: the replicas in place are kept up
+     * to that share, and the missing ones go preferably to the nodes having
+     * a copy of the vBucket, else to the nodes furthest below their share.
+     *
+     * @param vbs         The vBuckets of the owner
+     * @param owner       The owner
+     * @param active      Whether each node is active
+     * @param numActive   The number of active nodes
+     * @param owners      The previous owner of each vBucket
+     * @param replicas    The previous replicas of each vBucket
+     * @param numReplicas The number of replicas of each vBucket
+     * @param load        The number of replicas on each node, updated. The
+     *                    nodes with the least replicas get the larger shares
+     * @param result      The new replicas of each vBucket, updated
+     */
+    private static void placeReplicas(int[] vbs, int owner, boolean[] active, int numActive, int[] owners,
+                                      int[][] replicas, int numReplicas, int[] load, int[][] result) {
+        int numNodes = active.length;
+        if (numReplicas == 0) {
+            for (int vb : vbs) {
+                result[vb] = NO_NODES;
+            }
+            return;
+        }
+        int[] counts = new int[numNodes];
+        for (int vb : vbs) {
+            result[vb] = NO_NODES;
+            for (int node : replicas[vb]) {
+                int[] excluded = append(result[vb], owner);
+                if (result[vb].length < numReplicas && isEligible(node, excluded, active)) {
+                    result[vb] = append(result[vb], node);
+                    counts[node]++;
+                }
+            }
+        }
+
+        // The shares differ by one at most. The larger ones go to the least
+        // loaded nodes, keeping the replicas balanced overall, and then to
+        // the nodes with more replicas in place
+        int total = vbs.length * numReplicas;
+        int base = total / (numActive - 1);
+        int[] shares = new int[numNodes];
+        for (int node = 0; node < numNodes; node++) {
+            shares[node] = active[node] && node != owner ? base : 0;
+        }
+        for (int extra = total % (numActive - 1); extra > 0; extra--) {
+            int best = -1;
+            for (int node = 0; node < numNodes; node++) {
+                if (shares[node] == base && node != owner && active[node]
+                        && (best == -1 || load[node] < load[best]
+                        || (load[node] == load[best] && counts[node] > counts[best]))) {
+                    best = node;
+                }
+            }
+            shares[best]++;
+        }
+
+        // Drop the replicas in place beyond the share of their node, from
+        // the vBuckets missing the fewest replicas first
+        for (int missing = 0; missing < numReplicas; missing++) {
+            for (int ii = vbs.length - 1; ii >= 0; ii--) {
+                int vb = vbs[ii];
+                if (numReplicas - result[vb].length > missing) {
+                    continue;
+                }
+                for (int node : result[vb]) {
+                    if (counts[node] > shares[node]) {
+                        counts[node]--;
+                        result[vb] = remove(result[vb], node);
+                        break;
+                    }
+                }
+            }
+        }
+
+        // And fill in the missing ones, most missing first
+        for (int missing = numReplicas; missing > 0; missing--) {
+            for (int vb : vbs) {
+                if (numReplicas - result[vb].length < missing) {
+                    continue;
+                }
+                int[] excluded = append(result[vb], owner);
+                int best = -1;
+                for (int node : append(replicas[vb], owners[vb])) {
+                    if (isEligible(node, excluded, active) && counts[node] < shares[node]
+                            && (best == -1 || shares[node] - counts[node] > shares[best] - counts[best])) {
+                        best = node;
+                    }
+                }
+                for (int node = 0; best == -1 && node < numNodes; node++) {
+                    if (isEligible(node, excluded, active) && counts[node] < shares[node]
+                            && (best == -1 || shares[node] - counts[node] > shares[best] - counts[best])) {
+                        best = node;
+                    }
+                }
+                if (best == -1) {
+                    // Only when the shares can't be met by these vBuckets
+                    best = leastLoaded(excluded, active, counts);
+                }
+                counts[best]++;
+                result[vb] = append(result[vb], best);
+            }
+        }
+
+        // Filling in may have had to go beyond the shares, where all the nodes
+        // below their share already had a replica of the vBucket. Move such
+        // replicas wherever another vBucket lets them go
+        for (int vb : vbs) {
+            for (int ii = 0; ii < result[vb].length; ii++) {
+                int node = result[vb][ii];
+                if (counts[node] <= shares[node]) {
+                    continue;
+                }
+                int[] excluded = append(result[vb], owner);
+                for (int other = 0; other < numNodes; other++) {
+                    if (counts[other] < shares[other] && isEligible(other, excluded, active)) {
+                        counts[node]--;
+                        counts[other]++;
+                        result[vb][ii] = other;
+                        break;
+                    }
+                }
+            }
+        }
+
+        for (int node = 0; node < numNodes; node++) {
+            load[node] += counts[node];
+        }
+    }
+
+    private static int leastLoaded(int[] excluded, boolean[] active, int[] counts) {
+        int best = -1;
+        for (int node = 0; node < counts.length; node++) {
+            if (isEligible(node, excluded, active) && (best == -1 || counts[node] < counts[best])) {
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    private static boolean isEligible(int node, int[] excluded, boolean[] active) {
+        if (node < 0 || !active[node]) {
+            return false;
+        }
+        for (int other : excluded) {
+            if (other == node) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isEmpty(int[] owners) {
+        for (int owner : owners) {
+            if (owner != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lay out the vBuckets on the active nodes from scratch. The vBuckets are
+     * dealt to the nodes in turn, and the replicas of the vBuckets of a node
+     * are dealt to the other nodes in turn as well.
+     */
+    private static void layout(boolean[] active, int[] owners, int[][] replicas, int numReplicas) {
+        int[] nodes = new int[active.length];
+        int numActive = 0;
+        for (int node = 0; node < active.length; node++) {
+            if (active[node]) {
+                nodes[numActive++] = node;
+            }
+        }
+        for (int vb = 0; vb < owners.length; vb++) {
+            int owner = vb % numActive;
+            int round = vb / numActive;
+            owners[vb] = nodes[owner];
+            replicas[vb] = new int[numReplicas];
+            for (int ii = 0; ii < numReplicas; ii++) {
+                replicas[vb][ii] = nodes[(owner + 1 + (round + ii) % (numActive - 1)) % numActive];
+            }
+        }
+    }
+
+    private static int[] append(int[] array, int value) {
+        int[] ret = Arrays.copyOf(array, array.length + 1);
+        ret[array.length] = value;
+        return ret;
+    }
+
+    private static int[] remove(int[] array, int value) {
+        int[] ret = new int[array.length - 1];
+        int ii = 0;
+        for (int other : array) {
+            if (other != value) {
+                ret[ii++] = other;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Rebalance the vBuckets onto the active nodes.
+     *
+     * @param active      Whether each node is active
+     * @param owners      The owner of each vBucket, or -1 if it has none. This is
+     *                    updated with the new owners
+     * @param replicas    The replicas of each vBucket, in order. This is updated
+     *                    with the new replicas
+     * @param numReplicas The number of replicas of each vBucket
+     */
+    static void rebalance(boolean[] active, int[] owners, int[][] replicas, int numReplicas) {
+        int numVBuckets = owners.length;
+        int numNodes = active.length;
+        int numActive = 0;
+        for (boolean a : active) {
+            if (a) {
+                numActive++;
+            }
+        }
+        if (numActive == 0) {
+            Arrays.fill(owners, -1);
+            Arrays.fill(replicas, NO_NODES);
+            return;
+        }
+        numReplicas = Math.min(numReplicas, numActive - 1);
+        if (isEmpty(owners)) {
+            layout(active, owners, replicas, numReplicas);
+        }
+
+        int[] ownerCounts = new int[numNodes];
+        int[] newOwners = placeOwners(active, numActive, owners, replicas, ownerCounts);
+
+        int[][] owned = new int[numNodes][];
+        int[] numOwned = new int[numNodes];
+        for (int node = 0; node < numNodes; node++) {
+            owned[node] = new int[ownerCounts[node]];
+        }
+        for (int vb = 0; vb < numVBuckets; vb++) {
+            owned[newOwners[vb]][numOwned[newOwners[vb]]++] = vb;
+        }
+        int[][] newReplicas = new int[numVBuckets][];
+        int[] load = new int[numNodes];
+        for (int node = 0; node < numNodes; node++) {
+            placeReplicas(owned[node], node, active, numActive, owners, replicas, numReplicas, load, newReplicas);
+        }
+
+        System.arraycopy(newOwners, 0, owners, 0, numVBuckets);
+        System.arraycopy(newReplicas, 0, replicas, 0, numVBuckets);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several requests sent as one. The payload of the response is the
+ * array of their responses, in order.
+ */
+public class BatchRequest extends MockRequest {
+    private final List<Object> commands = new ArrayList<Object>();
+
+    public BatchRequest() {
+        super();
+        setName("batch");
+        payload.put("commands", commands);
+    }
+
+    public BatchRequest add(@NotNull MockRequest request) {
+        commands.add(request.getMap());
+        return this;
+    }
+}
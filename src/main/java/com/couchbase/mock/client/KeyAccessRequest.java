@@ -54,4 +54,13 @@ abstract class KeyAccessRequest extends MockRequest {
         command.put("payload", payload);
     }
 
+    /**
+     * Apply the request to each of the keys instead, in a single command.
+     *
+     * @param keys The keys
+     */
+    public void setKeys(@NotNull List<String> keys) {
+        payload.remove("Key");
+        payload.put("Keys", keys);
+    }
 }
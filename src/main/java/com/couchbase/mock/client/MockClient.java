@@ -15,29 +15,40 @@
  */
 package com.couchbase.mock.client;
 
+import com.couchbase.mock.harakiri.HarakiriMonitor;
 import com.google.gson.Gson;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * The MockClient utilize a dedicated connection to
  * perform all of the interaction to the mock server.
  */
 public class MockClient extends AbstractMockClient {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     private final InetSocketAddress listenAddress;
     private final ServerSocket serverSocket;
+    private final Gson gs = new Gson();
     private Socket clientSocket = null;
-    private BufferedReader reader = null;
-    private BufferedWriter writer = null;
+    private DataInputStream reader = null;
+    private OutputStream writer = null;
     private int restPort = -1;
+    private boolean framed = false;
     private volatile boolean isShutdown = false;
 
 
@@ -69,8 +80,8 @@ public class MockClient extends AbstractMockClient {
     @Override
     public void negotiate() throws IOException {
         clientSocket = serverSocket.accept();
-        reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        writer = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
+        reader = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+        writer = new BufferedOutputStream(clientSocket.getOutputStream());
 
         // Get REST port
         StringBuilder sb = new StringBuilder();
@@ -81,24 +92,99 @@ public class MockClient extends AbstractMockClient {
         restPort = Integer.parseInt(sb.toString());
     }
 
-    private void sendRequest(MockRequest request) throws IOException {
-        String encoded = new Gson().toJson(request.getMap());
-        writer.write(encoded, 0, encoded.length());
-        writer.write('\n');
-        writer.flush();
+    /**
+     * Send the requests in length-prefixed frames rather than in lines,
+     * which spares the mock from scanning large payloads.
+     *
+     * @param framed Whether to use frames
+     */
+    public void setFramed(boolean framed) {
+        this.framed = framed;
+    }
+
+    private void sendRequest(Map<String, Object> request) throws IOException {
+        byte[] encoded = gs.toJson(request).getBytes(UTF8);
+        if (framed) {
+            if (encoded.length > HarakiriMonitor.MAX_FRAME_SIZE) {
+                throw new IOException("Request too large");
+            }
+            writer.write(0);
+            writer.write(encoded.length >> 16);
+            writer.write(encoded.length >> 8);
+            writer.write(encoded.length);
+            writer.write(encoded);
+        } else {
+            writer.write(encoded);
+            writer.write('\n');
+        }
     }
 
     private MockResponse readResponse() throws IOException {
-        String respLine = reader.readLine();
-        return new MockResponse(respLine);
+        byte[] encoded;
+        if (framed) {
+            encoded = new byte[reader.readInt()];
+            reader.readFully(encoded);
+        } else {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = reader.read()) != '\n') {
+                if (c == -1) {
+                    throw new EOFException();
+                }
+                line.write(c);
+            }
+            encoded = line.toByteArray();
+        }
+        return new MockResponse(new String(encoded, UTF8));
     }
 
     @Override
     public @NotNull MockResponse request(@NotNull MockRequest request) throws IOException {
-        sendRequest(request);
+        sendRequest(request.getMap());
+        writer.flush();
         return readResponse();
     }
 
+    /**
+     * Send all the requests before reading their responses. The mock
+     * executes them in order.
+     *
+     * @param requests The requests to send
+     * @return The responses, in the order of the requests
+     * @throws IOException if an I/O error occurs
+     */
+    public @NotNull List<MockResponse> request(@NotNull List<MockRequest> requests) throws IOException {
+        return request(requests, false);
+    }
+
+    /**
+     * Send all the requests before reading their responses.
+     *
+     * @param requests The requests to send
+     * @param concurrent Whether the mock may execute the requests concurrently,
+     *                   in any order. They must then be independent of each other
+     * @return The responses, in the order of the requests
+     * @throws IOException if an I/O error occurs
+     */
+    public @NotNull List<MockResponse> request(@NotNull List<MockRequest> requests, boolean concurrent) throws IOException {
+        for (int ii = 0; ii < requests.size(); ii++) {
+            Map<String, Object> request = new HashMap<String, Object>(requests.get(ii).getMap());
+            request.put("id", ii);
+            if (concurrent) {
+                request.put("concurrent", true);
+            }
+            sendRequest(request);
+        }
+        writer.flush();
+
+        MockResponse[] responses = new MockResponse[requests.size()];
+        for (int ii = 0; ii < responses.length; ii++) {
+            MockResponse response = readResponse();
+            responses[response.getRawJson().get("id").getAsInt()] = response;
+        }
+        return Arrays.asList(responses);
+    }
+
     @Override
     public synchronized void shutdown() {
         if (isShutdown) {
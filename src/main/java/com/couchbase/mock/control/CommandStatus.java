@@ -23,6 +23,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 public class CommandStatus {
+    private static final Gson gs = new Gson();
     private boolean success = true;
     private String failMsg = null;
     private Throwable t = null;
@@ -50,8 +51,14 @@ public class CommandStatus {
         payload = o;
     }
 
-    @Override
-    public String toString() {
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * @return the response as it is sent to the client, before encoding
+     */
+    public Map<String, Object> toMap() {
         header.put("payload", payload);
         if (success) {
             header.put("status", "ok");
@@ -68,7 +75,11 @@ public class CommandStatus {
             sw.write("<<< END CAUGHT EXCEPTION");
             header.put("error", sw.toString());
         }
+        return header;
+    }
 
-        return new Gson().toJson(header);
+    @Override
+    public String toString() {
+        return gs.toJson(toMap());
     }
 }
@@ -40,7 +40,9 @@ import java.util.Set;
  * To implement a new command you should subclass the MockCommand
  * class and add implement the execute method. You must add the
  * name of the command to the Command enum, and register the
- * class in MockCommandDispatcher.
+ * class in MockCommandDispatcher. A single instance of the class
+ * executes all the commands, possibly concurrently, so it must not
+ * keep any state in its fields.
  *
  * @author mnunberg
  */
@@ -75,7 +77,10 @@ public abstract class MockCommand {
         SET_ENHANCED_ERRORS,
         SET_QUERY_ERROR_STATE,
         SET_COMPRESSION,
-        SET_SASL_MECHANISMS
+        SET_SASL_MECHANISMS,
+        SAVE_SNAPSHOT,
+        RESTORE_SNAPSHOT,
+        BATCH
     }
 
     /**
@@ -16,6 +16,7 @@
 package com.couchbase.mock.control;
 
 import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.control.handlers.BatchCommandHandler;
 import com.couchbase.mock.control.handlers.CCCPCommandHandler;
 import com.couchbase.mock.control.handlers.CheckRetryVerifyCommandHandler;
 import com.couchbase.mock.control.handlers.CompressionCommandHandler;
@@ -33,6 +34,7 @@ import com.couchbase.mock.control.handlers.RegenCoordsHandler;
 import com.couchbase.mock.control.handlers.ResetQueryStateHandler;
 import com.couchbase.mock.control.handlers.RespawnCommandHandler;
 import com.couchbase.mock.control.handlers.SetQueryErrorStateCommandHandler;
+import com.couchbase.mock.control.handlers.SnapshotCommandHandler;
 import com.couchbase.mock.control.handlers.StartCmdLogCommandHandler;
 import com.couchbase.mock.control.handlers.StartRetryVerifyComandHandler;
 import com.couchbase.mock.control.handlers.StopCmdLogCommandHandler;
@@ -51,8 +53,9 @@ import java.util.Map;
  */
 public class MockCommandDispatcher {
     public static final Map<String, Class> commandMap = new HashMap<String, Class>();
-    private static final Map<MockCommand.Command, Class> classMap
-            = new EnumMap<MockCommand.Command, Class>(MockCommand.Command.class);
+    // Handlers keep no state between commands, so a single instance serves them all
+    private static final Map<MockCommand.Command, MockCommand> handlerMap
+            = new EnumMap<MockCommand.Command, MockCommand>(MockCommand.Command.class);
     private static final Gson gs = new Gson();
 
     private static void registerClass(MockCommand.Command cmd, Class cls) {
@@ -63,7 +66,13 @@ public class MockCommandDispatcher {
         String commandName = cmd.toString().toUpperCase();
 
         commandMap.put(commandName, cls);
-        classMap.put(cmd, cls);
+        try {
+            handlerMap.put(cmd, (MockCommand) cls.newInstance());
+        } catch (InstantiationException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     static {
@@ -95,6 +104,9 @@ public class MockCommandDispatcher {
         registerClass(MockCommand.Command.SET_QUERY_ERROR_STATE, SetQueryErrorStateCommandHandler.class);
         registerClass(MockCommand.Command.SET_COMPRESSION, CompressionCommandHandler.class);
         registerClass(MockCommand.Command.SET_SASL_MECHANISMS, SetSaslMechanismsCommandHandler.class);
+        registerClass(MockCommand.Command.SAVE_SNAPSHOT, SnapshotCommandHandler.class);
+        registerClass(MockCommand.Command.RESTORE_SNAPSHOT, SnapshotCommandHandler.class);
+        registerClass(MockCommand.Command.BATCH, BatchCommandHandler.class);
     }
 
 
@@ -102,38 +114,18 @@ public class MockCommandDispatcher {
     private final CouchbaseMock mock;
 
     public @NotNull CommandStatus dispatch(String command, JsonObject payload) {
-        MockCommand obj;
-
-        command = command.replaceAll(" ", "_").toUpperCase();
-
-        if (!commandMap.containsKey(command)) {
-            throw new CommandNotFoundException("Unknown command: " + command);
-        }
-
         MockCommand.Command cmd;
-        Class cls;
-
         try {
-            cmd = MockCommand.Command.valueOf(command.toUpperCase());
-
+            cmd = MockCommand.Command.valueOf(command.replace(' ', '_').toUpperCase());
         } catch (IllegalArgumentException e) {
-            throw new CommandNotFoundException("No such command: " + command, e);
-        }
-
-        cls = classMap.get(cmd);
-        if (cls == null) {
-            throw new RuntimeException("Can't find class for " + cmd);
+            throw new CommandNotFoundException("Unknown command: " + command, e);
         }
 
-        try {
-            obj = (MockCommand) cls.newInstance();
-        } catch (InstantiationException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
+        MockCommand handler = handlerMap.get(cmd);
+        if (handler == null) {
+            throw new CommandNotFoundException("Unknown command: " + command);
         }
-
-        return obj.execute(mock, cmd, payload);
+        return handler.execute(mock, cmd, payload);
     }
 
     public MockCommandDispatcher(CouchbaseMock mock) {
@@ -159,24 +151,28 @@ public class MockCommandDispatcher {
         } catch (Throwable t) {
             return "{ \"status\" : \"fail\", \"error\" : \"Failed to parse input\" }";
         }
+        return process(object).toString();
+    }
 
-        String command = object.get("command").getAsString();
-        JsonObject payload;
-        if (!object.has("payload")) {
-            payload = new JsonObject();
-        } else {
-            payload = object.get("payload").getAsJsonObject();
-        }
-
+    /**
+     * Execute a command sent by the client
+     *
+     * @param object the command, with its name and payload
+     * @return command status
+     */
+    public @NotNull CommandStatus process(JsonObject object) {
         CommandStatus status;
-
+        JsonObject payload = new JsonObject();
         try {
+            String command = object.get("command").getAsString();
+            if (object.has("payload")) {
+                payload = object.get("payload").getAsJsonObject();
+            }
             status = dispatch(command, payload);
         } catch (Throwable t) {
             status = new CommandStatus();
             status.fail(t).setPayload(payload);
         }
-
-        return status.toString();
+        return status;
     }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.control.handlers;
+
+import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.control.CommandStatus;
+import com.couchbase.mock.control.MissingRequiredFieldException;
+import com.couchbase.mock.control.MockCommand;
+import com.couchbase.mock.control.MockCommandDispatcher;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Execute several commands at once. The <code>commands</code> of the
+ * payload is an array of commands, in the same form as a single one:
+ * <p> { "command" : "name of the command", "payload" : {  } } </p>
+ * They are executed in order, and the payload of the response is
+ * the array of their responses. The batch fails if any of them does.
+ */
+public final class BatchCommandHandler extends MockCommand {
+    @NotNull
+    @Override
+    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
+        if (!payload.has("commands")) {
+            throw new MissingRequiredFieldException("commands");
+        }
+
+        MockCommandDispatcher dispatcher = mock.getDispatcher();
+        JsonArray commands = payload.get("commands").getAsJsonArray();
+        List<Object> results = new ArrayList<Object>(commands.size());
+        int numFailed = 0;
+        for (int ii = 0; ii < commands.size(); ii++) {
+            CommandStatus status;
+            try {
+                JsonObject object = commands.get(ii).getAsJsonObject();
+                JsonObject subPayload = new JsonObject();
+                if (object.has("payload")) {
+                    subPayload = object.get("payload").getAsJsonObject();
+                }
+                status = dispatcher.dispatch(object.get("command").getAsString(), subPayload);
+            } catch (RuntimeException ex) {
+                status = new CommandStatus().fail(ex);
+            }
+            if (!status.isSuccess()) {
+                numFailed++;
+            }
+            results.add(status.toMap());
+        }
+
+        CommandStatus ret = new CommandStatus();
+        if (numFailed != 0) {
+            ret.fail(numFailed + " of " + commands.size() + " commands failed");
+        }
+        ret.setPayload(results);
+        return ret;
+    }
+}
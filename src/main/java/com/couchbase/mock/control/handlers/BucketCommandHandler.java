@@ -30,11 +30,23 @@ import org.jetbrains.annotations.NotNull;
  * @author M. Nunberg
  */
 abstract public class BucketCommandHandler extends MockCommand {
-    Bucket bucket;
-    int idx;
 
-    public @NotNull
-	CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
+    /**
+     * Execute the command on the server of the bucket
+     *
+     * @param bucket  the bucket of the payload
+     * @param idx     the index of the server in the bucket
+     * @param command the actual command being executed
+     * @param payload the payload containing arguments to the command
+     * @return command status
+     */
+    abstract
+    @NotNull
+    CommandStatus execute(Bucket bucket, int idx, @NotNull Command command, @NotNull JsonObject payload);
+
+    @NotNull
+    @Override
+    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
         if (payload == null) {
             throw new MissingRequiredFieldException("payload");
         }
@@ -42,14 +54,13 @@ abstract public class BucketCommandHandler extends MockCommand {
             throw new MissingRequiredFieldException("idx");
         }
 
-        idx = payload.get("idx").getAsInt();
+        int idx = payload.get("idx").getAsInt();
 
         String bucketStr = "default";
         if (payload.has("bucket")) {
             bucketStr = payload.get("bucket").getAsString();
         }
-        bucket = mock.getBuckets().get(bucketStr);
-        // The return from this method is not returned back to the client
-        return new CommandStatus().fail();
+        Bucket bucket = mock.getBuckets().get(bucketStr);
+        return execute(bucket, idx, command, payload);
     }
 }
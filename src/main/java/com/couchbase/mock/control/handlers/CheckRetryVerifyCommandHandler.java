@@ -16,7 +16,7 @@
 
 package com.couchbase.mock.control.handlers;
 
-import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.Bucket;
 import com.couchbase.mock.control.CommandStatus;
 import com.couchbase.mock.memcached.MemcachedServer;
 import com.couchbase.mock.memcached.errormap.ErrorMap;
@@ -25,7 +25,6 @@ import com.couchbase.mock.memcached.errormap.Verifier;
 import com.google.gson.JsonObject;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -34,8 +33,7 @@ import java.util.List;
 public class CheckRetryVerifyCommandHandler extends  BucketCommandHandler {
     @NotNull
     @Override
-    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
-        super.execute(mock, command, payload);
+    CommandStatus execute(Bucket bucket, int idx, @NotNull Command command, @NotNull JsonObject payload) {
         int opcode = payload.get("opcode").getAsInt();
         int errcode = payload.get("errcode").getAsInt();
         long fuzzms = 0;
@@ -44,7 +42,7 @@ public class CheckRetryVerifyCommandHandler extends  BucketCommandHandler {
         }
 
         // Get the logs from the server
-        List<MemcachedServer.CommandLogEntry> entries = new ArrayList<MemcachedServer.CommandLogEntry>(bucket.getServers()[idx].getLogs());
+        List<MemcachedServer.CommandLogEntry> entries = bucket.getServers()[idx].getLogs();
         bucket.getServers()[idx].stopLog();
 
         // Get the spec for the error code
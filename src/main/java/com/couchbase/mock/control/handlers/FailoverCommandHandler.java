@@ -15,7 +15,7 @@
  */
 package com.couchbase.mock.control.handlers;
 
-import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.Bucket;
 import com.couchbase.mock.control.CommandStatus;
 import com.google.gson.JsonObject;
 import org.jetbrains.annotations.NotNull;
@@ -24,8 +24,7 @@ public final class FailoverCommandHandler extends BucketCommandHandler {
 
     @NotNull
     @Override
-    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
-        super.execute(mock, command, payload);
+    CommandStatus execute(Bucket bucket, int idx, @NotNull Command command, @NotNull JsonObject payload) {
         boolean rebalance = true; // backward compatibility
         if (payload.has("rebalance")) {
             rebalance = payload.get("rebalance").getAsBoolean();
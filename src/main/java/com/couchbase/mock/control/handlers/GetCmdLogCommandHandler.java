@@ -16,7 +16,7 @@
 
 package com.couchbase.mock.control.handlers;
 
-import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.Bucket;
 import com.couchbase.mock.control.CommandStatus;
 import com.couchbase.mock.memcached.MemcachedServer;
 import com.google.gson.JsonArray;
@@ -29,14 +29,16 @@ import org.jetbrains.annotations.NotNull;
 public class GetCmdLogCommandHandler extends CmdLogCommandHandler {
     @NotNull
     @Override
-    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
-        super.execute(mock, command, payload);
+    CommandStatus execute(Bucket bucket, int idx, @NotNull Command command, @NotNull JsonObject payload) {
         JsonArray arr = new JsonArray();
         MemcachedServer server = bucket.getServers()[idx];
         for (MemcachedServer.CommandLogEntry ent : server.getLogs()) {
             JsonObject obj = new JsonObject();
             obj.addProperty("opcode", ent.getOpcode());
             obj.addProperty("ms_timestamp", ent.getMsTimestamp());
+            obj.addProperty("status", ent.getStatus());
+            obj.addProperty("vbucket", ent.getVBucket());
+            obj.addProperty("opaque", ent.getOpaque());
             arr.add(obj);
         }
 
@@ -15,11 +15,8 @@
  */
 package com.couchbase.mock.control.handlers;
 
-import com.couchbase.mock.CouchbaseMock;
-import com.couchbase.mock.control.CommandStatus;
 import com.couchbase.mock.memcached.MemcachedServer;
 import com.google.gson.JsonObject;
-import org.jetbrains.annotations.NotNull;
 
 /**
  * Hiccup will let all servers sleep after sending a specific amount of data.
@@ -28,20 +25,8 @@ import org.jetbrains.annotations.NotNull;
  */
 public final class HiccupCommandHandler extends ServersCommandHandler {
 
-    private int milliSeconds;
-    private int offset;
-
-    @NotNull
-    @Override
-    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
-        milliSeconds = payload.get("msecs").getAsInt();
-        offset = payload.get("offset").getAsInt();
-        super.execute(mock, command, payload);
-        return getResponse();
-    }
-
     @Override
-    void doServerCommand(MemcachedServer server) {
-        server.setHiccup(milliSeconds, offset);
+    void doServerCommand(MemcachedServer server, JsonObject payload) {
+        server.setHiccup(payload.get("msecs").getAsInt(), payload.get("offset").getAsInt());
     }
 }
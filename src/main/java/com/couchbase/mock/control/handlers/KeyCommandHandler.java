@@ -21,53 +21,98 @@ import com.couchbase.mock.control.CommandStatus;
 import com.couchbase.mock.control.MissingRequiredFieldException;
 import com.couchbase.mock.control.MockCommand;
 import com.couchbase.mock.memcached.KeySpec;
-import com.couchbase.mock.memcached.VBucketInfo;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import org.jetbrains.annotations.NotNull;
 
 import java.security.AccessControlException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
+ * A command operating on a key, or on each of the keys of the
+ * <code>Keys</code> array of the payload. The latter results in a
+ * single response, with the status of each key in its payload.
  *
  * @author Mark Nunberg
  */
 public abstract class KeyCommandHandler extends MockCommand {
-    KeySpec keySpec;
-    Bucket bucket;
-    VBucketInfo vbi;
+
+    /**
+     * Execute the command on a key
+     *
+     * @param bucket  the bucket of the key
+     * @param keySpec the key
+     * @param command the actual command being executed
+     * @param payload the payload containing arguments to the command
+     * @return command status
+     */
+    abstract
+    @NotNull
+    CommandStatus execute(@NotNull Bucket bucket, @NotNull KeySpec keySpec, @NotNull Command command, @NotNull JsonObject payload);
+
+    private static KeySpec getKeySpec(Bucket bucket, String key, short vbIndex) {
+        if (vbIndex < 0) {
+            vbIndex = bucket.getVbIndexForKey(key);
+        }
+        if (vbIndex >= bucket.getVBucketInfo().length) {
+            throw new AccessControlException("Invalid vBucket " + vbIndex);
+        }
+        return new KeySpec(key, vbIndex);
+    }
 
     @NotNull
     @Override
     public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
-        short vbIndex = -1;
-        String key;
-
         String bucketString = "default";
         if (payload.has("Bucket")) {
             bucketString = payload.get("Bucket").getAsString();
         }
 
-        bucket = mock.getBuckets().get(bucketString);
+        Bucket bucket = mock.getBuckets().get(bucketString);
         if (bucket == null) {
             throw new AccessControlException("No such bucket: " + bucketString);
         }
 
+        if (payload.has("Keys")) {
+            return executeMulti(bucket, payload.get("Keys").getAsJsonArray(), command, payload);
+        }
         if (!payload.has("Key")) {
             throw new MissingRequiredFieldException("Key");
         }
 
-        key = payload.get("Key").getAsString();
-        if (!payload.has("vBucket")) {
-            vbIndex = bucket.getVbIndexForKey(key);
+        short vbIndex = -1;
+        if (payload.has("vBucket")) {
+            vbIndex = payload.get("vBucket").getAsShort();
         }
+        return execute(bucket, getKeySpec(bucket, payload.get("Key").getAsString(), vbIndex), command, payload);
+    }
 
-        if (vbIndex < 0 || vbIndex >= bucket.getVBucketInfo().length) {
-            throw new AccessControlException("Invalid vBucket " + vbIndex);
+    private CommandStatus executeMulti(Bucket bucket, JsonArray keys, Command command, JsonObject payload) {
+        List<Object> results = new ArrayList<Object>(keys.size());
+        int numFailed = 0;
+        for (int ii = 0; ii < keys.size(); ii++) {
+            String key = keys.get(ii).getAsString();
+            CommandStatus status;
+            try {
+                status = execute(bucket, getKeySpec(bucket, key, (short) -1), command, payload);
+            } catch (RuntimeException ex) {
+                status = new CommandStatus().fail(ex);
+            }
+            if (!status.isSuccess()) {
+                numFailed++;
+            }
+            Map<String, Object> result = status.toMap();
+            result.put("Key", key);
+            results.add(result);
         }
 
-        keySpec = new KeySpec(key, vbIndex);
-        vbi = bucket.getVBucketInfo()[keySpec.vbId];
-        // The return from this method is not returned back to the client
-        return new CommandStatus().fail();
+        CommandStatus ret = new CommandStatus();
+        if (numFailed != 0) {
+            ret.fail(numFailed + " of " + keys.size() + " keys failed");
+        }
+        ret.setPayload(results);
+        return ret;
     }
 }
@@ -15,7 +15,7 @@
  */
 package com.couchbase.mock.control.handlers;
 
-import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.Bucket;
 import com.couchbase.mock.control.CommandStatus;
 import com.couchbase.mock.control.MockCommand;
 import com.couchbase.mock.memcached.Item;
@@ -37,7 +37,6 @@ import java.util.Map;
  * @author Mark Nunberg
  */
 public final class KeyInfoCommandHandler extends KeyCommandHandler {
-    private String result;
 
     private static Map<String,Object> itemToString(Item itm) {
         Map<String,Object> ret = new HashMap<String, Object>();
@@ -80,8 +79,8 @@ public final class KeyInfoCommandHandler extends KeyCommandHandler {
 
     @NotNull
     @Override
-    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull MockCommand.Command command, @NotNull JsonObject payload) {
-        super.execute(mock, command, payload);
+    CommandStatus execute(@NotNull Bucket bucket, @NotNull KeySpec keySpec, @NotNull MockCommand.Command command, @NotNull JsonObject payload) {
+        VBucketInfo vbi = bucket.getVBucketInfo()[keySpec.vbId];
         List<Object> infoList = new ArrayList<Object>();
         List<MemcachedServer> vbiServers = vbi.getAllServers();
 
@@ -15,11 +15,13 @@
  */
 package com.couchbase.mock.control.handlers;
 
-import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.Bucket;
 import com.couchbase.mock.control.CommandStatus;
 import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.KeySpec;
 import com.couchbase.mock.memcached.MemcachedServer;
 import com.couchbase.mock.memcached.Storage;
+import com.couchbase.mock.memcached.VBucketInfo;
 import com.couchbase.mock.memcached.protocol.Datatype;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -35,9 +37,7 @@ import java.util.List;
  */
 public final class PersistenceCommandHandler extends KeyCommandHandler {
 
-    private String error = null;
-
-    private void executeReal(JsonObject payload, Command command) {
+    private static void executeReal(Bucket bucket, KeySpec keySpec, JsonObject payload, Command command) {
         final String value;
         long cas = 0;
         boolean onMaster;
@@ -58,6 +58,7 @@ public final class PersistenceCommandHandler extends KeyCommandHandler {
             value = "";
         }
 
+        VBucketInfo vbi = bucket.getVBucketInfo()[keySpec.vbId];
         masterStore = vbi.getOwner().getStorage();
 
         if (onMaster) {
@@ -152,23 +153,12 @@ public final class PersistenceCommandHandler extends KeyCommandHandler {
 
     @NotNull
     @Override
-    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
-        super.execute(mock, command, payload);
+    CommandStatus execute(@NotNull Bucket bucket, @NotNull KeySpec keySpec, @NotNull Command command, @NotNull JsonObject payload) {
         try {
-            executeReal(payload, command);
+            executeReal(bucket, keySpec, payload, command);
         } catch (AccessControlException e) {
-            error = e.getMessage();
+            return new CommandStatus().fail(e.getMessage());
         }
-
         return getResponse();
     }
-
-    @NotNull
-    @Override
-    protected CommandStatus getResponse() {
-        if (error == null) {
-            return super.getResponse();
-        }
-        return new CommandStatus().fail(error);
-    }
 }
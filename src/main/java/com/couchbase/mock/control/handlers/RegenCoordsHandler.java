@@ -16,6 +16,7 @@
 
 package com.couchbase.mock.control.handlers;
 
+import com.couchbase.mock.Bucket;
 import com.couchbase.mock.CouchbaseMock;
 import com.couchbase.mock.control.CommandStatus;
 import com.couchbase.mock.control.MockCommand;
@@ -31,7 +32,12 @@ public class RegenCoordsHandler extends BucketCommandHandler {
     public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull MockCommand.Command command, @NotNull JsonObject payload) {
         // We ignore the payload here and regenerate on all buckets
         payload.addProperty("idx", 0);
-        super.execute(mock, command, payload);
+        return super.execute(mock, command, payload);
+    }
+
+    @NotNull
+    @Override
+    CommandStatus execute(Bucket bucket, int idx, @NotNull MockCommand.Command command, @NotNull JsonObject payload) {
         bucket.regenCoords();
         return getResponse();
     }
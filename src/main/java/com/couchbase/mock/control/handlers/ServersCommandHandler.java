@@ -28,7 +28,7 @@ import java.util.Set;
 
 public abstract class ServersCommandHandler extends MockCommand {
 
-    abstract void doServerCommand(MemcachedServer server);
+    abstract void doServerCommand(MemcachedServer server, JsonObject payload);
 
     @NotNull
     @Override
@@ -37,13 +37,12 @@ public abstract class ServersCommandHandler extends MockCommand {
         for (Bucket bucket : mock.getBuckets().values()) {
             for (MemcachedServer server : bucket.getServers()) {
                 if (!servers.contains(server)) {
-                    doServerCommand(server);
+                    doServerCommand(server, payload);
                     servers.add(server);
                 }
             }
         }
 
-        // The return from this method is not returned back to the client
-        return new CommandStatus().fail();
+        return getResponse();
     }
 }
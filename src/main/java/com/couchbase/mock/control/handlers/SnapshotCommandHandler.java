@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.control.handlers;
+
+import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.control.CommandStatus;
+import com.couchbase.mock.control.MissingRequiredFieldException;
+import com.couchbase.mock.control.MockCommand;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Saves the state of the cluster to the file given by {@code path}, or restores it.
+ *
+ * @see com.couchbase.mock.ClusterSnapshot
+ */
+public final class SnapshotCommandHandler extends MockCommand {
+    @NotNull
+    @Override
+    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
+        if (!payload.has("path")) {
+            throw new MissingRequiredFieldException("path");
+        }
+        File file = new File(payload.get("path").getAsString());
+        try {
+            if (command == Command.SAVE_SNAPSHOT) {
+                mock.saveSnapshot(file);
+            } else {
+                mock.restoreSnapshot(file);
+            }
+        } catch (IOException ex) {
+            return new CommandStatus().fail(ex);
+        }
+        return getResponse();
+    }
+}
@@ -16,7 +16,7 @@
 
 package com.couchbase.mock.control.handlers;
 
-import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.Bucket;
 import com.couchbase.mock.control.CommandStatus;
 import com.google.gson.JsonObject;
 import org.jetbrains.annotations.NotNull;
@@ -27,8 +27,7 @@ import org.jetbrains.annotations.NotNull;
 public class StartRetryVerifyComandHandler extends BucketCommandHandler {
     @NotNull
     @Override
-    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
-        super.execute(mock, command, payload);
+    CommandStatus execute(Bucket bucket, int idx, @NotNull Command command, @NotNull JsonObject payload) {
         bucket.getServers()[idx].stopLog();
         bucket.getServers()[idx].startLog();
         return new CommandStatus();
@@ -15,27 +15,13 @@
  */
 package com.couchbase.mock.control.handlers;
 
-import com.couchbase.mock.CouchbaseMock;
-import com.couchbase.mock.control.CommandStatus;
-import com.couchbase.mock.control.MockCommand;
 import com.couchbase.mock.memcached.MemcachedServer;
 import com.google.gson.JsonObject;
-import org.jetbrains.annotations.NotNull;
 
 public final class TruncateCommandHandler extends ServersCommandHandler {
 
-    private int truncateLimit;
-
-    @NotNull
-    @Override
-    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull MockCommand.Command command, @NotNull JsonObject payload) {
-        truncateLimit = payload.get("limit").getAsInt();
-        super.execute(mock, command, payload);
-        return getResponse();
-    }
-
     @Override
-    void doServerCommand(MemcachedServer server) {
-        server.setTruncateLimit(truncateLimit);
+    void doServerCommand(MemcachedServer server, JsonObject payload) {
+        server.setTruncateLimit(payload.get("limit").getAsInt());
     }
 }
@@ -16,15 +16,31 @@
 package com.couchbase.mock.harakiri;
 
 import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.control.CommandStatus;
 import com.couchbase.mock.control.MockCommandDispatcher;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Map;
 import java.util.Observable;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The HarakiriMonitor started off as a class that was designed to
@@ -33,14 +49,37 @@ import java.util.concurrent.Callable;
  *
  * Later on we wanted to send commands to the Mock server over this
  * connection, which sort of made the name misleading...
+ *
+ * Commands are sent as JSON, either one per line or in frames made of a
+ * 32 bit big-endian length followed by the command. Frames are limited
+ * to {@link #MAX_FRAME_SIZE} so that their first byte is always zero,
+ * which tells them apart from lines. The response uses the framing of
+ * the command.
+ *
+ * Commands are executed in turn, in the order they are read. A command
+ * may carry an <code>"id"</code>, which its response carries as well, so
+ * that the client may pipeline commands and match the responses by their
+ * ids. A command with an id which also has <code>"concurrent": true</code>
+ * is executed on a small pool instead, without waiting for the previous
+ * ones, so that its response may come back out of order. Any other command
+ * waits for all the previous ones to complete: only independent commands
+ * should be flagged as concurrent.
  */
 public class HarakiriMonitor extends Observable implements Runnable {
+    public static final int MAX_FRAME_SIZE = 0xffffff;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Gson gs = new Gson();
+
     private final MockCommandDispatcher dispatcher;
     private Callable onTerminate = null;
 
-    private BufferedReader input = null;
+    private DataInputStream input = null;
     private OutputStream output;
     private Thread thread;
+    private ExecutorService executor;
+    // The number of concurrent commands which haven't completed yet
+    private int inFlight = 0;
+    private final Object inFlightLock = new Object();
 
     public HarakiriMonitor(MockCommandDispatcher dispatcher) throws IOException {
         this.dispatcher = dispatcher;
@@ -52,8 +91,8 @@ public class HarakiriMonitor extends Observable implements Runnable {
         }
 
         Socket sock = new Socket(host, port);
-        input = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-        output = sock.getOutputStream();
+        input = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+        output = new BufferedOutputStream(sock.getOutputStream());
     }
 
     public void start() {
@@ -61,6 +100,20 @@ public class HarakiriMonitor extends Observable implements Runnable {
             throw new IllegalStateException("Not bound yet");
         }
 
+        int numThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HarakiriMonitor-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
         thread = new Thread(this, "HarakiriMonitor");
         thread.start();
     }
@@ -73,10 +126,119 @@ public class HarakiriMonitor extends Observable implements Runnable {
         this.onTerminate = action;
     }
 
+    /**
+     * Read the rest of a line
+     *
+     * @param first The first byte of the line
+     * @return The line, or null at the end of the stream
+     */
+    private byte[] readLine(int first) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int c = first; c != '\n'; c = input.read()) {
+            if (c == -1) {
+                return line.size() == 0 ? null : line.toByteArray();
+            }
+            line.write(c);
+        }
+        return line.toByteArray();
+    }
+
+    private byte[] readFrame() throws IOException {
+        int length = input.readUnsignedByte() << 16 | input.readUnsignedShort();
+        byte[] frame = new byte[length];
+        input.readFully(frame);
+        return frame;
+    }
+
+    private synchronized void writeResponse(String response, boolean framed) throws IOException {
+        byte[] bytes = response.getBytes(UTF8);
+        if (framed) {
+            if (bytes.length > MAX_FRAME_SIZE) {
+                bytes = new CommandStatus().fail("Response too large").toString().getBytes(UTF8);
+            }
+            output.write(0);
+            output.write(bytes.length >> 16);
+            output.write(bytes.length >> 8);
+            output.write(bytes.length);
+            output.write(bytes);
+        } else {
+            output.write(bytes);
+            output.write('\n');
+        }
+        output.flush();
+    }
+
+    private void execute(JsonObject object, boolean framed) throws IOException {
+        CommandStatus status = dispatcher.process(object);
+        setChanged();
+        notifyObservers();
+
+        Map<String, Object> response = status.toMap();
+        if (object.has("id")) {
+            response.put("id", object.get("id"));
+        }
+        writeResponse(gs.toJson(response), framed);
+    }
+
+    private void process(byte[] packet, final boolean framed) throws IOException {
+        final JsonObject object;
+        try {
+            JsonElement element = new JsonParser().parse(new String(packet, UTF8));
+            object = element.getAsJsonObject();
+        } catch (RuntimeException ex) {
+            writeResponse(new CommandStatus().fail("Failed to parse input").toString(), framed);
+            return;
+        }
+
+        if (!isConcurrent(object)) {
+            awaitConcurrent();
+            execute(object, framed);
+            return;
+        }
+        synchronized (inFlightLock) {
+            inFlight++;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    execute(object, framed);
+                } catch (IOException ex) {
+                    // The connection is gone, which the reader will notice
+                } finally {
+                    synchronized (inFlightLock) {
+                        inFlight--;
+                        inFlightLock.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private static boolean isConcurrent(JsonObject object) {
+        JsonElement concurrent = object.get("concurrent");
+        return object.has("id") && concurrent != null && concurrent.isJsonPrimitive()
+                && concurrent.getAsJsonPrimitive().isBoolean() && concurrent.getAsBoolean();
+    }
+
+    /**
+     * Wait for the concurrent commands read so far to complete
+     */
+    private void awaitConcurrent() throws InterruptedIOException {
+        synchronized (inFlightLock) {
+            while (inFlight > 0) {
+                try {
+                    inFlightLock.wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
     @Override
     public void run() {
         boolean closed = false;
-        String packet;
         CouchbaseMock mock = dispatcher.getMock();
         try {
             mock.waitForStartup();
@@ -90,24 +252,27 @@ public class HarakiriMonitor extends Observable implements Runnable {
         }
         while (!closed) {
             try {
-                packet = input.readLine();
+                int first = input.read();
+                byte[] packet;
+                if (first == -1) {
+                    packet = null;
+                } else if (first == 0) {
+                    packet = readFrame();
+                } else {
+                    packet = readLine(first);
+                }
+
                 if (packet == null) {
                     closed = true;
                 } else {
-                    String response = dispatcher.processInput(packet);
-                    setChanged();
-                    notifyObservers();
-
-                    if (response != null) {
-                        output.write((response + "\n").getBytes());
-                        output.flush();
-                    }
+                    process(packet, first == 0);
                 }
             } catch (IOException e) {
                 // not exactly true, but who cares..
                 closed = true;
             }
         }
+        executor.shutdown();
 
         if (onTerminate != null) {
             try {
@@ -36,7 +36,9 @@ import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public final class BucketAdminServer {
@@ -44,6 +46,7 @@ public final class BucketAdminServer {
     private final HttpAuthVerifier verifier;
     private final Bucket bucket;
     private final HttpServer parentServer;
+    private final BucketsStreamingHandler streamingHandler;
 
     private class StreamingHandler implements HttpRequestHandler {
         @Override
@@ -62,14 +65,9 @@ public final class BucketAdminServer {
             htConn.sendResponseHeader(response);
             htConn.flush();
 
-            Socket s = HandlerUtil.getSocket(context);
-            BucketsStreamingHandler streamingHandler = new BucketsStreamingHandler(mock.getMonitor(),bucket, s);
+            streamingHandler.addClient(HandlerUtil.getSocket(context));
+            HandlerUtil.detachSocket(context);
 
-            try {
-                streamingHandler.startStreaming();
-            } catch (InterruptedException ex) {
-                throw new IOException(ex);
-            }
             // Ensure it doesn't get processed
             throw new ResponseHandledException();
         }
@@ -123,11 +121,34 @@ public final class BucketAdminServer {
         }
     }
 
+    private class StatsHandler implements HttpRequestHandler {
+        @Override
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+            if (!verifier.verify(request, response, context)) {
+                return;
+            }
+
+            List<Map<String,Object>> nodes = new ArrayList<Map<String, Object>>();
+            for (MemcachedServer server : bucket.getServers()) {
+                Map<String,Object> node = new HashMap<String, Object>();
+                node.put("hostname", server.getSocketName());
+                node.put("stats", server.getServerStats().getCounters());
+                node.put("ops", server.getServerStats().getOpcodeCounters());
+                node.put("timings", server.getServerStats().getTimings());
+                nodes.add(node);
+            }
+            Map<String,Object> stats = new HashMap<String, Object>();
+            stats.put("nodes", nodes);
+            HandlerUtil.makeJsonResponse(response, JsonUtils.encode(stats));
+        }
+    }
+
     public BucketAdminServer(Bucket bucket, HttpServer server, CouchbaseMock mock) {
         this.bucket = bucket;
         this.mock = mock;
         this.parentServer = server;
         this.verifier = new HttpAuthVerifier(bucket, mock.getAuthenticator());
+        this.streamingHandler = new BucketsStreamingHandler(bucket);
     }
 
     private static final String FMT_ONESHOT = "%s/buckets/%s";
@@ -136,6 +157,7 @@ public final class BucketAdminServer {
     private static final String FMT_TERSE_STREAM = "%s/bs/%s";
     private static final String FMT_DOFLUSH = "%s/buckets/%s/controller/doFlush";
     private static final String FMT_DDOCS = "%s/buckets/%s/ddocs";
+    private static final String FMT_STATS = "%s/buckets/%s/stats";
 
     private String getPoolPrefix() {
         return String.format("/pools/%s", mock.getPoolName());
@@ -149,13 +171,15 @@ public final class BucketAdminServer {
         parentServer.register(String.format(FMT_TERSE_STREAM, prefix, bucket.getName()), new StreamingHandler());
         parentServer.register(String.format(FMT_DOFLUSH, prefix, bucket.getName()), new FlushHandler());
         parentServer.register(String.format(FMT_DDOCS, prefix, bucket.getName()), new DesignDocsHandler());
+        parentServer.register(String.format(FMT_STATS, prefix, bucket.getName()), new StatsHandler());
     }
 
     public void shutdown() {
         String prefix = getPoolPrefix();
-        for (String s : new String[] { FMT_ONESHOT, FMT_STREAM, FMT_DOFLUSH, FMT_DDOCS}) {
+        for (String s : new String[] { FMT_ONESHOT, FMT_STREAM, FMT_DOFLUSH, FMT_DDOCS, FMT_STATS }) {
             String path = String.format(s, prefix, bucket.getName());
             parentServer.unregister(path);
         }
+        streamingHandler.shutdown();
     }
 }
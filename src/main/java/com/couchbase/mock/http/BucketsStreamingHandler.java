@@ -16,170 +16,265 @@
 package com.couchbase.mock.http;
 
 import com.couchbase.mock.Bucket;
-import com.couchbase.mock.harakiri.HarakiriMonitor;
+import com.couchbase.mock.RenderedConfig;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
+ * Streams the configuration of a bucket to all the clients connected to its
+ * {@code bucketsStreaming} endpoint.
+ *
+ * All the streaming connections of a bucket are served by a single thread,
+ * which uses a selector to detect closed connections and to write to slow
+ * clients. The thread is woken up whenever the configuration of the bucket
+ * changes; the configuration is then framed once and the same bytes are
+ * sent to every client which has not seen that revision yet.
+ *
  * @author M. Nunberg
  */
-class BucketsStreamingHandler implements Observer {
+class BucketsStreamingHandler implements Observer, Runnable {
+    private static final Logger logger = Logger.getLogger(BucketsStreamingHandler.class.getName());
+    private static final byte[] chunkedDelimiter = "\n\n\n\n".getBytes();
+
+    private static class Subscriber {
+        final SocketChannel channel;
+        // The buffer at the head may be partially written
+        final Queue<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+        int revision = -1;
+
+        Subscriber(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
 
-    private final Socket rawSocket;
-    private final OutputStream output;
     private final Bucket bucket;
-    private final HarakiriMonitor monitor;
-    private final Lock updateHandlerLock = new ReentrantLock();
-    private final Condition condHasUpdatedConfig = updateHandlerLock.newCondition();
-    private volatile boolean hasUpdatedConfig = false;
+    private final Queue<SocketChannel> newClients = new ConcurrentLinkedQueue<SocketChannel>();
+    private final AtomicBoolean configChanged = new AtomicBoolean(false);
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(256);
     private volatile boolean shouldTerminate = false;
-    // Some more book keeping stuff for the socket
+    private Selector selector;
+    private Thread thread;
 
-    private final ByteBuffer dummyBuf = ByteBuffer.allocate(1);
+    // Only accessed by the streaming thread
+    private int renderedRevision = -1;
+    private byte[] rendered;
 
-
-    private static final byte[] chunkedDelimiter = "\n\n\n\n".getBytes();
-
-    public BucketsStreamingHandler(HarakiriMonitor monitor, Bucket bucket, Socket socket) {
+    BucketsStreamingHandler(Bucket bucket) {
         this.bucket = bucket;
-        this.monitor = monitor;
-        this.rawSocket = socket;
-        try {
-            this.output = socket.getOutputStream();
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
-        }
     }
 
-    private byte[] getConfigBytes() {
-        return StateGrabber.getBucketJSON(bucket).getBytes();
-    }
-
-    private void writeChunk(byte[] chunk) throws IOException {
-        String s = String.format("%x\r\n", chunk.length);
-        output.write(s.getBytes());
-        output.write(chunk);
-        output.write("\r\n".getBytes());
+    /**
+     * Start streaming the configuration to a new client. The HTTP response
+     * headers must already have been sent, and the socket is owned by this
+     * handler from now on.
+     *
+     * @param socket The client's socket
+     * @throws IOException if the client could not be added
+     */
+    synchronized void addClient(Socket socket) throws IOException {
+        if (shouldTerminate) {
+            throw new IOException("Bucket is being removed");
+        }
+        if (thread == null) {
+            selector = Selector.open();
+            bucket.addConfigObserver(this);
+            thread = new Thread(this, "Config streamer: " + bucket.getName());
+            thread.setDaemon(true);
+            thread.start();
+        }
 
+        SocketChannel channel = socket.getChannel();
+        channel.configureBlocking(false);
+        newClients.add(channel);
+        selector.wakeup();
     }
 
-    private void writeConfigBytes(byte[] payload) throws IOException {
-        writeChunk(payload);
-        writeChunk(chunkedDelimiter);
-        output.flush();
+    /**
+     * Close all the streaming connections and stop the streaming thread
+     */
+    synchronized void shutdown() {
+        shouldTerminate = true;
+        if (thread != null) {
+            bucket.removeConfigObserver(this);
+            selector.wakeup();
+        }
     }
 
     @Override
     public void update(Observable o, Object arg) {
-        updateHandlerLock.lock();
-        try {
-            hasUpdatedConfig = true;
-            condHasUpdatedConfig.signalAll();
-        } finally {
-            updateHandlerLock.unlock();
+        if (configChanged.compareAndSet(false, true)) {
+            selector.wakeup();
         }
     }
 
-    private boolean checkIfClosed() throws IOException {
-        SocketChannel ch = rawSocket.getChannel();
-        ch.configureBlocking(false);
+    private static void writeChunk(ByteArrayOutputStream out, byte[] chunk) throws IOException {
+        out.write(String.format("%x\r\n", chunk.length).getBytes());
+        out.write(chunk);
+        out.write("\r\n".getBytes());
+    }
 
-        dummyBuf.rewind();
+    /**
+     * Render the current configuration, unless it was already rendered for
+     * the current revision.
+     */
+    private void render() throws IOException {
+        RenderedConfig config = bucket.getRenderedConfig();
+        if (rendered != null && config.getRevision() == renderedRevision) {
+            return;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeChunk(out, config.getBytes());
+        writeChunk(out, chunkedDelimiter);
+        rendered = out.toByteArray();
+        renderedRevision = config.getRevision();
+    }
 
+    private void close(SelectionKey key) {
+        key.cancel();
         try {
-            int nBytes = ch.read(dummyBuf);
-            // Anything other than 0 bytes is bad (keep in mind that in this case, 0 means "No data")
-            return nBytes == 0;
+            key.channel().close();
         } catch (IOException ex) {
-            return false;
-        } finally {
-            ch.configureBlocking(true);
+            // Don't care
+        }
+    }
+
+    private void send(SelectionKey key) {
+        Subscriber subscriber = (Subscriber) key.attachment();
+        if (subscriber.revision == renderedRevision) {
+            return;
+        }
+        subscriber.revision = renderedRevision;
+
+        // Only the most recent configuration is of interest to a client which
+        // can't keep up, but a partially written one has to be completed first.
+        ByteBuffer head = subscriber.pending.peek();
+        subscriber.pending.clear();
+        if (head != null && head.position() > 0) {
+            subscriber.pending.add(head);
         }
+        subscriber.pending.add(ByteBuffer.wrap(rendered));
+        flush(key);
     }
 
-    private boolean streamNewConfig() throws InterruptedException {
-        updateHandlerLock.lock();
-        boolean isLocked = true;
+    private void flush(SelectionKey key) {
+        Subscriber subscriber = (Subscriber) key.attachment();
         try {
-            while (!shouldTerminate && !hasUpdatedConfig) {
-                condHasUpdatedConfig.await(10, TimeUnit.MILLISECONDS);
-                // See if the underlying connection has been closed yet?
-                try {
-                    if (!checkIfClosed()) {
-                        return false;
-                    }
-                } catch (ClosedChannelException ex) {
-                    return false;
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                    return false;
+            ByteBuffer buf;
+            while ((buf = subscriber.pending.peek()) != null) {
+                subscriber.channel.write(buf);
+                if (buf.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
                 }
+                subscriber.pending.remove();
             }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException ex) {
+            close(key);
+        }
+    }
 
-            isLocked = false;
-            updateHandlerLock.unlock();
-
-            if (hasUpdatedConfig) {
-                writeConfigBytes(getConfigBytes());
-                hasUpdatedConfig = false;
-                return true;
-            } else {
-                return false;
-            }
-        } catch (IOException e) {
-            shouldTerminate = false;
-            return false;
-        } finally {
-            if (isLocked) {
-                updateHandlerLock.unlock();
+    private void read(SelectionKey key) {
+        // Clients are not expected to send anything; this is only used to
+        // detect closed connections.
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            int nr;
+            do {
+                readBuffer.clear();
+                nr = channel.read(readBuffer);
+            } while (nr > 0);
+            if (nr == -1) {
+                close(key);
             }
+        } catch (IOException ex) {
+            close(key);
         }
     }
 
-    public void startStreaming() throws IOException, InterruptedException {
-        byte[] configBytes;
-        bucket.configReadLock();
-        configBytes = getConfigBytes();
+    private void runLoop() throws IOException {
+        while (!shouldTerminate) {
+            selector.select();
 
+            SocketChannel channel;
+            while ((channel = newClients.poll()) != null) {
+                SelectionKey key;
+                try {
+                    key = channel.register(selector, SelectionKey.OP_READ, new Subscriber(channel));
+                } catch (ClosedChannelException ex) {
+                    continue;
+                }
+                render();
+                send(key);
+            }
 
-        // Lock the updater lock, make sure updates are not received
-        // before we send our initial (older) data.
-        updateHandlerLock.lock();
+            if (configChanged.getAndSet(false)) {
+                render();
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid()) {
+                        send(key);
+                    }
+                }
+            }
 
-        if (monitor != null) {
-            monitor.addObserver(this);
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                try {
+                    if (key.isReadable()) {
+                        read(key);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(key);
+                    }
+                } catch (CancelledKeyException ex) {
+                    // Closed while being processed
+                }
+            }
         }
+    }
 
-        // This can be unlocked, because we have wired the update() method.
-        // Therefore, any changes will be placed AFTER our 'initial' frozen
-        // snapshot.
-        bucket.configReadUnlock();
-
+    @Override
+    public void run() {
         try {
-            writeConfigBytes(configBytes);
+            runLoop();
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Config streaming failed", ex);
         } finally {
-            // Allow any subsequent updates to be sent
-            updateHandlerLock.unlock();
-        }
-
-        while (streamNewConfig()) {
-            //
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            SocketChannel channel;
+            while ((channel = newClients.poll()) != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    // Don't care
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                // Don't care
+            }
         }
-
-        /*
-         * Error or some such
-         */
-        output.close();
     }
 }
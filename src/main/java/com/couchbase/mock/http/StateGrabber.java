@@ -65,21 +65,18 @@ class StateGrabber {
     }
 
     static String getBucketJSON(Bucket bucket) {
-        String ret;
-        bucket.configReadLock();
-        try {
-            ret = bucket.getJSON();
-        } finally {
-            bucket.configReadUnlock();
-        }
-        return ret;
+        return bucket.getRenderedConfig().getJSON();
     }
 
     static String getAllBucketsJSON(List<Bucket> allowedBuckets) {
-        List<Map> bucketsJSON = new ArrayList<Map>();
+        // Splice the pre-rendered configurations rather than encoding them again
+        StringBuilder sb = new StringBuilder("[");
         for (Bucket bucket : allowedBuckets) {
-            bucketsJSON.add(bucket.getConfigMap());
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append(bucket.getRenderedConfig().getJSON());
         }
-        return JsonUtils.encode(bucketsJSON);
+        return sb.append(']').toString();
     }
 }
\ No newline at end of file
@@ -96,7 +96,11 @@ public final class CAPIServer {
         removeDesign(design, true);
     }
 
-    void addDesign(DesignDocument design) {
+    /**
+     * Define a design document, replacing any existing one with the same id
+     * @param design The design document
+     */
+    public void addDesign(DesignDocument design) {
         synchronized (designDocMap) {
             removeDesign(design, false);
             handleViewPaths(design, true);
@@ -104,6 +108,15 @@ public final class CAPIServer {
         }
     }
 
+    /**
+     * @return a copy of the defined design documents
+     */
+    public List<DesignDocument> getDesigns() {
+        synchronized (designDocMap) {
+            return new ArrayList<DesignDocument>(designDocMap.values());
+        }
+    }
+
     DesignDocument findDesign(PathInfo info) {
         return designDocMap.get(info.getDesignId());
     }
@@ -66,6 +66,19 @@ public class HandlerUtil {
         return (Socket) cx.getAttribute(HttpServer.CX_SOCKET);
     }
 
+    /**
+     * Take ownership of the underlying socket for this request. Once the handler
+     * throws {@link ResponseHandledException}, the worker thread exits without
+     * closing the socket, which must then be closed by the caller.
+     *
+     * @param cx The context
+     * @return The raw socket
+     */
+    public static Socket detachSocket(HttpContext cx) {
+        cx.setAttribute(HttpServer.CX_DETACHED, Boolean.TRUE);
+        return getSocket(cx);
+    }
+
     /**
      * @param request The request
      * @return a URL object for the request
@@ -94,6 +94,7 @@ public class HttpServer extends Thread {
 
     final public static String CX_SOCKET = "couchbase.mock.http.socket";
     final public static String CX_AUTH = "couchbase.mock.http.auth";
+    final public static String CX_DETACHED = "couchbase.mock.http.detached";
 
     /**
      * Creates a new server. To make the server respond to requests, invoke
@@ -174,6 +175,7 @@ public class HttpServer extends Thread {
         final HttpServerConnection htConn;
         final Socket rawSocket;
         private volatile boolean closeRequested = false;
+        private boolean detached = false;
 
         Worker(HttpServerConnection htConn, Socket rawSocket) {
             this.htConn = htConn;
@@ -216,6 +218,11 @@ public class HttpServer extends Thread {
                     ex.printStackTrace();
                     break;
                 } catch (ResponseHandledException ex) {
+                    if (context.getAttribute(CX_DETACHED) != null) {
+                        // The socket is now owned by the handler
+                        detached = true;
+                        return;
+                    }
                     break;
                 }
             }
@@ -230,7 +237,9 @@ public class HttpServer extends Thread {
                 synchronized (HttpServer.this.allWorkers) {
                     HttpServer.this.allWorkers.remove(this);
                 }
-                bail();
+                if (!detached) {
+                    bail();
+                }
             }
         }
     }
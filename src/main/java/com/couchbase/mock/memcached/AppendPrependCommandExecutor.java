@@ -21,6 +21,7 @@ import com.couchbase.mock.memcached.protocol.BinaryResponse;
 import com.couchbase.mock.memcached.protocol.BinaryStoreCommand;
 import com.couchbase.mock.memcached.protocol.BinaryStoreResponse;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
+import org.iq80.snappy.CorruptionException;
 
 import java.net.ProtocolException;
 
@@ -37,19 +38,25 @@ class AppendPrependCommandExecutor implements CommandExecutor {
         VBucketStore cache = server.getStorage().getCache(server, cmd.getVBucketId());
 
         MutationStatus ms;
+        Item item;
+        try {
+            item = command.getItem(client.snappyMode());
+        } catch (CorruptionException ex) {
+            return new BinaryResponse(cmd, ErrorCode.EINVAL);
+        }
         Item existing = cache.get(command.getKeySpec());
-        if (existing != null && existing.getValue().length + command.getItem(client.snappyMode()).getValue().length > Info.itemSizeMax()) {
+        if (existing != null && existing.getValueLength() + item.getValueLength() > Info.itemSizeMax()) {
             return new BinaryResponse(cmd, ErrorCode.E2BIG);
         }
 
         switch (cmd.getComCode()) {
             case APPEND:
             case APPENDQ:
-                ms = cache.append(command.getItem(client.snappyMode()), client.supportsXerror());
+                ms = cache.append(item, client.supportsXerror());
                 break;
             case PREPEND:
             case PREPENDQ:
-                ms = cache.prepend(command.getItem(client.snappyMode()), client.supportsXerror());
+                ms = cache.prepend(item, client.supportsXerror());
                 break;
             default:
                 throw new ProtocolException("invalid opcode for Append/Prepend handler: " + cmd.getComCode());
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.MemcachedServer.CommandLogEntry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded log of the commands executed by a node.
+ *
+ * Records are kept in a fixed-size ring buffer of primitives, so logging a
+ * command doesn't allocate and never blocks: once the buffer is full the
+ * oldest records are overwritten. Any number of threads may add records;
+ * readers ({@link #snapshot()}, {@link #drain()}) are serialized with each
+ * other and skip the records overwritten while they were being read.
+ *
+ * Commands may be executed concurrently (see {@link UnorderedExecutor}), so
+ * a record is added when its command is received ({@link #begin}) and
+ * completed with the status once it is executed ({@link #complete}): the log
+ * is in the order the commands were received. Readers stop at the first
+ * record which isn't complete yet.
+ */
+public final class CommandLog {
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /**
+     * Size of a record written by {@link #drainTo(WritableByteChannel)}:
+     * <pre>
+     * long   timestamp, in nanoseconds since the epoch
+     * int    opaque
+     * short  status
+     * short  vbucket
+     * byte   opcode
+     * </pre>
+     */
+    public static final int RECORD_SIZE = 8 + 4 + 2 + 2 + 1;
+
+    // Each record is made of four longs: its sequence number + 1 (0 while
+    // empty and -1 while being written), the nano time, the opcode, status
+    // and vbucket (along with whether the record is complete, and the low
+    // bits of its sequence number), and the opaque.
+    private static final int STRIDE = 4;
+    private static final long BUSY = -1;
+    private static final long DONE = 1L << 40;
+    private static final int TAG_SHIFT = 41;
+    private static final long TAG_MASK = (1L << (64 - TAG_SHIFT)) - 1;
+
+    private final int mask;
+    private final AtomicLongArray records;
+    private final AtomicLong head = new AtomicLong();
+    private final long baseMillis;
+    private final long baseNanos;
+    private long tail = 0;
+
+    public CommandLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the maximum number of records kept; rounded up to a
+     *                 power of two
+     */
+    public CommandLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        mask = size - 1;
+        records = new AtomicLongArray(size * STRIDE);
+        baseMillis = System.currentTimeMillis();
+        baseNanos = System.nanoTime();
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Add a complete record
+     *
+     * @param opcode the opcode of the command
+     * @param nanoTime when the command was received, as per {@link System#nanoTime()}
+     * @param status the status the command completed with
+     * @param vbucket the vBucket of the command
+     * @param opaque the opaque of the command
+     */
+    public void add(int opcode, long nanoTime, short status, short vbucket, int opaque) {
+        complete(begin(opcode, nanoTime, vbucket, opaque), status);
+    }
+
+    /**
+     * Add the record of a command being received
+     *
+     * @param opcode the opcode of the command
+     * @param nanoTime when the command was received, as per {@link System#nanoTime()}
+     * @param vbucket the vBucket of the command
+     * @param opaque the opaque of the command
+     * @return the sequence number of the record, to pass to {@link #complete(long, short)}
+     */
+    public long begin(int opcode, long nanoTime, short vbucket, int opaque) {
+        long seq = head.getAndIncrement();
+        int base = (int) (seq & mask) * STRIDE;
+        records.set(base, BUSY);
+        records.lazySet(base + 1, nanoTime);
+        records.lazySet(base + 2, (opcode & 0xff) | (vbucket & 0xffffL) << 24 | (seq & TAG_MASK) << TAG_SHIFT);
+        records.lazySet(base + 3, opaque);
+        records.lazySet(base, seq + 1);
+        return seq;
+    }
+
+    /**
+     * Complete a record added by {@link #begin(int, long, short, int)}, unless
+     * it was overwritten in the meantime
+     *
+     * @param seq the sequence number of the record
+     * @param status the status the command completed with
+     */
+    public void complete(long seq, short status) {
+        int base = (int) (seq & mask) * STRIDE;
+        long packed = records.get(base + 2);
+        // The tag tells apart the record which overwrote it
+        if (records.get(base) != seq + 1 || (packed >>> TAG_SHIFT) != (seq & TAG_MASK) || (packed & DONE) != 0) {
+            return;
+        }
+        records.compareAndSet(base + 2, packed, packed | (status & 0xffffL) << 8 | DONE);
+    }
+
+    private interface Visitor {
+        void visit(long nanoTime, int opcode, short status, short vbucket, int opaque) throws IOException;
+    }
+
+    /**
+     * Visit the records from the tail (or the oldest record still available)
+     * to the most recent one.
+     *
+     * @return the sequence number of the first record which wasn't visited
+     * because it is still being written, or the head
+     */
+    private long read(Visitor visitor) throws IOException {
+        long end = head.get();
+        long seq = Math.max(tail, end - getCapacity());
+        for (; seq < end; seq++) {
+            int base = (int) (seq & mask) * STRIDE;
+            long published = records.get(base);
+            if (published == BUSY || published < seq + 1) {
+                // Not written yet; later records can't be read in order either
+                if (published == BUSY && seq + getCapacity() < head.get()) {
+                    // ..unless it is being overwritten
+                    continue;
+                }
+                break;
+            }
+            long nanoTime = records.get(base + 1);
+            long packed = records.get(base + 2);
+            long opaque = records.get(base + 3);
+            if (published != seq + 1 || records.get(base) != published) {
+                // Overwritten
+                continue;
+            }
+            if ((packed & DONE) == 0) {
+                // Still being executed: it is read in order later
+                break;
+            }
+            visitor.visit(nanoTime, (int) (packed & 0xff), (short) (packed >>> 8), (short) (packed >>> 24), (int) opaque);
+        }
+        return seq;
+    }
+
+    private long toMillis(long nanoTime) {
+        return baseMillis + (nanoTime - baseNanos) / 1000000;
+    }
+
+    private long toEpochNanos(long nanoTime) {
+        return baseMillis * 1000000 + (nanoTime - baseNanos);
+    }
+
+    private List<CommandLogEntry> read(boolean consume) {
+        final List<CommandLogEntry> ret = new ArrayList<CommandLogEntry>();
+        try {
+            long next = read(new Visitor() {
+                @Override
+                public void visit(long nanoTime, int opcode, short status, short vbucket, int opaque) {
+                    ret.add(new CommandLogEntry(opcode, toMillis(nanoTime), status, vbucket, opaque));
+                }
+            });
+            if (consume) {
+                tail = next;
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return ret;
+    }
+
+    /**
+     * @return the records currently in the log, oldest first
+     */
+    public synchronized List<CommandLogEntry> snapshot() {
+        return read(false);
+    }
+
+    /**
+     * Remove the records currently in the log
+     * @return the removed records, oldest first
+     */
+    public synchronized List<CommandLogEntry> drain() {
+        return read(true);
+    }
+
+    /**
+     * Remove the records currently in the log and write them to a channel,
+     * using the binary format described by {@link #RECORD_SIZE}. This may
+     * be called periodically to keep the records of a whole run.
+     *
+     * @param channel where to write the records
+     * @return the number of records written
+     * @throws IOException if writing fails. The records are lost
+     */
+    public synchronized int drainTo(final WritableByteChannel channel) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * 1024);
+        final int[] count = { 0 };
+        tail = read(new Visitor() {
+            @Override
+            public void visit(long nanoTime, int opcode, short status, short vbucket, int opaque) throws IOException {
+                if (buf.remaining() < RECORD_SIZE) {
+                    flush(buf, channel);
+                }
+                buf.putLong(toEpochNanos(nanoTime));
+                buf.putInt(opaque);
+                buf.putShort(status);
+                buf.putShort(vbucket);
+                buf.put((byte) opcode);
+                count[0]++;
+            }
+        });
+        flush(buf, channel);
+        return count[0];
+    }
+
+    private static void flush(ByteBuffer buf, WritableByteChannel channel) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Remove all the records
+     */
+    public synchronized void clear() {
+        tail = head.get();
+    }
+}
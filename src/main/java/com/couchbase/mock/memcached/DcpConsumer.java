@@ -0,0 +1,383 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Replica side of the replication pipeline.
+ *
+ * Each node owns one consumer. Active nodes push mutations into the
+ * per-vBucket streams of the consumer (which is cheap and does not block),
+ * and the replica's own selector thread later applies them in the order in
+ * which they were produced, i.e. in seqno order for any given vBucket.
+ *
+ * Mutations may be held back for a configurable amount of time in order
+ * to simulate replication lag. Without lag, they are applied by the thread
+ * offering them, as soon as it releases the lock of the active node's store,
+ * so that the replicas are up to date when the mutation is acknowledged.
+ *
+ * A consumer which isn't driven by a loop (e.g. its node was never started)
+ * applies the lagged mutations on a timer thread, which is shared by all the
+ * consumers and stopped once those using it are closed. Mutations are
+ * applied by one thread at a time, and are kept pending while the node is
+ * suspended.
+ */
+public class DcpConsumer {
+    static class Event {
+        final Item item;
+        final VBucketCoordinates coords;
+        final boolean isDelete;
+        final long readyAt;
+
+        Event(Item item, VBucketCoordinates coords, boolean isDelete, long readyAt) {
+            this.item = item;
+            this.coords = coords;
+            this.isDelete = isDelete;
+            this.readyAt = readyAt;
+        }
+    }
+
+    static class Stream {
+        final Queue<Event> queue = new ConcurrentLinkedQueue<Event>();
+        final AtomicInteger backlog = new AtomicInteger();
+        // Whether the stream is in the pending streams of the consumer
+        final AtomicBoolean isPending = new AtomicBoolean(false);
+        volatile long lastReceivedSeqno = 0;
+    }
+
+    // The consumers to which the current thread offered mutations without lag
+    private static final ThreadLocal<List<DcpConsumer>> deferred = new ThreadLocal<List<DcpConsumer>>() {
+        @Override
+        protected List<DcpConsumer> initialValue() {
+            return new ArrayList<DcpConsumer>();
+        }
+    };
+
+    // The timer of the undriven consumers, and the number of open ones using it
+    private static ScheduledExecutorService timer;
+    private static int numTimerUsers;
+
+    private final Storage storage;
+    private final Stream[] streams;
+    // The streams which may have mutations, so that idle ones aren't scanned
+    private final Queue<Stream> pending = new ConcurrentLinkedQueue<Stream>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final AtomicBoolean timerPending = new AtomicBoolean(false);
+    private final ReentrantLock processLock = new ReentrantLock();
+    private volatile long lagNanos = 0;
+    private volatile Runnable wakeup;
+    private volatile boolean suspended = false;
+    private boolean usesTimer = false;
+    private volatile boolean closed = false;
+
+    DcpConsumer(Storage storage, int numVBuckets) {
+        this.storage = storage;
+        this.streams = new Stream[numVBuckets];
+    }
+
+    private Stream getStream(int vbid) {
+        Stream stream = streams[vbid];
+        if (stream == null) {
+            synchronized (streams) {
+                stream = streams[vbid];
+                if (stream == null) {
+                    stream = streams[vbid] = new Stream();
+                }
+            }
+        }
+        return stream;
+    }
+
+    /**
+     * Set the action used to notify the consuming thread that new
+     * mutations are available.
+     * @param wakeup The action to run
+     */
+    void setWakeup(Runnable wakeup) {
+        this.wakeup = wakeup;
+        kick();
+    }
+
+    /**
+     * Set the delay between a mutation being received from the active node
+     * and it being applied to this replica.
+     * @param milliseconds the lag, in milliseconds
+     */
+    public void setLag(int milliseconds) {
+        if (milliseconds < 0) {
+            throw new IllegalArgumentException("Replication lag must be >= 0");
+        }
+        lagNanos = TimeUnit.MILLISECONDS.toNanos(milliseconds);
+    }
+
+    public int getLag() {
+        return (int) TimeUnit.NANOSECONDS.toMillis(lagNanos);
+    }
+
+    /**
+     * Suspend or resume the application of the mutations, e.g. because the
+     * node was shut down. Mutations offered in the meantime are kept pending.
+     * @param suspended Whether the node is suspended
+     */
+    void setSuspended(boolean suspended) {
+        this.suspended = suspended;
+        if (!suspended) {
+            kick();
+        }
+    }
+
+    /**
+     * Receive a mutation from the active node. The offering thread may hold
+     * the lock of its store, so this neither waits nor applies anything: a
+     * mutation without lag is applied by {@link #applyDeferred()}.
+     */
+    void offer(Item item, VBucketCoordinates coords, boolean isDelete) {
+        long lag = lagNanos;
+        Stream stream = getStream(item.getKeySpec().vbId);
+        stream.queue.add(new Event(item, coords, isDelete, System.nanoTime() + lag));
+        stream.backlog.incrementAndGet();
+        if (stream.isPending.compareAndSet(false, true)) {
+            pending.add(stream);
+        }
+        if (lag == 0 && !suspended) {
+            List<DcpConsumer> consumers = deferred.get();
+            if (!consumers.contains(this)) {
+                consumers.add(this);
+            }
+        }
+        Runnable action = wakeup;
+        if (action != null) {
+            if (wakeupPending.compareAndSet(false, true)) {
+                action.run();
+            }
+        } else if (lag > 0) {
+            schedule(Math.max(1, TimeUnit.NANOSECONDS.toMillis(lag)));
+        }
+    }
+
+    /**
+     * Apply the mutations without lag which the current thread offered. This
+     * must be called once the thread released the lock of its store.
+     */
+    static void applyDeferred() {
+        List<DcpConsumer> consumers = deferred.get();
+        while (!consumers.isEmpty()) {
+            DcpConsumer consumer = consumers.remove(consumers.size() - 1);
+            if (consumer.process() > 0) {
+                // The lag was changed in the meantime
+                consumer.kick();
+            }
+        }
+    }
+
+    /**
+     * Get the pending mutations applied: by the loop driving the consumer if
+     * there is one, else right away.
+     */
+    private void kick() {
+        Runnable action = wakeup;
+        if (action == null) {
+            processUndriven();
+        } else if (wakeupPending.compareAndSet(false, true)) {
+            action.run();
+        }
+    }
+
+    private void processUndriven() {
+        long delay;
+        // Don't wait for another thread applying mutations to this replica,
+        // but try again later
+        if (processLock.tryLock()) {
+            try {
+                delay = processLocked();
+            } finally {
+                processLock.unlock();
+            }
+        } else {
+            delay = 1;
+        }
+        if (delay > 0) {
+            schedule(delay);
+        }
+    }
+
+    private void schedule(long delay) {
+        if (!timerPending.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (DcpConsumer.class) {
+            if (closed) {
+                return;
+            }
+            if (!usesTimer) {
+                usesTimer = true;
+                numTimerUsers++;
+            }
+            if (timer == null) {
+                timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "DcpConsumer timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timerPending.set(false);
+                    kick();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Discard the pending mutations and stop applying new ones, because the
+     * node is stopped. The timer is shut down once no consumer uses it.
+     */
+    void close() {
+        synchronized (DcpConsumer.class) {
+            closed = true;
+            if (usesTimer && --numTimerUsers == 0) {
+                timer.shutdownNow();
+                timer = null;
+            }
+        }
+        clear();
+    }
+
+    /**
+     * Apply all mutations which are due.
+     * @return the number of milliseconds until the next pending mutation
+     * becomes due, or 0 if nothing is pending.
+     */
+    long process() {
+        processLock.lock();
+        try {
+            return processLocked();
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    private long processLocked() {
+        wakeupPending.set(false);
+        if (pending.isEmpty() || suspended || closed) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        long nextDue = Long.MAX_VALUE;
+        List<Stream> notDue = new ArrayList<Stream>();
+
+        Stream stream;
+        while ((stream = pending.poll()) != null) {
+            Event ev;
+            while ((ev = stream.queue.peek()) != null) {
+                if (ev.readyAt - now > 0) {
+                    nextDue = Math.min(nextDue, ev.readyAt - now);
+                    break;
+                }
+                stream.queue.poll();
+                stream.backlog.decrementAndGet();
+                storage.applyReplicatedMutation(ev.item, ev.coords, ev.isDelete);
+                stream.lastReceivedSeqno = ev.coords.getSeqno();
+            }
+            if (ev != null) {
+                notDue.add(stream);
+                continue;
+            }
+            // A mutation may have been offered since the queue was found
+            // empty, without the stream being added again
+            stream.isPending.set(false);
+            if (!stream.queue.isEmpty() && stream.isPending.compareAndSet(false, true)) {
+                notDue.add(stream);
+            }
+        }
+        pending.addAll(notDue);
+
+        if (nextDue == Long.MAX_VALUE) {
+            return pending.isEmpty() ? 0 : 1;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextDue));
+    }
+
+    /**
+     * Discard all pending mutations, e.g. because the bucket was flushed.
+     */
+    void clear() {
+        processLock.lock();
+        try {
+            for (Stream stream : streams) {
+                if (stream == null) {
+                    continue;
+                }
+                while (stream.queue.poll() != null) {
+                    stream.backlog.decrementAndGet();
+                }
+            }
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    public long getLastReceivedSeqno(int vbid) {
+        Stream stream = streams[vbid];
+        return stream == null ? 0 : stream.lastReceivedSeqno;
+    }
+
+    public int getBacklog(int vbid) {
+        Stream stream = streams[vbid];
+        return stream == null ? 0 : stream.backlog.get();
+    }
+
+    @SuppressWarnings("SpellCheckingInspection")
+    Map<String, String> getStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        long total = 0;
+        int numStreams = 0;
+        for (int i = 0; i < streams.length; i++) {
+            Stream stream = streams[i];
+            if (stream == null) {
+                continue;
+            }
+            int backlog = stream.backlog.get();
+            total += backlog;
+            numStreams++;
+            stats.put("dcp:stream_" + i + "_backlog", Integer.toString(backlog));
+            stats.put("dcp:stream_" + i + "_last_received_seqno", Long.toString(stream.lastReceivedSeqno));
+        }
+        stats.put("dcp_num_streams", Integer.toString(numStreams));
+        stats.put("dcp_total_backlog", Long.toString(total));
+        stats.put("dcp_replication_lag_ms", Integer.toString(getLag()));
+        return stats;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A selector thread serving the listening socket and the connections of one
+ * or more {@link MemcachedServer} nodes.
+ *
+ * By default each node runs its own loop on its own thread. Loops of an
+ * {@link EventLoopGroup} are <i>shared</i>: they serve nodes of any bucket,
+ * and must therefore never block.
+ */
+public class EventLoop implements Runnable {
+    private static class Timer implements Comparable<Timer> {
+        private final long deadline;
+        private final long sequence;
+        private final Runnable task;
+
+        Timer(long deadline, long sequence, Runnable task) {
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            if (deadline != other.deadline) {
+                return deadline < other.deadline ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final Selector selector;
+    private final boolean shared;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    // Only accessed from the loop's thread
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    private final List<MemcachedServer> servers = new ArrayList<MemcachedServer>();
+    private long timerSequence;
+    private volatile boolean closed;
+
+    EventLoop(boolean shared) throws IOException {
+        this.shared = shared;
+        selector = Selector.open();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * @return true if this loop may serve more than one node
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * @return true once the loop has stopped
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Run a task on the loop's thread
+     *
+     * @param task the task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Run a task on the loop's thread after a delay. Must be called from the
+     * loop's thread.
+     *
+     * @param task the task to run
+     * @param delay the delay, in milliseconds
+     */
+    void schedule(Runnable task, long delay) {
+        timers.add(new Timer(System.nanoTime() / 1000000 + delay, timerSequence++, task));
+    }
+
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    void add(MemcachedServer server) {
+        servers.add(server);
+    }
+
+    void remove(MemcachedServer server) {
+        servers.remove(server);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Run the expired timers
+     *
+     * @return the time until the next timer expires, or 0 if there is none
+     */
+    private long runTimers() {
+        while (!timers.isEmpty()) {
+            long delay = timers.peek().deadline - System.nanoTime() / 1000000;
+            if (delay > 0) {
+                return delay;
+            }
+            timers.poll().task.run();
+        }
+        return 0;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                runTasks();
+                long timeout = runTimers();
+                for (MemcachedServer server : servers) {
+                    // Replicated mutations are applied on the thread of the node
+                    long replicationDelay = server.processReplication();
+                    if (replicationDelay > 0 && (timeout == 0 || replicationDelay < timeout)) {
+                        timeout = replicationDelay;
+                    }
+                }
+
+                try {
+                    if (!tasks.isEmpty()) {
+                        selector.selectNow();
+                    } else if (timeout > 0) {
+                        selector.select(timeout);
+                    } else {
+                        selector.select();
+                    }
+                } catch (IOException ex) {
+                    continue;
+                }
+
+                for (MemcachedServer server : servers) {
+                    server.processPending();
+                }
+
+                // @todo we should probably drive the state machine until it
+                // step doesn't do any progress to avoid jumping back to the
+                // core
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    Object attachment = key.attachment();
+                    if (attachment instanceof MemcachedConnection) {
+                        ((MemcachedConnection) attachment).getServer().handleKey(key);
+                    } else if (attachment instanceof MemcachedServer) {
+                        ((MemcachedServer) attachment).handleKey(key);
+                    }
+                }
+            }
+        } finally {
+            closed = true;
+            runTasks();
+            for (MemcachedServer server : new ArrayList<MemcachedServer>(servers)) {
+                server.unregister();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Logger.getLogger(EventLoop.class.getName()).log(Level.SEVERE, null, e);
+            }
+        }
+    }
+}
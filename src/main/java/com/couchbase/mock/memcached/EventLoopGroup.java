@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of shared {@link EventLoop}s, each running on its own thread,
+ * onto which the nodes of all the buckets are multiplexed.
+ */
+public class EventLoopGroup {
+    private final EventLoop[] loops;
+    private final Thread[] threads;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Create and start a group with one loop per available processor
+     *
+     * @throws IOException if a selector could not be opened
+     */
+    public EventLoopGroup() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create and start a group
+     *
+     * @param numLoops the number of loops (and threads)
+     * @throws IOException if a selector could not be opened
+     */
+    public EventLoopGroup(int numLoops) throws IOException {
+        if (numLoops < 1) {
+            throw new IllegalArgumentException("An event loop group needs at least one loop");
+        }
+        loops = new EventLoop[numLoops];
+        threads = new Thread[numLoops];
+        for (int ii = 0; ii < numLoops; ii++) {
+            loops[ii] = new EventLoop(true);
+            threads[ii] = new Thread(loops[ii], String.format("EventLoop[%d]", ii));
+            threads[ii].setDaemon(true);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * @return the number of loops in the group
+     */
+    public int size() {
+        return loops.length;
+    }
+
+    /**
+     * @return the loop which should serve the next node (round robin)
+     */
+    public EventLoop next() {
+        return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    /**
+     * Stop all the loops, closing the channels of the nodes still served by them
+     */
+    public void shutdown() {
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The default "disk" of a node, which keeps the persisted items on the heap.
+ *
+ * Each vBucket has a concurrent map of its items, which is swapped for an
+ * empty one on a flush, and its coordinates, which are replaced as a single
+ * immutable pair. Nothing is copied when the items are iterated, and nothing
+ * survives the node.
+ */
+class HeapPersistentStorage extends PersistentStorage {
+    private static final VBucketCoordinates EMPTY_COORDS = new BasicVBucketCoordinates(0, 0);
+
+    private static class Slot {
+        final AtomicReference<VBucketCoordinates> coords = new AtomicReference<VBucketCoordinates>(EMPTY_COORDS);
+        // Replaced rather than cleared on a flush, which then doesn't depend on the number of items
+        volatile ConcurrentMap<KeySpec, Item> items = new ConcurrentHashMap<KeySpec, Item>();
+    }
+
+    private final Slot[] slots;
+
+    HeapPersistentStorage(int nvb) {
+        super(nvb);
+        slots = new Slot[nvb];
+        for (int i = 0; i < nvb; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    private static VBucketCoordinates snapshot(VBucketCoordinates coords) {
+        if (coords instanceof BasicVBucketCoordinates) {
+            return coords;
+        }
+        return new BasicVBucketCoordinates(coords.getUuid(), coords.getSeqno());
+    }
+
+    private Slot updateCommon(KeySpec ks, VBucketCoordinates coords) {
+        Slot slot = slots[ks.vbId];
+        if (coords.getUuid() != 0 && coords.getSeqno() != 0) {
+            slot.coords.set(snapshot(coords));
+        }
+        return slot;
+    }
+
+    @Override
+    void put(Item item, VBucketCoordinates coords) {
+        updateCommon(item.getKeySpec(), coords).items.put(item.getKeySpec(), item);
+    }
+
+    @Override
+    Item get(KeySpec ks) {
+        return slots[ks.vbId].items.get(ks);
+    }
+
+    @Override
+    void remove(KeySpec ks, VBucketCoordinates coords) {
+        updateCommon(ks, coords).items.remove(ks);
+    }
+
+    @Override
+    Runnable clear() {
+        for (Slot s : slots) {
+            s.items = new ConcurrentHashMap<KeySpec, Item>();
+        }
+        return null;
+    }
+
+    @Override
+    VBucketCoordinates getCoords(int vbid) {
+        return slots[vbid].coords.get();
+    }
+
+    @Override
+    void updateSingleCoords(int vbid, VBucketCoordinates coords) {
+        slots[vbid].coords.set(snapshot(coords));
+    }
+
+    @Override
+    Iterable<Item> values(int vbid) {
+        return slots[vbid].items.values();
+    }
+
+    @Override
+    void close() {
+        // Nothing to release
+    }
+}
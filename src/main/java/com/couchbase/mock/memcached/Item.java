@@ -19,6 +19,7 @@ package com.couchbase.mock.memcached;
 import com.couchbase.mock.Info;
 import com.couchbase.mock.memcached.protocol.Datatype;
 import com.couchbase.mock.util.Base64;
+import org.iq80.snappy.Snappy;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
@@ -27,6 +28,17 @@ import java.nio.charset.CharsetDecoder;
 import java.util.Date;
 
 /**
+ * An item in the cache.
+ *
+ * As the mock may hold millions of items (each cached and persisted), an
+ * item only holds primitives and references to its key and value, which are
+ * shared by the copies of the item: values are never modified in place.
+ *
+ * The value may be held uncompressed, Snappy-compressed or both: an item
+ * stored in its compressed form is only decompressed (once) when its value is
+ * needed uncompressed, and an item stored uncompressed is only compressed
+ * (once) when it's sent to a client which accepts compressed values.
+ *
  * @author Trond Norbye
  */
 public class Item {
@@ -34,16 +46,26 @@ public class Item {
     private final int flags;
     private int expiryTime;
     private byte[] xattr;
-    private byte[] value;
-    private String cached_UTF8 = null;
-    private String cached_B64 = null;
+    private volatile byte[] value;
+    private volatile byte[] compressed;
     private long cas;
     private byte datatype;
-    private long modificationTime;
+    /** In seconds since the epoch */
+    private int modificationTime;
     final static private Charset UTF8_CHARSET = Charset.forName("UTF-8");
 
     /** When the lock expires, if any */
     private int lockExpiryTime;
+    /** Whether the value was evicted from the cache, to be read again from the persisted copy */
+    private boolean evicted;
+    /** Whether the item was accessed since the item pager last visited it */
+    private boolean referenced;
+
+    /**
+     * The memory used by an item in the cache besides its key, value and
+     * xattrs: the objects and the entries of the store. This is an estimate.
+     */
+    static final int MEMORY_OVERHEAD = 120;
 
     public Item(KeySpec ks, int flags, int expiryTime, byte[] value, byte[] xattr, long cas, byte datatype) {
         this.keySpec = ks;
@@ -62,6 +84,36 @@ public class Item {
         this(ks, -1, -1, null, null, -1, Datatype.RAW.value());
     }
 
+    /**
+     * Create an item from a Snappy-compressed value, which is kept as-is.
+     * The datatype should contain {@link Datatype#SNAPPY} if the value should
+     * be considered compressed by the clients (i.e. in passive mode).
+     *
+     * @param compressed the compressed value
+     * @return the new item
+     */
+    public static Item fromCompressed(KeySpec ks, int flags, int expiryTime, byte[] compressed, byte[] xattr, long cas, byte datatype) {
+        Item item = new Item(ks, flags, expiryTime, null, xattr, cas, datatype);
+        item.compressed = compressed;
+        return item;
+    }
+
+    /**
+     * Restore an item from its persisted form. Unlike the constructor, this takes
+     * the expiry time as-is, since it has already been converted to an absolute
+     * timestamp when the item was first stored.
+     */
+    static Item restore(KeySpec ks, int flags, int absoluteExpiryTime, byte[] value, boolean isCompressed, byte[] xattr, long cas, byte datatype) {
+        Item item = new Item(ks, flags, 0, null, xattr, cas, datatype);
+        item.expiryTime = absoluteExpiryTime;
+        if (isCompressed) {
+            item.compressed = value;
+        } else {
+            item.value = value;
+        }
+        return item;
+    }
+
     /**
      * Copy constructor
      * @param src Item whose contents we should copy
@@ -71,13 +123,59 @@ public class Item {
         this.flags = src.flags;
         this.expiryTime = src.expiryTime;
         this.value = src.value;
+        this.compressed = src.compressed;
         this.cas = src.cas;
         this.modificationTime = src.modificationTime;
         this.lockExpiryTime = src.lockExpiryTime;
-        this.cached_B64 = src.cached_B64;
-        this.cached_UTF8 = src.cached_UTF8;
         this.xattr = src.xattr;
         this.datatype = src.datatype;
+        this.evicted = src.evicted;
+    }
+
+    /**
+     * @return a copy of this item without its value, as left in the cache by the item pager
+     */
+    Item evictedCopy() {
+        Item copy = new Item(this);
+        copy.value = null;
+        copy.compressed = null;
+        copy.evicted = true;
+        return copy;
+    }
+
+    /**
+     * @param persisted the persisted copy of this (evicted) item
+     * @return a copy of this item with the value of the persisted copy
+     */
+    Item residentCopy(Item persisted) {
+        Item copy = new Item(this);
+        copy.value = persisted.value;
+        copy.compressed = persisted.compressed;
+        copy.evicted = false;
+        return copy;
+    }
+
+    boolean isEvicted() {
+        return evicted;
+    }
+
+    boolean isReferenced() {
+        return referenced;
+    }
+
+    void setReferenced(boolean referenced) {
+        this.referenced = referenced;
+    }
+
+    /**
+     * Estimate the memory used by the item in the cache. This doesn't depend
+     * on whether the value is held compressed, so that it doesn't change
+     * while the item is stored.
+     *
+     * @return the size of the key, value and xattrs plus {@link #MEMORY_OVERHEAD}
+     */
+    int getMemoryUsage() {
+        return MEMORY_OVERHEAD + keySpec.getKeyBytes().length + getValueLength() + (xattr == null ? 0 : xattr.length);
     }
 
     public int getExpiryTime() {
@@ -92,8 +190,32 @@ public class Item {
         expiryTime = VBucketStore.convertExpiryTime(e);
     }
 
+    /**
+     * @return the time of the last mutation, in milliseconds (with a resolution of one second)
+     */
     public long getModificationTime() {
-        return modificationTime;
+        return modificationTime * 1000L;
+    }
+
+    /**
+     * Restore the times which are not persisted, for stores which keep items
+     * in their serialized form (see {@link OffHeapItemMap})
+     *
+     * @param lockExpiryTime the absolute time at which the lock expires, or 0
+     * @param modificationTime the time of the last mutation, in seconds
+     */
+    void restoreTimes(int lockExpiryTime, int modificationTime) {
+        this.lockExpiryTime = lockExpiryTime;
+        this.modificationTime = modificationTime;
+    }
+
+    /**
+     * Restore the state of the item in the cache, for stores which keep items
+     * in their serialized form
+     */
+    void restoreCacheState(boolean evicted, boolean referenced) {
+        this.evicted = evicted;
+        this.referenced = referenced;
     }
 
     public byte getDatatype() { return datatype; }
@@ -106,31 +228,80 @@ public class Item {
         return this.keySpec;
     }
 
+    /**
+     * @return the uncompressed value, or null if the item has no value
+     */
     public byte[] getValue() {
-        return value;
+        byte[] ret = value;
+        if (ret == null) {
+            byte[] src = compressed;
+            if (src == null) {
+                return null;
+            }
+            ret = Snappy.uncompress(src, 0, src.length);
+            value = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * @return the Snappy-compressed value, or null if the item has no value
+     */
+    public byte[] getCompressedValue() {
+        byte[] ret = compressed;
+        if (ret == null) {
+            byte[] src = value;
+            if (src == null) {
+                return null;
+            }
+            ret = Snappy.compress(src);
+            compressed = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * @return true if the value is only held in its compressed form
+     */
+    boolean isCompressedOnly() {
+        return value == null && compressed != null;
+    }
+
+    /**
+     * Get the length of the uncompressed value, without decompressing it
+     * @return the length of the value
+     */
+    public int getValueLength() {
+        byte[] ret = value;
+        if (ret != null) {
+            return ret.length;
+        }
+        if (compressed != null) {
+            return Snappy.getUncompressedLength(compressed, 0);
+        }
+        return 0;
     }
 
     public byte[] getXattr() {
         return xattr;
     }
 
+    /**
+     * Decode the value. This isn't cached, so that items don't hold strings.
+     *
+     * @return the value as a string
+     * @throws CharacterCodingException if the value isn't valid UTF-8
+     */
     public String getUtf8() throws CharacterCodingException {
-        if (cached_UTF8 != null) {
-            return cached_UTF8;
-        }
-
         CharsetDecoder dec = UTF8_CHARSET.newDecoder();
-        cached_UTF8 = dec.decode(ByteBuffer.wrap(value)).toString();
-        return cached_UTF8;
+        return dec.decode(ByteBuffer.wrap(getValue())).toString();
     }
 
+    /**
+     * @return the value encoded in Base64 (which isn't cached either)
+     */
     public String getBase64() {
-        if (cached_B64 != null) {
-            return cached_B64;
-        } else {
-            cached_B64 = Base64.encode(value);
-            return cached_B64;
-        }
+        return Base64.encode(getValue());
     }
 
     public long getCas() {
@@ -145,7 +316,7 @@ public class Item {
     }
 
     void setCas(long l) {
-        modificationTime = new Date().getTime();
+        modificationTime = (int) (System.currentTimeMillis() / 1000);
         cas = l;
     }
 
@@ -185,23 +356,25 @@ public class Item {
     }
 
     public void append(Item i) {
-        byte[] s1 = value;
+        byte[] s1 = getValue();
         byte[] s2 = i.getValue();
         byte[] dst = new byte[s1.length + s2.length];
 
         System.arraycopy(s1, 0, dst, 0, s1.length);
         System.arraycopy(s2, 0, dst, s1.length, s2.length);
         value = dst;
+        compressed = null;
     }
 
     public void prepend(Item i) {
-        byte[] s1 = value;
+        byte[] s1 = getValue();
         byte[] s2 = i.getValue();
         byte[] dst = new byte[s1.length + s2.length];
 
         System.arraycopy(s2, 0, dst, 0, s2.length);
         System.arraycopy(s1, 0, dst, s2.length, s1.length);
         value = dst;
+        compressed = null;
     }
 
 }
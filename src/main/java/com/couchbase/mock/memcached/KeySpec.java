@@ -15,16 +15,60 @@
  */
 package com.couchbase.mock.memcached;
 
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
 /**
  * This class is used as a key for our Items.
+ *
+ * The key is kept as its UTF-8 bytes, which is what is sent on the wire
+ * and what keys are compared on, and the hash code is computed once.
+ *
  * @author Mark Nunberg
  */
 public class KeySpec {
+    private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
     public final short vbId;
+    /**
+     * The key
+     * @deprecated Use {@link #getKey()}, or {@link #getKeyBytes()}
+     */
+    @Deprecated
     public final String key;
+    private final byte[] keyBytes;
+    private final int hash;
+
     public KeySpec(String key, short vbId) {
+        this(key, key == null ? new byte[0] : key.getBytes(UTF8_CHARSET), vbId);
+    }
+
+    /**
+     * @param key The UTF-8 key, which must not be modified afterwards
+     * @param vbId The vBucket
+     */
+    public KeySpec(byte[] key, short vbId) {
+        this(new String(key, UTF8_CHARSET), key, vbId);
+    }
+
+    private KeySpec(String key, byte[] keyBytes, short vbId) {
         this.key = key;
+        this.keyBytes = keyBytes;
         this.vbId = vbId;
+        hash = 19 * (19 * 5 + vbId) + Arrays.hashCode(keyBytes);
+    }
+
+    /**
+     * @return the key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the UTF-8 key, which must not be modified
+     */
+    public byte[] getKeyBytes() {
+        return keyBytes;
     }
 
     @Override
@@ -39,16 +83,13 @@ public class KeySpec {
 
         if (KeySpec.class.isInstance(other)) {
             KeySpec ksOther = (KeySpec)other;
-            return ksOther.vbId == vbId && ksOther.key.equals(key);
+            return ksOther.vbId == vbId && ksOther.hash == hash && Arrays.equals(ksOther.keyBytes, keyBytes);
         }
         return false;
     }
 
     @Override
     public final int hashCode() {
-        int hash = 5;
-        hash = 19 * hash + this.vbId;
-        hash = 19 * hash + ( this.key != null ? this.key.hashCode() : 0 );
         return hash;
     }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies, in microseconds, with logarithmic buckets:
+ * bucket 0 holds latencies below 1us and bucket {@code n} holds the latencies
+ * in {@code [2^(n-1), 2^n)}. Recording is lock-free and may be done from any
+ * thread; reads are not atomic with respect to concurrent recording.
+ */
+public final class LatencyHistogram {
+    static final int NUM_BUCKETS = 40;
+
+    private final LongAdder[] buckets = new LongAdder[NUM_BUCKETS];
+    private final LongAdder total = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    static int bucketOf(long micros) {
+        if (micros <= 0) {
+            return 0;
+        }
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), NUM_BUCKETS - 1);
+    }
+
+    static long lowerBound(int bucket) {
+        return bucket == 0 ? 0 : 1L << (bucket - 1);
+    }
+
+    static long upperBound(int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * Record a latency
+     * @param nanos the latency, in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        buckets[bucketOf(micros)].increment();
+        total.add(micros);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Get the (upper bound of the) latency below which a given fraction of
+     * the recorded latencies fall
+     *
+     * @param fraction the fraction, between 0 and 1
+     * @return the latency in microseconds, or 0 if nothing was recorded
+     */
+    public long getPercentile(double fraction) {
+        long[] counts = snapshot();
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= threshold && counts[i] > 0) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(counts.length - 1);
+    }
+
+    private long[] snapshot() {
+        long[] ret = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            ret[i] = buckets[i].sum();
+        }
+        return ret;
+    }
+
+    /**
+     * @return a summary of the histogram, suitable for JSON encoding. It
+     * contains the count, the mean and some percentiles (in microseconds)
+     * and the non-empty buckets as {@code [lower, upper, count]} triples.
+     */
+    public Map<String, Object> toMap() {
+        long[] counts = snapshot();
+        List<long[]> nonEmpty = new ArrayList<long[]>();
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                nonEmpty.add(new long[] { lowerBound(i), upperBound(i), counts[i] });
+                count += counts[i];
+            }
+        }
+        Map<String, Object> ret = new HashMap<String, Object>();
+        ret.put("count", count);
+        ret.put("mean_us", count == 0 ? 0 : total.sum() / count);
+        ret.put("p50_us", getPercentile(0.5));
+        ret.put("p90_us", getPercentile(0.9));
+        ret.put("p99_us", getPercentile(0.99));
+        ret.put("buckets", nonEmpty);
+        return ret;
+    }
+}
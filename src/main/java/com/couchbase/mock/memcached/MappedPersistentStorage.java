@@ -0,0 +1,590 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * A "disk" which actually lives on disk.
+ *
+ * Each vBucket is stored in an append-only log file which is memory mapped,
+ * so the persisted values live outside of the Java heap. Only a small index,
+ * mapping each key to the offset of its most recent record, is kept in
+ * memory. The log is compacted once most of it consists of superseded
+ * records.
+ *
+ * The logs survive a restart of the mock: when a node is created on an
+ * existing directory the logs are scanned and the index (and the vBucket
+ * coordinates) are rebuilt, after which the contents may be used to warm up
+ * the cache.
+ *
+ * Record layout (big endian):
+ * <pre>
+ * int    length of the record, including this field
+ * int    CRC32 of the remainder of the record
+ * byte   type (mutation, deletion or coordinates)
+ * long   vBucket uuid
+ * long   seqno
+ * -- mutations and deletions --
+ * short  key length, followed by the UTF-8 key
+ * -- mutations only --
+ * long   cas
+ * int    flags
+ * int    absolute expiry time
+ * byte   datatype, with the high bit set if the value is Snappy-compressed
+ * int    value length (-1 for null), followed by the value
+ * int    xattr length (-1 for null), followed by the xattrs
+ * </pre>
+ */
+class MappedPersistentStorage extends PersistentStorage {
+    private static final int MAGIC = 0x43424d4c; // "CBML"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int INITIAL_SIZE = 64 * 1024;
+    private static final int COMPACT_THRESHOLD = 1024 * 1024;
+    private static final byte REC_MUTATION = 1;
+    private static final byte REC_DELETION = 2;
+    private static final byte REC_COORDS = 3;
+    private static final byte DATATYPE_COMPRESSED = (byte) 0x80;
+    private static final VBucketCoordinates EMPTY_COORDS = new BasicVBucketCoordinates(0, 0);
+    private static final Pattern ptnLOG = Pattern.compile("^vb-(\\d+)\\.log$");
+    private static final String FLUSHED_SUFFIX = ".flushed-";
+
+    private final File directory;
+    // Replaced when the storage is cleared
+    private volatile Log[] logs;
+
+    private class Log {
+        private final short vbid;
+        private final File file;
+        // Replaced rather than cleared when the log is reset
+        private volatile Map<KeySpec, Integer> index = new ConcurrentHashMap<KeySpec, Integer>();
+        private volatile VBucketCoordinates coords = EMPTY_COORDS;
+        private FileChannel channel;
+        private MappedByteBuffer buf;
+        private int position;
+        private long garbage;
+        // Set once the log was replaced by clear()
+        private boolean discarded;
+
+        Log(short vbid) {
+            this.vbid = vbid;
+            this.file = new File(directory, "vb-" + vbid + ".log");
+        }
+
+        private void map(int size) throws IOException {
+            if (buf != null) {
+                buf.force();
+            }
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        private void open() throws IOException {
+            boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            map((int) Math.max(INITIAL_SIZE, channel.size()));
+            position = HEADER_SIZE;
+            if (exists && buf.getInt(0) == MAGIC && buf.getInt(4) == VERSION) {
+                scan();
+            } else {
+                buf.putInt(0, MAGIC);
+                buf.putInt(4, VERSION);
+            }
+        }
+
+        private void ensureOpen() throws IOException {
+            if (channel == null) {
+                // The coordinates may have been set while the log wasn't open
+                VBucketCoordinates pending = coords;
+                open();
+                if (pending.getUuid() != 0 || pending.getSeqno() != 0) {
+                    append(encode(REC_COORDS, pending, null, null));
+                }
+            }
+        }
+
+        private int recordLength(int offset) {
+            return buf.getInt(offset);
+        }
+
+        private boolean isValid(int offset, int limit) {
+            if (offset + 8 > limit) {
+                return false;
+            }
+            int length = buf.getInt(offset);
+            if (length < 8 + 17 || offset + length > limit) {
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buf.duplicate();
+            body.position(offset + 8);
+            body.limit(offset + length);
+            crc.update(body);
+            return (int) crc.getValue() == buf.getInt(offset + 4);
+        }
+
+        private KeySpec readKey(int offset) {
+            int keyOffset = offset + 8 + 17;
+            byte[] key = new byte[buf.getShort(keyOffset)];
+            ByteBuffer dup = buf.duplicate();
+            dup.position(keyOffset + 2);
+            dup.get(key);
+            return new KeySpec(key, vbid);
+        }
+
+        private void updateCoords(long uuid, long seqno, boolean force) {
+            if (force || (uuid != 0 && seqno != 0)) {
+                coords = new BasicVBucketCoordinates(uuid, seqno);
+            }
+        }
+
+        private void apply(int offset) {
+            int length = recordLength(offset);
+            byte type = buf.get(offset + 8);
+            long uuid = buf.getLong(offset + 9);
+            long seqno = buf.getLong(offset + 17);
+            updateCoords(uuid, seqno, type == REC_COORDS);
+
+            if (type == REC_COORDS) {
+                garbage += length;
+                return;
+            }
+
+            Integer old;
+            if (type == REC_MUTATION) {
+                old = index.put(readKey(offset), offset);
+            } else {
+                old = index.remove(readKey(offset));
+                garbage += length;
+            }
+            if (old != null) {
+                garbage += recordLength(old);
+            }
+        }
+
+        private void scan() {
+            int limit = buf.capacity();
+            while (isValid(position, limit)) {
+                apply(position);
+                position += recordLength(position);
+            }
+        }
+
+        private void append(ByteBuffer record) throws IOException {
+            ensureOpen();
+            int needed = position + record.remaining();
+            if (needed > buf.capacity()) {
+                int size = buf.capacity();
+                while (size < needed) {
+                    size *= 2;
+                }
+                map(size);
+            }
+            int offset = position;
+            ByteBuffer dup = buf.duplicate();
+            dup.position(offset);
+            dup.put(record);
+            position = dup.position();
+            apply(offset);
+
+            if (garbage > COMPACT_THRESHOLD && garbage > position / 2) {
+                compact();
+            }
+        }
+
+        /**
+         * Rewrite the log so it only contains the most recent record of each key.
+         */
+        private void compact() throws IOException {
+            File tmpFile = new File(directory, file.getName() + ".compact");
+            FileChannel tmpChannel = new RandomAccessFile(tmpFile, "rw").getChannel();
+            int size = INITIAL_SIZE;
+            while (size < position - garbage + INITIAL_SIZE) {
+                size *= 2;
+            }
+            MappedByteBuffer tmpBuf = tmpChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            tmpBuf.putInt(MAGIC);
+            tmpBuf.putInt(VERSION);
+            VBucketCoordinates curCoords = coords;
+            tmpBuf.put(encode(REC_COORDS, curCoords, null, null));
+
+            for (Map.Entry<KeySpec, Integer> ent : index.entrySet()) {
+                int offset = ent.getValue();
+                ByteBuffer src = buf.duplicate();
+                src.position(offset);
+                src.limit(offset + recordLength(offset));
+                ent.setValue(tmpBuf.position());
+                tmpBuf.put(src);
+            }
+            tmpBuf.force();
+
+            buf.force();
+            buf = null;
+            channel.close();
+            if (!tmpFile.renameTo(file)) {
+                file.delete();
+                if (!tmpFile.renameTo(file)) {
+                    throw new IOException("Couldn't replace " + file + " with compacted log");
+                }
+            }
+            channel = tmpChannel;
+            buf = tmpBuf;
+            position = tmpBuf.position();
+            garbage = 0;
+        }
+
+        synchronized void write(byte type, VBucketCoordinates coords, KeySpec ks, Item item) {
+            if (discarded) {
+                return;
+            }
+            try {
+                append(encode(type, coords, ks, item));
+            } catch (IOException ex) {
+                throw new RuntimeException("Failed to write to " + file, ex);
+            }
+        }
+
+        /**
+         * Set the coordinates. A log which isn't open only keeps them in
+         * memory until it is, so that vBuckets without items don't get a
+         * file.
+         */
+        synchronized void setCoords(VBucketCoordinates newCoords) {
+            VBucketCoordinates cur = coords;
+            if (discarded || (cur.getUuid() == newCoords.getUuid() && cur.getSeqno() == newCoords.getSeqno())) {
+                return;
+            }
+            if (channel == null) {
+                coords = newCoords;
+            } else {
+                write(REC_COORDS, newCoords, null, null);
+            }
+        }
+
+        synchronized Item read(KeySpec ks) {
+            Integer offset = index.get(ks);
+            if (offset == null || discarded) {
+                return null;
+            }
+            return decode(ks, offset);
+        }
+
+        private Item decode(KeySpec ks, int offset) {
+            ByteBuffer dup = buf.duplicate();
+            dup.position(offset + 8 + 17);
+            dup.position(dup.position() + 2 + dup.getShort());
+            long cas = dup.getLong();
+            int flags = dup.getInt();
+            int expiry = dup.getInt();
+            byte datatype = dup.get();
+            byte[] value = readBytes(dup);
+            byte[] xattr = readBytes(dup);
+            boolean isCompressed = (datatype & DATATYPE_COMPRESSED) != 0;
+            datatype &= ~DATATYPE_COMPRESSED;
+            return Item.restore(ks, flags, expiry, value, isCompressed, xattr, cas, datatype);
+        }
+
+        /**
+         * Stop using the log, which was replaced. Its file is left alone
+         * until {@link #release()}.
+         */
+        synchronized void discard() {
+            discarded = true;
+        }
+
+        /**
+         * Close the file of a discarded log, without flushing it.
+         */
+        synchronized void release() {
+            buf = null;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(MappedPersistentStorage.class.getName()).log(Level.WARNING, null, ex);
+                }
+                channel = null;
+            }
+        }
+
+        synchronized void close() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                buf.force();
+                channel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(MappedPersistentStorage.class.getName()).log(Level.WARNING, null, ex);
+            }
+            channel = null;
+            buf = null;
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer src) {
+        int length = src.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] ret = new byte[length];
+        src.get(ret);
+        return ret;
+    }
+
+    private static int lengthOf(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void putBytes(ByteBuffer dst, byte[] bytes) {
+        if (bytes == null) {
+            dst.putInt(-1);
+        } else {
+            dst.putInt(bytes.length);
+            dst.put(bytes);
+        }
+    }
+
+    private static ByteBuffer encode(byte type, VBucketCoordinates coords, KeySpec ks, Item item) {
+        byte[] key = ks == null ? null : ks.getKeyBytes();
+        int length = 8 + 17;
+        if (key != null) {
+            length += 2 + key.length;
+        }
+        // Items received compressed are persisted as such
+        boolean isCompressed = item != null && item.isCompressedOnly();
+        byte[] value = null;
+        if (item != null) {
+            value = isCompressed ? item.getCompressedValue() : item.getValue();
+            length += 8 + 4 + 4 + 1 + 4 + lengthOf(value) + 4 + lengthOf(item.getXattr());
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length);
+        record.putInt(0);
+        record.put(type);
+        record.putLong(coords.getUuid());
+        record.putLong(coords.getSeqno());
+        if (key != null) {
+            record.putShort((short) key.length);
+            record.put(key);
+        }
+        if (item != null) {
+            record.putLong(item.getCasReal());
+            record.putInt(item.getFlags());
+            record.putInt(item.getExpiryTime());
+            record.put(isCompressed ? (byte) (item.getDatatype() | DATATYPE_COMPRESSED) : item.getDatatype());
+            putBytes(record, value);
+            putBytes(record, item.getXattr());
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, length - 8);
+        record.putInt(4, (int) crc.getValue());
+        record.rewind();
+        return record;
+    }
+
+    /**
+     * Open (or create) the storage in a given directory.
+     * @param directory The directory holding the log files of this node
+     * @param nvb The number of vBuckets
+     * @throws IOException if the directory or an existing log can't be opened
+     */
+    MappedPersistentStorage(File directory, int nvb) throws IOException {
+        super(nvb);
+        this.directory = directory;
+        this.logs = new Log[nvb];
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create " + directory);
+        }
+        for (short i = 0; i < nvb; i++) {
+            logs[i] = new Log(i);
+        }
+
+        // Left behind if the mock stopped while clearing the storage
+        File[] siblings = directory.getAbsoluteFile().getParentFile().listFiles();
+        if (siblings != null) {
+            for (File f : siblings) {
+                if (f.getName().startsWith(directory.getName() + FLUSHED_SUFFIX)) {
+                    deleteDirectory(f);
+                }
+            }
+        }
+
+        File[] existing = directory.listFiles();
+        if (existing == null) {
+            return;
+        }
+        for (File f : existing) {
+            Matcher m = ptnLOG.matcher(f.getName());
+            if (!m.matches()) {
+                continue;
+            }
+            int vbid = Integer.parseInt(m.group(1));
+            if (vbid < nvb) {
+                Log log = logs[vbid];
+                synchronized (log) {
+                    log.open();
+                    if (log.garbage > log.position / 2) {
+                        log.compact();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    void put(Item item, VBucketCoordinates coords) {
+        logs[item.getKeySpec().vbId].write(REC_MUTATION, coords, item.getKeySpec(), item);
+    }
+
+    @Override
+    Item get(KeySpec ks) {
+        return logs[ks.vbId].read(ks);
+    }
+
+    @Override
+    void remove(KeySpec ks, VBucketCoordinates coords) {
+        Log log = logs[ks.vbId];
+        if (log.index.containsKey(ks) || (coords.getUuid() != 0 && coords.getSeqno() != 0)) {
+            log.write(REC_DELETION, coords, ks, null);
+        }
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            Logger.getLogger(MappedPersistentStorage.class.getName()).log(Level.WARNING, "Couldn't delete {0}", file);
+        }
+    }
+
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        delete(dir);
+    }
+
+    /**
+     * Replace the logs by empty ones. Rather than deleting the files one by
+     * one while the cache is locked, the directory is moved aside at once,
+     * and deleted by the returned action. If it can't be moved, the files are
+     * deleted right away, since the new logs would reuse them.
+     */
+    @Override
+    Runnable clear() {
+        final Log[] old = logs;
+        Log[] fresh = new Log[old.length];
+        for (short i = 0; i < old.length; i++) {
+            old[i].discard();
+            fresh[i] = new Log(i);
+        }
+        final File trash = new File(directory.getAbsoluteFile().getParentFile(), directory.getName() + FLUSHED_SUFFIX + System.nanoTime());
+        boolean moved = directory.renameTo(trash);
+        if (!moved) {
+            for (Log log : old) {
+                log.release();
+                delete(log.file);
+            }
+        } else if (!directory.mkdirs()) {
+            Logger.getLogger(MappedPersistentStorage.class.getName()).log(Level.WARNING, "Couldn't create {0}", directory);
+        }
+        logs = fresh;
+        if (!moved) {
+            return null;
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                for (Log log : old) {
+                    log.release();
+                }
+                deleteDirectory(trash);
+            }
+        };
+    }
+
+    @Override
+    VBucketCoordinates getCoords(int vbid) {
+        return logs[vbid].coords;
+    }
+
+    @Override
+    void updateSingleCoords(int vbid, VBucketCoordinates coords) {
+        logs[vbid].setCoords(coords);
+    }
+
+    @Override
+    Iterable<Item> values(final int vbid) {
+        final Log log = logs[vbid];
+        return new Iterable<Item>() {
+            @Override
+            public Iterator<Item> iterator() {
+                final Iterator<KeySpec> keys = log.index.keySet().iterator();
+                return new Iterator<Item>() {
+                    private Item nextItem = null;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (nextItem == null && keys.hasNext()) {
+                            nextItem = log.read(keys.next());
+                        }
+                        return nextItem != null;
+                    }
+
+                    @Override
+                    public Item next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Item ret = nextItem;
+                        nextItem = null;
+                        return ret;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    void close() {
+        for (Log log : logs) {
+            log.close();
+        }
+    }
+}
@@ -15,14 +15,17 @@
  */
 package com.couchbase.mock.memcached;
 
+import com.couchbase.mock.memcached.protocol.BinaryClustermapNotification;
 import com.couchbase.mock.memcached.protocol.BinaryCommand;
 import com.couchbase.mock.memcached.protocol.BinaryHelloCommand;
 import com.couchbase.mock.memcached.protocol.BinaryResponse;
 import com.couchbase.mock.memcached.protocol.CommandFactory;
 
 import java.io.IOException;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -42,6 +45,10 @@ public class MemcachedConnection {
     private boolean authenticated;
     private boolean closed;
     private boolean[] supportedFeatures = new boolean[BinaryHelloCommand.Feature.MAX.getValue()];
+    private volatile SelectionKey selectionKey;
+    private UnorderedExecutor unorderedExecutor;
+    private int notifiedRevision = -1;
+    private boolean writeStalled;
 
     public MemcachedConnection(MemcachedServer server) {
         closed = false;
@@ -68,8 +75,15 @@ public class MemcachedConnection {
             }
 
             if (command.complete()) {
-                command.process();
-                protocolHandler.execute(command, this);
+                if (command.isServerResponse()) {
+                    // Nothing is waiting for the replies to our notifications
+                    if (!supportsDuplex()) {
+                        throw new ProtocolException("Response received without DUPLEX");
+                    }
+                } else {
+                    command.process();
+                    protocolHandler.execute(command, this);
+                }
                 command = null;
                 input.rewind();
             }
@@ -89,12 +103,28 @@ public class MemcachedConnection {
         pending.add(response.getBuffer());
     }
 
+    /**
+     * Send a cluster map change notification, unless this connection did not
+     * ask for them or was already notified about this revision.
+     *
+     * @param notification the notification to send
+     * @return true if the notification was enqueued
+     */
+    synchronized boolean sendNotification(BinaryClustermapNotification notification) {
+        if (!supportsClustermapNotifications() || notification.getRevision() <= notifiedRevision) {
+            return false;
+        }
+        notifiedRevision = notification.getRevision();
+        sendResponse(notification.share());
+        return true;
+    }
+
     /**
      * Determines whether this connection has pending responses to be sent
      *
      * @return true  there are pending responses
      */
-    boolean hasOutput() {
+    synchronized boolean hasOutput() {
         if (pending == null) {
             return false;
         }
@@ -130,7 +160,7 @@ public class MemcachedConnection {
      *
      * @return The output context
      */
-    public OutputContext borrowOutputContext() {
+    public synchronized OutputContext borrowOutputContext() {
         if (!hasOutput()) {
             return null;
         }
@@ -145,7 +175,7 @@ public class MemcachedConnection {
      *
      * @param ctx An OutputContext previously returned by {@link #borrowOutputContext()}
      */
-    public void returnOutputContext(OutputContext ctx) {
+    public synchronized void returnOutputContext(OutputContext ctx) {
         List<ByteBuffer> remaining = ctx.releaseRemaining();
         if (pending == null) {
             pending = remaining;
@@ -191,6 +221,55 @@ public class MemcachedConnection {
         return supportedFeatures[BinaryHelloCommand.Feature.TRACING.getValue()];
     }
 
+    public boolean supportsDuplex() {
+        return supportedFeatures[BinaryHelloCommand.Feature.DUPLEX.getValue()];
+    }
+
+    public boolean supportsClustermapNotifications() {
+        return supportedFeatures[BinaryHelloCommand.Feature.CLUSTERMAP_CHANGE_NOTIFICATION.getValue()];
+    }
+
+    public boolean supportsUnorderedExecution() {
+        return supportedFeatures[BinaryHelloCommand.Feature.UNORDERED_EXECUTION.getValue()];
+    }
+
+    /**
+     * Get the scheduler used for commands received once {@code UNORDERED_EXECUTION}
+     * has been negotiated
+     *
+     * @return The scheduler of this connection
+     */
+    UnorderedExecutor getUnorderedExecutor() {
+        if (unorderedExecutor == null) {
+            unorderedExecutor = new UnorderedExecutor(server.getWorkerPool());
+        }
+        return unorderedExecutor;
+    }
+
+    SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    MemcachedServer getServer() {
+        return server;
+    }
+
+    /**
+     * @return true if the output of this connection is held back by a hiccup.
+     * Only used from the thread of the server's event loop
+     */
+    boolean isWriteStalled() {
+        return writeStalled;
+    }
+
+    void setWriteStalled(boolean writeStalled) {
+        this.writeStalled = writeStalled;
+    }
+
     public CompressionMode snappyMode() {
         if (!supportedFeatures[BinaryHelloCommand.Feature.SNAPPY.getValue()]) {
             return CompressionMode.DISABLED;
@@ -207,8 +286,7 @@ public class MemcachedConnection {
      * Sets the supported features from a HELLO command.
      *
      * Note that the actual enabled features will be the ones supported by the mock
-     * and also supported by the client. Currently the only supported feature is
-     * MUTATION_SEQNO.
+     * and also supported by the client.
      *
      * @param input The features requested by the client.
      */
@@ -231,9 +309,16 @@ public class MemcachedConnection {
                 case XATTR:
                 case SELECT_BUCKET:
                 case TRACING:
+                case UNORDERED_EXECUTION:
+                case DUPLEX:
                     supportedFeatures[i] = input[i];
                     break;
 
+                case CLUSTERMAP_CHANGE_NOTIFICATION:
+                    // Notifications are server initiated requests
+                    supportedFeatures[i] = input[i] && input[BinaryHelloCommand.Feature.DUPLEX.getValue()];
+                    break;
+
                 case SNAPPY:
                     supportedFeatures[i] = input[i] && server.getCompression() != CompressionMode.DISABLED;
                     break;
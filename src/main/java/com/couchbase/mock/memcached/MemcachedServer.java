@@ -19,6 +19,9 @@ import com.couchbase.mock.Bucket;
 import com.couchbase.mock.Bucket.BucketType;
 import com.couchbase.mock.CouchbaseMock;
 import com.couchbase.mock.Info;
+import com.couchbase.mock.JsonUtils;
+import com.couchbase.mock.RenderedConfig;
+import com.couchbase.mock.memcached.protocol.BinaryClustermapNotification;
 import com.couchbase.mock.memcached.protocol.BinaryCommand;
 import com.couchbase.mock.memcached.protocol.BinaryConfigResponse;
 import com.couchbase.mock.memcached.protocol.BinaryResponse;
@@ -26,15 +29,16 @@ import com.couchbase.mock.memcached.protocol.CommandCode;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
 import com.couchbase.mock.security.sasl.ShaSaslServerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.security.AccessControlException;
@@ -45,6 +49,18 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -59,21 +75,34 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
     private final long bootTime;
     private final String hostname;
     private final ServerSocketChannel server;
-    private Selector selector;
+    private volatile EventLoop loop;
     private final int port;
     private final CommandExecutor[] executors = new CommandExecutor[0xff];
     private static final CommandExecutor unknownHandler = new UnknownCommandExecutor();
     private final Bucket bucket;
-    private boolean active = true;
+    private volatile boolean active = true;
     private int hiccupTime = 0;
     private int hiccupOffset = 0;
     private int truncateLimit = 0;
     private boolean cccpEnabled = false;
-    private final List<CommandLogEntry> commandLog = new ArrayList<CommandLogEntry>();
-    private boolean shouldLogCommands = false;
+    private volatile CommandLog commandLog;
+    private volatile boolean shouldLogCommands = false;
     private boolean enhancedErrorsEnabled = false;
     private CompressionMode compression = CompressionMode.DISABLED;
     private List<String> saslMechanisms;
+    private ExecutorService workerPool;
+    private final Queue<MemcachedConnection> outputReady = new ConcurrentLinkedQueue<MemcachedConnection>();
+    private final AtomicBoolean configChanged = new AtomicBoolean(false);
+    private final ServerStats serverStats = new ServerStats();
+    private final Observer configObserver = new Observer() {
+        @Override
+        public void update(Observable o, Object arg) {
+            EventLoop current = loop;
+            if (configChanged.compareAndSet(false, true) && current != null) {
+                current.wakeup();
+            }
+        }
+    };
 
     public void setEnhancedErrorsEnabled(boolean enhancedErrorsEnabled) {
         this.enhancedErrorsEnabled = enhancedErrorsEnabled;
@@ -106,13 +135,18 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
     public static class CommandLogEntry {
         private final int opcode;
         private final long timestamp;
-        CommandLogEntry(int opcode) {
-            this.opcode = opcode;
-            this.timestamp = System.currentTimeMillis();
-        }
+        private final short status;
+        private final short vbucket;
+        private final int opaque;
         public CommandLogEntry(int opcode, long timestamp) {
+            this(opcode, timestamp, ErrorCode.SUCCESS.value(), (short) 0, 0);
+        }
+        public CommandLogEntry(int opcode, long timestamp, short status, short vbucket, int opaque) {
             this.opcode = opcode;
             this.timestamp = timestamp;
+            this.status = status;
+            this.vbucket = vbucket;
+            this.opaque = opaque;
         }
         public long getMsTimestamp() {
             return timestamp;
@@ -120,19 +154,33 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         public int getOpcode() {
             return opcode;
         }
+        public short getStatus() {
+            return status;
+        }
+        public short getVBucket() {
+            return vbucket;
+        }
+        public int getOpaque() {
+            return opaque;
+        }
     }
 
+    /**
+     * Injects failures. Commands may be executed concurrently (see
+     * {@link UnorderedExecutor}), so the remaining count is only updated
+     * under the lock.
+     */
     public class FailMaker {
         private ErrorCode code = ErrorCode.SUCCESS;
         private int remaining = 0;
         private CommandCode operation = CommandCode.ILLEGAL; /* fail any operation by default */
 
-        public void update(ErrorCode code, int count, CommandCode operation) {
+        public synchronized void update(ErrorCode code, int count, CommandCode operation) {
             this.code = code;
             this.remaining = count;
             this.operation = operation;
         }
-        public ErrorCode getFailCode(CommandCode operation) {
+        public synchronized ErrorCode getFailCode(CommandCode operation) {
             if (this.operation != CommandCode.ILLEGAL && this.operation != operation) {
                 return ErrorCode.SUCCESS;
             }
@@ -159,8 +207,41 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
      * @throws IOException If we fail to create the server socket
      */
     public MemcachedServer(Bucket bucket, String hostname, int port, VBucketInfo[] vbi, boolean cccpEnabled) throws IOException {
+        this(bucket, hostname, port, vbi, cccpEnabled, null);
+    }
+
+    /**
+     * Create a new memcached server whose persisted items are kept on disk.
+     *
+     * @param bucket    The bucket owning all of the stores
+     * @param hostname  The hostname to connect to (null == any)
+     * @param port      The port this server should listen to (0 to choose an
+     *                  ephemeral port)
+     * @param vbi       Vbucket Info
+     * @param dataDir   The directory in which persisted items are stored, or
+     *                  null to keep them in memory
+     * @throws IOException If we fail to create the server socket or open the data directory
+     */
+    public MemcachedServer(Bucket bucket, String hostname, int port, VBucketInfo[] vbi, boolean cccpEnabled, File dataDir) throws IOException {
+        this(bucket, hostname, port, vbi, cccpEnabled, dataDir, false);
+    }
+
+    /**
+     * Create a new memcached server whose items may be kept outside of the Java heap.
+     *
+     * @param bucket    The bucket owning all of the stores
+     * @param hostname  The hostname to connect to (null == any)
+     * @param port      The port this server should listen to (0 to choose an
+     *                  ephemeral port)
+     * @param vbi       Vbucket Info
+     * @param dataDir   The directory in which persisted items are stored, or
+     *                  null to keep them in memory
+     * @param offHeap   Whether items should be kept outside of the Java heap
+     * @throws IOException If we fail to create the server socket or open the data directory
+     */
+    public MemcachedServer(Bucket bucket, String hostname, int port, VBucketInfo[] vbi, boolean cccpEnabled, File dataDir, boolean offHeap) throws IOException {
         this.bucket = bucket;
-        this.storage = new Storage(vbi, this);
+        this.storage = new Storage(vbi, this, dataDir, offHeap);
         this.cccpEnabled = cccpEnabled;
         this.saslMechanisms = new ArrayList<String>();
         Collections.addAll(this.saslMechanisms, ShaSaslServerFactory.SUPPORTED_MECHS);
@@ -237,7 +318,6 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         }
 
         bootTime = System.currentTimeMillis() / 1000;
-        selector = Selector.open();
         server = ServerSocketChannel.open();
         server.configureBlocking(false);
         if (hostname != null && !hostname.equals("*")) {
@@ -259,7 +339,6 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
             }
         }
         this.port = server.socket().getLocalPort();
-        server.register(selector, SelectionKey.OP_ACCEPT);
     }
 
     public Storage getStorage() {
@@ -295,25 +374,24 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         return map;
     }
 
+    /**
+     * @return the operation counters and latency histograms of this node
+     */
+    public ServerStats getServerStats() {
+        return serverStats;
+    }
+
     @SuppressWarnings("SpellCheckingInspection")
     private Map<String,String> getDefaultStats() {
-        HashMap<String, String> stats = new HashMap<String, String>();
+        Map<String, String> stats = serverStats.getCounters();
         stats.put("pid", Long.toString(Thread.currentThread().getId()));
         stats.put("time", Long.toString(new Date().getTime()));
         stats.put("version", "9.9.9");
-        stats.put("uptime", "15554");
+        stats.put("uptime", Long.toString(System.currentTimeMillis() / 1000 - bootTime));
         stats.put("accepting_conns", "1");
-        stats.put("auth_cmds", "0");
-        stats.put("auth_errors", "0");
-        stats.put("bucket_active_conns", "1");
-        stats.put("bucket_conns", "3");
-        stats.put("bytes_read", "1108621");
-        stats.put("bytes_written", "205374436");
-        stats.put("cas_badval", "0");
-        stats.put("cas_hits", "0");
-        stats.put("cas_misses", "0");
+        stats.put("bucket_active_conns", stats.get("curr_connections"));
+        stats.put("bucket_conns", stats.get("curr_connections"));
         stats.put("mem_used", "100000000000000000000");
-        stats.put("curr_connections", "-1");
         return stats;
     }
 
@@ -322,9 +400,9 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         if (about == null || about.isEmpty()) {
             return getDefaultStats();
         } else if (about.equals("memory")) {
-            Map<String, String> memStats = new HashMap<String, String>();
+            // mem_used is the memory used by the cached items, as accounted for the quota
+            Map<String, String> memStats = storage.getMemoryStats();
             Runtime rt = Runtime.getRuntime();
-            memStats.put("mem_used", Long.toString(rt.totalMemory()));
             memStats.put("mem_free", Long.toString(rt.freeMemory()));
             memStats.put("mem_max", Long.toString(rt.maxMemory()));
             return memStats;
@@ -336,6 +414,16 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
             Map<String, String> configStats = new HashMap<String, String>();
             configStats.put("ep_dcp_conn_buffer_size", "10485760");
             return configStats;
+        } else if (about.equals("dcp")) {
+            return storage.getDcpConsumer().getStats();
+        } else if (about.equals("opcodes")) {
+            return serverStats.getOpcodeCounters();
+        } else if (about.equals("timings")) {
+            Map<String, String> timingStats = new HashMap<String, String>();
+            for (Map.Entry<String, Map<String, Object>> entry : serverStats.getTimings().entrySet()) {
+                timingStats.put(entry.getKey(), JsonUtils.encode(entry.getValue()));
+            }
+            return timingStats;
         } else if (about.equals("__MOCK__")) {
             Map<String,String> mockInfo = new HashMap<String, String>();
             mockInfo.put("implementation", "java");
@@ -368,52 +456,240 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
             } else if (nw == 0) {
                 return;
             }
+            serverStats.recordBytesWritten(nw);
             ctx.updateBytesSent(nw);
         }
     }
 
-    @Override
-    public void run() {
-        try {
-            while (!Thread.currentThread().isInterrupted()) {
+    /**
+     * Push the current configuration to all the clients which asked for
+     * cluster map change notifications and have not seen it yet. Must be
+     * called from the thread of the server's event loop.
+     */
+    private void notifyConfigChange() {
+        if (!isCccpEnabled()) {
+            return;
+        }
+        RenderedConfig config = bucket.getRenderedConfig();
+        BinaryClustermapNotification notification = null;
+        for (SelectionKey key : loop.getSelector().keys()) {
+            Object o = key.attachment();
+            if (!(o instanceof MemcachedConnection) || !key.isValid() || !owns(key)) {
+                continue;
+            }
+            MemcachedConnection client = (MemcachedConnection) o;
+            if (!client.supportsClustermapNotifications()) {
+                continue;
+            }
+            if (notification == null) {
+                notification = new BinaryClustermapNotification(bucket.getName(), config.getRevision(),
+                        config.getBytesForHost(hostname));
+            }
+            if (client.sendNotification(notification)) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private boolean owns(SelectionKey key) {
+        Object o = key.attachment();
+        return o == this || (o instanceof MemcachedConnection && ((MemcachedConnection) o).getServer() == this);
+    }
+
+    /**
+     * Start serving the listening socket and the connections of this node from
+     * the given loop. Must be called from the thread of the loop.
+     */
+    void register(final EventLoop eventLoop) throws IOException {
+        loop = eventLoop;
+        bucket.addConfigObserver(configObserver);
+        storage.getDcpConsumer().setWakeup(new Runnable() {
+            @Override
+            public void run() {
+                eventLoop.wakeup();
+            }
+        });
+        server.register(eventLoop.getSelector(), active ? SelectionKey.OP_ACCEPT : 0, this);
+        eventLoop.add(this);
+    }
+
+    /**
+     * Stop serving this node from its loop, and close its listening socket
+     * and connections. Must be called from the thread of the loop.
+     */
+    void unregister() {
+        EventLoop eventLoop = loop;
+        eventLoop.remove(this);
+        bucket.removeConfigObserver(configObserver);
+        storage.getDcpConsumer().setWakeup(null);
+        synchronized (this) {
+            if (workerPool != null) {
+                workerPool.shutdown();
+                workerPool = null;
+            }
+        }
+        for (SelectionKey key : new ArrayList<SelectionKey>(eventLoop.getSelector().keys())) {
+            if (key.attachment() instanceof MemcachedConnection && owns(key)) {
+                serverStats.connectionClosed((MemcachedConnection) key.attachment());
                 try {
-                    selector.select();
-                    if (!active) {
-                        // server is suspended: ignore all events
-                        selector.selectedKeys().clear();
-                        continue;
-                    }
-                } catch (IOException ex) {
-                    continue;
+                    key.channel().close();
+                } catch (IOException e) {
+                    // Don't care
                 }
+            }
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            Logger.getLogger(MemcachedServer.class.getName()).log(Level.SEVERE, null, e);
+        }
+    }
 
+    /**
+     * Apply the replicated mutations which are due
+     *
+     * @return the time (in ms) until the next one is due, or 0 if there are none
+     */
+    long processReplication() {
+        return storage.getDcpConsumer().process();
+    }
+
+    /**
+     * Handle the work posted to the node by other threads since the last
+     * iteration of its loop
+     */
+    void processPending() {
+        if (!active) {
+            return;
+        }
+
+        // Responses of commands executed on the worker pool
+        MemcachedConnection ready;
+        while ((ready = outputReady.poll()) != null) {
+            SelectionKey key = ready.getSelectionKey();
+            if (key != null && key.isValid() && ready.hasOutput() && !ready.isWriteStalled()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        if (configChanged.getAndSet(false)) {
+            notifyConfigChange();
+        }
+    }
+
+    void handleKey(SelectionKey key) {
+        if (!active) {
+            // server is suspended: stop listening for its events until startup()
+            if (key.isValid()) {
+                key.interestOps(0);
+            }
+            return;
+        }
+        try {
+            handleClient(key);
+        } catch (IOException e) {
+            Logger.getLogger(MemcachedServer.class.getName()).log(Level.SEVERE, null, e);
+        }
+    }
+
+    /**
+     * Listen again for the events of all the channels of the node, after
+     * it was suspended. Must be called from the thread of the loop.
+     */
+    private void resumeEvents() {
+        if (!active) {
+            return;
+        }
+        for (SelectionKey key : loop.getSelector().keys()) {
+            if (!key.isValid() || !owns(key)) {
+                continue;
+            }
+            if (key.attachment() == this) {
+                key.interestOps(SelectionKey.OP_ACCEPT);
+            } else {
+                MemcachedConnection client = (MemcachedConnection) key.attachment();
+                int ioEvents = SelectionKey.OP_READ;
+                if (client.hasOutput() && !client.isWriteStalled()) {
+                    ioEvents |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(ioEvents);
+            }
+        }
+    }
+
+    /**
+     * Serve this node from a (shared) loop of an {@link EventLoopGroup}
+     * rather than from its own thread.
+     *
+     * @param eventLoop the loop which should serve the node
+     */
+    public void start(final EventLoop eventLoop) {
+        loop = eventLoop;
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-
-                    // @todo we should probably drive the state machine until it
-                    // step doesn't do any progress to avoid jumping back to the
-                    // core
-                    while (iterator.hasNext()) {
-                        SelectionKey key = iterator.next();
-                        iterator.remove();
-                        handleClient(key);
-                    }
+                    register(eventLoop);
                 } catch (IOException e) {
-
                     Logger.getLogger(MemcachedServer.class.getName()).log(Level.SEVERE, null, e);
                 }
             }
-        } finally {
-            try {
-                server.close();
-                selector.close();
-            } catch (IOException e) {
-                Logger.getLogger(MemcachedServer.class.getName()).log(Level.SEVERE, null, e);
+        });
+    }
+
+    /**
+     * @return true if the node is served by a loop of an {@link EventLoopGroup}
+     */
+    public boolean isOnSharedEventLoop() {
+        EventLoop current = loop;
+        return current != null && current.isShared();
+    }
+
+    /**
+     * Stop serving the node from its shared loop, closing its listening socket
+     * and connections. This is the counterpart of {@link #start(EventLoop)}.
+     *
+     * @throws InterruptedException if interrupted while waiting for the loop
+     */
+    public void detach() throws InterruptedException {
+        final EventLoop eventLoop = loop;
+        if (eventLoop == null) {
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    unregister();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        while (!done.await(100, TimeUnit.MILLISECONDS)) {
+            if (eventLoop.isClosed()) {
+                // The loop closed all of its nodes
+                break;
             }
         }
     }
 
-    private void handleClientWrite(SocketChannel channel, OutputContext ctx) throws IOException {
+    @Override
+    public void run() {
+        EventLoop eventLoop;
+        try {
+            eventLoop = new EventLoop(false);
+            register(eventLoop);
+        } catch (IOException e) {
+            Logger.getLogger(MemcachedServer.class.getName()).log(Level.SEVERE, "Failed to start the event loop", e);
+            return;
+        }
+        eventLoop.run();
+    }
+
+    private void handleClientWrite(final SelectionKey key, SocketChannel channel, final MemcachedConnection client,
+                                   OutputContext ctx) throws IOException {
         OutputContext effectiveCtx = ctx;
         if (truncateLimit > 0) {
             effectiveCtx = ctx.getSlice(truncateLimit);
@@ -423,6 +699,17 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
 
         writeResponse(channel, effectiveCtx);
         if (hiccupOffset > 0) {
+            if (loop.isShared()) {
+                // Don't stall the other nodes of the loop: send the rest later
+                client.setWriteStalled(true);
+                loop.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        resumeWrite(key, client);
+                    }
+                }, hiccupTime);
+                return;
+            }
             try {
                 Thread.sleep(hiccupTime);
             } catch (InterruptedException ex) {
@@ -432,31 +719,72 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
     }
 
 
+    private void resumeWrite(SelectionKey key, MemcachedConnection client) {
+        client.setWriteStalled(false);
+        if (!key.isValid() || !active) {
+            // Upon startup() the connection will be writable again
+            return;
+        }
+
+        SocketChannel channel = (SocketChannel) key.channel();
+        OutputContext ctx = client.borrowOutputContext();
+        if (ctx != null) {
+            try {
+                writeResponse(channel, ctx);
+            } catch (IOException ex) {
+                serverStats.connectionClosed(client);
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Don't care
+                }
+                key.cancel();
+                return;
+            } finally {
+                client.returnOutputContext(ctx);
+            }
+        }
+
+        int ioEvents = SelectionKey.OP_READ;
+        if (client.hasOutput()) {
+            ioEvents |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ioEvents);
+    }
+
     private void handleClientRead(SocketChannel channel, MemcachedConnection client) throws IOException {
-        if (channel.read(client.getInputBuffer()) == -1) {
+        int nr = channel.read(client.getInputBuffer());
+        if (nr == -1) {
             channel.close();
             throw new ClosedChannelException();
         } else {
+            serverStats.recordBytesRead(nr);
             client.step();
         }
     }
 
     private void handleNewClient() throws IOException {
         SocketChannel cc = server.accept();
+        if (cc == null) {
+            return;
+        }
         cc.configureBlocking(false);
         cc.socket().setTcpNoDelay(false);
         cc.socket().setSendBufferSize(1<<20);
         cc.socket().setReceiveBufferSize(1<<20);
-        cc.register(selector, SelectionKey.OP_READ, new MemcachedConnection(this));
+        MemcachedConnection client = new MemcachedConnection(this);
+        client.setSelectionKey(cc.register(loop.getSelector(), SelectionKey.OP_READ, client));
+        serverStats.connectionOpened(client);
     }
 
     private void handleClient(SelectionKey key) throws IOException {
-        MemcachedConnection client = (MemcachedConnection) key.attachment();
-        if (client == null) {
+        if (key.attachment() == this) {
             handleNewClient();
             return;
         }
 
+        MemcachedConnection client = (MemcachedConnection) key.attachment();
+
         SocketChannel channel = (SocketChannel) key.channel();
         try {
             if (key.isReadable()) {
@@ -468,7 +796,7 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
 
                 if (ctx != null) {
                     try {
-                        handleClientWrite(channel, ctx);
+                        handleClientWrite(key, channel, client, ctx);
                     } finally {
                         client.returnOutputContext(ctx);
                     }
@@ -477,6 +805,7 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
 
 
         } catch (IOException ex) {
+            serverStats.connectionClosed(client);
             try {
                 channel.close();
             } finally {
@@ -498,10 +827,10 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         }
 
         int ioEvents = SelectionKey.OP_READ;
-        if (client.hasOutput()) {
+        if (client.hasOutput() && !client.isWriteStalled()) {
             ioEvents |= SelectionKey.OP_WRITE;
         }
-        channel.register(selector, ioEvents, client);
+        channel.register(loop.getSelector(), ioEvents, client);
     }
 
     public Bucket getBucket() {
@@ -533,26 +862,95 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         return executors[code.cc()];
     }
 
+    /**
+     * Get the pool used to execute the commands of connections which negotiated
+     * {@code UNORDERED_EXECUTION}. The pool is created on first use, and has
+     * one thread per core (at least two), which stop when idle.
+     *
+     * @return The worker pool of this node
+     */
+    synchronized ExecutorService getWorkerPool() {
+        if (workerPool == null) {
+            final String prefix = getName() + ":worker-";
+            int numThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, prefix + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            pool.allowCoreThreadTimeOut(true);
+            workerPool = pool;
+        }
+        return workerPool;
+    }
+
     @Override
-    public void execute(BinaryCommand cmd, MemcachedConnection client)
+    public void execute(final BinaryCommand cmd, final MemcachedConnection client)
             throws IOException {
-        try {
-            if (enhancedErrorsEnabled) {
-                cmd.generateEventId();
-            }
+        if (enhancedErrorsEnabled) {
+            cmd.generateEventId();
+        }
+
+        if (!client.supportsUnorderedExecution()) {
+            dispatch(cmd, client);
+            return;
+        }
 
-            if (shouldLogCommands) {
-                commandLog.add(new CommandLogEntry(cmd.getOpcode()));
+        UnorderedExecutor unordered = client.getUnorderedExecutor();
+        if (!UnorderedExecutor.isReorderable(cmd.getComCode()) && unordered.isIdle()) {
+            // Nothing to wait for
+            dispatch(cmd, client);
+            return;
+        }
+
+        unordered.submit(cmd, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dispatch(cmd, client);
+                } catch (ProtocolException ex) {
+                    // Same as when executed on the selector thread: drop the client
+                    client.shutdown();
+                    serverStats.connectionClosed(client);
+                    SelectionKey key = client.getSelectionKey();
+                    if (key != null) {
+                        try {
+                            key.channel().close();
+                        } catch (IOException e) {
+                            // Don't care
+                        }
+                    }
+                    return;
+                }
+                outputReady.add(client);
+                loop.wakeup();
             }
+        });
+    }
 
+    private void dispatch(BinaryCommand cmd, MemcachedConnection client) throws ProtocolException {
+        long received = System.nanoTime();
+        // Logged on receipt, so that the log is in order when commands are executed concurrently
+        CommandLog log = shouldLogCommands ? commandLog : null;
+        long logSeq = log == null ? 0 : log.begin(cmd.getOpcode(), received, cmd.getVBucketId(), cmd.getOpaque());
+        ErrorCode status = ErrorCode.SUCCESS;
+        try {
             ErrorCode failcode = failmaker.getFailCode(cmd.getComCode());
             if (failcode != ErrorCode.SUCCESS) {
+                status = failcode;
                 client.sendResponse(new BinaryResponse(cmd, failcode));
             } else if (authOk(cmd, client)) {
                 long start = System.nanoTime();
                 BinaryResponse response = getExecutor(cmd.getComCode()).execute(cmd, this, client);
                 long end = System.nanoTime();
                 if (response != null) {
+                    status = response.getErrorCode();
                     if (client.supportsTracing()) {
                         long elapsedMicros = (end - start) / 1000;
                         long maxVal = 120125042;
@@ -590,11 +988,18 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
                     client.sendResponse(response);
                 }
             } else {
+                status = ErrorCode.AUTH_ERROR;
                 client.sendResponse(new BinaryResponse(cmd, ErrorCode.AUTH_ERROR));
             }
         } catch (AccessControlException ex) {
+            status = ErrorCode.NOT_MY_VBUCKET;
             client.sendResponse(BinaryConfigResponse.createNotMyVbucket(cmd, this));
+        } finally {
+            if (log != null) {
+                log.complete(logSeq, status.value());
+            }
         }
+        serverStats.record(cmd, status, System.nanoTime() - received);
     }
 
     BinaryProtocolHandler getProtocolHandler() {
@@ -603,10 +1008,21 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
 
     public void shutdown() {
         active = false;
+        storage.getDcpConsumer().setSuspended(true);
     }
 
     public void startup() {
         active = true;
+        storage.getDcpConsumer().setSuspended(false);
+        EventLoop current = loop;
+        if (current != null) {
+            current.execute(new Runnable() {
+                @Override
+                public void run() {
+                    resumeEvents();
+                }
+            });
+        }
     }
 
     /**
@@ -690,9 +1106,13 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
     }
 
     public MemcachedConnection findConnection(SocketAddress address) throws IOException {
-        for (SelectionKey key : selector.keys()) {
+        EventLoop current = loop;
+        if (current == null) {
+            return null;
+        }
+        for (SelectionKey key : current.getSelector().keys()) {
             Object o = key.attachment();
-            if (o == null || !(o instanceof MemcachedConnection)) {
+            if (!(o instanceof MemcachedConnection) || !owns(key)) {
                 continue;
             }
             SocketChannel ch = (SocketChannel) key.channel();
@@ -703,16 +1123,36 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         return null;
     }
 
-    public void startLog() {
+    public synchronized void startLog() {
+        if (commandLog == null) {
+            commandLog = new CommandLog();
+        }
         shouldLogCommands = true;
     }
 
-    public void stopLog() {
+    public synchronized void stopLog() {
         shouldLogCommands = false;
-        commandLog.clear();
+        if (commandLog != null) {
+            commandLog.clear();
+        }
     }
 
-    public List<CommandLogEntry> getLogs() {
+    /**
+     * @return the log of the commands executed since {@link #startLog()}
+     * was called, or null if it never was
+     */
+    public CommandLog getCommandLog() {
         return commandLog;
     }
+
+    /**
+     * @return a snapshot of the command log, oldest first
+     */
+    public List<CommandLogEntry> getLogs() {
+        CommandLog log = commandLog;
+        if (log == null) {
+            return new ArrayList<CommandLogEntry>();
+        }
+        return log.snapshot();
+    }
 }
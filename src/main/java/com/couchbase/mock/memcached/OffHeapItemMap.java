@@ -0,0 +1,765 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Items kept outside of the Java heap, so that large data sets don't make
+ * the garbage collector pause the nodes.
+ *
+ * Each item (key, value, xattrs and metadata, including the lock) is
+ * serialized into a record, appended to the current slab: a direct buffer
+ * of {@link #SLAB_SIZE} bytes (larger records get a slab of their own).
+ * Records are found through an open-addressed (linear probing) index per
+ * vBucket, holding the address and the hash of each record in arrays of
+ * primitives. Replaced and removed records are garbage: a slab whose live
+ * records take less than half of it has them moved to the current slab, and
+ * is then released.
+ *
+ * Items are decoded on each lookup, so that modifying the returned item has
+ * no effect until it is stored again. Two items are considered the same if
+ * they have the same CAS (see {@link #remove(Object, Object)}).
+ *
+ * The state of the item in the cache (whether its value was evicted, and
+ * whether it was accessed since the item pager last visited it) is kept
+ * along with the datatype.
+ *
+ * All operations lock the map.
+ */
+class OffHeapItemMap extends AbstractMap<KeySpec, Item> {
+    static final int SLAB_SIZE = 1 << 20;
+    private static final byte DATATYPE_COMPRESSED = (byte) 0x80;
+    private static final byte DATATYPE_EVICTED = 0x40;
+    private static final byte DATATYPE_REFERENCED = 0x20;
+    private static final long EMPTY = -1L;
+    private static final int MIN_CAPACITY = 8;
+
+    // The layout of a record, followed by the key, the value and the xattrs
+    // (the length of the value and xattrs is -1 if they are null)
+    private static final int OFF_LENGTH = 0;
+    private static final int OFF_HASH = 4;
+    private static final int OFF_VBID = 8;
+    private static final int OFF_KEYLEN = 10;
+    private static final int OFF_CAS = 12;
+    private static final int OFF_FLAGS = 20;
+    private static final int OFF_EXPIRY = 24;
+    private static final int OFF_LOCK = 28;
+    private static final int OFF_MTIME = 32;
+    private static final int OFF_DATATYPE = 36;
+    private static final int OFF_VALUELEN = 37;
+    private static final int HEADER_SIZE = 41;
+
+    private static final class Index {
+        long[] addresses = newAddresses(MIN_CAPACITY);
+        int[] hashes = new int[MIN_CAPACITY];
+        int size;
+        // The position of the vBucket in nonEmpty, if it has items
+        int position = -1;
+    }
+
+    private final Index[] indexes;
+    private int size;
+    // The vBuckets with items, and how many of their indexes have each
+    // capacity (by its log2), for sampling
+    private final int[] nonEmpty;
+    private int numNonEmpty;
+    private final int[] capacityCounts = new int[32];
+
+    private ByteBuffer[] slabs = new ByteBuffer[4];
+    private int[] slabUsed = new int[4];
+    private int[] slabLive = new int[4];
+    private int current = -1;
+    private long allocated;
+    private long liveBytes;
+
+    OffHeapItemMap(int numVBuckets) {
+        indexes = new Index[numVBuckets];
+        nonEmpty = new int[numVBuckets];
+    }
+
+    private static long[] newAddresses(int capacity) {
+        long[] addresses = new long[capacity];
+        Arrays.fill(addresses, EMPTY);
+        return addresses;
+    }
+
+    private static int home(int hash, int mask) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private static int slabOf(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    private boolean keyEquals(long address, byte[] key) {
+        ByteBuffer slab = slabs[slabOf(address)];
+        int offset = offsetOf(address);
+        if (slab.getShort(offset + OFF_KEYLEN) != key.length) {
+            return false;
+        }
+        offset += HEADER_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            if (slab.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot where it belongs
+     */
+    private int slotOf(Index index, KeySpec ks) {
+        int hash = ks.hashCode();
+        byte[] key = ks.getKeyBytes();
+        int mask = index.addresses.length - 1;
+        int slot = home(hash, mask);
+        while (index.addresses[slot] != EMPTY &&
+                (index.hashes[slot] != hash || !keyEquals(index.addresses[slot], key))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return the slot holding an address, or -1
+     */
+    private static int slotOf(Index index, int hash, long address) {
+        int mask = index.addresses.length - 1;
+        for (int slot = home(hash, mask); index.addresses[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (index.addresses[slot] == address) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static void resize(Index index, int capacity) {
+        long[] oldAddresses = index.addresses;
+        int[] oldHashes = index.hashes;
+        index.addresses = newAddresses(capacity);
+        index.hashes = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldAddresses.length; i++) {
+            if (oldAddresses[i] != EMPTY) {
+                int slot = home(oldHashes[i], mask);
+                while (index.addresses[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                index.addresses[slot] = oldAddresses[i];
+                index.hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    private void countCapacity(Index index, int delta) {
+        capacityCounts[Integer.numberOfTrailingZeros(index.addresses.length)] += delta;
+    }
+
+    /**
+     * Resize the index of a vBucket with items
+     */
+    private void resizeCounted(Index index, int capacity) {
+        countCapacity(index, -1);
+        resize(index, capacity);
+        countCapacity(index, 1);
+    }
+
+    private void addNonEmpty(int vbid, Index index) {
+        index.position = numNonEmpty;
+        nonEmpty[numNonEmpty++] = vbid;
+        countCapacity(index, 1);
+    }
+
+    private void removeNonEmpty(Index index) {
+        int last = nonEmpty[--numNonEmpty];
+        nonEmpty[index.position] = last;
+        indexes[last].position = index.position;
+        index.position = -1;
+        countCapacity(index, -1);
+    }
+
+    /**
+     * Empty a slot, moving back the following records of the run which
+     * would otherwise no longer be found
+     */
+    private void removeSlot(Index index, int slot) {
+        long[] addresses = index.addresses;
+        int[] hashes = index.hashes;
+        int mask = addresses.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; addresses[next] != EMPTY; next = (next + 1) & mask) {
+            int home = home(hashes[next], mask);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                addresses[hole] = addresses[next];
+                hashes[hole] = hashes[next];
+                hole = next;
+            }
+        }
+        addresses[hole] = EMPTY;
+        if (--index.size == 0) {
+            removeNonEmpty(index);
+        }
+        // Sparse tables would make sampling slow
+        if (index.size < addresses.length / 8 && addresses.length > MIN_CAPACITY) {
+            if (index.size == 0) {
+                resize(index, addresses.length / 2);
+            } else {
+                resizeCounted(index, addresses.length / 2);
+            }
+        }
+    }
+
+    private ByteBuffer allocateSlab(int capacity) {
+        int slab = 0;
+        while (slab < slabs.length && slabs[slab] != null) {
+            slab++;
+        }
+        if (slab == slabs.length) {
+            slabs = Arrays.copyOf(slabs, slab * 2);
+            slabUsed = Arrays.copyOf(slabUsed, slab * 2);
+            slabLive = Arrays.copyOf(slabLive, slab * 2);
+        }
+        slabs[slab] = ByteBuffer.allocateDirect(capacity);
+        slabUsed[slab] = 0;
+        slabLive[slab] = 0;
+        allocated += capacity;
+        return slabs[slab];
+    }
+
+    private int indexOf(ByteBuffer slab) {
+        for (int i = 0; i < slabs.length; i++) {
+            if (slabs[i] == slab) {
+                return i;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private void releaseSlab(int slab) {
+        allocated -= slabs[slab].capacity();
+        slabs[slab] = null;
+    }
+
+    /**
+     * Reserve room for a record
+     * @return the address of the record
+     */
+    private long reserve(int length) {
+        int slab;
+        if (length > SLAB_SIZE) {
+            slab = indexOf(allocateSlab(length));
+        } else {
+            if (current == -1 || slabUsed[current] + length > SLAB_SIZE) {
+                int full = current;
+                current = indexOf(allocateSlab(SLAB_SIZE));
+                if (full != -1 && slabLive[full] == 0) {
+                    releaseSlab(full);
+                }
+            }
+            slab = current;
+        }
+        int offset = slabUsed[slab];
+        slabUsed[slab] += length;
+        slabLive[slab] += length;
+        liveBytes += length;
+        return ((long) slab << 32) | offset;
+    }
+
+    private void free(long address) {
+        int slab = slabOf(address);
+        int length = slabs[slab].getInt(offsetOf(address) + OFF_LENGTH);
+        slabLive[slab] -= length;
+        liveBytes -= length;
+        if (slab == current) {
+            return;
+        }
+        if (slabLive[slab] == 0) {
+            releaseSlab(slab);
+        } else if (slabLive[slab] < slabUsed[slab] / 2) {
+            compact(slab);
+        }
+    }
+
+    /**
+     * Move the live records of a slab to the current one, and release it
+     */
+    private void compact(int slab) {
+        ByteBuffer src = slabs[slab];
+        for (int offset = 0; offset < slabUsed[slab]; ) {
+            int length = src.getInt(offset + OFF_LENGTH);
+            long address = ((long) slab << 32) | offset;
+            Index index = indexes[src.getShort(offset + OFF_VBID)];
+            int slot = index == null ? -1 : slotOf(index, src.getInt(offset + OFF_HASH), address);
+            if (slot != -1) {
+                long moved = reserve(length);
+                ByteBuffer record = src.duplicate();
+                record.limit(offset + length).position(offset);
+                ByteBuffer dst = slabs[slabOf(moved)].duplicate();
+                dst.position(offsetOf(moved));
+                dst.put(record);
+                index.addresses[slot] = moved;
+            }
+            offset += length;
+        }
+        // The live records were all moved
+        liveBytes -= slabLive[slab];
+        releaseSlab(slab);
+    }
+
+    private static int lengthOf(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void putBytes(ByteBuffer dst, byte[] bytes) {
+        if (bytes == null) {
+            dst.putInt(-1);
+        } else {
+            dst.putInt(bytes.length);
+            dst.put(bytes);
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer src) {
+        int length = src.getInt();
+        if (length == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        src.get(bytes);
+        return bytes;
+    }
+
+    private long write(Item item) {
+        KeySpec ks = item.getKeySpec();
+        byte[] key = ks.getKeyBytes();
+        // Items received compressed are kept as such
+        boolean isCompressed = item.isCompressedOnly();
+        byte[] value = isCompressed ? item.getCompressedValue() : item.getValue();
+        byte[] xattr = item.getXattr();
+        int length = HEADER_SIZE + key.length + lengthOf(value) + 4 + lengthOf(xattr);
+
+        long address = reserve(length);
+        ByteBuffer record = slabs[slabOf(address)].duplicate();
+        record.position(offsetOf(address));
+        record.putInt(length);
+        record.putInt(ks.hashCode());
+        record.putShort(ks.vbId);
+        record.putShort((short) key.length);
+        record.putLong(item.getCasReal());
+        record.putInt(item.getFlags());
+        record.putInt(item.getExpiryTime());
+        record.putInt(item.getLockExpiryTime());
+        record.putInt((int) (item.getModificationTime() / 1000));
+        byte datatype = item.getDatatype();
+        if (isCompressed) {
+            datatype |= DATATYPE_COMPRESSED;
+        }
+        if (item.isEvicted()) {
+            datatype |= DATATYPE_EVICTED;
+        }
+        if (item.isReferenced()) {
+            datatype |= DATATYPE_REFERENCED;
+        }
+        record.put(datatype);
+        record.putInt(value == null ? -1 : value.length);
+        record.put(key);
+        if (value != null) {
+            record.put(value);
+        }
+        putBytes(record, xattr);
+        return address;
+    }
+
+    private KeySpec readKey(long address) {
+        ByteBuffer record = slabs[slabOf(address)].duplicate();
+        int offset = offsetOf(address);
+        byte[] key = new byte[record.getShort(offset + OFF_KEYLEN)];
+        record.position(offset + HEADER_SIZE);
+        record.get(key);
+        return new KeySpec(key, record.getShort(offset + OFF_VBID));
+    }
+
+    private Item read(long address, KeySpec ks) {
+        if (ks == null) {
+            ks = readKey(address);
+        }
+        ByteBuffer record = slabs[slabOf(address)].duplicate();
+        int offset = offsetOf(address);
+        record.position(offset + OFF_CAS);
+        long cas = record.getLong();
+        int flags = record.getInt();
+        int expiry = record.getInt();
+        int lockExpiry = record.getInt();
+        int modificationTime = record.getInt();
+        byte datatype = record.get();
+        int valueLength = record.getInt();
+        record.position(offset + HEADER_SIZE + record.getShort(offset + OFF_KEYLEN));
+        byte[] value = null;
+        if (valueLength != -1) {
+            value = new byte[valueLength];
+            record.get(value);
+        }
+        byte[] xattr = getBytes(record);
+
+        boolean isCompressed = (datatype & DATATYPE_COMPRESSED) != 0;
+        boolean isEvicted = (datatype & DATATYPE_EVICTED) != 0;
+        boolean isReferenced = (datatype & DATATYPE_REFERENCED) != 0;
+        datatype &= ~(DATATYPE_COMPRESSED | DATATYPE_EVICTED | DATATYPE_REFERENCED);
+        Item item = Item.restore(ks, flags, expiry, value, isCompressed, xattr, cas, datatype);
+        item.restoreTimes(lockExpiry, modificationTime);
+        item.restoreCacheState(isEvicted, isReferenced);
+        return item;
+    }
+
+    private long casOf(long address) {
+        return slabs[slabOf(address)].getLong(offsetOf(address) + OFF_CAS);
+    }
+
+    /**
+     * Store an item, replacing the one with the same key if any
+     * @param item the item to store
+     * @return true if there was no item with the same key
+     */
+    synchronized boolean store(Item item) {
+        KeySpec ks = item.getKeySpec();
+        Index index = indexes[ks.vbId];
+        if (index == null) {
+            index = indexes[ks.vbId] = new Index();
+        }
+        long address = write(item);
+        int slot = slotOf(index, ks);
+        long old = index.addresses[slot];
+        index.addresses[slot] = address;
+        index.hashes[slot] = ks.hashCode();
+        if (old != EMPTY) {
+            free(old);
+            return false;
+        }
+        size++;
+        if (++index.size == 1) {
+            addNonEmpty(ks.vbId, index);
+        }
+        if (index.size > index.addresses.length * 3 / 4) {
+            resizeCounted(index, index.addresses.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * Store an item modified in place, unless the stored one was replaced
+     * or removed in the meantime
+     *
+     * @param item the item to store
+     * @param expectedCas the CAS of the stored item
+     * @return true if the item was stored
+     */
+    synchronized boolean replace(Item item, long expectedCas) {
+        Index index = indexes[item.getKeySpec().vbId];
+        if (index == null) {
+            return false;
+        }
+        int slot = slotOf(index, item.getKeySpec());
+        long old = index.addresses[slot];
+        if (old == EMPTY || casOf(old) != expectedCas) {
+            return false;
+        }
+        index.addresses[slot] = write(item);
+        free(old);
+        return true;
+    }
+
+    /**
+     * Remove an item
+     * @param ks the key of the item
+     * @param expectedCas the CAS the item must have, or 0 for any
+     * @return true if the item was removed
+     */
+    synchronized boolean delete(KeySpec ks, long expectedCas) {
+        Index index = indexes[ks.vbId];
+        if (index == null) {
+            return false;
+        }
+        int slot = slotOf(index, ks);
+        long old = index.addresses[slot];
+        if (old == EMPTY || (expectedCas != 0 && casOf(old) != expectedCas)) {
+            return false;
+        }
+        removeSlot(index, slot);
+        size--;
+        free(old);
+        return true;
+    }
+
+    /**
+     * Get a copy of the items of a vBucket
+     * @param vbid the vBucket
+     * @return the items
+     */
+    synchronized List<Item> values(int vbid) {
+        Index index = indexes[vbid];
+        if (index == null || index.size == 0) {
+            return Collections.emptyList();
+        }
+        List<Item> items = new ArrayList<Item>(index.size);
+        for (long address : index.addresses) {
+            if (address != EMPTY) {
+                items.add(read(address, null));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Get a key picked uniformly at random, without walking the vBuckets. A
+     * vBucket with items is picked, and then a random slot of its index,
+     * until the slot is used. Slots of indexes smaller than the largest one
+     * are only tried with the ratio of the capacities, so that every slot
+     * (and thus every item) is equally likely. As the indexes are never less
+     * than 1/8 full, this takes a few tries unless some vBuckets have many
+     * more items than the others.
+     *
+     * @param random the source of randomness
+     * @return the key, or null if the map is empty
+     */
+    synchronized KeySpec sample(Random random) {
+        if (size == 0) {
+            return null;
+        }
+        int maxCapacity = maxCapacity();
+        while (true) {
+            Index index = indexes[nonEmpty[random.nextInt(numNonEmpty)]];
+            int capacity = index.addresses.length;
+            if (capacity < maxCapacity && random.nextInt(maxCapacity) >= capacity) {
+                continue;
+            }
+            long address = index.addresses[random.nextInt(capacity)];
+            if (address != EMPTY) {
+                return readKey(address);
+            }
+        }
+    }
+
+    /**
+     * @return the capacity of the largest index with items
+     */
+    private int maxCapacity() {
+        for (int i = capacityCounts.length - 1; i > 0; i--) {
+            if (capacityCounts[i] != 0) {
+                return 1 << i;
+            }
+        }
+        return MIN_CAPACITY;
+    }
+
+    /**
+     * Get an item, and mark it as referenced
+     * @param ks the key of the item
+     * @return a copy of the item, or null
+     */
+    synchronized Item access(KeySpec ks) {
+        Index index = indexes[ks.vbId];
+        if (index == null) {
+            return null;
+        }
+        long address = index.addresses[slotOf(index, ks)];
+        if (address == EMPTY) {
+            return null;
+        }
+        ByteBuffer slab = slabs[slabOf(address)];
+        int offset = offsetOf(address) + OFF_DATATYPE;
+        slab.put(offset, (byte) (slab.get(offset) | DATATYPE_REFERENCED));
+        return read(address, ks);
+    }
+
+    /**
+     * Mark an item as not referenced
+     * @param ks the key of the item
+     */
+    synchronized void clearReferenced(KeySpec ks) {
+        Index index = indexes[ks.vbId];
+        if (index == null) {
+            return;
+        }
+        long address = index.addresses[slotOf(index, ks)];
+        if (address != EMPTY) {
+            ByteBuffer slab = slabs[slabOf(address)];
+            int offset = offsetOf(address) + OFF_DATATYPE;
+            slab.put(offset, (byte) (slab.get(offset) & ~DATATYPE_REFERENCED));
+        }
+    }
+
+    /**
+     * @param vbid the vBucket
+     * @return the number of slots of the index of the vBucket
+     * @see #itemAt(int, int)
+     */
+    synchronized int capacity(int vbid) {
+        Index index = indexes[vbid];
+        return index == null ? 0 : index.addresses.length;
+    }
+
+    /**
+     * @param vbid the vBucket
+     * @param slot the slot of its index
+     * @return a copy of the item held by the slot, or null if it is empty
+     */
+    synchronized Item itemAt(int vbid, int slot) {
+        Index index = indexes[vbid];
+        if (index == null || slot >= index.addresses.length || index.addresses[slot] == EMPTY) {
+            return null;
+        }
+        return read(index.addresses[slot], null);
+    }
+
+    /**
+     * @return the number of bytes of the live records
+     */
+    synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * @return the number of bytes of the slabs
+     */
+    synchronized long getAllocatedBytes() {
+        return allocated;
+    }
+
+    @Override
+    public synchronized Item get(Object key) {
+        if (!(key instanceof KeySpec)) {
+            return null;
+        }
+        KeySpec ks = (KeySpec) key;
+        Index index = indexes[ks.vbId];
+        if (index == null) {
+            return null;
+        }
+        long address = index.addresses[slotOf(index, ks)];
+        return address == EMPTY ? null : read(address, ks);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public synchronized Item put(KeySpec ks, Item item) {
+        if (!ks.equals(item.getKeySpec())) {
+            throw new IllegalArgumentException("The key is not the one of the item");
+        }
+        Item old = get(ks);
+        store(item);
+        return old;
+    }
+
+    @Override
+    public synchronized Item remove(Object key) {
+        Item old = get(key);
+        if (old != null) {
+            delete(old.getKeySpec(), 0);
+        }
+        return old;
+    }
+
+    /**
+     * Remove an item if it has the CAS of the given one
+     */
+    @Override
+    public boolean remove(Object key, Object value) {
+        return key instanceof KeySpec && value instanceof Item &&
+                delete((KeySpec) key, ((Item) value).getCasReal());
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void clear() {
+        Arrays.fill(indexes, null);
+        Arrays.fill(slabs, null);
+        Arrays.fill(capacityCounts, 0);
+        numNonEmpty = 0;
+        size = 0;
+        current = -1;
+        allocated = 0;
+        liveBytes = 0;
+    }
+
+    /**
+     * The iterators are weakly consistent: the items of each vBucket are
+     * copied when the iteration reaches it.
+     */
+    @Override
+    public Set<Map.Entry<KeySpec, Item>> entrySet() {
+        return new AbstractSet<Map.Entry<KeySpec, Item>>() {
+            @Override
+            public Iterator<Map.Entry<KeySpec, Item>> iterator() {
+                return new Iterator<Map.Entry<KeySpec, Item>>() {
+                    private int vbid = 0;
+                    private Iterator<Item> cur = Collections.<Item>emptyList().iterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!cur.hasNext() && vbid < indexes.length) {
+                            cur = values(vbid++).iterator();
+                        }
+                        return cur.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<KeySpec, Item> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Item item = cur.next();
+                        return new AbstractMap.SimpleImmutableEntry<KeySpec, Item>(item.getKeySpec(), item);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return OffHeapItemMap.this.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The "disk" of a node, kept in memory but outside of the Java heap.
+ *
+ * @see OffHeapItemMap
+ */
+class OffHeapPersistentStorage extends PersistentStorage {
+    private static final VBucketCoordinates EMPTY_COORDS = new BasicVBucketCoordinates(0, 0);
+
+    private final AtomicReferenceArray<VBucketCoordinates> coords;
+    // Replaced rather than cleared on a flush, like the cache
+    private volatile OffHeapItemMap items;
+
+    OffHeapPersistentStorage(int nvb) {
+        super(nvb);
+        coords = new AtomicReferenceArray<VBucketCoordinates>(nvb);
+        for (int i = 0; i < nvb; i++) {
+            coords.set(i, EMPTY_COORDS);
+        }
+        items = new OffHeapItemMap(nvb);
+    }
+
+    private void updateCommon(KeySpec ks, VBucketCoordinates coords) {
+        if (coords.getUuid() != 0 && coords.getSeqno() != 0) {
+            updateSingleCoords(ks.vbId, coords);
+        }
+    }
+
+    @Override
+    void put(Item item, VBucketCoordinates coords) {
+        updateCommon(item.getKeySpec(), coords);
+        items.store(item);
+    }
+
+    @Override
+    Item get(KeySpec ks) {
+        return items.get(ks);
+    }
+
+    @Override
+    void remove(KeySpec ks, VBucketCoordinates coords) {
+        updateCommon(ks, coords);
+        items.delete(ks, 0);
+    }
+
+    @Override
+    Runnable clear() {
+        items = new OffHeapItemMap(numVBuckets);
+        return null;
+    }
+
+    @Override
+    VBucketCoordinates getCoords(int vbid) {
+        return coords.get(vbid);
+    }
+
+    @Override
+    void updateSingleCoords(int vbid, VBucketCoordinates coords) {
+        if (!(coords instanceof BasicVBucketCoordinates)) {
+            coords = new BasicVBucketCoordinates(coords.getUuid(), coords.getSeqno());
+        }
+        this.coords.set(vbid, coords);
+    }
+
+    @Override
+    Iterable<Item> values(int vbid) {
+        return items.values(vbid);
+    }
+
+    @Override
+    void close() {
+        items = new OffHeapItemMap(numVBuckets);
+    }
+}
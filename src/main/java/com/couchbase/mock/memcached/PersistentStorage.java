@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The "disk" of a node.
+ *
+ * Implementations keep the persisted copy of each item per vBucket, together
+ * with the coordinates of the most recent persisted mutation. They are
+ * modified by the node's own thread, by the threads of other nodes
+ * (replication) and by the control handlers, and must therefore be
+ * thread-safe.
+ *
+ * @see HeapPersistentStorage
+ * @see MappedPersistentStorage
+ * @see OffHeapPersistentStorage
+ */
+abstract class PersistentStorage {
+    protected final int numVBuckets;
+
+    PersistentStorage(int numVBuckets) {
+        this.numVBuckets = numVBuckets;
+    }
+
+    abstract void put(Item item, VBucketCoordinates coords);
+
+    abstract Item get(KeySpec ks);
+
+    abstract void remove(KeySpec ks, VBucketCoordinates coords);
+
+    /**
+     * Remove all the items. This is invoked while the cache is locked, so
+     * releasing what the removed items held (e.g. files) may be left to the
+     * returned action, which is run once the lock is released.
+     *
+     * @return the action releasing the removed items, or null if none is needed
+     */
+    abstract Runnable clear();
+
+    abstract VBucketCoordinates getCoords(int vbid);
+
+    abstract void updateSingleCoords(int vbid, VBucketCoordinates coords);
+
+    /**
+     * Get the persisted items of a single vBucket.
+     * @param vbid the vBucket
+     * @return a weakly consistent iterable over the items
+     */
+    abstract Iterable<Item> values(int vbid);
+
+    /**
+     * Get all the persisted items. The returned iterators are weakly consistent:
+     * they never throw {@link java.util.ConcurrentModificationException} and
+     * reflect the state of each vBucket at some point during the iteration.
+     *
+     * @return an iterable over all items
+     */
+    Iterable<Item> values() {
+        return new Iterable<Item>() {
+            @Override
+            public Iterator<Item> iterator() {
+                return new Iterator<Item>() {
+                    private int curIndex = 0;
+                    private Iterator<Item> cur = numVBuckets == 0 ? null : values(0).iterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while (cur != null && !cur.hasNext()) {
+                            if (++curIndex == numVBuckets) {
+                                cur = null;
+                            } else {
+                                cur = values(curIndex).iterator();
+                            }
+                        }
+                        return cur != null;
+                    }
+
+                    @Override
+                    public Item next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return cur.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Flush and release any resources held by the store.
+     */
+    abstract void close();
+}
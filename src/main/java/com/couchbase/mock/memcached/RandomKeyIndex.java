@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.Random;
+
+/**
+ * The keys of a {@link VBucketStore}, indexed so that a key may be picked
+ * uniformly at random in constant time (with respect to the number of keys).
+ *
+ * Keys are sharded per vBucket; each shard keeps its keys in a dense array
+ * along with the position of each key, so that removing a key moves the last
+ * one in its place. Picking a key only walks the shard sizes.
+ */
+class RandomKeyIndex {
+    private static final class Shard {
+        private KeySpec[] keys = new KeySpec[4];
+        // The position of each key in keys, in an open-addressed (linear
+        // probing) table rather than a map, so that no entry or boxed
+        // position is allocated per key
+        private KeySpec[] table = new KeySpec[8];
+        private int[] positions = new int[8];
+        private volatile int size;
+
+        private static int home(KeySpec ks, int mask) {
+            int h = ks.hashCode();
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        /**
+         * @return the slot holding the key, or the empty slot where it belongs
+         */
+        private int slotOf(KeySpec ks) {
+            int mask = table.length - 1;
+            int slot = home(ks, mask);
+            while (table[slot] != null && !table[slot].equals(ks)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void resize(int capacity) {
+            KeySpec[] oldTable = table;
+            int[] oldPositions = positions;
+            table = new KeySpec[capacity];
+            positions = new int[capacity];
+            for (int i = 0; i < oldTable.length; i++) {
+                if (oldTable[i] != null) {
+                    int slot = slotOf(oldTable[i]);
+                    table[slot] = oldTable[i];
+                    positions[slot] = oldPositions[i];
+                }
+            }
+        }
+
+        /**
+         * Empty a slot, moving back the following keys of the run which
+         * would otherwise no longer be found
+         */
+        private void removeSlot(int slot) {
+            int mask = table.length - 1;
+            int hole = slot;
+            for (int next = (hole + 1) & mask; table[next] != null; next = (next + 1) & mask) {
+                int home = home(table[next], mask);
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    table[hole] = table[next];
+                    positions[hole] = positions[next];
+                    hole = next;
+                }
+            }
+            table[hole] = null;
+        }
+
+        synchronized boolean add(KeySpec ks) {
+            int slot = slotOf(ks);
+            if (table[slot] != null) {
+                return false;
+            }
+            if (size == keys.length) {
+                KeySpec[] grown = new KeySpec[keys.length * 2];
+                System.arraycopy(keys, 0, grown, 0, size);
+                keys = grown;
+            }
+            table[slot] = ks;
+            positions[slot] = size;
+            keys[size] = ks;
+            size = size + 1;
+            if (size * 4 > table.length * 3) {
+                resize(table.length * 2);
+            }
+            return true;
+        }
+
+        synchronized boolean remove(KeySpec ks) {
+            int slot = slotOf(ks);
+            if (table[slot] == null) {
+                return false;
+            }
+            int pos = positions[slot];
+            removeSlot(slot);
+            int last = size - 1;
+            if (pos != last) {
+                keys[pos] = keys[last];
+                positions[slotOf(keys[pos])] = pos;
+            }
+            keys[last] = null;
+            size = last;
+            return true;
+        }
+
+        synchronized int clear() {
+            int removed = size;
+            keys = new KeySpec[4];
+            table = new KeySpec[8];
+            positions = new int[8];
+            size = 0;
+            return removed;
+        }
+
+        synchronized KeySpec get(int index) {
+            return index < size ? keys[index] : null;
+        }
+    }
+
+    private final Shard[] shards;
+    private volatile int total;
+
+    RandomKeyIndex(int numShards) {
+        shards = new Shard[Math.max(numShards, 1)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    private Shard shardOf(KeySpec ks) {
+        return shards[(ks.vbId & 0xffff) % shards.length];
+    }
+
+    synchronized void add(KeySpec ks) {
+        if (shardOf(ks).add(ks)) {
+            total++;
+        }
+    }
+
+    synchronized void remove(KeySpec ks) {
+        if (shardOf(ks).remove(ks)) {
+            total--;
+        }
+    }
+
+    synchronized void clear() {
+        for (Shard shard : shards) {
+            shard.clear();
+        }
+        total = 0;
+    }
+
+    int size() {
+        return total;
+    }
+
+    /**
+     * @param shard the shard (vBucket)
+     * @return the number of keys of the shard
+     */
+    int size(int shard) {
+        return shards[shard % shards.length].size;
+    }
+
+    /**
+     * Get a key by its position in its shard. Positions change as keys
+     * are removed, the last key of the shard taking the place of the
+     * removed one.
+     *
+     * @param shard the shard (vBucket)
+     * @param position the position
+     * @return the key, or null if the position is past the end of the shard
+     */
+    KeySpec get(int shard, int position) {
+        return shards[shard % shards.length].get(position);
+    }
+
+    /**
+     * Pick a key uniformly at random
+     *
+     * @param random the source of randomness
+     * @return the key, or null if there are no keys
+     */
+    KeySpec sample(Random random) {
+        while (true) {
+            int count = total;
+            if (count == 0) {
+                return null;
+            }
+            int index = random.nextInt(count);
+            for (Shard shard : shards) {
+                int size = shard.size;
+                if (index < size) {
+                    KeySpec ks = shard.get(index);
+                    if (ks != null) {
+                        return ks;
+                    }
+                    // The shard shrunk in the meantime
+                    break;
+                }
+                index -= size;
+            }
+        }
+    }
+}
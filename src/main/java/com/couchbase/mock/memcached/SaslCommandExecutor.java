@@ -22,10 +22,12 @@ import com.couchbase.mock.memcached.protocol.BinarySaslResponse;
 import com.couchbase.mock.memcached.protocol.CommandCode;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
 import com.couchbase.mock.security.sasl.Sasl;
+import com.couchbase.mock.security.sasl.ScramCredentialStore;
 
 import javax.security.sasl.SaslException;
 import javax.security.sasl.SaslServer;
 import java.net.ProtocolException;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -42,6 +44,13 @@ public class SaslCommandExecutor implements CommandExecutor {
      */
     private Map<MemcachedConnection, SaslServer> saslServer = new ConcurrentHashMap<MemcachedConnection, SaslServer>();
 
+    /**
+     * The SCRAM credentials are derived once per user and password, and shared by
+     * all the SASL servers created by this executor.
+     */
+    private final Map<String, ?> saslProperties =
+            Collections.singletonMap(ScramCredentialStore.PROPERTY, ScramCredentialStore.getDefault());
+
     @Override
     public BinaryResponse execute(BinaryCommand cmd, MemcachedServer server, MemcachedConnection client) throws ProtocolException {
         CommandCode cc = cmd.getComCode();
@@ -120,7 +129,7 @@ public class SaslCommandExecutor implements CommandExecutor {
               Sasl.createSaslServer(
                 cmd.getKey(),
                 server.getHostname(),
-                null,
+                saslProperties,
                 new SaslCallbackHandler(bucket.getName(), bucket.getPassword())
               )
             );
@@ -143,7 +152,7 @@ public class SaslCommandExecutor implements CommandExecutor {
             }
             return response;
         } catch (SaslException e) {
-            saslServer.remove(client.hashCode());
+            saslServer.remove(client);
             throw new ProtocolException(e.getMessage());
         }
     }
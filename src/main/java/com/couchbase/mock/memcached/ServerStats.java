@@ -0,0 +1,248 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.protocol.BinaryCommand;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Operation counters and latency histograms of a single node.
+ *
+ * Everything is updated with striped counters, so that recording from the
+ * selector thread and the worker pool doesn't contend.
+ */
+public final class ServerStats {
+    private final LongAdder[] ops = new LongAdder[256];
+    private final AtomicReferenceArray<LatencyHistogram> timings = new AtomicReferenceArray<LatencyHistogram>(256);
+    private final LongAdder cmdGet = new LongAdder();
+    private final LongAdder cmdSet = new LongAdder();
+    private final LongAdder getHits = new LongAdder();
+    private final LongAdder getMisses = new LongAdder();
+    private final LongAdder deleteHits = new LongAdder();
+    private final LongAdder deleteMisses = new LongAdder();
+    private final LongAdder incrHits = new LongAdder();
+    private final LongAdder incrMisses = new LongAdder();
+    private final LongAdder decrHits = new LongAdder();
+    private final LongAdder decrMisses = new LongAdder();
+    private final LongAdder casHits = new LongAdder();
+    private final LongAdder casMisses = new LongAdder();
+    private final LongAdder casBadval = new LongAdder();
+    private final LongAdder authCmds = new LongAdder();
+    private final LongAdder authErrors = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder totalConnections = new LongAdder();
+    private final Set<MemcachedConnection> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<MemcachedConnection, Boolean>());
+
+    public ServerStats() {
+        for (int i = 0; i < ops.length; i++) {
+            ops[i] = new LongAdder();
+        }
+    }
+
+    private static String opName(int opcode) {
+        CommandCode cc = CommandCode.valueOf(opcode);
+        if (cc == CommandCode.ILLEGAL && opcode != CommandCode.ILLEGAL.cc()) {
+            return String.format("0x%02x", opcode);
+        }
+        return cc.name().toLowerCase();
+    }
+
+    private static void hitOrMiss(ErrorCode status, LongAdder hits, LongAdder misses) {
+        if (status == ErrorCode.SUCCESS) {
+            hits.increment();
+        } else if (status == ErrorCode.KEY_ENOENT) {
+            misses.increment();
+        }
+    }
+
+    /**
+     * Record the execution of a command
+     *
+     * @param cmd the command
+     * @param status the status it completed with
+     * @param nanos how long it took to execute
+     */
+    void record(BinaryCommand cmd, ErrorCode status, long nanos) {
+        int opcode = cmd.getOpcode() & 0xff;
+        ops[opcode].increment();
+        getTimings(opcode).record(nanos);
+
+        CommandCode cc = cmd.getComCode();
+        switch (cc) {
+            case GET:
+            case GETQ:
+            case GETK:
+            case GETKQ:
+            case GAT:
+            case GATQ:
+            case GETL:
+            case GET_REPLICA:
+                cmdGet.increment();
+                hitOrMiss(status, getHits, getMisses);
+                break;
+            case SET:
+            case SETQ:
+            case ADD:
+            case ADDQ:
+            case REPLACE:
+            case REPLACEQ:
+            case APPEND:
+            case APPENDQ:
+            case PREPEND:
+            case PREPENDQ:
+                cmdSet.increment();
+                break;
+            case DELETE:
+            case DELETEQ:
+                hitOrMiss(status, deleteHits, deleteMisses);
+                break;
+            case INCREMENT:
+            case INCREMENTQ:
+                hitOrMiss(status, incrHits, incrMisses);
+                break;
+            case DECREMENT:
+            case DECREMENTQ:
+                hitOrMiss(status, decrHits, decrMisses);
+                break;
+            case SASL_AUTH:
+            case SASL_STEP:
+                authCmds.increment();
+                if (status == ErrorCode.AUTH_ERROR) {
+                    authErrors.increment();
+                }
+                break;
+            default:
+                break;
+        }
+
+        if (cmd.getCas() != 0 && cc != CommandCode.GETL && cc != CommandCode.UNL) {
+            if (status == ErrorCode.SUCCESS) {
+                casHits.increment();
+            } else if (status == ErrorCode.KEY_ENOENT) {
+                casMisses.increment();
+            } else if (status == ErrorCode.KEY_EEXISTS) {
+                casBadval.increment();
+            }
+        }
+    }
+
+    void recordBytesRead(long nr) {
+        bytesRead.add(nr);
+    }
+
+    void recordBytesWritten(long nw) {
+        bytesWritten.add(nw);
+    }
+
+    void connectionOpened(MemcachedConnection connection) {
+        connections.add(connection);
+        totalConnections.increment();
+    }
+
+    void connectionClosed(MemcachedConnection connection) {
+        connections.remove(connection);
+    }
+
+    private LatencyHistogram getTimings(int opcode) {
+        LatencyHistogram histogram = timings.get(opcode);
+        if (histogram == null) {
+            timings.compareAndSet(opcode, null, new LatencyHistogram());
+            histogram = timings.get(opcode);
+        }
+        return histogram;
+    }
+
+    /**
+     * Get the latency histogram of an operation
+     * @param cc the operation
+     * @return the histogram, or null if the operation was never executed
+     */
+    public LatencyHistogram getTimings(CommandCode cc) {
+        return timings.get(cc.cc());
+    }
+
+    public long getOps(CommandCode cc) {
+        return ops[cc.cc()].sum();
+    }
+
+    /**
+     * @return the general counters, as returned by {@code STAT}
+     */
+    public Map<String, String> getCounters() {
+        Map<String, String> stats = new HashMap<String, String>();
+        stats.put("cmd_get", Long.toString(cmdGet.sum()));
+        stats.put("cmd_set", Long.toString(cmdSet.sum()));
+        stats.put("get_hits", Long.toString(getHits.sum()));
+        stats.put("get_misses", Long.toString(getMisses.sum()));
+        stats.put("delete_hits", Long.toString(deleteHits.sum()));
+        stats.put("delete_misses", Long.toString(deleteMisses.sum()));
+        stats.put("incr_hits", Long.toString(incrHits.sum()));
+        stats.put("incr_misses", Long.toString(incrMisses.sum()));
+        stats.put("decr_hits", Long.toString(decrHits.sum()));
+        stats.put("decr_misses", Long.toString(decrMisses.sum()));
+        stats.put("cas_hits", Long.toString(casHits.sum()));
+        stats.put("cas_misses", Long.toString(casMisses.sum()));
+        stats.put("cas_badval", Long.toString(casBadval.sum()));
+        stats.put("auth_cmds", Long.toString(authCmds.sum()));
+        stats.put("auth_errors", Long.toString(authErrors.sum()));
+        stats.put("bytes_read", Long.toString(bytesRead.sum()));
+        stats.put("bytes_written", Long.toString(bytesWritten.sum()));
+        stats.put("curr_connections", Integer.toString(connections.size()));
+        stats.put("total_connections", Long.toString(totalConnections.sum()));
+        return stats;
+    }
+
+    /**
+     * @return the number of times each operation was executed, as returned
+     * by {@code STAT opcodes}
+     */
+    public Map<String, String> getOpcodeCounters() {
+        Map<String, String> stats = new HashMap<String, String>();
+        for (int i = 0; i < ops.length; i++) {
+            long count = ops[i].sum();
+            if (count > 0) {
+                stats.put("cmd_" + opName(i), Long.toString(count));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return the latency histograms of the operations which were executed,
+     * keyed by {@code <operation>_cmd}
+     */
+    public Map<String, Map<String, Object>> getTimings() {
+        Map<String, Map<String, Object>> ret = new HashMap<String, Map<String, Object>>();
+        for (int i = 0; i < timings.length(); i++) {
+            LatencyHistogram histogram = timings.get(i);
+            if (histogram != null) {
+                ret.put(opName(i) + "_cmd", histogram.toMap());
+            }
+        }
+        return ret;
+    }
+}
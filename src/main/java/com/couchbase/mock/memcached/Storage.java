@@ -17,12 +17,15 @@ package com.couchbase.mock.memcached;
 
 import com.couchbase.mock.Bucket;
 
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.AccessControlException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * Class representing a node's storage.
@@ -45,90 +48,13 @@ public class Storage {
     private final VBucketInfo vbInfo[];
     private final VBucketStore cacheStore;
     private final PersistentStorage persistStore;
+    private final DcpConsumer dcpConsumer;
     private final MemcachedServer server;
     private boolean persistEnabled = true;
     private boolean replicationEnabled = true;
 
     private final static VBucketCoordinates EMPTY_COORDS = new BasicVBucketCoordinates(0, 0);
-    private class PersistentStorage {
-        class Slot {
-            long uuid = 0;
-            long seqno = 0;
-            Map<KeySpec, Item> mm = new HashMap<KeySpec, Item>();
-        }
-        final Slot[] slots;
-
-        PersistentStorage(int nvb) {
-            slots = new Slot[nvb];
-        }
-
-        private Slot updateCommon(KeySpec ks, VBucketCoordinates coords) {
-            Slot slot = slots[ks.vbId];
-            if (slot == null) {
-                slot = slots[ks.vbId] = new Slot();
-            }
-            if (coords.getUuid() != 0 && coords.getSeqno() != 0) {
-                slot.uuid = coords.getUuid();
-                slot.seqno = coords.getSeqno();
-            }
-            return slot;
-        }
-
-        public void put(Item item, VBucketCoordinates coords) {
-            updateCommon(item.getKeySpec(), coords).mm.put(item.getKeySpec(), item);
-        }
-
-        public Item get(KeySpec ks) {
-            Slot ss = slots[ks.vbId];
-            if (ss != null) {
-                return ss.mm.get(ks);
-            } else {
-                return null;
-            }
-        }
-
-        public Collection<Item> values() {
-            ArrayList<Item> ret = new ArrayList<Item>();
-            for (Slot s : slots) {
-                if (s != null) {
-                    ret.addAll(s.mm.values());
-                }
-            }
-            return ret;
-        }
-
-        public void clear() {
-            for (Slot s : slots) {
-                if (s != null) {
-                    s.mm.clear();
-                }
-            }
-        }
-
-        public void remove(KeySpec ks, VBucketCoordinates coords) {
-            updateCommon(ks, coords).mm.remove(ks);
-        }
-
-        VBucketCoordinates getCoords(int vbid) {
-            Slot ss = slots[vbid];
-            long seqno = 0;
-            long uuid = 0;
-            if (ss != null) {
-                seqno = ss.seqno;
-                uuid = ss.uuid;
-            }
-
-            return new BasicVBucketCoordinates(uuid, seqno);
-        }
-
-        public void updateSingleCoords(int vbid, VBucketCoordinates coords) {
-            Slot s = slots[vbid];
-            if (s != null) {
-                s.uuid = coords.getUuid();
-                s.seqno = coords.getSeqno();
-            }
-        }
-    }
+    private final static byte DATATYPE_COMPRESSED = (byte) 0x80;
 
     private class DeleteActionCallback implements VBucketStore.ItemAction {
         private final Storage storage;
@@ -165,13 +91,50 @@ public class Storage {
     }
 
     public Storage(VBucketInfo vbi[], MemcachedServer server) {
+        this(vbi, server, false, new HeapPersistentStorage(vbi.length));
+    }
+
+    /**
+     * Create a storage whose persisted items are kept in memory-mapped logs
+     * inside a directory. Existing logs are reopened, and may be loaded into
+     * the cache using {@link #warmup(short, Storage)}.
+     *
+     * @param vbi The vBucket map
+     * @param server The node owning this storage
+     * @param dataDir The directory for the logs of this node
+     * @throws IOException if the logs could not be opened
+     */
+    public Storage(VBucketInfo vbi[], MemcachedServer server, File dataDir) throws IOException {
+        this(vbi, server, dataDir, false);
+    }
+
+    /**
+     * Create a storage whose items may be kept outside of the Java heap.
+     *
+     * @param vbi The vBucket map
+     * @param server The node owning this storage
+     * @param dataDir The directory for the logs of this node, or null to keep
+     *                persisted items in memory
+     * @param isOffHeap Whether the cache (and the persisted items, unless they
+     *                  are kept in a directory) should be kept off the heap
+     * @throws IOException if the logs could not be opened
+     * @see OffHeapItemMap
+     */
+    public Storage(VBucketInfo vbi[], MemcachedServer server, File dataDir, boolean isOffHeap) throws IOException {
+        this(vbi, server, isOffHeap, dataDir != null ? new MappedPersistentStorage(dataDir, vbi.length) :
+                isOffHeap ? new OffHeapPersistentStorage(vbi.length) : new HeapPersistentStorage(vbi.length));
+    }
+
+    private Storage(VBucketInfo vbi[], MemcachedServer server, boolean isOffHeap, PersistentStorage persistStore) {
         vbInfo = vbi;
         VBucketStore.ItemAction deleteCallback = new DeleteActionCallback(this);
         VBucketStore.ItemAction mutateCallback = new MutateActionCallback(this);
-        cacheStore = new VBucketStore(vbi);
-        persistStore = new PersistentStorage(vbi.length);
+        cacheStore = new VBucketStore(vbi, isOffHeap);
+        cacheStore.persistStore = persistStore;
+        this.persistStore = persistStore;
         cacheStore.onItemDelete = deleteCallback;
         cacheStore.onItemMutated = mutateCallback;
+        dcpConsumer = new DcpConsumer(this, vbi.length);
         this.server = server;
     }
 
@@ -188,10 +151,14 @@ public class Storage {
         if (vbi.getOwner() != server) {
             return;
         }
-        for (MemcachedServer replica : vbi.getReplicas()) {
-            Item newItem = new Item(itm);
-            VBucketStore rStore = replica.getStorage().cacheStore;
-            rStore.forceStorageMutation(newItem, coords);
+        List<MemcachedServer> replicas = vbi.getReplicas();
+        if (replicas.isEmpty()) {
+            return;
+        }
+        // Snapshot the item once; each replica makes its own copy when applying it
+        Item snapshot = new Item(itm);
+        for (MemcachedServer replica : replicas) {
+            replica.getStorage().dcpConsumer.offer(snapshot, coords, false);
         }
     }
 
@@ -202,17 +169,56 @@ public class Storage {
         }
         Item itm = new Item(ks);
         for (MemcachedServer replica : vbi.getReplicas()) {
-            VBucketStore rStore = replica.getStorage().cacheStore;
-            PersistentStorage pStore = replica.getStorage().persistStore;
-            rStore.forceDeleteMutation(itm, coords);
+            replica.getStorage().dcpConsumer.offer(itm, coords, true);
+        }
+    }
+
+    /**
+     * Store items loaded in bulk. The items are persisted and replicated
+     * like those stored by clients, but without going through the
+     * per-operation checks and hooks.
+     *
+     * @param items The items to store; their vBuckets must be owned by this node
+     */
+    public void loadItems(List<Item> items) {
+        VBucketCoordinates[] coords = cacheStore.storeAll(items);
+        for (int i = 0; i < coords.length; i++) {
+            Item itm = items.get(i);
+            if (persistEnabled) {
+                persistMutatedItem(itm, coords[i]);
+            }
+            if (replicationEnabled) {
+                replicateMutatedItem(itm, coords[i]);
+            }
+        }
+        DcpConsumer.applyDeferred();
+        cacheStore.checkMemory();
+    }
+
+    /**
+     * Apply a mutation received from the active node. This is invoked by the
+     * {@link DcpConsumer} on the replica's own thread.
+     */
+    void applyReplicatedMutation(Item itm, VBucketCoordinates coords, boolean isDelete) {
+        if (isDelete) {
+            cacheStore.forceDeleteMutation(itm, coords);
 
             // Nasty hack needed to retain compat with existing tests which assume that
             // deletion operations on the mock will silently 'persist' this mutation
             // on disk.
-            pStore.put(itm, coords);
+            persistStore.put(itm, coords);
+        } else {
+            cacheStore.forceStorageMutation(new Item(itm), coords);
         }
     }
 
+    /**
+     * @return the replication consumer feeding this node's replica vBuckets
+     */
+    public DcpConsumer getDcpConsumer() {
+        return dcpConsumer;
+    }
+
     public Item getCached(KeySpec ks) {
         return cacheStore.get(ks);
     }
@@ -220,15 +226,18 @@ public class Storage {
         return persistStore.get(ks);
     }
     public void putCached(Item itm) {
-        cacheStore.getMap().put(itm.getKeySpec(), itm);
+        cacheStore.forcePut(itm);
     }
     public void putPersisted(Item itm) {
+        // An evicted value is read before its persisted copy changes
+        cacheStore.get(itm.getKeySpec());
         persistStore.put(itm, EMPTY_COORDS);
     }
     public void removeCached(KeySpec ks) {
-        cacheStore.getMap().remove(ks);
+        cacheStore.forceRemove(ks);
     }
     public void removePersisted(KeySpec ks) {
+        cacheStore.get(ks);
         persistStore.remove(ks, EMPTY_COORDS);
     }
 
@@ -262,6 +271,26 @@ public class Storage {
         return cacheStore;
     }
 
+    /**
+     * Limit the memory used by the cached items of this node
+     * @param quota The quota in bytes, or 0 for none
+     * @see VBucketStore#setMemoryQuota(long)
+     */
+    public void setMemoryQuota(long quota) {
+        cacheStore.setMemoryQuota(quota);
+    }
+
+    /**
+     * @return the memory quota of the cached items of this node, in bytes, or 0 for none
+     */
+    public long getMemoryQuota() {
+        return cacheStore.getMemoryQuota();
+    }
+
+    public Map<String, String> getMemoryStats() {
+        return cacheStore.getMemoryStats();
+    }
+
     public Item getRandomItem() {
         return cacheStore.getRandom();
     }
@@ -271,30 +300,224 @@ public class Storage {
     }
 
     public Iterable<Item> getMasterStore(final StorageType type) {
-        // Create the list now:
-        List<Item> validItems = new ArrayList<Item>();
-        Collection<Item> inputs;
-
+        final Iterable<Item> inputs;
         if (type == StorageType.CACHE) {
-            inputs = cacheStore.getMap().values();
+            inputs = cacheStore.values();
         } else {
             inputs = persistStore.values();
         }
 
-        for (Item itm : inputs) {
-            int vbId = itm.getKeySpec().vbId;
-            MemcachedServer owner = vbInfo[vbId].getOwner();
-            if (owner == server) {
-                validItems.add(itm);
+        return new Iterable<Item>() {
+            @Override
+            public Iterator<Item> iterator() {
+                final Iterator<Item> iter = inputs.iterator();
+                return new Iterator<Item>() {
+                    private Item nextItem = null;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (nextItem == null && iter.hasNext()) {
+                            Item itm = iter.next();
+                            if (vbInfo[itm.getKeySpec().vbId].getOwner() == server) {
+                                nextItem = itm;
+                            }
+                        }
+                        return nextItem != null;
+                    }
+
+                    @Override
+                    public Item next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Item ret = nextItem;
+                        nextItem = null;
+                        return ret;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
             }
+        };
+    }
+
+    public VBucketCoordinates getPersistedCoords(short vBucketId) {
+        return persistStore.getCoords(vBucketId);
+    }
+
+    /**
+     * Load the persisted copy of a vBucket into the cache. If the persisted
+     * copy comes from another node, it is persisted on this node as well.
+     *
+     * @param vBucketId The vBucket to load
+     * @param source The storage holding the most recent persisted copy
+     * @return the number of items loaded
+     */
+    public int warmup(short vBucketId, Storage source) {
+        VBucketCoordinates coords = source.persistStore.getCoords(vBucketId);
+        int count = 0;
+        cacheStore.warmupCoords(vBucketId, coords);
+        for (Item itm : source.persistStore.values(vBucketId)) {
+            if (itm.getValue() == null) {
+                // Deletion placeholder; see replicateDeletedItem()
+                continue;
+            }
+            cacheStore.warmupItem(new Item(itm));
+            if (source != this) {
+                persistStore.put(new Item(itm), coords);
+            }
+            count++;
         }
+        if (source != this) {
+            persistStore.updateSingleCoords(vBucketId, coords);
+        }
+        return count;
+    }
 
-        return validItems;
+    /**
+     * Write the contents of this storage, as part of a cluster snapshot.
+     *
+     * Layout (big endian):
+     * <pre>
+     * -- per vBucket --
+     * long   uuid and seqno of the cache
+     * long   uuid and seqno of the persistent store
+     * -- the cached items, then the persisted items, each terminated by a key length of -1 --
+     * short  key length, followed by the UTF-8 key
+     * short  vBucket
+     * long   cas
+     * int    flags
+     * int    absolute expiry time
+     * byte   datatype, with the high bit set if the value is Snappy-compressed
+     * int    value length (-1 for null), followed by the value
+     * int    xattr length (-1 for null), followed by the xattrs
+     * </pre>
+     *
+     * Mutations performed while the snapshot is written may or may not be part of it.
+     *
+     * @param out The stream to write to
+     * @throws IOException if writing fails
+     */
+    public void writeSnapshot(DataOutput out) throws IOException {
+        for (int vb = 0; vb < vbInfo.length; vb++) {
+            VBucketCoordinates coords = cacheStore.getCurrentCoords(vb);
+            out.writeLong(coords.getUuid());
+            out.writeLong(coords.getSeqno());
+            coords = persistStore.getCoords(vb);
+            out.writeLong(coords.getUuid());
+            out.writeLong(coords.getSeqno());
+        }
+        writeSnapshotItems(out, cacheStore.values());
+        writeSnapshotItems(out, persistStore.values());
     }
 
+    private static void writeSnapshotItems(DataOutput out, Iterable<Item> items) throws IOException {
+        for (Item itm : items) {
+            byte[] key = itm.getKeySpec().getKeyBytes();
+            boolean isCompressed = itm.isCompressedOnly();
+            out.writeShort(key.length);
+            out.write(key);
+            out.writeShort(itm.getKeySpec().vbId);
+            out.writeLong(itm.getCasReal());
+            out.writeInt(itm.getFlags());
+            out.writeInt(itm.getExpiryTime());
+            out.writeByte(isCompressed ? itm.getDatatype() | DATATYPE_COMPRESSED : itm.getDatatype());
+            writeSnapshotBytes(out, isCompressed ? itm.getCompressedValue() : itm.getValue());
+            writeSnapshotBytes(out, itm.getXattr());
+        }
+        out.writeShort(-1);
+    }
+
+    private static void writeSnapshotBytes(DataOutput out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Replace the contents of this storage with those written by {@link #writeSnapshot(DataOutput)}.
+     * Like a warmup, this neither generates mutations nor replicates the items.
+     *
+     * @param in The snapshot of this node, positioned at its start
+     */
+    public void restoreSnapshot(ByteBuffer in) {
+        flush();
+        VBucketCoordinates[] persisted = new VBucketCoordinates[vbInfo.length];
+        for (int vb = 0; vb < vbInfo.length; vb++) {
+            cacheStore.warmupCoords(vb, new BasicVBucketCoordinates(in.getLong(), in.getLong()));
+            persisted[vb] = new BasicVBucketCoordinates(in.getLong(), in.getLong());
+        }
+        Item itm;
+        while ((itm = readSnapshotItem(in)) != null) {
+            cacheStore.warmupItem(itm);
+        }
+        while ((itm = readSnapshotItem(in)) != null) {
+            persistStore.put(itm, persisted[itm.getKeySpec().vbId]);
+        }
+        for (int vb = 0; vb < vbInfo.length; vb++) {
+            persistStore.updateSingleCoords(vb, persisted[vb]);
+        }
+    }
+
+    private static Item readSnapshotItem(ByteBuffer in) {
+        short keyLength = in.getShort();
+        if (keyLength < 0) {
+            return null;
+        }
+        byte[] key = new byte[keyLength];
+        in.get(key);
+        KeySpec ks = new KeySpec(key, in.getShort());
+        long cas = in.getLong();
+        int flags = in.getInt();
+        int expiry = in.getInt();
+        byte datatype = in.get();
+        byte[] value = readSnapshotBytes(in);
+        byte[] xattr = readSnapshotBytes(in);
+        boolean isCompressed = (datatype & DATATYPE_COMPRESSED) != 0;
+        datatype &= ~DATATYPE_COMPRESSED;
+        return Item.restore(ks, flags, expiry, value, isCompressed, xattr, cas, datatype);
+    }
+
+    private static byte[] readSnapshotBytes(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] ret = new byte[length];
+        in.get(ret);
+        return ret;
+    }
+
+    /**
+     * Release the resources held by the persistent store.
+     */
+    public void close() {
+        dcpConsumer.close();
+        persistStore.close();
+    }
+
+    /**
+     * Remove all the items. Mutations persist their item while locking the
+     * cache, so both stores are cleared under that lock: a mutation happens
+     * either before the flush, and is removed from both, or after it. The
+     * files of the removed items are deleted once the lock is released.
+     */
     public void flush() {
-        cacheStore.getMap().clear();
-        persistStore.clear();
+        dcpConsumer.clear();
+        Runnable cleanup;
+        synchronized (cacheStore) {
+            cacheStore.clear();
+            cleanup = persistStore.clear();
+        }
+        if (cleanup != null) {
+            cleanup.run();
+        }
     }
 
     public void updateCoordinateInfo(VBucketInfo[] vbi) {
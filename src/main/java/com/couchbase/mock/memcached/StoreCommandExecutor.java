@@ -22,6 +22,7 @@ import com.couchbase.mock.memcached.protocol.BinaryStoreCommand;
 import com.couchbase.mock.memcached.protocol.BinaryStoreResponse;
 import com.couchbase.mock.memcached.protocol.CommandCode;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
+import org.iq80.snappy.CorruptionException;
 
 import java.net.ProtocolException;
 
@@ -37,8 +38,13 @@ public class StoreCommandExecutor implements CommandExecutor {
 
         MutationStatus ms;
         MutationInfoWriter miw = client.getMutinfoWriter();
-        Item item = command.getItem(client.snappyMode());
-        if (item.getValue().length > Info.itemSizeMax()) {
+        Item item;
+        try {
+            item = command.getItem(client.snappyMode());
+        } catch (CorruptionException ex) {
+            return new BinaryResponse(cmd, ErrorCode.EINVAL);
+        }
+        if (item.getValueLength() > Info.itemSizeMax()) {
             return new BinaryResponse(cmd, ErrorCode.E2BIG);
         }
 
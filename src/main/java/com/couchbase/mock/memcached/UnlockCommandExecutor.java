@@ -23,19 +23,7 @@ public class UnlockCommandExecutor implements CommandExecutor {
     @Override
     public BinaryResponse execute(BinaryCommand cmd, MemcachedServer server, MemcachedConnection client) {
         VBucketStore cache = server.getCache(cmd);
-        Item item = cache.get(cmd.getKeySpec());
-        ErrorCode ec;
-
-        if (item == null) {
-            ec = ErrorCode.KEY_ENOENT;
-        } else if (!item.isLocked()) {
-            ec = ErrorCode.ETMPFAIL;
-        } else if (!item.ensureUnlocked(cmd.getCas())) {
-            ec = ErrorCode.ETMPFAIL;
-        } else {
-            ec = ErrorCode.SUCCESS;
-        }
-
+        ErrorCode ec = cache.unlock(cmd.getKeySpec(), cmd.getCas());
         return new BinaryResponse(cmd, ec);
     }
 }
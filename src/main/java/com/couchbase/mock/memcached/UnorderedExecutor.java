@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.protocol.BinaryCommand;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Schedules the commands of a connection which negotiated
+ * {@code UNORDERED_EXECUTION}.
+ *
+ * Reorderable commands are executed on the node's worker pool and their
+ * responses are sent as soon as they complete (clients match them by their
+ * opaque). The following ordering guarantees are kept:
+ * <ul>
+ *     <li>Commands on the same key are executed in the order they were received</li>
+ *     <li>A command which is not reorderable only starts once all the preceding
+ *     commands have completed, and no subsequent command starts before it completes</li>
+ * </ul>
+ */
+final class UnorderedExecutor {
+    private static final Set<CommandCode> reorderable = EnumSet.of(
+            CommandCode.GET, CommandCode.GETK, CommandCode.GET_REPLICA,
+            CommandCode.GETL, CommandCode.UNL, CommandCode.TOUCH, CommandCode.GAT,
+            CommandCode.SET, CommandCode.ADD, CommandCode.REPLACE, CommandCode.DELETE,
+            CommandCode.APPEND, CommandCode.PREPEND, CommandCode.INCREMENT, CommandCode.DECREMENT,
+            CommandCode.SUBDOC_GET, CommandCode.SUBDOC_EXISTS, CommandCode.SUBDOC_GET_COUNT,
+            CommandCode.SUBDOC_DICT_ADD, CommandCode.SUBDOC_DICT_UPSERT, CommandCode.SUBDOC_DELETE,
+            CommandCode.SUBDOC_REPLACE, CommandCode.SUBDOC_ARRAY_PUSH_LAST, CommandCode.SUBDOC_ARRAY_PUSH_FIRST,
+            CommandCode.SUBDOC_ARRAY_INSERT, CommandCode.SUBDOC_ARRAY_ADD_UNIQUE, CommandCode.SUBDOC_COUNTER,
+            CommandCode.SUBDOC_MULTI_LOOKUP, CommandCode.SUBDOC_MULTI_MUTATION);
+
+    private static class Task {
+        final String key;
+        final Runnable runnable;
+
+        Task(String key, Runnable runnable) {
+            this.key = key;
+            this.runnable = runnable;
+        }
+
+        boolean isBarrier() {
+            return key == null;
+        }
+    }
+
+    private final Executor pool;
+    private final List<Task> waiting = new LinkedList<Task>();
+    private final Set<String> busyKeys = new HashSet<String>();
+    private int inFlight = 0;
+    private boolean barrierRunning = false;
+
+    UnorderedExecutor(Executor pool) {
+        this.pool = pool;
+    }
+
+    static boolean isReorderable(CommandCode code) {
+        return reorderable.contains(code);
+    }
+
+    /**
+     * @return true if nothing is executing or waiting to be executed
+     */
+    synchronized boolean isIdle() {
+        return inFlight == 0 && waiting.isEmpty();
+    }
+
+    /**
+     * Schedule a command for execution.
+     *
+     * @param cmd The command
+     * @param runnable The action executing the command and sending its response
+     */
+    synchronized void submit(BinaryCommand cmd, Runnable runnable) {
+        String key = isReorderable(cmd.getComCode()) ? cmd.getKey() : null;
+        waiting.add(new Task(key, runnable));
+        schedule();
+    }
+
+    private synchronized void complete(Task task) {
+        inFlight--;
+        if (task.isBarrier()) {
+            barrierRunning = false;
+        } else {
+            busyKeys.remove(task.key);
+        }
+        schedule();
+    }
+
+    private void start(final Task task) {
+        inFlight++;
+        if (task.isBarrier()) {
+            barrierRunning = true;
+        } else {
+            busyKeys.add(task.key);
+        }
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.runnable.run();
+                } finally {
+                    complete(task);
+                }
+            }
+        });
+    }
+
+    private void schedule() {
+        if (barrierRunning) {
+            return;
+        }
+        Iterator<Task> iterator = waiting.iterator();
+        while (iterator.hasNext()) {
+            Task task = iterator.next();
+            if (task.isBarrier()) {
+                if (inFlight == 0) {
+                    iterator.remove();
+                    start(task);
+                }
+                // Nothing may overtake a barrier
+                return;
+            }
+            if (!busyKeys.contains(task.key)) {
+                iterator.remove();
+                start(task);
+            }
+        }
+    }
+}
@@ -88,4 +88,9 @@ public class VBucketInfo {
     public long getUuid() {
         return uuid;
     }
+
+    /* Used when restoring a snapshot */
+    public void setUuid(long uuid) {
+        this.uuid = uuid;
+    }
 }
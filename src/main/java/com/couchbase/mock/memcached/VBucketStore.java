@@ -18,19 +18,39 @@ package com.couchbase.mock.memcached;
 import com.couchbase.mock.Info;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
 
-import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Storage operations representing a single vBucket. This is a replacement for
  * the old DataStore class. Specifically, it does not check for vBucket
  * ownership - that information is handled at the protocol layer.
  *
+ * Mutations are serialized on the store, as they may be issued concurrently
+ * by several worker threads (see {@link UnorderedExecutor}) as well as by the
+ * control handlers. Lookups do not take the lock.
+ *
+ * The memory used by the items may be limited by a quota, which applies to
+ * the store of a single node: a bucket may use up to its number of nodes
+ * times the quota. Like the value eviction of ep-engine, the values of clean
+ * (persisted) items are then evicted by an item pager when the high watermark
+ * is exceeded, and read again from the persisted store when accessed.
+ * Mutations which would exceed the quota fail with {@link ErrorCode#ETMPFAIL}
+ * if dirty items could be evicted once persisted, or {@link ErrorCode#ENOMEM}
+ * otherwise. The pager runs on the mutating threads, but outside of the lock
+ * of the store, which it only takes to evict each item.
+ *
  * @author mnunberg
  */
 public class VBucketStore {
@@ -42,16 +62,196 @@ public class VBucketStore {
     private static final long THIRTY_DAYS = 30 * 24 * 60 * 60;
     static final int DEFAULT_EXPIRY_TIME = 15;
     static final int MAXIMUM_EXPIRY_TIME = 29;
+    /** The percentages of the quota above which the pager runs, and down to which it evicts */
+    static final int HIGH_WATERMARK = 85;
+    static final int LOW_WATERMARK = 75;
+    private static final Logger LOGGER = Logger.getLogger(VBucketStore.class.getName());
+
+    /**
+     * The items, along with their index. Flushing the store swaps in a new
+     * generation rather than clearing the current one, so that it takes the
+     * same time regardless of the number of items; the old generation is
+     * left to the garbage collector. Mutations are serialized with the swap
+     * (both lock the store), and readers see either generation as a whole.
+     *
+     * Items are either kept on the heap, or serialized outside of it (see
+     * {@link OffHeapItemMap}). In the latter case, lookups return copies:
+     * items modified in place must be stored again with {@link #update}.
+     */
+    private static final class Generation {
+        final Map<KeySpec, Item> kv;
+        // Only one of these is set
+        final RandomKeyIndex keyIndex;
+        final OffHeapItemMap offHeap;
+        // The memory used by the items on the heap (see Item#getMemoryUsage())
+        private final AtomicLong memoryUsed = new AtomicLong();
+
+        Generation(int numVBuckets, boolean isOffHeap) {
+            if (isOffHeap) {
+                offHeap = new OffHeapItemMap(numVBuckets);
+                kv = offHeap;
+                keyIndex = null;
+            } else {
+                offHeap = null;
+                kv = new ConcurrentHashMap<KeySpec, Item>();
+                keyIndex = new RandomKeyIndex(numVBuckets);
+            }
+        }
+
+        void put(Item item) {
+            if (offHeap != null) {
+                offHeap.store(item);
+                return;
+            }
+            Item old = kv.put(item.getKeySpec(), item);
+            if (old == null) {
+                keyIndex.add(item.getKeySpec());
+                memoryUsed.addAndGet(item.getMemoryUsage());
+            } else {
+                memoryUsed.addAndGet(item.getMemoryUsage() - old.getMemoryUsage());
+            }
+        }
+
+        void remove(KeySpec ks) {
+            if (offHeap != null) {
+                offHeap.delete(ks, 0);
+                return;
+            }
+            Item old = kv.remove(ks);
+            if (old != null) {
+                keyIndex.remove(ks);
+                memoryUsed.addAndGet(-old.getMemoryUsage());
+            }
+        }
+
+        /**
+         * Get an item, marking it as referenced for the item pager
+         */
+        Item access(KeySpec ks) {
+            if (offHeap != null) {
+                return offHeap.access(ks);
+            }
+            Item item = kv.get(ks);
+            if (item != null && !item.isReferenced()) {
+                item.setReferenced(true);
+            }
+            return item;
+        }
+
+        /**
+         * Remove an item, unless it was replaced in the meantime
+         */
+        boolean remove(Item item) {
+            if (offHeap != null) {
+                return offHeap.delete(item.getKeySpec(), item.getCasReal());
+            } else if (kv.remove(item.getKeySpec(), item)) {
+                keyIndex.remove(item.getKeySpec());
+                memoryUsed.addAndGet(-item.getMemoryUsage());
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Store an item which was modified in place, unless it was replaced
+         * or removed in the meantime. Items on the heap are usually modified
+         * in the store itself, unless their value was evicted meanwhile.
+         *
+         * @param item The item
+         * @param oldCas The CAS of the item before it was modified
+         * @param oldMemoryUsage The memory used by the item before it was modified
+         */
+        void update(Item item, long oldCas, int oldMemoryUsage) {
+            if (offHeap != null) {
+                offHeap.replace(item, oldCas);
+                return;
+            }
+            Item cur = kv.get(item.getKeySpec());
+            if (cur == item) {
+                memoryUsed.addAndGet(item.getMemoryUsage() - oldMemoryUsage);
+            } else if (cur != null && cur.getCasReal() == oldCas) {
+                put(item);
+            }
+        }
 
-    private final Map<KeySpec, Item> kv = new ConcurrentHashMap<KeySpec, Item>();
+        void update(Item item, long oldCas) {
+            update(item, oldCas, item.getMemoryUsage());
+        }
+
+        long memoryUsed() {
+            return offHeap != null ? offHeap.getLiveBytes() : memoryUsed.get();
+        }
+
+        /**
+         * @return the bound of the positions of the items of a vBucket
+         * @see #itemAt(int, int)
+         */
+        int positions(int vbid) {
+            return offHeap != null ? offHeap.capacity(vbid) : keyIndex.size(vbid);
+        }
+
+        /**
+         * Get an item by its position in its vBucket, without marking it as
+         * referenced. Positions may change as items are removed.
+         *
+         * @return the item, or null if there is none at this position
+         */
+        Item itemAt(int vbid, int position) {
+            if (offHeap != null) {
+                return offHeap.itemAt(vbid, position);
+            }
+            KeySpec ks = keyIndex.get(vbid, position);
+            return ks == null ? null : kv.get(ks);
+        }
+
+        void clearReferenced(Item item) {
+            if (offHeap != null) {
+                offHeap.clearReferenced(item.getKeySpec());
+            } else {
+                item.setReferenced(false);
+            }
+        }
+
+        KeySpec sample(Random random) {
+            return offHeap != null ? offHeap.sample(random) : keyIndex.sample(random);
+        }
+    }
+
+    private volatile Generation gen;
+    private final boolean isOffHeap;
     private final StorageVBucketCoordinates[] vbCoords;
     private final Map<CoordKey, VBucketCoordinates>allCoords = new HashMap<CoordKey, VBucketCoordinates>();
 
     public ItemAction onItemDelete;
     public ItemAction onItemMutated;
+    /** The persisted items, from which evicted values are read again; nothing is evicted if null */
+    PersistentStorage persistStore;
+
+    private volatile long memoryQuota;
+    // The item pager and its position, in the generation it last visited
+    private final Object pagerLock = new Object();
+    private Generation pagerGen;
+    private int pagerVBucket;
+    private int pagerPosition;
+    // Whether the last run of the pager skipped dirty items
+    private volatile boolean pagerSkippedDirty;
+    private volatile long numValueEjects;
+    private volatile long numBgFetched;
+    private volatile long numTmpOomErrors;
+    private volatile long numOomErrors;
 
     public VBucketStore(VBucketInfo[] vbi) {
+        this(vbi, false);
+    }
+
+    /**
+     * @param vbi The vBucket map
+     * @param isOffHeap Whether the items should be kept outside of the Java heap
+     */
+    public VBucketStore(VBucketInfo[] vbi, boolean isOffHeap) {
+        this.isOffHeap = isOffHeap;
         vbCoords = new StorageVBucketCoordinates[vbi.length];
+        gen = new Generation(vbi.length, isOffHeap);
         setCurrentCoords(vbi);
     }
 
@@ -102,23 +302,263 @@ public class VBucketStore {
         return new MutationStatus(coord);
     }
 
+    private void putItem(Item item) {
+        gen.put(item);
+    }
+
+    private void removeItem(KeySpec ks) {
+        gen.remove(ks);
+    }
+
+    private synchronized boolean expire(Generation g, Item item) {
+        // Items of a flushed generation are already gone
+        return g == gen && g.remove(item);
+    }
+
     private Item lookup(KeySpec ks) {
-        Item ii = kv.get(ks);
+        return lookup(gen, ks);
+    }
+
+    private Item lookup(Generation g, KeySpec ks) {
+        Item ii = g.access(ks);
         if (ii == null) {
             return null;
         }
 
         long now = new Date().getTime() + Info.getClockOffset() * 1000L;
         if (ii.getExpiryTime() == 0 || now < ii.getExpiryTimeInMillis()) {
-            return ii;
+            if (!ii.isEvicted()) {
+                return ii;
+            }
+            Item resident = fetch(g, ii);
+            checkMemory();
+            return resident;
+        }
+        // Only the thread which actually removed the item generates the deletion
+        if (expire(g, ii)) {
+            MutationStatus ms = incrCoords(ii.getKeySpec());
+            onItemDelete.onAction(this, ii, ms.getCoords());
         }
-        MutationStatus ms = incrCoords(ii.getKeySpec());
-        onItemDelete.onAction(this, ii, ms.getCoords());
-        kv.remove(ks);
         return null;
     }
 
+    /**
+     * Read the value of an evicted item from its persisted copy, making it
+     * resident again (this is the "background fetch" of ep-engine).
+     *
+     * @return the resident item, or null if it was removed
+     */
+    private synchronized Item fetch(Generation g, Item evicted) {
+        Item cur = g == gen ? g.kv.get(evicted.getKeySpec()) : null;
+        if (cur == null || !cur.isEvicted()) {
+            // Removed, or fetched or replaced in the meantime
+            return cur;
+        }
+        Item persisted = persistStore.get(cur.getKeySpec());
+        if (persisted == null || persisted.getCasReal() != cur.getCasReal()) {
+            // Only clean items are evicted, and their persisted copy is read
+            // before being modified out of band (see Storage#putPersisted)
+            LOGGER.log(Level.WARNING, "The persisted copy of evicted item {0} is gone", cur.getKeySpec().getKey());
+            g.remove(cur);
+            return null;
+        }
+        Item resident = cur.residentCopy(persisted);
+        resident.setReferenced(true);
+        g.put(resident);
+        numBgFetched++;
+        return resident;
+    }
+
+    private boolean isClean(Item item) {
+        if (persistStore == null) {
+            return false;
+        }
+        Item persisted = persistStore.get(item.getKeySpec());
+        return persisted != null && persisted.getCasReal() == item.getCasReal();
+    }
+
+    /**
+     * The item pager: evict the values of clean items until the memory used
+     * is at most the target. This approximates NRU with a CLOCK: the pager
+     * walks the items of each vBucket in turn, sparing (once) those which
+     * were accessed since its last visit. Only one pager runs at a time, and
+     * it doesn't hold the lock of the store, which must not be held by the
+     * caller either, so that mutations go on during the sweep.
+     *
+     * @param target The memory to get down to
+     */
+    private void runPager(long target) {
+        synchronized (pagerLock) {
+            Generation g = gen;
+            if (pagerGen != g) {
+                // Flushed since the last run
+                pagerGen = g;
+                pagerVBucket = 0;
+                pagerPosition = 0;
+            }
+            boolean skippedDirty = false;
+            // Two turns, since the first one may only clear the reference bits
+            for (int visits = 0; visits <= 2 * vbCoords.length; visits++) {
+                int vb = pagerVBucket;
+                for (int end = g.positions(vb); pagerPosition < end; pagerPosition++) {
+                    if (g.memoryUsed() <= target || g != gen) {
+                        pagerSkippedDirty = skippedDirty;
+                        return;
+                    }
+                    Item item = g.itemAt(vb, pagerPosition);
+                    if (item == null || item.isEvicted()) {
+                        continue;
+                    }
+                    if (item.isReferenced()) {
+                        g.clearReferenced(item);
+                    } else if (!evictClean(g, item.getKeySpec())) {
+                        skippedDirty = true;
+                    }
+                }
+                pagerVBucket = (vb + 1) % vbCoords.length;
+                pagerPosition = 0;
+            }
+            pagerSkippedDirty = skippedDirty;
+        }
+    }
+
+    /**
+     * Evict the value of an item found by the pager, unless it is dirty. The
+     * item is looked up again, as it may have been modified in the meantime.
+     *
+     * @return false if the item is dirty
+     */
+    private synchronized boolean evictClean(Generation g, KeySpec ks) {
+        Item item = g == gen ? g.kv.get(ks) : null;
+        if (item == null || item.isEvicted()) {
+            return true;
+        } else if (!isClean(item)) {
+            return false;
+        }
+        g.put(item.evictedCopy());
+        numValueEjects++;
+        return true;
+    }
+
+    /**
+     * Run the item pager before a mutation if it wouldn't fit within the
+     * quota. This is done before locking the store.
+     *
+     * @param delta The memory the mutation may add
+     */
+    private void makeRoom(long delta) {
+        long quota = memoryQuota;
+        if (quota != 0 && delta > 0 && gen.memoryUsed() + delta > quota) {
+            runPager(quota * LOW_WATERMARK / 100);
+        }
+    }
+
+    /**
+     * Check that there is room for a mutation within the quota. The pager
+     * was run by {@link #makeRoom(long)} if needed.
+     *
+     * @param delta The memory the mutation would add
+     * @return {@link ErrorCode#SUCCESS}, or the error for the mutation
+     */
+    private ErrorCode reserveMemory(long delta) {
+        long quota = memoryQuota;
+        if (quota == 0 || delta <= 0 || gen.memoryUsed() + delta <= quota) {
+            return ErrorCode.SUCCESS;
+        } else if (pagerSkippedDirty) {
+            numTmpOomErrors++;
+            return ErrorCode.ETMPFAIL;
+        } else {
+            numOomErrors++;
+            return ErrorCode.ENOMEM;
+        }
+    }
+
+    /**
+     * Run the item pager if the memory used is above the high watermark.
+     * This does nothing if the caller holds the lock of the store: mutations
+     * check the memory once they released it.
+     */
+    void checkMemory() {
+        long quota = memoryQuota;
+        if (quota != 0 && !Thread.holdsLock(this) && gen.memoryUsed() > quota * HIGH_WATERMARK / 100) {
+            runPager(quota * LOW_WATERMARK / 100);
+        }
+    }
+
+    /**
+     * Finish a mutation once the lock of the store is released: run the item
+     * pager if needed, and apply the replicated mutations which aren't lagged
+     * (see {@link DcpConsumer}). This does nothing if the lock is still held.
+     */
+    private void unlocked() {
+        if (!Thread.holdsLock(this)) {
+            checkMemory();
+            DcpConsumer.applyDeferred();
+        }
+    }
+
+    /**
+     * Set the memory quota of the items. The values of items are evicted
+     * as soon as needed to get below it.
+     *
+     * @param quota The quota in bytes, or 0 for none
+     */
+    public void setMemoryQuota(long quota) {
+        memoryQuota = quota;
+        checkMemory();
+    }
+
+    public long getMemoryQuota() {
+        return memoryQuota;
+    }
+
+    /**
+     * @return an estimate of the memory used by the items
+     */
+    public long getMemoryUsed() {
+        return gen.memoryUsed();
+    }
+
+    /**
+     * @return the memory statistics of this node, named as those of ep-engine
+     * (which also accounts for the quota per node)
+     */
+    public Map<String, String> getMemoryStats() {
+        long quota = memoryQuota;
+        Map<String, String> stats = new HashMap<String, String>();
+        stats.put("mem_used", Long.toString(getMemoryUsed()));
+        stats.put("ep_max_size", Long.toString(quota));
+        stats.put("ep_mem_high_wat", Long.toString(quota * HIGH_WATERMARK / 100));
+        stats.put("ep_mem_low_wat", Long.toString(quota * LOW_WATERMARK / 100));
+        stats.put("ep_num_value_ejects", Long.toString(numValueEjects));
+        stats.put("ep_bg_fetched", Long.toString(numBgFetched));
+        stats.put("ep_tmp_oom_errors", Long.toString(numTmpOomErrors));
+        stats.put("ep_oom_errors", Long.toString(numOomErrors));
+        return stats;
+    }
+
+    /**
+     * Evict the value of an item, as requested by a client. The value of a
+     * dirty item can't be evicted, which isn't an error.
+     *
+     * @param ks The key of the item
+     * @return {@link ErrorCode#KEY_ENOENT} if there is no such item, or {@link ErrorCode#SUCCESS}
+     */
+    public synchronized ErrorCode evict(KeySpec ks) {
+        if (gen.kv.get(ks) == null) {
+            return ErrorCode.KEY_ENOENT;
+        }
+        evictClean(gen, ks);
+        return ErrorCode.SUCCESS;
+    }
+
     public ErrorCode lock(Item item, int expiry) {
+        ErrorCode ec = lockLocked(item, expiry);
+        unlocked();
+        return ec;
+    }
+
+    private synchronized ErrorCode lockLocked(Item item, int expiry) {
         if (item.isLocked()) {
             return ErrorCode.ETMPFAIL;
 
@@ -127,24 +567,40 @@ public class VBucketStore {
                 expiry = DEFAULT_EXPIRY_TIME;
             }
             MutationStatus ms = incrCoords(item.getKeySpec());
+            long oldCas = item.getCasReal();
             item.setLockExpiryTime(expiry);
             item.setCas(++casCounter);
+            gen.update(item, oldCas);
             onItemMutated.onAction(this, item, ms.getCoords());
             return ErrorCode.SUCCESS;
         }
     }
 
     public ErrorCode touch(Item item, int expiry, boolean xerrorEnabled) {
+        ErrorCode ec = touchLocked(item, expiry, xerrorEnabled);
+        unlocked();
+        return ec;
+    }
+
+    private synchronized ErrorCode touchLocked(Item item, int expiry, boolean xerrorEnabled) {
         if (item.isLocked()) {
             return lockedError(xerrorEnabled);
         }
         item.setExpiryTime(expiry);
+        gen.update(item, item.getCasReal());
         MutationStatus ms = incrCoords(item.getKeySpec());
         onItemMutated.onAction(this, item, ms.getCoords());
         return ErrorCode.SUCCESS;
     }
 
     public MutationStatus add(Item item, boolean xerrorEnabled) {
+        makeRoom(item.getMemoryUsage());
+        MutationStatus ms = addLocked(item, xerrorEnabled);
+        unlocked();
+        return ms;
+    }
+
+    private synchronized MutationStatus addLocked(Item item, boolean xerrorEnabled) {
         // I don't give a shit about atomicity right now..
         Item old = lookup(item.getKeySpec());
         if (old != null && old.isLocked()) {
@@ -152,15 +608,26 @@ public class VBucketStore {
         } else if (old != null || item.getCas() != 0) {
             return new MutationStatus(ErrorCode.KEY_EEXISTS);
         }
+        ErrorCode ec = reserveMemory(item.getMemoryUsage());
+        if (ec != ErrorCode.SUCCESS) {
+            return new MutationStatus(ec);
+        }
 
         item.setCas(++casCounter);
-        kv.put(item.getKeySpec(), item);
+        putItem(item);
         MutationStatus ms = incrCoords(item.getKeySpec());
         onItemMutated.onAction(this, item, ms.getCoords());
         return ms;
     }
 
     public MutationStatus replace(Item item, boolean xerrorEnabled) {
+        makeRoom(item.getMemoryUsage());
+        MutationStatus ms = replaceLocked(item, xerrorEnabled);
+        unlocked();
+        return ms;
+    }
+
+    private synchronized MutationStatus replaceLocked(Item item, boolean xerrorEnabled) {
         // I don't give a shit about atomicity right now..
         Item old = lookup(item.getKeySpec());
         if (old == null) {
@@ -176,32 +643,53 @@ public class VBucketStore {
                 return new MutationStatus(ErrorCode.KEY_EEXISTS);
             }
         }
+        ErrorCode ec = reserveMemory(item.getMemoryUsage() - old.getMemoryUsage());
+        if (ec != ErrorCode.SUCCESS) {
+            return new MutationStatus(ec);
+        }
 
         MutationStatus ms = incrCoords(item.getKeySpec());
         item.setCas(++casCounter);
-        kv.put(item.getKeySpec(), item);
+        putItem(item);
         onItemMutated.onAction(this, item, ms.getCoords());
         return ms;
     }
 
     public MutationStatus set(Item item, boolean xerrorEnabled) {
+        makeRoom(item.getMemoryUsage());
+        MutationStatus ms = setLocked(item, xerrorEnabled);
+        unlocked();
+        return ms;
+    }
+
+    private synchronized MutationStatus setLocked(Item item, boolean xerrorEnabled) {
         if (item.getCas() == 0) {
             Item old = lookup(item.getKeySpec());
             if (old != null && old.isLocked()) {
                 return new MutationStatus(lockedError(xerrorEnabled));
             }
+            ErrorCode ec = reserveMemory(item.getMemoryUsage() - (old == null ? 0 : old.getMemoryUsage()));
+            if (ec != ErrorCode.SUCCESS) {
+                return new MutationStatus(ec);
+            }
 
             MutationStatus ms = incrCoords(item.getKeySpec());
             item.setCas(++casCounter);
-            kv.put(item.getKeySpec(), item);
+            putItem(item);
             onItemMutated.onAction(this, item, ms.getCoords());
             return ms;
         } else {
-            return replace(item, xerrorEnabled);
+            return replaceLocked(item, xerrorEnabled);
         }
     }
 
     public MutationStatus delete(KeySpec ks, long cas, boolean xerrorEnabled) {
+        MutationStatus ms = deleteLocked(ks, cas, xerrorEnabled);
+        unlocked();
+        return ms;
+    }
+
+    private synchronized MutationStatus deleteLocked(KeySpec ks, long cas, boolean xerrorEnabled) {
         // I don't give a shit about atomicity right now..
         Item i = lookup(ks);
         if (i == null) {
@@ -215,7 +703,7 @@ public class VBucketStore {
         if (cas == 0 || cas == i.getCas()) {
             MutationStatus ms = incrCoords(i.getKeySpec());
             i.setCas(++casCounter);
-            kv.remove(ks);
+            removeItem(ks);
             onItemDelete.onAction(this, i, ms.getCoords());
             return ms;
         }
@@ -223,6 +711,13 @@ public class VBucketStore {
     }
 
     private MutationStatus modifyItemValue(Item i, boolean isAppend, boolean xerrorEnabled) {
+        makeRoom(i.getValueLength());
+        MutationStatus ms = modifyItemValueLocked(i, isAppend, xerrorEnabled);
+        unlocked();
+        return ms;
+    }
+
+    private synchronized MutationStatus modifyItemValueLocked(Item i, boolean isAppend, boolean xerrorEnabled) {
         Item old = lookup(i.getKeySpec());
         if (old == null) {
             return new MutationStatus(ErrorCode.KEY_ENOENT);
@@ -235,17 +730,47 @@ public class VBucketStore {
         if (!old.ensureUnlocked(i.getCas())) {
             return new MutationStatus(lockedError(xerrorEnabled));
         }
+        ErrorCode ec = reserveMemory(i.getValueLength());
+        if (ec != ErrorCode.SUCCESS) {
+            return new MutationStatus(ec);
+        }
+        int oldMemoryUsage = old.getMemoryUsage();
         if (isAppend) {
             old.append(i);
         } else {
             old.prepend(i);
         }
         MutationStatus ms = incrCoords(old.getKeySpec());
+        long oldCas = old.getCasReal();
         old.setCas(++casCounter);
+        gen.update(old, oldCas, oldMemoryUsage);
         onItemMutated.onAction(this, old, ms.getCoords());
         return ms;
     }
 
+    /**
+     * Unlock an item locked by {@link #lock(Item, int)}
+     * @param ks The key of the item
+     * @param cas The CAS returned when the item was locked
+     * @return A status code
+     */
+    public ErrorCode unlock(KeySpec ks, long cas) {
+        ErrorCode ec = unlockLocked(ks, cas);
+        unlocked();
+        return ec;
+    }
+
+    private synchronized ErrorCode unlockLocked(KeySpec ks, long cas) {
+        Item item = lookup(ks);
+        if (item == null) {
+            return ErrorCode.KEY_ENOENT;
+        } else if (!item.isLocked() || !item.ensureUnlocked(cas)) {
+            return ErrorCode.ETMPFAIL;
+        }
+        gen.update(item, item.getCasReal());
+        return ErrorCode.SUCCESS;
+    }
+
     public MutationStatus append(Item i, boolean xerrorEnabled) {
         return modifyItemValue(i, true, xerrorEnabled);
     }
@@ -255,34 +780,36 @@ public class VBucketStore {
     }
 
     public Item get(KeySpec ks) {
-        return lookup(ks);
+        // The lookup may remove an expired item
+        Item itm = lookup(ks);
+        unlocked();
+        return itm;
     }
 
+    /**
+     * Get an item picked uniformly at random
+     * @return the item, or null if the store is empty
+     */
     public Item getRandom() {
-        Random r = new Random();
-        while (!kv.isEmpty()) {
-            Collection<Item> c = kv.values();
-            int max = r.nextInt(c.size());
-            Iterator<Item> iter = c.iterator();
-            for (int i = 0; i < max - 1; i++) {
-                if (!iter.hasNext()) {
-                    break;
-                }
-                iter.next();
-            }
-
-            if (!iter.hasNext()) {
-                continue;
-            }
-            Item itm = lookup(iter.next().getKeySpec());
+        Random random = ThreadLocalRandom.current();
+        KeySpec ks;
+        Generation g = gen;
+        while ((ks = g.sample(random)) != null) {
+            // Expired items are removed by the lookup, so this terminates
+            Item itm = lookup(g, ks);
+            unlocked();
             if (itm != null) {
                 return itm;
             }
+            if (g != gen) {
+                // Flushed in the meantime
+                return null;
+            }
         }
         return null;
     }
 
-    private void forceMutation(int vbid, Item itm, VBucketCoordinates coords, boolean isDelete) {
+    private synchronized void forceMutation(int vbid, Item itm, VBucketCoordinates coords, boolean isDelete) {
         StorageVBucketCoordinates cur;
         synchronized (vbCoords) {
             cur  = vbCoords[vbid];
@@ -292,14 +819,46 @@ public class VBucketStore {
         }
         cur.seekSeqno(coords.getSeqno());
         if (isDelete) {
-            kv.remove(itm.getKeySpec());
+            removeItem(itm.getKeySpec());
             onItemDelete.onAction(this, itm, coords);
         } else {
-            kv.put(itm.getKeySpec(), itm);
+            // Replicas are not subject to the quota, but may cause evictions
+            putItem(itm);
             onItemMutated.onAction(this, itm, coords);
         }
     }
 
+    /**
+     * Load a persisted item into the cache during warmup. This neither
+     * generates a new mutation nor invokes the persistence or replication hooks.
+     * Above the high watermark, only the metadata of the item is loaded.
+     *
+     * @param itm The item to load (should be a copy of the persisted one)
+     */
+    synchronized void warmupItem(Item itm) {
+        long quota = memoryQuota;
+        if (quota != 0 && gen.memoryUsed() > quota * HIGH_WATERMARK / 100) {
+            itm = itm.evictedCopy();
+        }
+        putItem(itm);
+        if (itm.getCasReal() > casCounter) {
+            casCounter = itm.getCasReal();
+        }
+    }
+
+    /**
+     * Resume the coordinates of a vBucket from the ones which were persisted.
+     *
+     * @param vbid The vBucket
+     * @param coords The most recent persisted coordinates
+     */
+    void warmupCoords(int vbid, VBucketCoordinates coords) {
+        synchronized (vbCoords) {
+            vbCoords[vbid] = new StorageVBucketCoordinates(coords);
+            logCoords(vbid, vbCoords[vbid]);
+        }
+    }
+
     /**
      * Force a storage of an item to the cache.
      *
@@ -311,6 +870,7 @@ public class VBucketStore {
      */
     void forceStorageMutation(Item itm, VBucketCoordinates coords) {
         forceMutation(itm.getKeySpec().vbId, itm, coords, false);
+        checkMemory();
     }
 
     /**
@@ -324,8 +884,113 @@ public class VBucketStore {
         forceMutation(itm.getKeySpec().vbId, itm, coords, true);
     }
 
+    /**
+     * Store many items at once, as when bulk loading documents. Like
+     * {@link #set(Item, boolean)} each item is a new mutation, but the store is
+     * only locked once, locks held on existing items are ignored and the
+     * persistence and replication hooks are not invoked: this is up to the
+     * caller.
+     *
+     * @param items The items to store
+     * @return The coordinates of the mutation of each item
+     */
+    synchronized VBucketCoordinates[] storeAll(List<Item> items) {
+        VBucketCoordinates[] coords = new VBucketCoordinates[items.size()];
+        for (int i = 0; i < coords.length; i++) {
+            Item item = items.get(i);
+            StorageVBucketCoordinates cur;
+            synchronized (vbCoords) {
+                cur = vbCoords[item.getKeySpec().vbId];
+            }
+            coords[i] = new BasicVBucketCoordinates(cur.getUuid(), cur.incrSeqno());
+            item.setCas(++casCounter);
+            putItem(item);
+        }
+        return coords;
+    }
+
+    /**
+     * Store an item without generating a mutation, nor invoking the
+     * persistence or replication hooks.
+     *
+     * @param itm The item to store
+     */
+    synchronized void forcePut(Item itm) {
+        putItem(itm);
+    }
+
+    /**
+     * Remove an item without generating a mutation.
+     *
+     * @see #forcePut(Item)
+     * @param ks The key of the item
+     */
+    synchronized void forceRemove(KeySpec ks) {
+        removeItem(ks);
+    }
+
+    /**
+     * Remove all the items, without generating any mutation. This swaps in
+     * an empty generation, in time proportional to the number of vBuckets.
+     */
+    synchronized void clear() {
+        gen = new Generation(vbCoords.length, isOffHeap);
+    }
+
+    /**
+     * @return a read-only view of the items. Items whose value was evicted
+     * have no value; see {@link #values()}
+     */
     public Map<KeySpec,Item> getMap() {
-        return kv;
+        return Collections.unmodifiableMap(gen.kv);
+    }
+
+    /**
+     * @return the items, with the values of the evicted ones read from their
+     * persisted copy (without making them resident again)
+     */
+    Iterable<Item> values() {
+        final Iterable<Item> items = gen.kv.values();
+        return new Iterable<Item>() {
+            @Override
+            public Iterator<Item> iterator() {
+                final Iterator<Item> iter = items.iterator();
+                return new Iterator<Item>() {
+                    private Item nextItem = null;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (nextItem == null && iter.hasNext()) {
+                            Item itm = iter.next();
+                            if (!itm.isEvicted()) {
+                                nextItem = itm;
+                                break;
+                            }
+                            Item persisted = persistStore.get(itm.getKeySpec());
+                            if (persisted != null && persisted.getCasReal() == itm.getCasReal()) {
+                                nextItem = itm.residentCopy(persisted);
+                            }
+                        }
+                        return nextItem != null;
+                    }
+
+                    @Override
+                    public Item next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Item itm = nextItem;
+                        nextItem = null;
+                        return itm;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
     }
 
     /**
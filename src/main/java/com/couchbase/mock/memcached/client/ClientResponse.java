@@ -36,6 +36,8 @@ public class ClientResponse {
     private byte[] body;
     private int opaque;
     private byte opcode;
+    private byte datatype;
+    private boolean serverRequest;
 
     long cas;
 
@@ -71,12 +73,24 @@ public class ClientResponse {
         return opcode;
     }
 
+    public byte getDatatype() {
+        return datatype;
+    }
+
     public CommandCode getComCode() {
         return code;
     }
 
     public boolean success() { return status == ErrorCode.SUCCESS; }
 
+    /**
+     * @return true if this is a request initiated by the server (e.g. a
+     * cluster map change notification) rather than a response
+     */
+    public boolean isServerRequest() {
+        return serverRequest;
+    }
+
 
     public static ClientResponse read(InputStream input) throws IOException {
         byte[] header = new byte[24];
@@ -96,17 +110,18 @@ public class ClientResponse {
 
         ByteBuffer buf = ByteBuffer.wrap(header);
         byte magic = buf.get();
-        if (magic != (byte)0x81) {
+        if (magic != (byte)0x81 && magic != (byte)0x82) {
             throw new IOException("Illegal magic: " + magic);
         }
 
         ClientResponse ret = new ClientResponse();
+        ret.serverRequest = magic == (byte)0x82;
         ret.opcode = buf.get();
         ret.code = CommandCode.valueOf(ret.opcode);
 
         short keylen = buf.getShort();
         byte extlen = buf.get();
-        buf.get(); // ignore datatype
+        ret.datatype = buf.get();
 
         ret.status = ErrorCode.valueOf(buf.getShort());
         int totalLen = buf.getInt();
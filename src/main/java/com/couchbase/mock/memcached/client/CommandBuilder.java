@@ -35,6 +35,7 @@ public class CommandBuilder {
     private long cas = 0;
     private int opaque = opaqueCounter++;
     private short vbucket = 0;
+    private byte datatype = 0;
     private final CommandCode command;
 
     public static class MultiLookupSpec {
@@ -107,11 +108,21 @@ public class CommandBuilder {
         return this;
     }
 
+    public CommandBuilder datatype(byte datatype) {
+        this.datatype = datatype;
+        return this;
+    }
+
     public CommandBuilder cas(long cas) {
         this.cas = cas;
         return this;
     }
 
+    public CommandBuilder opaque(int opaque) {
+        this.opaque = opaque;
+        return this;
+    }
+
     public CommandBuilder extras(byte[] extras) {
         this.extras = extras;
         return this;
@@ -305,10 +316,25 @@ public class CommandBuilder {
                 .build();
     }
 
+    /**
+     * @return the size of the packet produced by {@link #build()}
+     */
+    public int size() {
+        return 24 + key.length + value.length + extras.length;
+    }
+
     public byte[] build() {
-        int totalLen = 24 + key.length + value.length + extras.length;
-        byte[] ret = new byte[totalLen];
-        ByteBuffer buffer = ByteBuffer.wrap(ret);
+        byte[] ret = new byte[size()];
+        build(ByteBuffer.wrap(ret));
+        return ret;
+    }
+
+    /**
+     * Write the packet to a buffer
+     * @param buffer the buffer, which must have at least {@link #size()} bytes remaining
+     */
+    public void build(ByteBuffer buffer) {
+        int totalLen = size();
 
         // Magic: PROTOCOL_BINARY_REQ
         buffer.put((byte) 0x80);
@@ -321,8 +347,8 @@ public class CommandBuilder {
 
         buffer.put((byte)extras.length);
 
-        // Datatype. Ignored
-        buffer.put((byte) 0);
+        // Datatype
+        buffer.put(datatype);
 
 
         // Vbucket
@@ -342,6 +368,5 @@ public class CommandBuilder {
         buffer.put(extras);
         buffer.put(key);
         buffer.put(value);
-        return ret;
     }
 }
@@ -0,0 +1,657 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached.client;
+
+import com.couchbase.mock.JsonUtils;
+import com.couchbase.mock.memcached.LatencyHistogram;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+import com.couchbase.mock.util.Base64;
+import com.couchbase.mock.util.Getopt;
+import com.couchbase.mock.util.Getopt.CommandLineOption;
+import com.couchbase.mock.util.Getopt.Entry;
+import com.couchbase.mock.util.ReaderUtils;
+import com.couchbase.mock.util.VBucketHash;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pillowfight-style load generator.
+ *
+ * It keeps a configurable number of requests in flight on each of many
+ * non-blocking connections, and reports the throughput and the latency
+ * percentiles of each kind of operation. Keys are routed to the node owning
+ * their vBucket, as per the bucket configuration fetched from the REST API
+ * of the mock (or any Couchbase cluster). A plain memcached endpoint may be
+ * used instead, in which case all the keys are sent to it.
+ *
+ * Run it with {@code --help} to see the options.
+ */
+public class LoadGenerator {
+    private static final int HEADER_SIZE = 24;
+    private static final String SUBDOC_PATH = "value";
+    private static final int NUM_VALUES = 64;
+
+    public enum OpType {
+        GET, SET, SUBDOC_GET, POPULATE
+    }
+
+    /**
+     * The settings of a run
+     */
+    public static class Options {
+        /** The REST endpoint of the cluster, e.g. {@code http://localhost:8091} */
+        public String url;
+        /** A memcached endpoint ({@code host:port}), used instead of {@link #url} */
+        public String host;
+        public String bucket = "default";
+        public String password = "";
+        /** The number of vBuckets when using {@link #host} */
+        public int numVBuckets = 1024;
+        /** The number of I/O threads */
+        public int threads = 1;
+        /** The number of connections to each node */
+        public int connections = 2;
+        /** The number of requests in flight on each connection */
+        public int pipeline = 16;
+        /** The number of distinct keys */
+        public int numItems = 10000;
+        public String keyPrefix = "loadgen_";
+        public int minSize = 32;
+        public int maxSize = 256;
+        /** Percentage of the operations which are SETs */
+        public int setRatio = 33;
+        /** Percentage of the operations which are sub-document GETs */
+        public int subdocRatio = 0;
+        /** Store every key once before starting the mix of operations */
+        public boolean populate = false;
+        /** How long to run, in seconds */
+        public int duration = 10;
+    }
+
+    /**
+     * The results of a run. They may be read while the run is in progress.
+     */
+    public static class Stats {
+        private final Map<OpType, LatencyHistogram> latencies = new EnumMap<OpType, LatencyHistogram>(OpType.class);
+        private final ConcurrentMap<ErrorCode, LongAdder> statuses = new ConcurrentHashMap<ErrorCode, LongAdder>();
+
+        Stats() {
+            for (OpType op : OpType.values()) {
+                latencies.put(op, new LatencyHistogram());
+            }
+        }
+
+        void record(OpType op, ErrorCode status, long nanos) {
+            latencies.get(op).record(nanos);
+            LongAdder count = statuses.get(status);
+            if (count == null) {
+                statuses.putIfAbsent(status, new LongAdder());
+                count = statuses.get(status);
+            }
+            count.increment();
+        }
+
+        public LatencyHistogram getLatencies(OpType op) {
+            return latencies.get(op);
+        }
+
+        public long getOps(OpType op) {
+            return latencies.get(op).getCount();
+        }
+
+        public long getTotalOps() {
+            long total = 0;
+            for (LatencyHistogram histogram : latencies.values()) {
+                total += histogram.getCount();
+            }
+            return total;
+        }
+
+        public long getStatusCount(ErrorCode status) {
+            LongAdder count = statuses.get(status);
+            return count == null ? 0 : count.sum();
+        }
+
+        /**
+         * @return the number of operations which failed. Missing keys are
+         * not considered failures
+         */
+        public long getErrors() {
+            long errors = 0;
+            for (Map.Entry<ErrorCode, LongAdder> ent : statuses.entrySet()) {
+                if (ent.getKey() != ErrorCode.SUCCESS && ent.getKey() != ErrorCode.KEY_ENOENT) {
+                    errors += ent.getValue().sum();
+                }
+            }
+            return errors;
+        }
+
+        public void print(PrintStream out, long elapsedMillis) {
+            long total = getTotalOps();
+            out.printf("Total: %d ops in %.1fs, %.0f ops/sec%n", total, elapsedMillis / 1000.0,
+                    elapsedMillis == 0 ? 0.0 : total * 1000.0 / elapsedMillis);
+            out.printf("%-12s %12s %10s %10s %10s %10s%n", "op", "count", "p50(us)", "p90(us)", "p99(us)", "p99.9(us)");
+            for (OpType op : OpType.values()) {
+                LatencyHistogram histogram = latencies.get(op);
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+                out.printf("%-12s %12d %10d %10d %10d %10d%n", op.name().toLowerCase(), histogram.getCount(),
+                        histogram.getPercentile(0.5), histogram.getPercentile(0.9),
+                        histogram.getPercentile(0.99), histogram.getPercentile(0.999));
+            }
+            for (Map.Entry<ErrorCode, LongAdder> ent : statuses.entrySet()) {
+                out.printf("status %s: %d%n", ent.getKey(), ent.getValue().sum());
+            }
+        }
+    }
+
+    private final Options options;
+    private final Stats stats = new Stats();
+    private final String[] keys;
+    private final byte[][] values;
+    private List<InetSocketAddress> nodes;
+    private short[] vbuckets;
+    private int[] keyOwners;
+    private volatile boolean running;
+
+    public LoadGenerator(Options options) {
+        if (options.url == null && options.host == null) {
+            throw new IllegalArgumentException("Either a REST URL or a memcached host must be specified");
+        }
+        if (options.minSize < 0 || options.maxSize < options.minSize) {
+            throw new IllegalArgumentException("Invalid value sizes");
+        }
+        if (options.setRatio + options.subdocRatio > 100) {
+            throw new IllegalArgumentException("The SET and sub-document ratios exceed 100%");
+        }
+        this.options = options;
+        keys = new String[options.numItems];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = options.keyPrefix + i;
+        }
+
+        // Values are JSON documents, so they can be used for sub-document operations
+        values = new byte[NUM_VALUES][];
+        Random random = new Random();
+        for (int i = 0; i < values.length; i++) {
+            int size = options.minSize + random.nextInt(options.maxSize - options.minSize + 1);
+            StringBuilder sb = new StringBuilder("{\"" + SUBDOC_PATH + "\":\"");
+            while (sb.length() < size - 2) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            sb.append("\"}");
+            values[i] = sb.toString().getBytes();
+        }
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    private static InetSocketAddress parseAddress(String hostport) {
+        int idx = hostport.lastIndexOf(':');
+        if (idx == -1) {
+            throw new IllegalArgumentException("Expected host:port, got " + hostport);
+        }
+        return new InetSocketAddress(hostport.substring(0, idx), Integer.parseInt(hostport.substring(idx + 1)));
+    }
+
+    private Map<String, Object> fetchConfig() throws IOException {
+        URL url = new URL(options.url.replaceAll("/+$", "") + "/pools/default/buckets/" + options.bucket);
+        HttpURLConnection uc = (HttpURLConnection) url.openConnection();
+        String credentials = options.bucket + ":" + options.password;
+        uc.setRequestProperty("Authorization", "Basic " + Base64.encode(credentials));
+        if (uc.getResponseCode() != 200) {
+            throw new IOException("Failed to get the configuration of " + options.bucket + ": " + uc.getResponseMessage());
+        }
+        InputStream is = uc.getInputStream();
+        try {
+            return JsonUtils.decodeAsMap(ReaderUtils.fromStream(is));
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Determine the nodes, and which of them owns each key
+     */
+    private void resolve() throws IOException {
+        nodes = new ArrayList<InetSocketAddress>();
+        vbuckets = new short[keys.length];
+        keyOwners = new int[keys.length];
+
+        if (options.url == null) {
+            nodes.add(parseAddress(options.host));
+            for (int i = 0; i < keys.length; i++) {
+                vbuckets[i] = VBucketHash.vbucketOf(keys[i], options.numVBuckets);
+            }
+            return;
+        }
+
+        Map<String, Object> config = fetchConfig();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> vbsm = (Map<String, Object>) config.get("vBucketServerMap");
+        if (vbsm == null) {
+            throw new IOException("Bucket " + options.bucket + " has no vBucket map. Use a memcached host instead");
+        }
+        for (Object server : (List<?>) vbsm.get("serverList")) {
+            nodes.add(parseAddress((String) server));
+        }
+        List<?> vbMap = (List<?>) vbsm.get("vBucketMap");
+        for (int i = 0; i < keys.length; i++) {
+            vbuckets[i] = VBucketHash.vbucketOf(keys[i], vbMap.size());
+            keyOwners[i] = ((Number) ((List<?>) vbMap.get(vbuckets[i])).get(0)).intValue();
+        }
+    }
+
+    private void authenticate(SocketChannel channel) throws IOException {
+        ByteBuffer request = ByteBuffer.wrap(CommandBuilder.buildPlainAuth(options.bucket, options.password));
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+        ClientResponse response = ClientResponse.read(channel.socket().getInputStream());
+        if (!response.success()) {
+            throw new IOException("Authentication failed: " + response.getStatus());
+        }
+    }
+
+    /**
+     * Run the load, for the configured duration
+     *
+     * @param out where to print the progress every second, or null
+     * @return the statistics of the run
+     * @throws IOException if the cluster can't be reached
+     * @throws InterruptedException if interrupted while waiting for the run to complete
+     */
+    public Stats run(PrintStream out) throws IOException, InterruptedException {
+        resolve();
+
+        // Every connection is bound to a node, and operates on its own subset
+        // of the keys owned by that node.
+        List<Connection> connections = new ArrayList<Connection>();
+        for (int node = 0; node < nodes.size(); node++) {
+            List<List<Integer>> subsets = new ArrayList<List<Integer>>();
+            for (int i = 0; i < options.connections; i++) {
+                subsets.add(new ArrayList<Integer>());
+            }
+            int next = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keyOwners[i] == node) {
+                    subsets.get(next++ % options.connections).add(i);
+                }
+            }
+            for (List<Integer> subset : subsets) {
+                if (subset.isEmpty()) {
+                    continue;
+                }
+                int[] owned = new int[subset.size()];
+                for (int i = 0; i < owned.length; i++) {
+                    owned[i] = subset.get(i);
+                }
+                SocketChannel channel = SocketChannel.open(nodes.get(node));
+                channel.socket().setTcpNoDelay(true);
+                if (!options.password.isEmpty()) {
+                    authenticate(channel);
+                }
+                channel.configureBlocking(false);
+                connections.add(new Connection(channel, owned));
+            }
+        }
+
+        running = true;
+        List<IoThread> threads = new ArrayList<IoThread>();
+        for (int i = 0; i < Math.min(options.threads, connections.size()); i++) {
+            threads.add(new IoThread(i));
+        }
+        for (int i = 0; i < connections.size(); i++) {
+            threads.get(i % threads.size()).connections.add(connections.get(i));
+        }
+        for (IoThread thread : threads) {
+            thread.start();
+        }
+
+        long start = System.currentTimeMillis();
+        long end = start + options.duration * 1000L;
+        long lastOps = 0;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(1000, Math.max(1, end - System.currentTimeMillis())));
+            long ops = stats.getTotalOps();
+            if (out != null) {
+                out.printf("[%5.1fs] %d ops/sec%n", (System.currentTimeMillis() - start) / 1000.0, ops - lastOps);
+            }
+            lastOps = ops;
+        }
+        running = false;
+        for (IoThread thread : threads) {
+            thread.selector.wakeup();
+            thread.join();
+        }
+        for (IoThread thread : threads) {
+            if (thread.error != null) {
+                throw thread.error;
+            }
+        }
+        if (out != null) {
+            stats.print(out, System.currentTimeMillis() - start);
+        }
+        return stats;
+    }
+
+    private class IoThread extends Thread {
+        final Selector selector;
+        final List<Connection> connections = new ArrayList<Connection>();
+        IOException error;
+
+        IoThread(int index) throws IOException {
+            super("LoadGenerator-" + index);
+            selector = Selector.open();
+        }
+
+        private int inFlight() {
+            int count = 0;
+            for (Connection connection : connections) {
+                count += connection.inFlight;
+            }
+            return count;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Connection connection : connections) {
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.start();
+                }
+                // Once stopped, wait a bit for the requests in flight rather
+                // than resetting the connections under the server's feet
+                long deadline = Long.MAX_VALUE;
+                while (running || (inFlight() > 0 && System.nanoTime() < deadline)) {
+                    if (!running && deadline == Long.MAX_VALUE) {
+                        deadline = System.nanoTime() + 1000000000L;
+                    }
+                    selector.select(100);
+                    Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                error = ex;
+                running = false;
+            } finally {
+                for (Connection connection : connections) {
+                    try {
+                        connection.channel.close();
+                    } catch (IOException ex) {
+                        // Ignore
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * A pipelined connection. Each of its slots holds a request in flight,
+     * and the slot is used as the opaque so that responses may be matched
+     * to their request regardless of their order.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        final int[] owned;
+        final long[] started;
+        final OpType[] ops;
+        final Random random = new Random();
+        ByteBuffer input = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer output = ByteBuffer.allocate(64 * 1024);
+        SelectionKey key;
+        int populated = 0;
+        int inFlight = 0;
+
+        Connection(SocketChannel channel, int[] owned) {
+            this.channel = channel;
+            this.owned = owned;
+            started = new long[options.pipeline];
+            ops = new OpType[options.pipeline];
+        }
+
+        void start() throws IOException {
+            for (int slot = 0; slot < options.pipeline; slot++) {
+                enqueue(slot);
+            }
+            flush();
+        }
+
+        private void enqueue(int slot) {
+            int index;
+            OpType op;
+            if (options.populate && populated < owned.length) {
+                index = owned[populated++];
+                op = OpType.POPULATE;
+            } else {
+                index = owned[random.nextInt(owned.length)];
+                int r = random.nextInt(100);
+                if (r < options.setRatio) {
+                    op = OpType.SET;
+                } else if (r < options.setRatio + options.subdocRatio) {
+                    op = OpType.SUBDOC_GET;
+                } else {
+                    op = OpType.GET;
+                }
+            }
+
+            CommandBuilder builder;
+            switch (op) {
+                case SET:
+                case POPULATE:
+                    builder = new CommandBuilder(CommandCode.SET)
+                            .value(values[random.nextInt(values.length)], 0);
+                    break;
+                case SUBDOC_GET:
+                    builder = new CommandBuilder(CommandCode.SUBDOC_GET).subdoc(SUBDOC_PATH.getBytes());
+                    break;
+                default:
+                    builder = new CommandBuilder(CommandCode.GET);
+                    break;
+            }
+            builder.key(keys[index], vbuckets[index]).opaque(slot);
+
+            if (output.remaining() < builder.size()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + builder.size()));
+                output.flip();
+                grown.put(output);
+                output = grown;
+            }
+            builder.build(output);
+            ops[slot] = op;
+            started[slot] = System.nanoTime();
+            inFlight++;
+        }
+
+        void flush() throws IOException {
+            output.flip();
+            channel.write(output);
+            output.compact();
+            if (output.position() > 0) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void read() throws IOException {
+            if (channel.read(input) == -1) {
+                throw new IOException("Connection closed by " + channel.getRemoteAddress());
+            }
+            input.flip();
+            boolean sent = false;
+            while (input.remaining() >= HEADER_SIZE) {
+                int pos = input.position();
+                int total = HEADER_SIZE + input.getInt(pos + 8);
+                if (input.remaining() < total) {
+                    break;
+                }
+                byte magic = input.get(pos);
+                input.position(pos + total);
+                if (magic != (byte) 0x81) {
+                    // Not a response to our requests
+                    continue;
+                }
+                long now = System.nanoTime();
+                int slot = input.getInt(pos + 12);
+                ErrorCode status = ErrorCode.valueOf(input.getShort(pos + 6));
+                stats.record(ops[slot], status, now - started[slot]);
+                inFlight--;
+                if (running) {
+                    enqueue(slot);
+                    sent = true;
+                }
+            }
+            input.compact();
+            if (input.position() >= HEADER_SIZE && HEADER_SIZE + input.getInt(8) > input.capacity()) {
+                // The next response doesn't fit
+                ByteBuffer grown = ByteBuffer.allocate(HEADER_SIZE + input.getInt(8));
+                input.flip();
+                grown.put(input);
+                input = grown;
+            }
+            if (sent) {
+                flush();
+            }
+        }
+    }
+
+    private static void printHelp() {
+        Options defaults = new Options();
+        PrintStream o = System.out;
+        o.printf("Usage: LoadGenerator [options]%n");
+        o.printf("Options are:%n");
+        o.printf("-U --url          The REST endpoint of the cluster, e.g. http://localhost:8091%n");
+        o.printf("-H --host         A memcached endpoint (host:port), used instead of --url%n");
+        o.printf("-b --bucket       The bucket. Default=%s%n", defaults.bucket);
+        o.printf("-P --password     The password of the bucket%n");
+        o.printf("-v --vbuckets     The number of vBuckets when using --host. Default=%d%n", defaults.numVBuckets);
+        o.printf("-t --threads      The number of I/O threads. Default=%d%n", defaults.threads);
+        o.printf("-c --connections  The number of connections to each node. Default=%d%n", defaults.connections);
+        o.printf("-Q --pipeline     The number of requests in flight on each connection. Default=%d%n", defaults.pipeline);
+        o.printf("-I --num-items    The number of distinct keys. Default=%d%n", defaults.numItems);
+        o.printf("-p --key-prefix   The prefix of the keys. Default=%s%n", defaults.keyPrefix);
+        o.printf("-m --min-size     The minimum size of the values. Default=%d%n", defaults.minSize);
+        o.printf("-M --max-size     The maximum size of the values. Default=%d%n", defaults.maxSize);
+        o.printf("-r --set-ratio    Percentage of SET operations. Default=%d%n", defaults.setRatio);
+        o.printf("-s --subdoc-ratio Percentage of sub-document GET operations. Default=%d%n", defaults.subdocRatio);
+        o.printf("   --populate     Store every key once before starting%n");
+        o.printf("-d --duration     How long to run, in seconds. Default=%d%n", defaults.duration);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        Getopt getopt = new Getopt();
+        getopt.addOption(new CommandLineOption('U', "--url", true)).
+                addOption(new CommandLineOption('H', "--host", true)).
+                addOption(new CommandLineOption('b', "--bucket", true)).
+                addOption(new CommandLineOption('P', "--password", true)).
+                addOption(new CommandLineOption('v', "--vbuckets", true)).
+                addOption(new CommandLineOption('t', "--threads", true)).
+                addOption(new CommandLineOption('c', "--connections", true)).
+                addOption(new CommandLineOption('Q', "--pipeline", true)).
+                addOption(new CommandLineOption('I', "--num-items", true)).
+                addOption(new CommandLineOption('p', "--key-prefix", true)).
+                addOption(new CommandLineOption('m', "--min-size", true)).
+                addOption(new CommandLineOption('M', "--max-size", true)).
+                addOption(new CommandLineOption('r', "--set-ratio", true)).
+                addOption(new CommandLineOption('s', "--subdoc-ratio", true)).
+                addOption(new CommandLineOption('\0', "--populate", false)).
+                addOption(new CommandLineOption('d', "--duration", true)).
+                addOption(new CommandLineOption('?', "--help", false));
+
+        for (Entry e : getopt.parse(args)) {
+            if (e.key.equals("-U") || e.key.equals("--url")) {
+                options.url = e.value;
+            } else if (e.key.equals("-H") || e.key.equals("--host")) {
+                options.host = e.value;
+            } else if (e.key.equals("-b") || e.key.equals("--bucket")) {
+                options.bucket = e.value;
+            } else if (e.key.equals("-P") || e.key.equals("--password")) {
+                options.password = e.value;
+            } else if (e.key.equals("-v") || e.key.equals("--vbuckets")) {
+                options.numVBuckets = Integer.parseInt(e.value);
+            } else if (e.key.equals("-t") || e.key.equals("--threads")) {
+                options.threads = Integer.parseInt(e.value);
+            } else if (e.key.equals("-c") || e.key.equals("--connections")) {
+                options.connections = Integer.parseInt(e.value);
+            } else if (e.key.equals("-Q") || e.key.equals("--pipeline")) {
+                options.pipeline = Integer.parseInt(e.value);
+            } else if (e.key.equals("-I") || e.key.equals("--num-items")) {
+                options.numItems = Integer.parseInt(e.value);
+            } else if (e.key.equals("-p") || e.key.equals("--key-prefix")) {
+                options.keyPrefix = e.value;
+            } else if (e.key.equals("-m") || e.key.equals("--min-size")) {
+                options.minSize = Integer.parseInt(e.value);
+            } else if (e.key.equals("-M") || e.key.equals("--max-size")) {
+                options.maxSize = Integer.parseInt(e.value);
+            } else if (e.key.equals("-r") || e.key.equals("--set-ratio")) {
+                options.setRatio = Integer.parseInt(e.value);
+            } else if (e.key.equals("-s") || e.key.equals("--subdoc-ratio")) {
+                options.subdocRatio = Integer.parseInt(e.value);
+            } else if (e.key.equals("--populate")) {
+                options.populate = true;
+            } else if (e.key.equals("-d") || e.key.equals("--duration")) {
+                options.duration = Integer.parseInt(e.value);
+            } else if (e.key.equals("-?") || e.key.equals("--help")) {
+                printHelp();
+                System.exit(0);
+            }
+        }
+        if (options.url == null && options.host == null) {
+            options.url = "http://localhost:8091";
+        }
+
+        new LoadGenerator(options).run(System.out);
+    }
+}
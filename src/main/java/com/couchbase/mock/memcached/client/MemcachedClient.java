@@ -42,12 +42,23 @@ public class MemcachedClient {
         return ClientResponse.read(input);
     }
 
-    public ClientResponse sendRequest(byte[] req) throws IOException {
+    /**
+     * Send a request without waiting for its response. This may be used to
+     * pipeline requests; the responses are then read via {@link #readResponse()}
+     *
+     * @param req The encoded request
+     * @throws IOException if the request could not be sent
+     */
+    public void send(byte[] req) throws IOException {
         if (req.length < 24) {
             throw new IllegalArgumentException("Header too small..");
         }
         output.write(req);
         output.flush();
+    }
+
+    public ClientResponse sendRequest(byte[] req) throws IOException {
+        send(req);
         return readResponse();
     }
 
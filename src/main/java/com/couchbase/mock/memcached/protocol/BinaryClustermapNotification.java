@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A server initiated {@code ClustermapChangeNotification} request, sent to
+ * the clients which negotiated {@code DUPLEX} and
+ * {@code CLUSTERMAP_CHANGE_NOTIFICATION}.
+ *
+ * The extras contain the revision of the configuration, the key is the name
+ * of the bucket and the value is the configuration itself.
+ */
+public class BinaryClustermapNotification extends BinaryResponse {
+    public static final byte SERVER_REQUEST_MAGIC = (byte) 0x82;
+    public static final byte OPCODE = (byte) 0x01;
+
+    private final int revision;
+
+    private BinaryClustermapNotification(ByteBuffer buffer, int revision) {
+        super(buffer);
+        this.revision = revision;
+    }
+
+    /**
+     * Create a new notification
+     * @param bucket The name of the bucket
+     * @param revision The revision of the configuration
+     * @param config The JSON-encoded configuration
+     */
+    public BinaryClustermapNotification(String bucket, int revision, byte[] config) {
+        super(encode(bucket, revision, config));
+        this.revision = revision;
+    }
+
+    private static ByteBuffer encode(String bucket, int revision, byte[] config) {
+        byte[] key = bucket.getBytes();
+        ByteBuffer buf = ByteBuffer.allocate(24 + 4 + key.length + config.length);
+        buf.put(SERVER_REQUEST_MAGIC);
+        buf.put(OPCODE);
+        buf.putShort((short) key.length);
+        buf.put((byte) 4);
+        buf.put(Datatype.JSON.value());
+        buf.putShort((short) 0);
+        buf.putInt(4 + key.length + config.length);
+        buf.putInt(0); // opaque
+        buf.putLong(0); // cas
+        buf.putInt(revision);
+        buf.put(key);
+        buf.put(config);
+        buf.rewind();
+        return buf;
+    }
+
+    public int getRevision() {
+        return revision;
+    }
+
+    /**
+     * Get a copy of this notification to be sent to another client. The
+     * encoded packet is shared.
+     *
+     * @return a new notification with its own position
+     */
+    public BinaryClustermapNotification share() {
+        return new BinaryClustermapNotification(buffer.duplicate(), revision);
+    }
+}
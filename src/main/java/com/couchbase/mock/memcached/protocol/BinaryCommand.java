@@ -19,12 +19,14 @@ import com.couchbase.mock.memcached.KeySpec;
 
 import java.net.ProtocolException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.UUID;
 
 /**
  * @author Trond Norbye
  */
 public class BinaryCommand {
+    static final byte SERVER_RESPONSE_MAGIC = (byte) 0x83;
 
     private final CommandCode cc;
     protected final short keyLength;
@@ -36,11 +38,12 @@ public class BinaryCommand {
     private final int opaque;
     final long cas;
     final ByteBuffer bodyBuffer;
+    private final boolean serverResponse;
     private String eventId;
 
     BinaryCommand(ByteBuffer header) throws ProtocolException {
         header.rewind();
-        header.get(); // magic already validated
+        serverResponse = header.get() == SERVER_RESPONSE_MAGIC; // magic already validated
         opcode = header.get();
         cc = CommandCode.valueOf(opcode);
         keyLength = header.getShort();
@@ -67,6 +70,14 @@ public class BinaryCommand {
 
     public byte getOpcode() { return opcode; }
 
+    /**
+     * @return true if this is the client's reply to a request initiated by
+     * the server, rather than a command
+     */
+    public boolean isServerResponse() {
+        return serverResponse;
+    }
+
     public int getOpaque() {
         return opaque;
     }
@@ -88,7 +99,10 @@ public class BinaryCommand {
     }
 
     public KeySpec getKeySpec() {
-        return new KeySpec(getKey(), vbucket);
+        if (keyLength == 0) {
+            return new KeySpec(new byte[0], vbucket);
+        }
+        return new KeySpec(Arrays.copyOfRange(bodyBuffer.array(), extraLength, extraLength + keyLength), vbucket);
     }
 
     public byte[] getValue() {
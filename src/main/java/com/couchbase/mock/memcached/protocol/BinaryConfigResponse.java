@@ -19,8 +19,6 @@ package com.couchbase.mock.memcached.protocol;
 import com.couchbase.mock.memcached.MemcachedServer;
 
 import java.nio.ByteBuffer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * @author Mark Nunberg
@@ -47,11 +45,7 @@ public class BinaryConfigResponse extends BinaryResponse {
             return new BinaryResponse(command, errNotSupp);
         }
 
-        String config = server.getBucket().getJSON();
-        config = config.replaceAll(Pattern.quote(server.getHostname()),
-                                   Matcher.quoteReplacement("$HOST"));
-
-        byte[] jsBytes = config.getBytes();
+        byte[] jsBytes = server.getBucket().getRenderedConfig().getBytesForHost(server.getHostname());
         ByteBuffer buf = create(command, errOk, Datatype.RAW.value(), 0, 0, jsBytes.length, 0);
         buf.put(jsBytes);
         buf.rewind();
@@ -17,7 +17,6 @@ package com.couchbase.mock.memcached.protocol;
 
 import com.couchbase.mock.memcached.CompressionMode;
 import com.couchbase.mock.memcached.Item;
-import org.iq80.snappy.Snappy;
 
 import java.nio.ByteBuffer;
 
@@ -56,27 +55,32 @@ public class BinaryGetResponse extends BinaryResponse {
                 keySize = command.getKey().length();
                 break;
             case GET_RANDOM:
-                keyBytes = item.getKeySpec().key.getBytes();
-                keySize = item.getKeySpec().key.length();
+                keyBytes = item.getKeySpec().getKeyBytes();
+                keySize = keyBytes.length;
                 break;
             default:
                 keySize = 0;
                 keyBytes = null;
         }
-        byte[] value = item.getValue();
+        // The item caches both forms of its value, so this doesn't compress
+        // or decompress anything once the item was sent in the same form
+        byte[] value;
         byte datatype = item.getDatatype();
         switch (snappyMode) {
             case ACTIVE:
-                datatype |= ~Datatype.SNAPPY.value();
-                value = Snappy.compress(value);
+                datatype |= Datatype.SNAPPY.value();
+                value = item.getCompressedValue();
                 break;
             case PASSIVE:
                 if ((datatype & Datatype.SNAPPY.value()) > 0) {
-                    value = Snappy.compress(value);
+                    value = item.getCompressedValue();
+                } else {
+                    value = item.getValue();
                 }
                 break;
             default:
                 datatype &= ~Datatype.SNAPPY.value();
+                value = item.getValue();
         }
 
         final ByteBuffer message = create(command, ErrorCode.SUCCESS,
@@ -36,7 +36,7 @@ public class BinaryObserveResponse extends BinaryResponse {
         int len = 0;
         for (ObsKeyState ks : states) {
             len += 13; // CAS + vBucket + status + key length;
-            len += ks.key.length();
+            len += ks.getKeyBytes().length;
         }
         return len;
     }
@@ -48,8 +48,8 @@ public class BinaryObserveResponse extends BinaryResponse {
 
         for (ObsKeyState ks : states) {
             message.putShort(ks.vbId);
-            message.putShort((short)ks.key.length());
-            message.put(ks.key.getBytes());
+            message.putShort((short)ks.getKeyBytes().length);
+            message.put(ks.getKeyBytes());
             message.put((byte)ks.status.getValue());
             message.putLong(ks.cas);
         }
@@ -17,6 +17,7 @@ package com.couchbase.mock.memcached.protocol;
 
 import com.couchbase.mock.memcached.CompressionMode;
 import com.couchbase.mock.memcached.Item;
+import org.iq80.snappy.CorruptionException;
 import org.iq80.snappy.Snappy;
 
 import java.net.ProtocolException;
@@ -30,6 +31,15 @@ public class BinaryStoreCommand extends BinaryCommand {
         super(header);
     }
 
+    /**
+     * Get the item to store. A compressed value is kept compressed, once the
+     * whole stream has been checked to decompress.
+     *
+     * @param snappyMode the compression mode of the node
+     * @return the item
+     * @throws ProtocolException if the client may not send compressed values
+     * @throws CorruptionException if the compressed value is invalid
+     */
     public Item getItem(CompressionMode snappyMode) throws ProtocolException {
         int flags = 0, expiryTime = 0;
 
@@ -42,12 +52,20 @@ public class BinaryStoreCommand extends BinaryCommand {
         if ((datatype & Datatype.SNAPPY.value()) > 0) {
             if (snappyMode == CompressionMode.DISABLED) {
                 throw new ProtocolException("Cannot handle compressed data");
-            } else {
-                if (snappyMode == CompressionMode.OFF) {
-                    datatype &= ~Datatype.SNAPPY.value();
-                }
-                value = Snappy.uncompress(value, 0, value.length);
             }
+            // Corrupt streams must be rejected now rather than when the value
+            // is first read
+            try {
+                Snappy.uncompress(value, 0, value.length);
+            } catch (IndexOutOfBoundsException ex) {
+                // This is how truncated streams fail
+                throw new CorruptionException("Truncated compressed data", ex);
+            }
+            if (snappyMode == CompressionMode.OFF) {
+                datatype &= ~Datatype.SNAPPY.value();
+            }
+            // Kept compressed; only decompressed if the value is needed
+            return Item.fromCompressed(getKeySpec(), flags, expiryTime, value, null, cas, datatype);
         }
 
         return new Item(getKeySpec(), flags, expiryTime, value, null, cas, datatype);
@@ -26,7 +26,13 @@ import java.nio.ByteBuffer;
 public class CommandFactory {
     public static BinaryCommand create(ByteBuffer header) throws ProtocolException {
         header.rewind();
-        if (header.get() != (byte) 0x80) {
+        byte magic = header.get();
+        if (magic == BinaryCommand.SERVER_RESPONSE_MAGIC) {
+            // The reply to a server initiated request (DUPLEX)
+            header.rewind();
+            return new BinaryCommand(header);
+        }
+        if (magic != (byte) 0x80) {
             // create a better one... this is an illegal command
             throw new ProtocolException("Illegal magic: " + header.get(0));
         }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.security.sasl;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of the salted SCRAM credentials of each user.
+ * <p>
+ * Deriving the SaltedPassword requires thousands of HMAC rounds, so rather
+ * than doing this for every authentication attempt the credentials are
+ * derived once (with a random salt) and reused until the password or the
+ * iteration count changes, like Couchbase Server does.
+ */
+public class ScramCredentialStore {
+    /**
+     * Property which may be passed to {@link ShaSaslServerFactory} to use
+     * a specific store instead of the default one.
+     */
+    public static final String PROPERTY = "com.couchbase.mock.scram.store";
+    public static final int DEFAULT_ITERATION_COUNT = 4096;
+
+    private static final ScramCredentialStore defaultStore = new ScramCredentialStore();
+    private static final SecureRandom random = new SecureRandom();
+
+    private static class Entry {
+        private final String password;
+        private final int iterationCount;
+        private ScramCredentials credentials;
+
+        Entry(String password, int iterationCount) {
+            this.password = password;
+            this.iterationCount = iterationCount;
+        }
+
+        boolean matches(String password, int iterationCount) {
+            return this.iterationCount == iterationCount && this.password.equals(password);
+        }
+
+        synchronized ScramCredentials get(String hmacAlgorithm, String digestAlgorithm) throws NoSuchAlgorithmException {
+            if (credentials == null) {
+                byte[] salt = new byte[16];
+                random.nextBytes(salt);
+                credentials = ScramCredentials.create(hmacAlgorithm, digestAlgorithm, password, salt, iterationCount);
+            }
+            return credentials;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private volatile int iterationCount = DEFAULT_ITERATION_COUNT;
+
+    /**
+     * @return the store used by servers created without an explicit store
+     */
+    public static ScramCredentialStore getDefault() {
+        return defaultStore;
+    }
+
+    public int getIterationCount() {
+        return iterationCount;
+    }
+
+    /**
+     * Set the number of PBKDF2 iterations used for credentials derived from
+     * now on. Cached credentials are derived again on their next use.
+     *
+     * @param iterationCount the iteration count
+     */
+    public void setIterationCount(int iterationCount) {
+        if (iterationCount < 1) {
+            throw new IllegalArgumentException("Iteration count must be > 0");
+        }
+        this.iterationCount = iterationCount;
+    }
+
+    /**
+     * Get the credentials of a user, deriving them if the user is not known
+     * yet or if the password changed.
+     *
+     * @param mechanism The SCRAM mechanism (e.g. "SCRAM-SHA512")
+     * @param hmacAlgorithm The HMAC algorithm of the mechanism
+     * @param digestAlgorithm The hash algorithm of the mechanism
+     * @param username The user
+     * @param password The current password of the user
+     * @return The credentials
+     * @throws NoSuchAlgorithmException if the algorithms are not available
+     */
+    ScramCredentials get(String mechanism, String hmacAlgorithm, String digestAlgorithm,
+                         String username, String password) throws NoSuchAlgorithmException {
+        String key = mechanism + '\0' + username;
+        int iterations = iterationCount;
+        Entry entry = entries.get(key);
+        while (entry == null || !entry.matches(password, iterations)) {
+            Entry newEntry = new Entry(password, iterations);
+            if (entry == null ? entries.putIfAbsent(key, newEntry) == null : entries.replace(key, entry, newEntry)) {
+                entry = newEntry;
+            } else {
+                entry = entries.get(key);
+            }
+        }
+        return entry.get(hmacAlgorithm, digestAlgorithm);
+    }
+
+    /**
+     * Forget all cached credentials.
+     */
+    public void clear() {
+        entries.clear();
+    }
+}
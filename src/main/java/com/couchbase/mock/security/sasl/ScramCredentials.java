@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.security.sasl;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The salted credentials of a single user for a single SCRAM mechanism, as
+ * described in <a href="https://www.ietf.org/rfc/rfc5802.txt">RFC 5802</a>.
+ * <p>
+ * Only the values needed by the server are kept: the salt and iteration
+ * count (sent to the client), the StoredKey (used to verify the client proof)
+ * and the ServerKey (used to generate the server signature).
+ */
+public class ScramCredentials {
+    private static final byte[] CLIENT_KEY = "Client Key".getBytes();
+    private static final byte[] SERVER_KEY = "Server Key".getBytes();
+
+    private final byte[] salt;
+    private final int iterationCount;
+    private final byte[] storedKey;
+    private final byte[] serverKey;
+
+    private ScramCredentials(byte[] salt, int iterationCount, byte[] storedKey, byte[] serverKey) {
+        this.salt = salt;
+        this.iterationCount = iterationCount;
+        this.storedKey = storedKey;
+        this.serverKey = serverKey;
+    }
+
+    /**
+     * Derive the credentials for a password.
+     *
+     * @param hmacAlgorithm The HMAC algorithm of the mechanism (e.g. "HmacSHA512")
+     * @param digestAlgorithm The hash algorithm of the mechanism (e.g. "SHA-512")
+     * @param password The password
+     * @param salt The salt to use
+     * @param iterations The number of PBKDF2 iterations
+     * @return The derived credentials
+     * @throws NoSuchAlgorithmException if the algorithms are not available
+     */
+    static ScramCredentials create(String hmacAlgorithm, String digestAlgorithm, String password,
+                                   byte[] salt, int iterations) throws NoSuchAlgorithmException {
+        byte[] saltedPassword = pbkdf2(hmacAlgorithm, password, salt, iterations);
+        byte[] clientKey = hmac(hmacAlgorithm, saltedPassword, CLIENT_KEY);
+        byte[] storedKey = MessageDigest.getInstance(digestAlgorithm).digest(clientKey);
+        byte[] serverKey = hmac(hmacAlgorithm, saltedPassword, SERVER_KEY);
+        return new ScramCredentials(salt.clone(), iterations, storedKey, serverKey);
+    }
+
+    public byte[] getSalt() {
+        return salt.clone();
+    }
+
+    public int getIterationCount() {
+        return iterationCount;
+    }
+
+    byte[] getStoredKey() {
+        return storedKey;
+    }
+
+    byte[] getServerKey() {
+        return serverKey;
+    }
+
+    /**
+     * Generate the HMAC with the given SHA algorithm
+     */
+    static byte[] hmac(String hmacAlgorithm, byte[] key, byte[] data) {
+        try {
+            final Mac mac = Mac.getInstance(hmacAlgorithm);
+            mac.init(new SecretKeySpec(key, mac.getAlgorithm()));
+            return mac.doFinal(data);
+        } catch (InvalidKeyException e) {
+            if (key.length == 0) {
+                throw new UnsupportedOperationException("This JVM does not support empty HMAC keys (empty passwords). "
+                        + "Please set a bucket password or upgrade your JVM.");
+            } else {
+                throw new RuntimeException("Failed to generate HMAC hash for password", e);
+            }
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Generate the hash of the function.. Unfortunately we couldn't use the one
+     * provided by the Java framework because it didn't support others than SHA1.
+     * See https://www.ietf.org/rfc/rfc5802.txt (page 6) for how it is generated.
+     *
+     * @param hmacAlgorithm The HMAC algorithm to use
+     * @param password   The password to use
+     * @param salt       The salt used to salt the hash function
+     * @param iterations The number of iterations to sue
+     * @return The pbkdf2 version of the password
+     */
+    private static byte[] pbkdf2(String hmacAlgorithm, final String password, final byte[] salt, int iterations) {
+        try {
+            Mac mac = Mac.getInstance(hmacAlgorithm);
+            Key key;
+            if (password == null || password.isEmpty()) {
+                key = new EmptySecretKey(hmacAlgorithm);
+            } else {
+                key = new SecretKeySpec(password.getBytes(), hmacAlgorithm);
+            }
+            mac.init(key);
+            mac.update(salt);
+            mac.update("\00\00\00\01".getBytes()); // Append INT(1)
+
+            byte[] un = mac.doFinal();
+            mac.update(un);
+            byte[] uprev = mac.doFinal();
+            xor(un, uprev);
+
+            for (int i = 2; i < iterations; ++i) {
+                mac.update(uprev);
+                uprev = mac.doFinal();
+                xor(un, uprev);
+            }
+
+            return un;
+        } catch (InvalidKeyException e) {
+            if (password == null || password.isEmpty()) {
+                throw new UnsupportedOperationException("This JVM does not support empty HMAC keys (empty passwords). "
+                        + "Please set a bucket password or upgrade your JVM.");
+            } else {
+                throw new RuntimeException("Failed to generate HMAC hash for password", e);
+            }
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * XOR the two arrays and store the result in the first one.
+     *
+     * @param result Where to store the result
+     * @param other  The other array to xor with
+     */
+    static void xor(byte[] result, byte[] other) {
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = (byte) (result[i] ^ other[i]);
+        }
+    }
+
+    /**
+     * SecretKeySpec doesn't support an empty password, god knows why. so lets just
+     * fake it till they make it!
+     */
+    private static class EmptySecretKey implements SecretKey {
+        private final String algorithm;
+
+        public EmptySecretKey(String algorithm) {
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return new byte[]{};
+        }
+    }
+}
@@ -15,9 +15,6 @@
  */
 package com.couchbase.mock.security.sasl;
 
-import javax.crypto.Mac;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.PasswordCallback;
@@ -26,8 +23,6 @@ import javax.security.sasl.SaslException;
 import javax.security.sasl.SaslServer;
 import java.io.IOException;
 import java.io.StringWriter;
-import java.security.InvalidKeyException;
-import java.security.Key;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
@@ -44,64 +39,54 @@ import java.util.Map;
  * @author Senol Ozer / Amadeus IT Group
  */
 public class ShaSaslServer implements SaslServer {
-
-    private static final byte[] CLIENT_KEY = "Client Key".getBytes();
-    private static final byte[] SERVER_KEY = "Server Key".getBytes();
+    private static final SecureRandom random = new SecureRandom();
 
     private final String name;
     private final String hmacAlgorithm;
+    private final String digestAlgorithm;
     private final CallbackHandler callbacks;
+    private final ScramCredentialStore store;
     private final MessageDigest digest;
     private String username;
     private String clientNonce;
     private String serverNonce;
-    private byte[] salt;
-    private byte[] saltedPassword;
-    private int iterationCount;
+    private ScramCredentials credentials;
     private String clientFirstMessage;
     private String clientFirstMessageBare;
     private String clientFinalMessageNoProof;
     private String serverFirstMessage;
 
     public ShaSaslServer(CallbackHandler cbh, int sha) throws NoSuchAlgorithmException {
+        this(cbh, sha, ScramCredentialStore.getDefault());
+    }
+
+    public ShaSaslServer(CallbackHandler cbh, int sha, ScramCredentialStore store) throws NoSuchAlgorithmException {
         callbacks = cbh;
+        this.store = store;
         switch (sha) {
             case 512:
-                digest = MessageDigest.getInstance("SHA-512");
+                digestAlgorithm = "SHA-512";
                 name = "SCRAM-SHA512";
                 hmacAlgorithm = "HmacSHA512";
                 break;
             case 256:
-                digest = MessageDigest.getInstance("SHA-256");
+                digestAlgorithm = "SHA-256";
                 name = "SCRAM-SHA256";
                 hmacAlgorithm = "HmacSHA256";
                 break;
             case 1:
-                digest = MessageDigest.getInstance("SHA-1");
+                digestAlgorithm = "SHA-1";
                 name = "SCRAM-SHA1";
                 hmacAlgorithm = "HmacSHA1";
                 break;
             default:
                 throw new RuntimeException("Invalid SHA version specified");
         }
+        digest = MessageDigest.getInstance(digestAlgorithm);
 
         byte[] randomNonce = new byte[21];
-        SecureRandom random = new SecureRandom();
         random.nextBytes(randomNonce);
         serverNonce = new String(Base64.getEncoder().encode(randomNonce));
-        iterationCount = 4096;
-    }
-
-    /**
-     * XOR the two arrays and store the result in the first one.
-     *
-     * @param result Where to store the result
-     * @param other  The other array to xor with
-     */
-    private static void xor(byte[] result, byte[] other) {
-        for (int i = 0; i < result.length; ++i) {
-            result[i] = (byte) (result[i] ^ other[i]);
-        }
     }
 
     private static void decodeAttributes(HashMap<String, String> attributes, String string) {
@@ -156,8 +141,7 @@ public class ShaSaslServer implements SaslServer {
         writer.append(new String(Base64.getEncoder().encode(serverSignature)));
 
         // validate the client proof to see if we're getting the same value...
-        String myClientProof = new String(Base64.getEncoder().encode(getClientProof()));
-        if (!myClientProof.equals(attributes.get("p"))) {
+        if (!verifyClientProof(attributes.get("p"))) {
             writer.append(",e=failed");
         }
 
@@ -205,8 +189,7 @@ public class ShaSaslServer implements SaslServer {
             throw new IllegalArgumentException("username and client nonce is mandatory in clientFirstMessageBare");
         }
 
-        salt = Base64.getDecoder().decode("QSXCR+Q6sek8bf92");
-        generateSaltedPassword();
+        lookupCredentials();
 
         String nonce = clientNonce + serverNonce;
 
@@ -215,9 +198,9 @@ public class ShaSaslServer implements SaslServer {
         writer.append("r=");
         writer.append(nonce);
         writer.append(",s=");
-        writer.append(new String(Base64.getEncoder().encode(salt)));
+        writer.append(new String(Base64.getEncoder().encode(credentials.getSalt())));
         writer.append(",i=");
-        writer.append(Integer.toString(iterationCount));
+        writer.append(Integer.toString(credentials.getIterationCount()));
 
         serverFirstMessage = writer.toString();
         return serverFirstMessage.getBytes();
@@ -248,74 +231,7 @@ public class ShaSaslServer implements SaslServer {
         // Do nothing
     }
 
-    /**
-     * Generate the HMAC with the given SHA algorithm
-     */
-    private byte[] hmac(byte[] key, byte[] data) {
-        try {
-            final Mac mac = Mac.getInstance(hmacAlgorithm);
-            mac.init(new SecretKeySpec(key, mac.getAlgorithm()));
-            return mac.doFinal(data);
-        } catch (InvalidKeyException e) {
-            if (key.length == 0) {
-                throw new UnsupportedOperationException("This JVM does not support empty HMAC keys (empty passwords). "
-                        + "Please set a bucket password or upgrade your JVM.");
-            } else {
-                throw new RuntimeException("Failed to generate HMAC hash for password", e);
-            }
-        } catch (Throwable t) {
-            throw new RuntimeException(t);
-        }
-    }
-
-    /**
-     * Generate the hash of the function.. Unfortunately we couldn't use the one
-     * provided by the Java framework because it didn't support others than SHA1.
-     * See https://www.ietf.org/rfc/rfc5802.txt (page 6) for how it is generated.
-     *
-     * @param password   The password to use
-     * @param salt       The salt used to salt the hash function
-     * @param iterations The number of iterations to sue
-     * @return The pbkdf2 version of the password
-     */
-    private byte[] pbkdf2(final String password, final byte[] salt, int iterations) {
-        try {
-            Mac mac = Mac.getInstance(hmacAlgorithm);
-            Key key;
-            if (password == null || password.isEmpty()) {
-                key = new EmptySecretKey(hmacAlgorithm);
-            } else {
-                key = new SecretKeySpec(password.getBytes(), hmacAlgorithm);
-            }
-            mac.init(key);
-            mac.update(salt);
-            mac.update("\00\00\00\01".getBytes()); // Append INT(1)
-
-            byte[] un = mac.doFinal();
-            mac.update(un);
-            byte[] uprev = mac.doFinal();
-            xor(un, uprev);
-
-            for (int i = 2; i < iterations; ++i) {
-                mac.update(uprev);
-                uprev = mac.doFinal();
-                xor(un, uprev);
-            }
-
-            return un;
-        } catch (InvalidKeyException e) {
-            if (password == null || password.isEmpty()) {
-                throw new UnsupportedOperationException("This JVM does not support empty HMAC keys (empty passwords). "
-                        + "Please set a bucket password or upgrade your JVM.");
-            } else {
-                throw new RuntimeException("Failed to generate HMAC hash for password", e);
-            }
-        } catch (Throwable t) {
-            throw new RuntimeException(t);
-        }
-    }
-
-    private void generateSaltedPassword() throws SaslException {
+    private void lookupCredentials() throws SaslException {
         final PasswordCallback passwordCallback = new PasswordCallback("Password", false);
         try {
             callbacks.handle(new Callback[]{passwordCallback});
@@ -331,38 +247,45 @@ public class ShaSaslServer implements SaslServer {
         }
 
         String password = new String(pw);
-        saltedPassword = pbkdf2(password, salt, iterationCount);
         passwordCallback.clearPassword();
+        try {
+            credentials = store.get(name, hmacAlgorithm, digestAlgorithm, username, password);
+        } catch (NoSuchAlgorithmException e) {
+            throw new SaslException(e.getMessage(), e);
+        }
     }
 
     /**
      * Generate the Server Signature. It is computed as:
      * <p/>
-     * SaltedPassword := Hi(Normalize(password), salt, i) ServerKey :=
-     * HMAC(SaltedPassword, "Server Key") ServerSignature := HMAC(ServerKey,
-     * AuthMessage)
+     * ServerSignature := HMAC(ServerKey, AuthMessage)
      */
     private byte[] getServerSignature() {
-        byte[] serverKey = hmac(saltedPassword, SERVER_KEY);
-        return hmac(serverKey, getAuthMessage().getBytes());
+        return ScramCredentials.hmac(hmacAlgorithm, credentials.getServerKey(), getAuthMessage().getBytes());
     }
 
     /**
-     * Generate the Client Proof. It is computed as:
+     * Verify the Client Proof sent by the client. It is computed as:
+     * <p/>
+     * ClientSignature := HMAC(StoredKey, AuthMessage) ClientProof := ClientKey XOR
+     * ClientSignature
      * <p/>
-     * SaltedPassword := Hi(Normalize(password), salt, i) ClientKey :=
-     * HMAC(SaltedPassword, "Client Key") StoredKey := H(ClientKey) AuthMessage :=
-     * client-first-message-bare + "," + server-first-message + "," +
-     * client-final-message-without-proof ClientSignature := HMAC(StoredKey,
-     * AuthMessage) ClientProof := ClientKey XOR ClientSignature
+     * so XOR'ing the proof with the signature yields the ClientKey, whose hash
+     * must match the StoredKey.
      */
-    private byte[] getClientProof() {
-        byte[] clientKey = hmac(saltedPassword, CLIENT_KEY);
-        byte[] storedKey = digest.digest(clientKey);
-        byte[] clientSignature = hmac(storedKey, getAuthMessage().getBytes());
-
-        xor(clientKey, clientSignature);
-        return clientKey;
+    private boolean verifyClientProof(String proof) {
+        byte[] clientKey;
+        try {
+            clientKey = Base64.getDecoder().decode(proof);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        byte[] clientSignature = ScramCredentials.hmac(hmacAlgorithm, credentials.getStoredKey(), getAuthMessage().getBytes());
+        if (clientKey.length != clientSignature.length) {
+            return false;
+        }
+        ScramCredentials.xor(clientKey, clientSignature);
+        return MessageDigest.isEqual(digest.digest(clientKey), credentials.getStoredKey());
     }
 
     /**
@@ -388,31 +311,4 @@ public class ShaSaslServer implements SaslServer {
     public String getAuthorizationID() {
         return null;
     }
-
-    /**
-     * SecretKeySpec doesn't support an empty password, god knows why. so lets just
-     * fake it till they make it!
-     */
-    private static class EmptySecretKey implements SecretKey {
-        private final String algorithm;
-
-        public EmptySecretKey(String algorithm) {
-            this.algorithm = algorithm;
-        }
-
-        @Override
-        public String getAlgorithm() {
-            return algorithm;
-        }
-
-        @Override
-        public String getFormat() {
-            return "RAW";
-        }
-
-        @Override
-        public byte[] getEncoded() {
-            return new byte[]{};
-        }
-    }
 }
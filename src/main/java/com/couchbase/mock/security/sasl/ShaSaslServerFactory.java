@@ -49,8 +49,13 @@ public class ShaSaslServerFactory implements SaslServerFactory {
             throw new SaslException("Callback handler to get username/password required");
         }
 
+        ScramCredentialStore store = ScramCredentialStore.getDefault();
+        if (props != null && props.get(ScramCredentialStore.PROPERTY) instanceof ScramCredentialStore) {
+            store = (ScramCredentialStore) props.get(ScramCredentialStore.PROPERTY);
+        }
+
         try {
-            return new ShaSaslServer(cbh, sha);
+            return new ShaSaslServer(cbh, sha, store);
         } catch (NoSuchAlgorithmException e) {
             throw new SaslException(e.getMessage(), e);
         }
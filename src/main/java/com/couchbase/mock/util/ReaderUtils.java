@@ -16,6 +16,7 @@
 
 package com.couchbase.mock.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -32,6 +33,16 @@ public final class ReaderUtils {
         return sb.toString();
     }
 
+    public static byte[] bytesFromStream(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte buf[] = new byte[4096];
+        int nRead;
+        while ((nRead = is.read(buf)) > -1) {
+            bos.write(buf, 0, nRead);
+        }
+        return bos.toByteArray();
+    }
+
     public static String fromResource(String path) throws IOException {
         return fromStream(ReaderUtils.class.getClassLoader().getResourceAsStream(path));
     }
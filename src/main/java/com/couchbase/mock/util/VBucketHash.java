@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.util;
+
+import java.util.List;
+
+/**
+ * The CRC32 based mapping of keys to vBuckets used by Couchbase clients.
+ *
+ * Keys given as strings are hashed over their UTF-8 encoding, which is
+ * computed on the fly, so that hashing doesn't allocate.
+ */
+public final class VBucketHash {
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            int c = i;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? 0xedb88320 ^ (c >>> 1) : c >>> 1;
+            }
+            TABLE[i] = c;
+        }
+    }
+
+    private VBucketHash() {
+    }
+
+    private static int update(int crc, int b) {
+        return TABLE[(crc ^ b) & 0xff] ^ (crc >>> 8);
+    }
+
+    /**
+     * @param buf the buffer holding the key
+     * @param offset the offset of the key in the buffer
+     * @param length the length of the key
+     * @return the CRC32 of the key
+     */
+    public static int crc32(byte[] buf, int offset, int length) {
+        int crc = 0xffffffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc = update(crc, buf[i]);
+        }
+        return ~crc;
+    }
+
+    /**
+     * @param key the key
+     * @return the CRC32 of the UTF-8 encoding of the key
+     */
+    public static int crc32(CharSequence key) {
+        int crc = 0xffffffff;
+        int length = key.length();
+        for (int i = 0; i < length; i++) {
+            int c = key.charAt(i);
+            if (c < 0x80) {
+                crc = update(crc, c);
+            } else if (c < 0x800) {
+                crc = update(crc, 0xc0 | (c >> 6));
+                crc = update(crc, 0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate((char) c) && i + 1 < length
+                    && Character.isLowSurrogate(key.charAt(i + 1))) {
+                int cp = Character.toCodePoint((char) c, key.charAt(++i));
+                crc = update(crc, 0xf0 | (cp >> 18));
+                crc = update(crc, 0x80 | ((cp >> 12) & 0x3f));
+                crc = update(crc, 0x80 | ((cp >> 6) & 0x3f));
+                crc = update(crc, 0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate((char) c)) {
+                // Unpaired surrogates are encoded as '?', like String.getBytes() does
+                crc = update(crc, '?');
+            } else {
+                crc = update(crc, 0xe0 | (c >> 12));
+                crc = update(crc, 0x80 | ((c >> 6) & 0x3f));
+                crc = update(crc, 0x80 | (c & 0x3f));
+            }
+        }
+        return ~crc;
+    }
+
+    private static short toVBucket(int crc, int numVBuckets) {
+        return (short) (((crc >>> 16) & 0x7fff) & (numVBuckets - 1));
+    }
+
+    /**
+     * @param key the key
+     * @param numVBuckets the number of vBuckets, which must be a power of two
+     * @return the vBucket of the key
+     */
+    public static short vbucketOf(CharSequence key, int numVBuckets) {
+        return toVBucket(crc32(key), numVBuckets);
+    }
+
+    /**
+     * @param buf the buffer holding the key
+     * @param offset the offset of the key in the buffer
+     * @param length the length of the key
+     * @param numVBuckets the number of vBuckets, which must be a power of two
+     * @return the vBucket of the key
+     */
+    public static short vbucketOf(byte[] buf, int offset, int length, int numVBuckets) {
+        return toVBucket(crc32(buf, offset, length), numVBuckets);
+    }
+
+    /**
+     * Map many keys to their vBuckets
+     *
+     * @param keys the keys
+     * @param numVBuckets the number of vBuckets, which must be a power of two
+     * @param vbuckets where to store the vBucket of each key; must be at least as long as the keys
+     */
+    public static void vbucketsOf(List<? extends CharSequence> keys, int numVBuckets, short[] vbuckets) {
+        int size = keys.size();
+        if (vbuckets.length < size) {
+            throw new IllegalArgumentException("Not enough room for " + size + " vBuckets");
+        }
+        for (int i = 0; i < size; i++) {
+            vbuckets[i] = vbucketOf(keys.get(i), numVBuckets);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock;
+
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.MemcachedServer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The buckets shared by the tests accessing the storage of the nodes directly:
+ * 64 vBuckets with one replica, spread over a few nodes.
+ */
+final class BucketTestUtils {
+    private BucketTestUtils() {
+    }
+
+    /**
+     * @param name The name of the bucket
+     * @param numNodes The number of nodes of the bucket
+     * @return the configuration of a couchbase bucket
+     */
+    static BucketConfiguration createConfig(String name, int numNodes) {
+        BucketConfiguration config = new BucketConfiguration();
+        config.type = Bucket.BucketType.COUCHBASE;
+        config.name = name;
+        config.numNodes = numNodes;
+        config.numVBuckets = 64;
+        config.numReplicas = 1;
+        return config;
+    }
+
+    /**
+     * Start a cluster with a single bucket named {@code default}
+     *
+     * @param numNodes The number of nodes of the bucket
+     * @return the running cluster
+     */
+    static CouchbaseMock startMock(int numNodes) throws Exception {
+        List<BucketConfiguration> configs = new ArrayList<BucketConfiguration>();
+        configs.add(createConfig("default", numNodes));
+        CouchbaseMock mock = new CouchbaseMock(0, configs);
+        mock.start();
+        mock.waitForStartup();
+        return mock;
+    }
+
+    /**
+     * Get an item from the cache of the node owning it
+     *
+     * @param bucket The bucket
+     * @param key The key of the item
+     * @return the item, or null if it isn't cached
+     */
+    static Item getItem(Bucket bucket, String key) {
+        short vb = bucket.getVbIndexForKey(key);
+        MemcachedServer owner = bucket.getVBucketInfo()[vb].getOwner();
+        return owner.getStorage().getCached(new KeySpec(key, vb));
+    }
+}
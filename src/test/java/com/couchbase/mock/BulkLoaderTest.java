@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock;
+
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.MemcachedServer;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+public class BulkLoaderTest extends TestCase {
+    private CouchbaseMock mock;
+    private Bucket bucket;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mock = BucketTestUtils.startMock(4);
+        bucket = mock.getBuckets().get("default");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mock.stop();
+        super.tearDown();
+    }
+
+    private Item getItem(String key) {
+        return BucketTestUtils.getItem(bucket, key);
+    }
+
+    private String getValue(String key) {
+        Item item = getItem(key);
+        return item == null ? null : new String(item.getValue());
+    }
+
+    /**
+     * Wait for the threads of the loaders of the bucket to exit
+     *
+     * @return whether all of them exited
+     */
+    private boolean awaitLoaderThreads() throws InterruptedException {
+        String prefix = bucket.getName() + ":loader-";
+        for (int ii = 0; ii < 100; ii++) {
+            boolean found = false;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().startsWith(prefix) && thread.isAlive()) {
+                    found = true;
+                }
+            }
+            if (!found) {
+                return true;
+            }
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    public void testLoad() throws IOException {
+        BulkLoader loader = new BulkLoader(bucket, 7, 3);
+        for (int i = 0; i < 1000; i++) {
+            loader.add("key_" + i, ("value_" + i).getBytes());
+        }
+        // Loaded twice: the last one wins
+        loader.add("key_0", "last".getBytes());
+        assertEquals(1001, loader.finish());
+
+        for (int i = 1; i < 1000; i++) {
+            assertEquals("value_" + i, getValue("key_" + i));
+        }
+        assertEquals("last", getValue("key_0"));
+
+        // Loaded items are mutations like any other
+        Item item = getItem("key_42");
+        assertTrue(item.getCas() != 0);
+        short vb = bucket.getVbIndexForKey("key_42");
+        MemcachedServer owner = bucket.getVBucketInfo()[vb].getOwner();
+        assertNotNull(owner.getStorage().getPersisted(item.getKeySpec()));
+        assertTrue(owner.getStorage().getCache(vb).getCurrentCoords(vb).getSeqno() > 0);
+    }
+
+    public void testJsonLines() throws IOException {
+        String input = "{\"key\":\"doc1\",\"v\":1}\n\n  {\"key\":\"doc2\",\"v\":2}  \n{\"key\":3}\n";
+        new DocumentLoader(mock, "default").loadJson(new ByteArrayInputStream(input.getBytes()), "key");
+        assertEquals("{\"key\":\"doc1\",\"v\":1}", getValue("doc1"));
+        assertEquals("{\"key\":\"doc2\",\"v\":2}", getValue("doc2"));
+        assertEquals("{\"key\":3}", getValue("3"));
+    }
+
+    public void testJsonList() throws IOException {
+        String input = " [{\"id\":\"doc1\",\"v\":[1,2]},\n{\"id\":\"doc2\",\"v\":{\"a\":null}}]";
+        new DocumentLoader(mock, "default").loadJson(new ByteArrayInputStream(input.getBytes()), "id");
+        assertEquals("{\"id\":\"doc1\",\"v\":[1,2]}", getValue("doc1"));
+        assertEquals("{\"id\":\"doc2\",\"v\":{\"a\":null}}", getValue("doc2"));
+    }
+
+    public void testMissingKey() throws InterruptedException {
+        String input = "{\"key\":\"doc1\"}\n{\"other\":\"doc2\"}\n";
+        try {
+            new DocumentLoader(mock, "default").loadJson(new ByteArrayInputStream(input.getBytes()), "key");
+            fail("Expected the document without a key to be rejected");
+        } catch (IOException ex) {
+            // Expected
+        }
+        // The failed load doesn't leave its threads behind
+        assertTrue(awaitLoaderThreads());
+    }
+
+    public void testInvalidJson() throws InterruptedException {
+        StringBuilder input = new StringBuilder("[");
+        for (int i = 0; i < 5000; i++) {
+            input.append("{\"id\":\"doc").append(i).append("\"},");
+        }
+        input.append("{\"id\":");
+        try {
+            new DocumentLoader(mock, "default").loadJson(new ByteArrayInputStream(input.toString().getBytes()), "id");
+            fail("Expected the truncated document to be rejected");
+        } catch (IOException ex) {
+            // Expected
+        }
+        assertTrue(awaitLoaderThreads());
+    }
+
+    public void testAbort() throws IOException, InterruptedException {
+        BulkLoader loader = new BulkLoader(bucket, 7, 3);
+        for (int i = 0; i < 100; i++) {
+            loader.add("key_" + i, ("value_" + i).getBytes());
+        }
+        loader.abort();
+        assertTrue(awaitLoaderThreads());
+        try {
+            loader.add("key_100", "value_100".getBytes());
+            fail("Expected an aborted loader to reject documents");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+        // The documents handed over to the threads before aborting were stored
+        assertEquals("value_0", getValue("key_0"));
+    }
+}
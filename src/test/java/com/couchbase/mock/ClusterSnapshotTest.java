@@ -0,0 +1,240 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock;
+
+import com.couchbase.mock.control.CommandStatus;
+import com.couchbase.mock.http.Role;
+import com.couchbase.mock.http.User;
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.VBucketCoordinates;
+import com.couchbase.mock.memcached.VBucketInfo;
+import com.couchbase.mock.views.DesignDocument;
+import com.google.gson.JsonObject;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ClusterSnapshotTest extends TestCase {
+    private static final String DESIGN = "{\"views\":{\"all\":{\"map\":\"function(doc){emit(doc._id, null);}\"}}}";
+    private CouchbaseMock mock;
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mock = BucketTestUtils.startMock(4);
+        file = File.createTempFile("cbmock", ".snapshot");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mock.stop();
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+        super.tearDown();
+    }
+
+    private void populate() throws Exception {
+        Bucket bucket = mock.getBuckets().get("default");
+        BulkLoader loader = new BulkLoader(bucket);
+        for (int i = 0; i < 500; i++) {
+            loader.add("key_" + i, ("value_" + i).getBytes());
+        }
+        loader.finish();
+        bucket.getCAPIServer().addDesign(DesignDocument.create(DESIGN, "test"));
+
+        User user = new User("local", "alice");
+        List<Role> roles = new ArrayList<Role>();
+        roles.add(new Role("bucket_admin", "default"));
+        user.setRoles(roles);
+        mock.getUsers().put("alice", user);
+
+        bucket.getServers()[3].shutdown();
+    }
+
+    private void verify(Bucket bucket, Bucket original) {
+        for (int i = 0; i < 500; i++) {
+            Item item = BucketTestUtils.getItem(bucket, "key_" + i);
+            assertNotNull(item);
+            assertEquals("value_" + i, new String(item.getValue()));
+        }
+
+        VBucketInfo[] expected = original.getVBucketInfo();
+        VBucketInfo[] actual = bucket.getVBucketInfo();
+        for (short vb = 0; vb < actual.length; vb++) {
+            int owner = indexOf(original, expected[vb].getOwner());
+            assertEquals(owner, indexOf(bucket, actual[vb].getOwner()));
+            assertEquals(expected[vb].getUuid(), actual[vb].getUuid());
+            VBucketCoordinates coords = original.getServers()[owner].getStorage().getCache(vb).getCurrentCoords(vb);
+            VBucketCoordinates restored = bucket.getServers()[owner].getStorage().getCache(vb).getCurrentCoords(vb);
+            assertEquals(coords.getUuid(), restored.getUuid());
+            assertEquals(coords.getSeqno(), restored.getSeqno());
+            assertEquals(original.getServers()[owner].getStorage().getPersistedSeqno(vb),
+                    bucket.getServers()[owner].getStorage().getPersistedSeqno(vb));
+        }
+
+        assertFalse(bucket.getServers()[3].isActive());
+        assertEquals(1, bucket.getCAPIServer().getDesigns().size());
+        assertEquals("_design/test", bucket.getCAPIServer().getDesigns().get(0).getId());
+    }
+
+    private static int indexOf(Bucket bucket, MemcachedServer server) {
+        MemcachedServer[] servers = bucket.getServers();
+        for (int i = 0; i < servers.length; i++) {
+            if (servers[i] == server) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void testRestoreInPlace() throws Exception {
+        populate();
+        Bucket bucket = mock.getBuckets().get("default");
+        int port = bucket.getServers()[0].getPort();
+        mock.saveSnapshot(file);
+
+        bucket.getServers()[0].getStorage().flush();
+        bucket.getCAPIServer().removeDesign(bucket.getCAPIServer().getDesigns().get(0));
+        mock.getUsers().clear();
+        BucketConfiguration config = new BucketConfiguration();
+        config.name = "extra";
+        mock.createBucket(config);
+
+        mock.restoreSnapshot(file);
+        assertSame(bucket, mock.getBuckets().get("default"));
+        assertEquals(port, bucket.getServers()[0].getPort());
+        assertFalse(mock.getBuckets().containsKey("extra"));
+        assertEquals("bucket_admin", mock.getUsers().get("alice").getRoles().get(0).getRole());
+        verify(bucket, bucket);
+    }
+
+    public void testRestoreIntoOtherMock() throws Exception {
+        populate();
+        JsonObject payload = new JsonObject();
+        payload.addProperty("path", file.getPath());
+        CommandStatus status = mock.getDispatcher().dispatch("save_snapshot", payload);
+        assertEquals("ok", JsonUtils.decodeAsMap(status.toString()).get("status"));
+
+        // The layout differs, so the bucket is recreated
+        CouchbaseMock other = BucketTestUtils.startMock(2);
+        try {
+            status = other.getDispatcher().dispatch("restore_snapshot", payload);
+            assertEquals("ok", JsonUtils.decodeAsMap(status.toString()).get("status"));
+            Bucket bucket = other.getBuckets().get("default");
+            assertEquals(4, bucket.getServers().length);
+            assertTrue(other.getUsers().containsKey("alice"));
+            verify(bucket, mock.getBuckets().get("default"));
+        } finally {
+            other.stop();
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    public void testRestorePersistentIntoOtherMock() throws Exception {
+        File dataDir = File.createTempFile("cbmock", "data");
+        assertTrue(dataDir.delete());
+        CouchbaseMock other = null;
+        try {
+            BucketConfiguration config = BucketTestUtils.createConfig("persistent", 4);
+            config.persistencePath = dataDir.getAbsolutePath();
+            mock.createBucket(config);
+            Bucket bucket = mock.getBuckets().get("persistent");
+            BulkLoader loader = new BulkLoader(bucket);
+            for (int i = 0; i < 200; i++) {
+                loader.add("key_" + i, ("value_" + i).getBytes());
+            }
+            loader.finish();
+            mock.saveSnapshot(file);
+
+            // The other cluster has no persistence directory configured, and
+            // doesn't touch the one of the running cluster
+            other = BucketTestUtils.startMock(2);
+            other.restoreSnapshot(file);
+            Bucket restored = other.getBuckets().get("persistent");
+            assertNull(restored.getPersistencePath());
+            assertEquals("value_7", new String(BucketTestUtils.getItem(restored, "key_7").getValue()));
+
+            assertEquals("value_7", new String(BucketTestUtils.getItem(bucket, "key_7").getValue()));
+            mock.removeBucket("persistent");
+            mock.createBucket(config);
+            assertEquals(200, mock.getBuckets().get("persistent").getWarmupItemCount());
+        } finally {
+            if (other != null) {
+                other.stop();
+            }
+            if (mock.getBuckets().containsKey("persistent")) {
+                mock.removeBucket("persistent");
+            }
+            delete(dataDir);
+        }
+    }
+
+    public void testStorageSettings() throws Exception {
+        BucketConfiguration config = new BucketConfiguration();
+        config.name = "offheap";
+        config.offHeap = true;
+        config.memoryQuota = 64 * 1024 * 1024;
+        mock.createBucket(config);
+        Bucket bucket = mock.getBuckets().get("offheap");
+        mock.saveSnapshot(file);
+
+        // The memory quota is restored in place
+        for (MemcachedServer server : bucket.getServers()) {
+            server.getStorage().setMemoryQuota(0);
+        }
+        mock.restoreSnapshot(file);
+        assertSame(bucket, mock.getBuckets().get("offheap"));
+        assertEquals(config.memoryQuota, bucket.getServers()[1].getStorage().getMemoryQuota());
+
+        // A bucket keeping its items on the heap can't be restored in place
+        mock.removeBucket("offheap");
+        config.offHeap = false;
+        config.memoryQuota = 0;
+        mock.createBucket(config);
+        bucket = mock.getBuckets().get("offheap");
+        mock.restoreSnapshot(file);
+        assertNotSame(bucket, mock.getBuckets().get("offheap"));
+        bucket = mock.getBuckets().get("offheap");
+        assertTrue(bucket.isOffHeap());
+        assertNull(bucket.getPersistencePath());
+        assertEquals(64 * 1024 * 1024, bucket.getServers()[0].getStorage().getMemoryQuota());
+    }
+
+    public void testInvalidFile() throws Exception {
+        try {
+            mock.restoreSnapshot(file);
+            fail("An empty file is not a snapshot");
+        } catch (IOException ex) {
+            // Expected
+        }
+        assertTrue(mock.getBuckets().containsKey("default"));
+    }
+}
@@ -332,6 +332,30 @@ public class JMembaseTest extends TestCase {
         instance.getMonitor().stop();
     }
 
+    public void testConfigStreamingWithoutMonitor() throws IOException {
+        Bucket bucket = instance.getBuckets().get("protected");
+        URL url = new URL("http://localhost:" + instance.getHttpPort() + "/pools/default/bucketsStreaming/protected");
+        HttpURLConnection[] conns = new HttpURLConnection[2];
+        InputStream[] streams = new InputStream[conns.length];
+        for (int i = 0; i < conns.length; i++) {
+            conns[i] = (HttpURLConnection) url.openConnection();
+            conns[i].addRequestProperty("Authorization", "Basic " + Base64.encode("protected:secret"));
+            streams[i] = conns[i].getInputStream();
+            readConfig(streams[i]);
+        }
+
+        // Both subscribers receive the same new configuration
+        bucket.failover(1, true);
+        String cfg = readConfig(streams[0]);
+        assertEquals(cfg, readConfig(streams[1]));
+
+        // Closing one of the connections doesn't affect the other
+        conns[0].disconnect();
+        bucket.respawn(1);
+        assertFalse(cfg.equals(readConfig(streams[1])));
+        conns[1].disconnect();
+    }
+
     public void testIllegalMockCommand() throws IOException {
         ServerSocket server = new ServerSocket(0);
         instance.startHarakiriMonitor("localhost:" + server.getLocalPort(), false);
@@ -43,4 +43,30 @@ public class MembaseBucketTest extends TestCase {
         CouchbaseBucket instance = new CouchbaseBucket(mock, config);
         assertNotNull(instance.getJSON());
     }
+
+    public void testRenderedConfig() throws IOException {
+        BucketConfiguration config = new BucketConfiguration();
+        config.type = BucketType.COUCHBASE;
+        config.name = "membase";
+        config.numNodes = 4;
+        CouchbaseMock mock = new CouchbaseMock("localhost", 8091, 4, 1024);
+        CouchbaseBucket instance = new CouchbaseBucket(mock, config);
+
+        RenderedConfig rendered = instance.getRenderedConfig();
+        assertEquals(Info.getConfigRevision(), rendered.getRevision());
+        assertTrue(rendered.getJSON().contains("\"name\":\"membase\""));
+        assertSame(rendered, instance.getRenderedConfig());
+
+        String hostname = instance.getServers()[0].getHostname();
+        byte[] cccp = rendered.getBytesForHost(hostname);
+        assertSame(cccp, rendered.getBytesForHost(hostname));
+        assertFalse(new String(cccp).contains(hostname));
+        assertTrue(new String(cccp).contains("$HOST"));
+
+        // A new revision renders the config again
+        instance.failover(1, true);
+        RenderedConfig next = instance.getRenderedConfig();
+        assertNotSame(rendered, next);
+        assertEquals(Info.getConfigRevision(), next.getRevision());
+    }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock;
+
+import com.couchbase.mock.Bucket.BucketType;
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.VBucketCoordinates;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Verifies that items persisted on disk are loaded again by a new bucket.
+ */
+public class PersistentBucketTest extends TestCase {
+    private File dataDir;
+    private CouchbaseMock mock;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dataDir = File.createTempFile("cbmock", "data");
+        assertTrue(dataDir.delete());
+        mock = new CouchbaseMock("localhost", 8091, 4, 64);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(dataDir);
+        super.tearDown();
+    }
+
+    private CouchbaseBucket createBucket() throws IOException {
+        BucketConfiguration config = new BucketConfiguration();
+        config.type = BucketType.COUCHBASE;
+        config.name = "persistent";
+        config.numNodes = 4;
+        config.numVBuckets = 64;
+        config.numReplicas = 1;
+        config.persistencePath = dataDir.getAbsolutePath();
+        return new CouchbaseBucket(mock, config);
+    }
+
+    private Item getItem(Bucket bucket, String key) {
+        short vb = bucket.getVbIndexForKey(key);
+        MemcachedServer owner = bucket.getVBucketInfo()[vb].getOwner();
+        return owner.getStorage().getCached(new KeySpec(key, vb));
+    }
+
+    public void testWarmup() throws IOException {
+        CouchbaseBucket bucket = createBucket();
+        assertEquals(0, bucket.getWarmupItemCount());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(ErrorCode.SUCCESS, bucket.storeItem("key_" + i, ("value_" + i).getBytes()));
+        }
+        // Overwrite and remove some of the items
+        for (int i = 0; i < 100; i++) {
+            assertEquals(ErrorCode.SUCCESS, bucket.storeItem("key_" + i, "updated".getBytes()));
+        }
+        for (int i = 100; i < 150; i++) {
+            String key = "key_" + i;
+            short vb = bucket.getVbIndexForKey(key);
+            MemcachedServer owner = bucket.getVBucketInfo()[vb].getOwner();
+            assertEquals(ErrorCode.SUCCESS, owner.getStorage().getCache(vb).delete(new KeySpec(key, vb), 0, false).getStatus());
+        }
+        bucket.stop();
+
+        bucket = createBucket();
+        assertEquals(450, bucket.getWarmupItemCount());
+        for (int i = 0; i < 500; i++) {
+            Item itm = getItem(bucket, "key_" + i);
+            if (i < 100) {
+                assertEquals("updated", new String(itm.getValue()));
+            } else if (i < 150) {
+                assertNull(itm);
+            } else {
+                assertEquals("value_" + i, new String(itm.getValue()));
+            }
+        }
+        bucket.stop();
+    }
+
+    private int countLogs() {
+        int count = 0;
+        File[] nodes = new File(dataDir, "persistent").listFiles();
+        if (nodes != null) {
+            for (File node : nodes) {
+                File[] logs = node.listFiles();
+                count += logs == null ? 0 : logs.length;
+            }
+        }
+        return count;
+    }
+
+    public void testCoordsWithoutItems() throws IOException {
+        CouchbaseBucket bucket = createBucket();
+        bucket.regenCoords();
+        bucket.regenCoords();
+        // vBuckets without items don't get a log
+        assertEquals(0, countLogs());
+
+        String key = "key";
+        short vb = bucket.getVbIndexForKey(key);
+        assertEquals(ErrorCode.SUCCESS, bucket.storeItem(key, "value".getBytes()));
+        MemcachedServer owner = bucket.getVBucketInfo()[vb].getOwner();
+        VBucketCoordinates coords = owner.getStorage().getPersistedCoords(vb);
+        bucket.stop();
+        assertTrue(countLogs() > 0);
+        assertTrue(countLogs() <= 2);
+
+        // The coordinates set before the log was opened survive
+        bucket = createBucket();
+        owner = bucket.getVBucketInfo()[vb].getOwner();
+        assertEquals(coords.getUuid(), owner.getStorage().getPersistedCoords(vb).getUuid());
+        assertEquals(coords.getSeqno(), owner.getStorage().getPersistedCoords(vb).getSeqno());
+        bucket.stop();
+    }
+}
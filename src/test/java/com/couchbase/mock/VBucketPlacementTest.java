@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class VBucketPlacementTest extends TestCase {
+    private static final int NUM_VBUCKETS = 1024;
+    private static final int NUM_REPLICAS = 2;
+
+    private final boolean[] active = new boolean[]{true, true, true, true};
+    private final int[] owners = new int[NUM_VBUCKETS];
+    private final int[][] replicas = new int[NUM_VBUCKETS][];
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Arrays.fill(owners, -1);
+        Arrays.fill(replicas, new int[0]);
+        VBucketPlacement.rebalance(active, owners, replicas, NUM_REPLICAS);
+    }
+
+    private void checkBalanced() {
+        int numActive = 0;
+        for (boolean a : active) {
+            numActive += a ? 1 : 0;
+        }
+        int numReplicas = Math.min(NUM_REPLICAS, numActive - 1);
+        int[] ownerCounts = new int[active.length];
+        int[] replicaCounts = new int[active.length];
+        for (int vb = 0; vb < NUM_VBUCKETS; vb++) {
+            assertTrue(active[owners[vb]]);
+            ownerCounts[owners[vb]]++;
+            assertEquals(numReplicas, replicas[vb].length);
+            for (int ii = 0; ii < replicas[vb].length; ii++) {
+                int replica = replicas[vb][ii];
+                assertTrue(active[replica]);
+                assertTrue(replica != owners[vb]);
+                for (int jj = 0; jj < ii; jj++) {
+                    assertTrue(replica != replicas[vb][jj]);
+                }
+                replicaCounts[replica]++;
+            }
+        }
+        for (int node = 0; node < active.length; node++) {
+            if (!active[node]) {
+                assertEquals(0, ownerCounts[node] + replicaCounts[node]);
+                continue;
+            }
+            assertTrue(Math.abs(ownerCounts[node] - NUM_VBUCKETS / numActive) <= 1);
+            assertTrue(Math.abs(replicaCounts[node] - NUM_VBUCKETS * numReplicas / numActive) <= 1);
+        }
+    }
+
+    private int countMovedOwners(int[] previous) {
+        int moved = 0;
+        for (int vb = 0; vb < NUM_VBUCKETS; vb++) {
+            if (owners[vb] != previous[vb]) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    public void testInitial() {
+        checkBalanced();
+        for (int node = 0; node < active.length; node++) {
+            assertEquals(NUM_VBUCKETS / active.length, countOwned(node));
+        }
+    }
+
+    private int countOwned(int node) {
+        int count = 0;
+        for (int owner : owners) {
+            if (owner == node) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void testStable() {
+        int[] previousOwners = owners.clone();
+        int[][] previousReplicas = replicas.clone();
+        VBucketPlacement.rebalance(active, owners, replicas, NUM_REPLICAS);
+        assertTrue(Arrays.equals(previousOwners, owners));
+        for (int vb = 0; vb < NUM_VBUCKETS; vb++) {
+            assertTrue(Arrays.equals(previousReplicas[vb], replicas[vb]));
+        }
+    }
+
+    public void testFailoverAndRespawn() {
+        int[] previousOwners = owners.clone();
+        int[][] previousReplicas = replicas.clone();
+        active[1] = false;
+        VBucketPlacement.rebalance(active, owners, replicas, NUM_REPLICAS);
+        checkBalanced();
+        for (int vb = 0; vb < NUM_VBUCKETS; vb++) {
+            if (previousOwners[vb] != 1) {
+                // Only the vBuckets of the failed node may have moved
+                assertEquals(previousOwners[vb], owners[vb]);
+            } else {
+                // And they were taken over by a node having a copy
+                boolean wasReplica = false;
+                for (int replica : previousReplicas[vb]) {
+                    wasReplica |= replica == owners[vb];
+                }
+                assertTrue(wasReplica);
+            }
+        }
+        assertEquals(NUM_VBUCKETS / 4, countMovedOwners(previousOwners));
+
+        // Once back, the node takes over its share, no more
+        previousOwners = owners.clone();
+        active[1] = true;
+        VBucketPlacement.rebalance(active, owners, replicas, NUM_REPLICAS);
+        checkBalanced();
+        assertEquals(NUM_VBUCKETS / 4, countMovedOwners(previousOwners));
+    }
+
+    public void testDeterministic() {
+        int[] otherOwners = new int[NUM_VBUCKETS];
+        int[][] otherReplicas = new int[NUM_VBUCKETS][];
+        Arrays.fill(otherOwners, -1);
+        Arrays.fill(otherReplicas, new int[0]);
+        VBucketPlacement.rebalance(active, otherOwners, otherReplicas, NUM_REPLICAS);
+        assertTrue(Arrays.equals(owners, otherOwners));
+        for (int vb = 0; vb < NUM_VBUCKETS; vb++) {
+            assertTrue(Arrays.equals(replicas[vb], otherReplicas[vb]));
+        }
+    }
+
+    public void testSingleNode() {
+        Arrays.fill(active, false);
+        active[2] = true;
+        VBucketPlacement.rebalance(active, owners, replicas, NUM_REPLICAS);
+        checkBalanced();
+        assertEquals(NUM_VBUCKETS, countOwned(2));
+
+        active[2] = false;
+        VBucketPlacement.rebalance(active, owners, replicas, NUM_REPLICAS);
+        for (int vb = 0; vb < NUM_VBUCKETS; vb++) {
+            assertEquals(-1, owners[vb]);
+            assertEquals(0, replicas[vb].length);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.Bucket;
+import com.couchbase.mock.Info;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.BinaryHelloCommand;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.nio.ByteBuffer;
+
+public class ClustermapNotificationTest extends ClientBaseTest {
+    private Bucket bucket;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        bucket = couchbaseMock.getBuckets().get(bucketConfiguration.name);
+        for (MemcachedServer server : bucket.getServers()) {
+            server.setCccpEnabled(true);
+        }
+    }
+
+    private MemcachedClient getDuplexClient() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        ClientResponse resp = binClient.sendRequest(CommandBuilder.buildHello("duplex",
+                BinaryHelloCommand.Feature.DUPLEX, BinaryHelloCommand.Feature.CLUSTERMAP_CHANGE_NOTIFICATION));
+        assertTrue(resp.success());
+        assertTrue(binClient.getConnection(getServer(0)).supportsClustermapNotifications());
+        return binClient;
+    }
+
+    private static void assertNotification(ClientResponse resp) {
+        assertTrue(resp.isServerRequest());
+        assertEquals(0x01, resp.getOpcode());
+        assertEquals("default", resp.getKey());
+        assertEquals(Info.getConfigRevision(), ByteBuffer.wrap(resp.getExtras()).getInt());
+        assertTrue(resp.getValue().contains("\"name\":\"default\""));
+    }
+
+    private static void assertNoop(MemcachedClient binClient) throws Exception {
+        ClientResponse resp = binClient.sendRequest(new CommandBuilder(CommandCode.NOOP).build());
+        assertFalse(resp.isServerRequest());
+        assertEquals(CommandCode.NOOP, resp.getComCode());
+    }
+
+    public void testNotification() throws Exception {
+        MemcachedClient binClient = getDuplexClient();
+
+        // Failover with rebalance changes the configuration twice but only
+        // the last revision is sent
+        bucket.failover(1, true);
+        assertNotification(binClient.readResponse());
+        assertNoop(binClient);
+
+        bucket.respawn(1);
+        assertNotification(binClient.readResponse());
+        assertNoop(binClient);
+
+        bucket.regenCoords();
+        assertNotification(binClient.readResponse());
+        assertNoop(binClient);
+    }
+
+    public void testNotNegotiated() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        MemcachedClient duplexClient = getDuplexClient();
+        bucket.failover(1, true);
+        // Wait for the notification to be sent by the node
+        assertNotification(duplexClient.readResponse());
+        assertNoop(binClient);
+    }
+
+    public void testRequiresDuplex() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        ClientResponse resp = binClient.sendRequest(CommandBuilder.buildHello("simplex",
+                BinaryHelloCommand.Feature.CLUSTERMAP_CHANGE_NOTIFICATION));
+        assertTrue(resp.success());
+        assertFalse(binClient.getConnection(getServer(0)).supportsClustermapNotifications());
+    }
+}
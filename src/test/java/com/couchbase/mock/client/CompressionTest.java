@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.memcached.CompressionMode;
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.BinaryHelloCommand;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.couchbase.mock.memcached.protocol.Datatype;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+import org.iq80.snappy.Snappy;
+
+import java.util.Arrays;
+
+public class CompressionTest extends ClientBaseTest {
+    private static final String VALUE = "{\"compressible\":\"aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa\"}";
+
+    private void setCompression(CompressionMode mode) {
+        for (int i = 0; i < bucketConfiguration.numNodes; i++) {
+            getServer(i).setCompression(mode);
+        }
+    }
+
+    private MemcachedClient getSnappyClient() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        ClientResponse resp = binClient.sendRequest(CommandBuilder.buildHello("snappy",
+                BinaryHelloCommand.Feature.SNAPPY));
+        assertTrue(resp.success());
+        return binClient;
+    }
+
+    private static boolean isCompressed(ClientResponse resp) {
+        return (resp.getDatatype() & Datatype.SNAPPY.value()) != 0;
+    }
+
+    private static byte[] getBytes(ClientResponse resp) {
+        byte[] ret = new byte[resp.getRawValue().remaining()];
+        resp.getRawValue().get(ret);
+        return ret;
+    }
+
+    public void testStoredCompressed() throws Exception {
+        setCompression(CompressionMode.PASSIVE);
+        MemcachedClient snappyClient = getSnappyClient();
+        short vbid = findValidVbucket(0);
+        byte[] compressed = Snappy.compress(VALUE.getBytes());
+
+        ClientResponse resp = snappyClient.sendRequest(new CommandBuilder(CommandCode.SET)
+                .key("compressed", vbid).value(compressed, 0).datatype(Datatype.SNAPPY.value()));
+        assertTrue(resp.success());
+
+        // The compressed value is sent back as-is
+        resp = snappyClient.sendRequest(new CommandBuilder(CommandCode.GET).key("compressed", vbid));
+        assertTrue(resp.success());
+        assertTrue(isCompressed(resp));
+        assertTrue(Arrays.equals(compressed, getBytes(resp)));
+
+        // ..and decompressed for clients which don't support it
+        MemcachedClient plainClient = getBinClient(0);
+        resp = plainClient.sendRequest(new CommandBuilder(CommandCode.GET).key("compressed", vbid));
+        assertTrue(resp.success());
+        assertFalse(isCompressed(resp));
+        assertEquals(VALUE, resp.getValue());
+
+        Item item = getItem("compressed", vbid);
+        assertEquals(VALUE.length(), item.getValueLength());
+        assertSame(item.getValue(), item.getValue());
+    }
+
+    public void testActiveCompression() throws Exception {
+        setCompression(CompressionMode.ACTIVE);
+        MemcachedClient snappyClient = getSnappyClient();
+        short vbid = findValidVbucket(0);
+
+        ClientResponse resp = snappyClient.sendRequest(CommandBuilder.buildStore("plain", vbid, VALUE));
+        assertTrue(resp.success());
+
+        for (int i = 0; i < 2; i++) {
+            resp = snappyClient.sendRequest(new CommandBuilder(CommandCode.GET).key("plain", vbid));
+            assertTrue(resp.success());
+            assertTrue(isCompressed(resp));
+            byte[] value = getBytes(resp);
+            assertEquals(VALUE, new String(Snappy.uncompress(value, 0, value.length)));
+        }
+
+        // The compressed form is only computed once
+        Item item = getItem("plain", vbid);
+        assertSame(item.getCompressedValue(), item.getCompressedValue());
+    }
+
+    private void checkRejected(MemcachedClient client, String key, short vbid, byte[] value) throws Exception {
+        ClientResponse resp = client.sendRequest(new CommandBuilder(CommandCode.SET).key(key, vbid)
+                .value(value, 0).datatype(Datatype.SNAPPY.value()));
+        assertEquals(ErrorCode.EINVAL, resp.getStatus());
+        assertNull(getServer(0).getStorage().getCached(new KeySpec(key, vbid)));
+    }
+
+    public void testInvalidCompressedValue() throws Exception {
+        setCompression(CompressionMode.PASSIVE);
+        MemcachedClient snappyClient = getSnappyClient();
+        short vbid = findValidVbucket(0);
+
+        // An invalid length
+        checkRejected(snappyClient, "invalid", vbid,
+                new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff });
+
+        // A valid length, but a truncated stream
+        byte[] compressed = Snappy.compress(VALUE.getBytes());
+        checkRejected(snappyClient, "truncated", vbid, Arrays.copyOf(compressed, compressed.length - 4));
+
+        // A valid length, but a garbled stream: a copy reaching before the start
+        byte[] garbled = compressed.clone();
+        garbled[1] = (byte) 0x02;
+        garbled[2] = (byte) 0xff;
+        garbled[3] = (byte) 0xff;
+        checkRejected(snappyClient, "garbled", vbid, garbled);
+
+        // The connection is still usable
+        ClientResponse resp = snappyClient.sendRequest(new CommandBuilder(CommandCode.SET)
+                .key("valid", vbid).value(compressed, 0).datatype(Datatype.SNAPPY.value()));
+        assertTrue(resp.success());
+    }
+}
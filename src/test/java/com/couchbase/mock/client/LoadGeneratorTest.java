@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.memcached.client.LoadGenerator;
+import com.couchbase.mock.memcached.client.LoadGenerator.OpType;
+import com.couchbase.mock.memcached.client.LoadGenerator.Stats;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+
+public class LoadGeneratorTest extends ClientBaseTest {
+    public void testRoutedLoad() throws Exception {
+        LoadGenerator.Options options = new LoadGenerator.Options();
+        options.url = "http://localhost:" + couchbaseMock.getHttpPort();
+        options.numItems = 500;
+        options.populate = true;
+        options.setRatio = 30;
+        options.subdocRatio = 20;
+        options.duration = 1;
+        options.threads = 2;
+
+        Stats stats = new LoadGenerator(options).run(null);
+
+        // Every key was stored on the node owning it
+        assertEquals(500, stats.getOps(OpType.POPULATE));
+        assertTrue(stats.getOps(OpType.GET) > 0);
+        assertTrue(stats.getOps(OpType.SET) > 0);
+        assertTrue(stats.getOps(OpType.SUBDOC_GET) > 0);
+        assertEquals(0, stats.getErrors());
+        assertEquals(0, stats.getStatusCount(ErrorCode.KEY_ENOENT));
+        assertEquals(0, stats.getStatusCount(ErrorCode.NOT_MY_VBUCKET));
+        assertEquals(stats.getTotalOps(), stats.getStatusCount(ErrorCode.SUCCESS));
+
+        Object value = client.get(options.keyPrefix + 42);
+        assertNotNull(value);
+        assertTrue(((String) value).startsWith("{\"value\":"));
+    }
+}
@@ -16,6 +16,8 @@
 package com.couchbase.mock.client;
 
 import com.couchbase.mock.Bucket;
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.KeySpec;
 import com.couchbase.mock.memcached.MemcachedServer;
 import com.couchbase.mock.memcached.client.ClientResponse;
 import com.couchbase.mock.memcached.client.CommandBuilder;
@@ -23,6 +25,7 @@ import com.couchbase.mock.memcached.client.MemcachedClient;
 import com.couchbase.mock.memcached.protocol.CommandCode;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import net.spy.memcached.internal.OperationFuture;
@@ -31,6 +34,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Tests for the "extended" Mock API.
@@ -210,6 +214,129 @@ public class MockAPITest extends ClientBaseTest {
         assertTrue(mockHttpClient.request(new KeyInfoRequest("key", "default")).isOk());
     }
 
+    public void testMultiKey() throws IOException {
+        List<String> keys = new ArrayList<String>();
+        for (int ii = 0; ii < 100; ii++) {
+            keys.add("key" + ii);
+        }
+        PersistRequest persist = new PersistRequest("", "value", 0, true, 1);
+        persist.setKeys(keys);
+        MockResponse res = mockClient.request(persist);
+        assertTrue(res.isOk());
+        JsonArray results = res.getPayload().getAsJsonArray();
+        assertEquals(keys.size(), results.size());
+        for (int ii = 0; ii < keys.size(); ii++) {
+            JsonObject result = results.get(ii).getAsJsonObject();
+            assertEquals(keys.get(ii), result.get("Key").getAsString());
+            assertEquals("ok", result.get("status").getAsString());
+        }
+
+        Bucket bucket = couchbaseMock.getBuckets().get(bucketConfiguration.name);
+        for (String key : keys) {
+            KeySpec ks = new KeySpec(key, bucket.getVbIndexForKey(key));
+            Item item = bucket.getVBucketInfo()[ks.vbId].getOwner().getStorage().getPersisted(ks);
+            assertEquals("value", new String(item.getValue()));
+        }
+
+        // Each key is reported on its own
+        ArrayList<Integer> replicaId = new ArrayList<Integer>();
+        replicaId.add(bucketConfiguration.numReplicas);
+        UncacheRequest uncache = new UncacheRequest("", true, replicaId);
+        uncache.setKeys(keys);
+        res = mockHttpClient.request(uncache);
+        assertFalse(res.isOk());
+        assertEquals(keys.size(), res.getPayload().getAsJsonArray().size());
+    }
+
+    public void testBatch() throws IOException {
+        BatchRequest batch = new BatchRequest()
+                .add(new CacheRequest("key", "value", 0, true, 0))
+                .add(new KeyInfoRequest("key"))
+                .add(MockRequest.build("no_such_command"));
+        MockResponse res = mockClient.request(batch);
+        assertFalse(res.isOk());
+
+        JsonArray results = res.getPayload().getAsJsonArray();
+        assertEquals(3, results.size());
+        assertEquals("ok", results.get(0).getAsJsonObject().get("status").getAsString());
+        JsonObject keyInfo = results.get(1).getAsJsonObject();
+        assertEquals("ok", keyInfo.get("status").getAsString());
+        assertTrue(keyInfo.get("payload").isJsonArray());
+        assertEquals("fail", results.get(2).getAsJsonObject().get("status").getAsString());
+
+        res = mockHttpClient.request(new BatchRequest().add(new HelpRequest()).add(new HelpRequest()));
+        assertTrue(res.isOk());
+        assertEquals(2, res.getPayload().getAsJsonArray().size());
+    }
+
+    private static String getMasterValue(MockResponse keyInfo) {
+        for (JsonElement info : keyInfo.getPayload().getAsJsonArray()) {
+            if (info.isJsonObject() && info.getAsJsonObject().get("Conf").getAsJsonObject().get("Index").getAsInt() == 0) {
+                return info.getAsJsonObject().get("Cache").getAsJsonObject().get("Value").getAsString();
+            }
+        }
+        return null;
+    }
+
+    private void checkPipelined(boolean concurrent) throws IOException {
+        List<MockRequest> requests = new ArrayList<MockRequest>();
+        for (int ii = 0; ii < 50; ii++) {
+            requests.add(new EndureRequest("key" + ii, "value" + ii, true, 1));
+        }
+        for (MockResponse res : mockClient.request(requests, concurrent)) {
+            assertTrue(res.isOk());
+        }
+
+        requests.clear();
+        for (int ii = 0; ii < 50; ii++) {
+            requests.add(new KeyInfoRequest("key" + ii));
+        }
+        List<MockResponse> responses = mockClient.request(requests, concurrent);
+        assertEquals(requests.size(), responses.size());
+        for (int ii = 0; ii < responses.size(); ii++) {
+            MockResponse res = responses.get(ii);
+            assertTrue(res.isOk());
+            assertEquals(ii, res.getRawJson().get("id").getAsInt());
+            assertEquals("value" + ii, getMasterValue(res));
+        }
+
+        // Untagged requests are still answered in turn
+        assertTrue(mockClient.request(new HelpRequest()).isOk());
+        assertFalse(mockClient.request(MockRequest.build("no_such_command")).isOk());
+    }
+
+    public void testPipelined() throws IOException {
+        checkPipelined(false);
+        checkPipelined(true);
+    }
+
+    public void testPipelinedOrder() throws IOException {
+        // Unless flagged as concurrent, pipelined commands depending on the
+        // previous ones see their effects
+        List<MockRequest> requests = new ArrayList<MockRequest>();
+        for (int ii = 0; ii < 50; ii++) {
+            requests.add(new CacheRequest("ordered", "value" + ii, ii + 1, true, 1));
+            requests.add(new KeyInfoRequest("ordered"));
+        }
+        List<MockResponse> responses = mockClient.request(requests);
+        for (int ii = 0; ii < responses.size(); ii += 2) {
+            assertTrue(responses.get(ii).isOk());
+            assertEquals("value" + ii / 2, getMasterValue(responses.get(ii + 1)));
+        }
+    }
+
+    public void testFramed() throws IOException {
+        mockClient.setFramed(true);
+        checkPipelined(true);
+
+        StringBuilder sb = new StringBuilder();
+        for (int ii = 0; ii < 100000; ii++) {
+            sb.append('x');
+        }
+        MockResponse res = mockClient.request(new CacheRequest("large", sb.toString(), 0, true, 0));
+        assertTrue(res.isOk());
+    }
+
     public void testHelp() throws IOException {
         assertTrue(mockClient.request(new HelpRequest()).isOk());
     }
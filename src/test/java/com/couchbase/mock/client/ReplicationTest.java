@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.Bucket;
+import com.couchbase.mock.BucketConfiguration;
+import com.couchbase.mock.CouchbaseBucket;
+import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.VBucketInfo;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+
+public class ReplicationTest extends ClientBaseTest {
+    private Item waitForReplica(MemcachedServer replica, KeySpec ks, long cas) throws Exception {
+        for (int i = 0; i < 500; i++) {
+            Item itm = replica.getStorage().getCached(ks);
+            if (itm != null && itm.getCas() == cas) {
+                return itm;
+            }
+            Thread.sleep(10);
+        }
+        return null;
+    }
+
+    public void testReplicatedMutation() throws Exception {
+        short vbid = findValidVbucket(0);
+        ClientResponse resp = getBinClient(0).sendRequest(CommandBuilder.buildStore("replicated", vbid, "value"));
+        assertTrue(resp.success());
+
+        VBucketInfo vbi = couchbaseMock.getBuckets().get("default").getVBucketInfo()[vbid];
+        KeySpec ks = new KeySpec("replicated", vbid);
+        long cas = getItem("replicated", vbid).getCas();
+        long seqno = getServer(0).getStorage().getCache(vbid).getCurrentCoords(vbid).getSeqno();
+
+        assertFalse(vbi.getReplicas().isEmpty());
+        for (MemcachedServer replica : vbi.getReplicas()) {
+            Item itm = waitForReplica(replica, ks, cas);
+            assertNotNull(itm);
+            assertEquals("value", new String(itm.getValue()));
+            assertEquals(seqno, replica.getStorage().getDcpConsumer().getLastReceivedSeqno(vbid));
+            assertEquals(0, replica.getStorage().getDcpConsumer().getBacklog(vbid));
+        }
+    }
+
+    public void testReplicatedWithoutLag() throws Exception {
+        short vbid = findValidVbucket(0);
+        ClientResponse resp = getBinClient(0).sendRequest(CommandBuilder.buildStore("inline", vbid, "value"));
+        assertTrue(resp.success());
+
+        // Applied before the mutation is acknowledged
+        KeySpec ks = new KeySpec("inline", vbid);
+        long cas = getItem("inline", vbid).getCas();
+        VBucketInfo vbi = couchbaseMock.getBuckets().get("default").getVBucketInfo()[vbid];
+        for (MemcachedServer replica : vbi.getReplicas()) {
+            Item itm = replica.getStorage().getCached(ks);
+            assertNotNull(itm);
+            assertEquals(cas, itm.getCas());
+            assertEquals(0, replica.getStorage().getDcpConsumer().getBacklog(vbid));
+        }
+    }
+
+    public void testSuspendedReplica() throws Exception {
+        short vbid = findValidVbucket(0);
+        VBucketInfo vbi = couchbaseMock.getBuckets().get("default").getVBucketInfo()[vbid];
+        MemcachedServer replica = vbi.getReplicas().get(0);
+        KeySpec ks = new KeySpec("suspended", vbid);
+        replica.shutdown();
+        try {
+            ClientResponse resp = getBinClient(0).sendRequest(CommandBuilder.buildStore("suspended", vbid, "value"));
+            assertTrue(resp.success());
+            Thread.sleep(100);
+            assertNull(replica.getStorage().getCached(ks));
+            assertEquals(1, replica.getStorage().getDcpConsumer().getBacklog(vbid));
+        } finally {
+            replica.startup();
+        }
+        // Caught up once resumed
+        assertNotNull(waitForReplica(replica, ks, getItem("suspended", vbid).getCas()));
+        assertEquals(0, replica.getStorage().getDcpConsumer().getBacklog(vbid));
+    }
+
+    public void testReplicationLag() throws Exception {
+        short vbid = findValidVbucket(0);
+        VBucketInfo vbi = couchbaseMock.getBuckets().get("default").getVBucketInfo()[vbid];
+        MemcachedServer replica = vbi.getReplicas().get(0);
+        replica.getStorage().getDcpConsumer().setLag(500);
+
+        ClientResponse resp = getBinClient(0).sendRequest(CommandBuilder.buildStore("lagged", vbid, "value"));
+        assertTrue(resp.success());
+
+        KeySpec ks = new KeySpec("lagged", vbid);
+        assertNull(replica.getStorage().getCached(ks));
+        assertEquals(1, replica.getStorage().getDcpConsumer().getBacklog(vbid));
+        assertNotNull(waitForReplica(replica, ks, getItem("lagged", vbid).getCas()));
+        assertEquals(0, replica.getStorage().getDcpConsumer().getBacklog(vbid));
+    }
+
+    public void testUndrivenReplication() throws Exception {
+        BucketConfiguration config = new BucketConfiguration();
+        config.type = Bucket.BucketType.COUCHBASE;
+        config.name = "undriven";
+        config.numNodes = 4;
+        config.numVBuckets = 64;
+        config.numReplicas = 2;
+        // Never started, so no loop drives the replicas
+        final CouchbaseBucket bucket = new CouchbaseBucket(new CouchbaseMock("localhost", 8091, 4, 64), config);
+        for (MemcachedServer server : bucket.getServers()) {
+            server.getStorage().getDcpConsumer().setLag(100);
+        }
+
+        // Concurrent stores offer mutations to the same replicas
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int id = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 200; j++) {
+                        bucket.storeItem("key_" + (j % 50), ("value_" + id + "_" + j).getBytes());
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+
+        // The lagged mutations are applied without further offers, each one once
+        // and in order
+        for (int i = 0; i < 50; i++) {
+            String key = "key_" + i;
+            short vbid = bucket.getVbIndexForKey(key);
+            VBucketInfo vbi = bucket.getVBucketInfo()[vbid];
+            KeySpec ks = new KeySpec(key, vbid);
+            Item master = vbi.getOwner().getStorage().getCached(ks);
+            long seqno = vbi.getOwner().getStorage().getCache(vbid).getCurrentCoords(vbid).getSeqno();
+            for (MemcachedServer replica : vbi.getReplicas()) {
+                Item itm = waitForReplica(replica, ks, master.getCas());
+                assertNotNull(itm);
+                assertEquals(new String(master.getValue()), new String(itm.getValue()));
+                assertEquals(seqno, replica.getStorage().getDcpConsumer().getLastReceivedSeqno(vbid));
+                assertEquals(0, replica.getStorage().getDcpConsumer().getBacklog(vbid));
+            }
+        }
+
+        // The timer is stopped along with the nodes
+        for (MemcachedServer server : bucket.getServers()) {
+            server.getStorage().close();
+        }
+        for (int i = 0; i < 100 && isTimerAlive(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(isTimerAlive());
+    }
+
+    private static boolean isTimerAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("DcpConsumer timer") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.Bucket;
+import com.couchbase.mock.Bucket.BucketType;
+import com.couchbase.mock.BucketConfiguration;
+import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+
+/**
+ * Test the nodes of all buckets multiplexed on two shared event loops. The
+ * nodes are assigned to the loops round robin, so that nodes 0 and 2 of the
+ * bucket share a loop.
+ */
+public class SharedEventLoopTest extends ClientBaseTest {
+    private static final byte[] NOOP = new CommandBuilder(CommandCode.NOOP).build();
+
+    @Override
+    protected void createMock(@NotNull String name, @NotNull String password) throws Exception {
+        bucketConfiguration.numNodes = 10;
+        bucketConfiguration.numReplicas = 3;
+        bucketConfiguration.name = name;
+        bucketConfiguration.type = BucketType.COUCHBASE;
+        bucketConfiguration.password = password;
+        ArrayList<BucketConfiguration> configList = new ArrayList<BucketConfiguration>();
+        configList.add(bucketConfiguration);
+        couchbaseMock = new CouchbaseMock(0, configList);
+        couchbaseMock.setEventLoops(2);
+        couchbaseMock.start();
+        couchbaseMock.waitForStartup();
+    }
+
+    private MemcachedClient connect(MemcachedServer server, int timeout) throws IOException {
+        Socket sock = new Socket();
+        sock.connect(new InetSocketAddress(server.getHostname(), server.getPort()));
+        sock.setSoTimeout(timeout);
+        return new MemcachedClient(sock);
+    }
+
+    private static void assertNoResponse(MemcachedClient mc) throws IOException {
+        try {
+            mc.readResponse();
+            fail("Expected no response");
+        } catch (SocketTimeoutException ex) {
+            // Expected
+        }
+    }
+
+    private static int countThreads(String marker) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().contains(marker)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void testBuckets() throws Exception {
+        assertTrue(getServer(0).isOnSharedEventLoop());
+        assertTrue(client.set("foo", 0, "bar").get());
+        assertEquals("bar", client.get("foo"));
+
+        BucketConfiguration config = new BucketConfiguration();
+        config.name = "other";
+        config.numNodes = 4;
+        couchbaseMock.createBucket(config);
+        Bucket other = couchbaseMock.getBuckets().get("other");
+        MemcachedServer server = other.getServers()[0];
+        MemcachedClient mc = connect(server, 5000);
+        assertEquals(ErrorCode.SUCCESS, mc.sendRequest(NOOP).getStatus());
+        mc.close();
+
+        assertEquals(2, countThreads("EventLoop["));
+        assertEquals(0, countThreads("other:MCD["));
+
+        couchbaseMock.removeBucket("other");
+        try {
+            connect(server, 5000).close();
+            fail("The node of a removed bucket should no longer listen");
+        } catch (ConnectException ex) {
+            // Expected
+        }
+        assertEquals("bar", client.get("foo"));
+    }
+
+    public void testSuspend() throws Exception {
+        MemcachedServer server = getServer(0);
+        MemcachedClient connected = connect(server, 300);
+        MemcachedClient neighbour = connect(getServer(2), 5000);
+        try {
+            server.shutdown();
+            connected.send(NOOP);
+            assertNoResponse(connected);
+            MemcachedClient pending = connect(server, 300);
+            pending.send(NOOP);
+            assertNoResponse(pending);
+            assertEquals(ErrorCode.SUCCESS, neighbour.sendRequest(NOOP).getStatus());
+
+            server.startup();
+            assertEquals(ErrorCode.SUCCESS, connected.readResponse().getStatus());
+            assertEquals(ErrorCode.SUCCESS, pending.readResponse().getStatus());
+            pending.close();
+        } finally {
+            server.startup();
+            connected.close();
+            neighbour.close();
+        }
+    }
+
+    public void testHiccup() throws Exception {
+        MemcachedServer server = getServer(0);
+        MemcachedClient stalled = connect(server, 5000);
+        MemcachedClient neighbour = connect(getServer(2), 5000);
+        try {
+            server.setHiccup(500, 1);
+            long start = System.nanoTime();
+            stalled.send(NOOP);
+            // The stall of one node doesn't hold up the other nodes of its loop
+            assertEquals(ErrorCode.SUCCESS, neighbour.sendRequest(NOOP).getStatus());
+            assertTrue((System.nanoTime() - start) / 1000000 < 400);
+            assertEquals(ErrorCode.SUCCESS, stalled.readResponse().getStatus());
+            assertTrue((System.nanoTime() - start) / 1000000 >= 450);
+        } finally {
+            server.setHiccup(0, 0);
+            stalled.close();
+            neighbour.close();
+        }
+    }
+
+    public void testTruncate() throws Exception {
+        MemcachedServer server = getServer(0);
+        MemcachedClient truncated = connect(server, 300);
+        MemcachedClient neighbour = connect(getServer(2), 5000);
+        try {
+            server.setTruncateLimit(10);
+            truncated.send(NOOP);
+            assertNoResponse(truncated);
+            assertEquals(ErrorCode.SUCCESS, neighbour.sendRequest(NOOP).getStatus());
+
+            server.setTruncateLimit(0);
+            assertEquals(ErrorCode.SUCCESS, truncated.readResponse().getStatus());
+        } finally {
+            server.setTruncateLimit(0);
+            truncated.close();
+            neighbour.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.JsonUtils;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.couchbase.mock.util.ReaderUtils;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class StatsTest extends ClientBaseTest {
+    private static Map<String, String> getStats(MemcachedClient binClient, String group) throws Exception {
+        CommandBuilder builder = new CommandBuilder(CommandCode.STAT);
+        if (group != null) {
+            builder.key(group, (short) 0);
+        }
+        binClient.send(builder.build());
+        Map<String, String> stats = new HashMap<String, String>();
+        ClientResponse resp;
+        while ((resp = binClient.readResponse()).getKey().length() > 0) {
+            stats.put(resp.getKey(), resp.getValue());
+        }
+        assertTrue(resp.success());
+        return stats;
+    }
+
+    public void testCounters() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        short vbid = findValidVbucket(0);
+        Map<String, String> before = getStats(binClient, null);
+
+        assertTrue(binClient.sendRequest(CommandBuilder.buildStore("counted", vbid, "value")).success());
+        ClientResponse resp = binClient.sendRequest(new CommandBuilder(CommandCode.GET).key("counted", vbid));
+        assertTrue(resp.success());
+        resp = binClient.sendRequest(new CommandBuilder(CommandCode.GET).key("missing", vbid));
+        assertFalse(resp.success());
+        resp = binClient.sendRequest(new CommandBuilder(CommandCode.SET).key("counted", vbid)
+                .value("other".getBytes(), 0).cas(0xdeadbeefL));
+        assertFalse(resp.success());
+
+        Map<String, String> after = getStats(binClient, null);
+        assertEquals(1, Long.parseLong(after.get("get_hits")) - Long.parseLong(before.get("get_hits")));
+        assertEquals(1, Long.parseLong(after.get("get_misses")) - Long.parseLong(before.get("get_misses")));
+        assertEquals(2, Long.parseLong(after.get("cmd_set")) - Long.parseLong(before.get("cmd_set")));
+        assertEquals(1, Long.parseLong(after.get("cas_badval")) - Long.parseLong(before.get("cas_badval")));
+        assertTrue(Long.parseLong(after.get("bytes_read")) > Long.parseLong(before.get("bytes_read")));
+        assertTrue(Long.parseLong(after.get("bytes_written")) > Long.parseLong(before.get("bytes_written")));
+        assertTrue(Long.parseLong(after.get("curr_connections")) >= 1);
+
+        Map<String, String> ops = getStats(binClient, "opcodes");
+        assertEquals("2", ops.get("cmd_get"));
+
+        Map<String, String> timings = getStats(binClient, "timings");
+        Map<String, Object> getTimings = JsonUtils.decodeAsMap(timings.get("get_cmd"));
+        assertEquals(2, ((Number) getTimings.get("count")).intValue());
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testHttpStats() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        short vbid = findValidVbucket(0);
+        assertTrue(binClient.sendRequest(CommandBuilder.buildStore("counted", vbid, "value")).success());
+
+        URL url = new URL("http://localhost:" + couchbaseMock.getHttpPort() + "/pools/default/buckets/default/stats");
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        Map<String, Object> json = JsonUtils.decodeAsMap(ReaderUtils.fromStream(conn.getInputStream()));
+        List<Map<String, Object>> nodes = (List<Map<String, Object>>) json.get("nodes");
+        assertEquals(bucketConfiguration.numNodes, nodes.size());
+
+        Map<String, Object> node = nodes.get(0);
+        assertEquals(getServer(0).getSocketName(), node.get("hostname"));
+        Map<String, Object> timings = (Map<String, Object>) node.get("timings");
+        assertTrue(timings.containsKey("set_cmd"));
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.BinaryHelloCommand;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+public class UnorderedExecutionTest extends ClientBaseTest {
+    private static int getOpaque(byte[] request) {
+        return ByteBuffer.wrap(request).getInt(12);
+    }
+
+    private MemcachedClient getUnorderedClient() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        ClientResponse resp = binClient.sendRequest(CommandBuilder.buildHello("unordered",
+                BinaryHelloCommand.Feature.UNORDERED_EXECUTION));
+        assertTrue(resp.success());
+        assertTrue(binClient.getConnection(getServer(0)).supportsUnorderedExecution());
+        return binClient;
+    }
+
+    public void testSameKeyOrdering() throws Exception {
+        MemcachedClient binClient = getUnorderedClient();
+        short vbid = findValidVbucket(0);
+        Set<Long> opaques = new HashSet<Long>();
+
+        for (int i = 0; i < 100; i++) {
+            byte[] req = CommandBuilder.buildStore("unordered", vbid, "value" + i);
+            opaques.add((long) getOpaque(req));
+            binClient.send(req);
+        }
+        byte[] get = new CommandBuilder(CommandCode.GET).key("unordered", vbid).build();
+        binClient.send(get);
+
+        // All the stores complete before the get on the same key
+        for (int i = 0; i < 100; i++) {
+            ClientResponse resp = binClient.readResponse();
+            assertTrue(resp.success());
+            assertTrue(opaques.remove(resp.getOpaque()));
+        }
+        ClientResponse resp = binClient.readResponse();
+        assertEquals(getOpaque(get), resp.getOpaque());
+        assertEquals("value99", resp.getValue());
+    }
+
+    public void testBarrier() throws Exception {
+        MemcachedClient binClient = getUnorderedClient();
+        short vbid = findValidVbucket(0);
+        Set<Long> opaques = new HashSet<Long>();
+
+        for (int i = 0; i < 50; i++) {
+            byte[] req = CommandBuilder.buildStore("key" + i, vbid, "value");
+            opaques.add((long) getOpaque(req));
+            binClient.send(req);
+        }
+        // NOOP is not reorderable, so it is only executed once all the stores completed
+        byte[] noop = new CommandBuilder(CommandCode.NOOP).build();
+        binClient.send(noop);
+        byte[] get = new CommandBuilder(CommandCode.GET).key("key0", vbid).build();
+        binClient.send(get);
+
+        for (int i = 0; i < 50; i++) {
+            assertTrue(opaques.remove(binClient.readResponse().getOpaque()));
+        }
+        assertEquals(getOpaque(noop), binClient.readResponse().getOpaque());
+        ClientResponse resp = binClient.readResponse();
+        assertEquals(getOpaque(get), resp.getOpaque());
+        assertTrue(resp.success());
+    }
+
+    public void testSlowKey() throws Exception {
+        MemcachedClient binClient = getUnorderedClient();
+        short vbid = findValidVbucket(0);
+
+        // Looking up the last element means parsing the whole document
+        StringBuilder sb = new StringBuilder("{\"list\":[");
+        for (int i = 0; i < 100000; i++) {
+            sb.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append('}');
+        }
+        sb.append("]}");
+        ClientResponse resp = binClient.sendRequest(CommandBuilder.buildStore("slow", vbid, sb.toString()));
+        assertTrue(resp.success());
+        resp = binClient.sendRequest(CommandBuilder.buildStore("fast", vbid, "value"));
+        assertTrue(resp.success());
+
+        byte[] slow = CommandBuilder.buildSubdocGet("slow", vbid, "list[-1].id");
+        byte[] fast = new CommandBuilder(CommandCode.GET).key("fast", vbid).build();
+        binClient.send(slow);
+        binClient.send(fast);
+
+        // The command on the other key doesn't wait for the slow one
+        resp = binClient.readResponse();
+        assertEquals(getOpaque(fast), resp.getOpaque());
+        assertEquals("value", resp.getValue());
+        resp = binClient.readResponse();
+        assertEquals(getOpaque(slow), resp.getOpaque());
+        assertEquals("99999", resp.getValue());
+    }
+
+    public void testFailuresInjected() throws Exception {
+        MemcachedClient binClient = getUnorderedClient();
+        short vbid = findValidVbucket(0);
+        getServer(0).updateFailMakerContext(ErrorCode.ETMPFAIL, 10, CommandCode.GET);
+        try {
+            // Executed concurrently, as the keys differ
+            for (int i = 0; i < 500; i++) {
+                binClient.send(new CommandBuilder(CommandCode.GET).key("key" + i, vbid).build());
+            }
+            int failed = 0;
+            for (int i = 0; i < 500; i++) {
+                ClientResponse resp = binClient.readResponse();
+                if (resp.getStatus() == ErrorCode.ETMPFAIL) {
+                    failed++;
+                } else {
+                    assertEquals(ErrorCode.KEY_ENOENT, resp.getStatus());
+                }
+            }
+            assertEquals(10, failed);
+        } finally {
+            getServer(0).updateFailMakerContext(ErrorCode.SUCCESS, 0, CommandCode.ILLEGAL);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.MemcachedServer.CommandLogEntry;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.List;
+
+public class CommandLogTest extends TestCase {
+    public void testSnapshotAndDrain() {
+        CommandLog log = new CommandLog(8);
+        assertEquals(8, log.getCapacity());
+        long now = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            log.add(i, now + i * 1000000L, (short) 0x86, (short) i, 100 + i);
+        }
+
+        List<CommandLogEntry> entries = log.snapshot();
+        assertEquals(5, entries.size());
+        for (int i = 0; i < 5; i++) {
+            CommandLogEntry entry = entries.get(i);
+            assertEquals(i, entry.getOpcode());
+            assertEquals(0x86, entry.getStatus());
+            assertEquals(i, entry.getVBucket());
+            assertEquals(100 + i, entry.getOpaque());
+        }
+        assertEquals(4, entries.get(4).getMsTimestamp() - entries.get(0).getMsTimestamp());
+
+        // A snapshot doesn't consume the records..
+        assertEquals(5, log.snapshot().size());
+        // ..but draining does
+        assertEquals(5, log.drain().size());
+        assertTrue(log.snapshot().isEmpty());
+
+        log.add(0xff, now, (short) 0, (short) 0, 0);
+        assertEquals(1, log.drain().size());
+        log.add(0xff, now, (short) 0, (short) 0, 0);
+        log.clear();
+        assertTrue(log.drain().isEmpty());
+    }
+
+    public void testOverwrite() {
+        CommandLog log = new CommandLog(5);
+        assertEquals(8, log.getCapacity());
+        for (int i = 0; i < 20; i++) {
+            log.add(i, System.nanoTime(), (short) 0, (short) 0, i);
+        }
+        // Only the most recent records are kept
+        List<CommandLogEntry> entries = log.drain();
+        assertEquals(8, entries.size());
+        assertEquals(12, entries.get(0).getOpaque());
+        assertEquals(19, entries.get(7).getOpaque());
+    }
+
+    public void testReceiptOrder() {
+        CommandLog log = new CommandLog(8);
+        long first = log.begin(0x01, System.nanoTime(), (short) 1, 1);
+        long second = log.begin(0x02, System.nanoTime(), (short) 2, 2);
+        log.complete(second, (short) 0x86);
+        // The first command is still being executed
+        assertTrue(log.snapshot().isEmpty());
+
+        log.complete(first, (short) 0x01);
+        List<CommandLogEntry> entries = log.drain();
+        assertEquals(2, entries.size());
+        assertEquals(1, entries.get(0).getOpaque());
+        assertEquals(0x01, entries.get(0).getStatus());
+        assertEquals(2, entries.get(1).getOpaque());
+        assertEquals(0x86, entries.get(1).getStatus());
+
+        // A record overwritten before its command completes is dropped
+        long stale = log.begin(0x03, System.nanoTime(), (short) 3, 3);
+        for (int i = 0; i < 10; i++) {
+            log.add(0x04, System.nanoTime(), (short) 0, (short) 4, 100 + i);
+        }
+        log.complete(stale, (short) 0x05);
+        entries = log.drain();
+        assertEquals(8, entries.size());
+        for (CommandLogEntry entry : entries) {
+            assertEquals(0x04, entry.getOpcode());
+            assertEquals(0, entry.getStatus());
+        }
+    }
+
+    public void testConcurrentWriters() throws Exception {
+        final CommandLog log = new CommandLog(1 << 12);
+        final int perThread = 1000;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        log.add(id, System.nanoTime(), (short) 0, (short) id, i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        int total = 0;
+        while (total < threads.length * perThread) {
+            for (CommandLogEntry entry : log.drain()) {
+                assertEquals(entry.getOpcode(), entry.getVBucket());
+                total++;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length * perThread, total);
+    }
+
+    public void testDrainTo() throws Exception {
+        CommandLog log = new CommandLog(16);
+        long before = System.currentTimeMillis();
+        log.add(0x01, System.nanoTime(), (short) 0x02, (short) 3, 4);
+        log.add(0x05, System.nanoTime(), (short) 0x06, (short) 7, 8);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(2, log.drainTo(Channels.newChannel(out)));
+        assertEquals(0, log.drainTo(Channels.newChannel(out)));
+
+        ByteBuffer buf = ByteBuffer.wrap(out.toByteArray());
+        assertEquals(2 * CommandLog.RECORD_SIZE, buf.remaining());
+        assertTrue(buf.getLong() / 1000000 >= before - 1);
+        assertEquals(4, buf.getInt());
+        assertEquals(0x02, buf.getShort());
+        assertEquals(3, buf.getShort());
+        assertEquals(0x01, buf.get());
+        buf.getLong();
+        assertEquals(8, buf.getInt());
+        assertEquals(0x06, buf.getShort());
+        assertEquals(7, buf.getShort());
+        assertEquals(0x05, buf.get());
+    }
+}
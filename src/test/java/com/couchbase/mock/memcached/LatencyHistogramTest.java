@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Map;
+
+public class LatencyHistogramTest extends TestCase {
+    public void testBuckets() {
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        assertEquals(1, LatencyHistogram.bucketOf(1));
+        assertEquals(2, LatencyHistogram.bucketOf(2));
+        assertEquals(2, LatencyHistogram.bucketOf(3));
+        assertEquals(11, LatencyHistogram.bucketOf(1024));
+        assertEquals(LatencyHistogram.NUM_BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+        for (int i = 1; i < LatencyHistogram.NUM_BUCKETS - 1; i++) {
+            assertEquals(i, LatencyHistogram.bucketOf(LatencyHistogram.lowerBound(i)));
+            assertEquals(i, LatencyHistogram.bucketOf(LatencyHistogram.upperBound(i) - 1));
+        }
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+        // 90 fast operations (~10us) and 10 slow ones (~1ms)
+        for (int i = 0; i < 90; i++) {
+            histogram.record(10000);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(1000000);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(16, histogram.getPercentile(0.5));
+        assertEquals(16, histogram.getPercentile(0.9));
+        assertEquals(1024, histogram.getPercentile(0.99));
+
+        Map<String, Object> summary = histogram.toMap();
+        assertEquals(100L, summary.get("count"));
+        assertEquals(109L, summary.get("mean_us"));
+        assertEquals(2, ((List) summary.get("buckets")).size());
+    }
+}
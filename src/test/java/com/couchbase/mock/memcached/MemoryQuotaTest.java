@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.protocol.Datatype;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class MemoryQuotaTest extends TestCase {
+    private static final int NUM_VBUCKETS = 16;
+    private static final long QUOTA = 512 * 1024;
+
+    private static Storage newStorage(boolean offHeap) throws IOException {
+        VBucketInfo[] vbi = new VBucketInfo[NUM_VBUCKETS];
+        for (int i = 0; i < vbi.length; i++) {
+            vbi[i] = new VBucketInfo();
+        }
+        Storage storage = new Storage(vbi, null, null, offHeap);
+        storage.setMemoryQuota(QUOTA);
+        return storage;
+    }
+
+    private static Item newItem(int i, int size) {
+        byte[] value = new byte[size];
+        Arrays.fill(value, (byte) ('a' + i % 26));
+        return new Item(new KeySpec("key_" + i, (short) (i % NUM_VBUCKETS)), 0, 0, value, null, 0, Datatype.RAW.value());
+    }
+
+    private static long stat(Storage storage, String name) {
+        return Long.parseLong(storage.getMemoryStats().get(name));
+    }
+
+    private void checkEviction(Storage storage) {
+        VBucketStore cache = storage.getCache((short) 0);
+        // About four times the quota
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(ErrorCode.SUCCESS, cache.set(newItem(i, 1000), false).getStatus());
+            assertTrue(cache.getMemoryUsed() <= QUOTA);
+        }
+        assertTrue(stat(storage, "ep_num_value_ejects") > 0);
+        assertEquals(0, stat(storage, "ep_tmp_oom_errors") + stat(storage, "ep_oom_errors"));
+
+        // Evicted values are read again
+        for (int i = 0; i < 2000; i++) {
+            Item item = cache.get(new KeySpec("key_" + i, (short) (i % NUM_VBUCKETS)));
+            assertEquals(newItem(i, 1000).getValue()[0], item.getValue()[0]);
+            assertEquals(1000, item.getValue().length);
+        }
+        assertTrue(stat(storage, "ep_bg_fetched") > 0);
+        assertTrue(cache.getMemoryUsed() <= QUOTA);
+
+        int count = 0;
+        for (Item item : storage.getMasterStore(Storage.StorageType.CACHE)) {
+            assertEquals(1000, item.getValue().length);
+            count++;
+        }
+        assertEquals(2000, count);
+    }
+
+    public void testValueEviction() throws IOException {
+        checkEviction(newStorage(false));
+    }
+
+    public void testValueEvictionOffHeap() throws IOException {
+        checkEviction(newStorage(true));
+    }
+
+    public void testDirtyItems() throws IOException {
+        Storage storage = newStorage(false);
+        VBucketStore cache = storage.getCache((short) 0);
+        // Cached but not persisted: these can't be evicted
+        for (int i = 0; i < 600; i++) {
+            storage.putCached(newItem(i, 1000));
+        }
+        assertEquals(ErrorCode.ETMPFAIL, cache.set(newItem(600, 1000), false).getStatus());
+        assertEquals(1, stat(storage, "ep_tmp_oom_errors"));
+        // Not an error, but the value stays
+        KeySpec ks = new KeySpec("key_0", (short) 0);
+        assertEquals(ErrorCode.SUCCESS, cache.evict(ks));
+        assertNotNull(cache.getMap().get(ks).getValue());
+
+        // Once persisted, they can
+        for (int i = 0; i < 600; i++) {
+            storage.putPersisted(storage.getCached(new KeySpec("key_" + i, (short) (i % NUM_VBUCKETS))));
+        }
+        assertEquals(ErrorCode.SUCCESS, cache.set(newItem(600, 1000), false).getStatus());
+        assertTrue(cache.getMemoryUsed() <= QUOTA);
+    }
+
+    public void testOutOfMemory() throws IOException {
+        Storage storage = newStorage(false);
+        VBucketStore cache = storage.getCache((short) 0);
+        // Even without their values, the items end up exceeding the quota
+        ErrorCode ec = ErrorCode.SUCCESS;
+        for (int i = 0; i < 10000 && ec == ErrorCode.SUCCESS; i++) {
+            ec = cache.set(newItem(i, 100), false).getStatus();
+        }
+        assertEquals(ErrorCode.ENOMEM, ec);
+        assertEquals(1, stat(storage, "ep_oom_errors"));
+    }
+
+    public void testEvict() throws IOException {
+        Storage storage = newStorage(false);
+        VBucketStore cache = storage.getCache((short) 0);
+        Item item = newItem(0, 1000);
+        KeySpec ks = item.getKeySpec();
+        assertEquals(ErrorCode.KEY_ENOENT, cache.evict(ks));
+        cache.set(item, false);
+        long used = cache.getMemoryUsed();
+
+        assertEquals(ErrorCode.SUCCESS, cache.evict(ks));
+        assertEquals(used - 1000, cache.getMemoryUsed());
+        assertNull(cache.getMap().get(ks).getValue());
+        assertEquals(1000, cache.get(ks).getValue().length);
+        assertEquals(used, cache.getMemoryUsed());
+
+        // The lock survives the eviction
+        Item locked = cache.get(ks);
+        assertEquals(ErrorCode.SUCCESS, cache.lock(locked, 10));
+        assertEquals(ErrorCode.SUCCESS, cache.evict(ks));
+        assertTrue(cache.get(ks).isLocked());
+    }
+
+    /**
+     * The pager runs outside of the lock of the store, while other threads
+     * mutate it: they all end up within the quota.
+     */
+    public void testConcurrentEviction() throws Exception {
+        final Storage storage = newStorage(false);
+        final VBucketStore cache = storage.getCache((short) 0);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int first = t * 1000;
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = first; i < first + 1000; i++) {
+                            // A concurrent mutation may take the room made by the pager
+                            ErrorCode ec = ErrorCode.ENOMEM;
+                            for (int attempt = 0; attempt < 10 && ec != ErrorCode.SUCCESS; attempt++) {
+                                ec = cache.set(newItem(i, 1000), false).getStatus();
+                            }
+                            assertEquals(ErrorCode.SUCCESS, ec);
+                            assertTrue(cache.getMemoryUsed() <= QUOTA);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertNull(failure.get());
+        assertTrue(stat(storage, "ep_num_value_ejects") > 0);
+        for (int i = 0; i < 4000; i++) {
+            assertEquals(1000, cache.get(new KeySpec("key_" + i, (short) (i % NUM_VBUCKETS))).getValue().length);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.protocol.Datatype;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+import junit.framework.TestCase;
+import org.iq80.snappy.Snappy;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class OffHeapItemMapTest extends TestCase {
+    private static final VBucketStore.ItemAction NO_ACTION = new VBucketStore.ItemAction() {
+        @Override
+        public void onAction(VBucketStore store, Item itm, VBucketCoordinates ms) {
+        }
+    };
+
+    private static Item newItem(String key, short vb, String value) {
+        return new Item(new KeySpec(key, vb), 0, 0, value.getBytes(), null, 0, Datatype.RAW.value());
+    }
+
+    public void testStoreAndRemove() {
+        OffHeapItemMap map = new OffHeapItemMap(16);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(map.store(newItem("key" + i, (short) (i % 16), "value" + i)));
+        }
+        assertFalse(map.store(newItem("key0", (short) 0, "updated")));
+        assertEquals(1000, map.size());
+        // The same key in another vBucket is another item
+        assertNull(map.get(new KeySpec("key0", (short) 1)));
+
+        for (int i = 0; i < 1000; i += 2) {
+            assertTrue(map.delete(new KeySpec("key" + i, (short) (i % 16)), 0));
+        }
+        assertEquals(500, map.size());
+        for (int i = 0; i < 1000; i++) {
+            Item item = map.get(new KeySpec("key" + i, (short) (i % 16)));
+            if (i % 2 == 0) {
+                assertNull(item);
+            } else {
+                assertEquals("value" + i, new String(item.getValue()));
+            }
+        }
+        assertEquals(500, map.values().size());
+        // key1, key17, ... key993
+        assertEquals(63, map.values(1).size());
+    }
+
+    public void testMetadata() {
+        OffHeapItemMap map = new OffHeapItemMap(4);
+        KeySpec ks = new KeySpec("doc", (short) 2);
+        Item item = new Item(ks, 42, 3600, "{}".getBytes(), "xattr".getBytes(), 0, Datatype.JSON.value());
+        item.setCas(123);
+        item.setLockExpiryTime(10);
+        map.store(item);
+
+        Item copy = map.get(ks);
+        assertNotSame(item, copy);
+        assertEquals(42, copy.getFlags());
+        assertEquals(item.getExpiryTime(), copy.getExpiryTime());
+        assertEquals(123, copy.getCasReal());
+        assertTrue(copy.isLocked());
+        assertEquals(item.getModificationTime(), copy.getModificationTime());
+        assertEquals(Datatype.JSON.value(), copy.getDatatype());
+        assertEquals("xattr", new String(copy.getXattr()));
+        assertEquals("{}", new String(copy.getValue()));
+
+        // Compressed values are kept as such
+        byte[] compressed = Snappy.compress("compressed".getBytes());
+        map.store(Item.fromCompressed(ks, 0, 0, compressed, null, 124, Datatype.SNAPPY.value()));
+        copy = map.get(ks);
+        assertTrue(copy.isCompressedOnly());
+        assertNull(copy.getXattr());
+        assertEquals("compressed", new String(copy.getValue()));
+
+        // Replaced and removed only if the CAS matches
+        assertFalse(map.replace(newItem("doc", (short) 2, "other"), 123));
+        assertTrue(map.replace(newItem("doc", (short) 2, "other"), 124));
+        assertFalse(map.delete(ks, 124));
+        assertTrue(map.remove(ks, map.get(ks)));
+        assertTrue(map.isEmpty());
+    }
+
+    public void testCompaction() {
+        OffHeapItemMap map = new OffHeapItemMap(4);
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+        String value = new String(chars);
+        // About ten times the size of a slab, overwriting the same items
+        for (int i = 0; i < 10 * OffHeapItemMap.SLAB_SIZE / 1000; i++) {
+            map.store(newItem("key" + (i % 100), (short) (i % 4), value + i));
+        }
+        assertEquals(100, map.size());
+        assertTrue(map.getAllocatedBytes() <= 3 * OffHeapItemMap.SLAB_SIZE);
+        for (Item item : map.values()) {
+            assertTrue(new String(item.getValue()).startsWith(value));
+        }
+
+        // Items larger than a slab
+        byte[] large = new byte[OffHeapItemMap.SLAB_SIZE * 2];
+        KeySpec ks = new KeySpec("large", (short) 0);
+        map.store(new Item(ks, 0, 0, large, null, 0, Datatype.RAW.value()));
+        assertEquals(large.length, map.get(ks).getValue().length);
+        map.delete(ks, 0);
+        assertTrue(map.getAllocatedBytes() <= 3 * OffHeapItemMap.SLAB_SIZE);
+    }
+
+    public void testSample() {
+        OffHeapItemMap map = new OffHeapItemMap(16);
+        Random random = new Random(1);
+        assertNull(map.sample(random));
+        Set<KeySpec> keys = new HashSet<KeySpec>();
+        for (int i = 0; i < 100; i++) {
+            Item item = newItem("key" + i, (short) (i % 16), "value");
+            map.store(item);
+            keys.add(item.getKeySpec());
+        }
+        Set<KeySpec> seen = new HashSet<KeySpec>();
+        for (int i = 0; i < 5000; i++) {
+            KeySpec ks = map.sample(random);
+            assertTrue(keys.contains(ks));
+            seen.add(ks);
+        }
+        assertEquals(keys, seen);
+    }
+
+    public void testSampleSkewed() {
+        OffHeapItemMap map = new OffHeapItemMap(16);
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            map.store(newItem("big" + i, (short) 1, "value"));
+        }
+        for (int i = 0; i < 10; i++) {
+            map.store(newItem("small" + i, (short) 2, "value"));
+        }
+        // Each item is as likely, whatever the size of its vBucket
+        int small = 0;
+        for (int i = 0; i < 20000; i++) {
+            if (map.sample(random).vbId == 2) {
+                small++;
+            }
+        }
+        assertTrue(small > 50 && small < 500);
+
+        // Emptied vBuckets are no longer picked
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(map.delete(new KeySpec("big" + i, (short) 1), 0));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(2, map.sample(random).vbId);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertTrue(map.delete(new KeySpec("small" + i, (short) 2), 0));
+        }
+        assertNull(map.sample(random));
+        map.store(newItem("again", (short) 3, "value"));
+        assertEquals(new KeySpec("again", (short) 3), map.sample(random));
+    }
+
+    public void testStoreOperations() {
+        VBucketInfo[] vbi = new VBucketInfo[4];
+        for (int i = 0; i < vbi.length; i++) {
+            vbi[i] = new VBucketInfo();
+        }
+        VBucketStore store = new VBucketStore(vbi, true);
+        store.onItemMutated = NO_ACTION;
+        store.onItemDelete = NO_ACTION;
+        KeySpec ks = new KeySpec("key", (short) 1);
+
+        assertEquals(ErrorCode.SUCCESS, store.add(newItem("key", (short) 1, "value"), false).getStatus());
+        assertEquals(ErrorCode.SUCCESS, store.append(newItem("key", (short) 1, "+"), false).getStatus());
+        Item item = store.get(ks);
+        assertEquals("value+", new String(item.getValue()));
+
+        // Locks are kept in the store
+        assertEquals(ErrorCode.SUCCESS, store.lock(item, 10));
+        long cas = item.getCasReal();
+        assertTrue(store.get(ks).isLocked());
+        assertEquals(ErrorCode.ETMPFAIL, store.lock(store.get(ks), 10));
+        assertEquals(ErrorCode.KEY_EEXISTS, store.set(newItem("key", (short) 1, "other"), false).getStatus());
+        assertEquals(ErrorCode.ETMPFAIL, store.unlock(ks, cas + 1));
+        assertEquals(ErrorCode.SUCCESS, store.unlock(ks, cas));
+        assertFalse(store.get(ks).isLocked());
+
+        // So is the expiry time
+        assertEquals(ErrorCode.SUCCESS, store.touch(store.get(ks), 100, false));
+        assertTrue(store.get(ks).getExpiryTime() != 0);
+
+        Item stale = newItem("key", (short) 1, "stale");
+        stale.setCas(cas - 1);
+        assertEquals(ErrorCode.KEY_EEXISTS, store.replace(stale, false).getStatus());
+        assertEquals(ErrorCode.SUCCESS, store.delete(ks, store.get(ks).getCas(), false).getStatus());
+        assertNull(store.get(ks));
+        assertNull(store.getRandom());
+    }
+}
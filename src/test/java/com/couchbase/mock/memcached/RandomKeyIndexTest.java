@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.Info;
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+public class RandomKeyIndexTest extends TestCase {
+    public void testAddRemove() {
+        RandomKeyIndex index = new RandomKeyIndex(16);
+        Random random = new Random(1);
+        assertNull(index.sample(random));
+
+        Set<KeySpec> keys = new HashSet<KeySpec>();
+        for (int i = 0; i < 100; i++) {
+            KeySpec ks = new KeySpec("key" + i, (short) (i % 16));
+            keys.add(ks);
+            index.add(ks);
+            index.add(ks);
+        }
+        assertEquals(100, index.size());
+
+        // Remove half of the keys; the others must still be found
+        for (int i = 0; i < 100; i += 2) {
+            KeySpec ks = new KeySpec("key" + i, (short) (i % 16));
+            keys.remove(ks);
+            index.remove(ks);
+            index.remove(ks);
+        }
+        assertEquals(50, index.size());
+
+        Set<KeySpec> seen = new HashSet<KeySpec>();
+        for (int i = 0; i < 5000; i++) {
+            KeySpec ks = index.sample(random);
+            assertTrue(keys.contains(ks));
+            seen.add(ks);
+        }
+        assertEquals(keys, seen);
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertNull(index.sample(random));
+    }
+
+    public void testChurn() {
+        // Many keys per shard, so that the tables grow and keys are moved
+        // back when others are removed
+        RandomKeyIndex index = new RandomKeyIndex(2);
+        Random random = new Random(1);
+        Set<KeySpec> keys = new HashSet<KeySpec>();
+        for (int i = 0; i < 50000; i++) {
+            KeySpec ks = new KeySpec("key" + random.nextInt(2000), (short) random.nextInt(2));
+            if (random.nextInt(3) == 0) {
+                keys.remove(ks);
+                index.remove(ks);
+            } else {
+                keys.add(ks);
+                index.add(ks);
+            }
+        }
+        assertEquals(keys.size(), index.size());
+        Set<KeySpec> seen = new HashSet<KeySpec>();
+        for (int i = 0; i < 100000; i++) {
+            KeySpec ks = index.sample(random);
+            assertTrue(keys.contains(ks));
+            seen.add(ks);
+        }
+        assertEquals(keys, seen);
+        for (KeySpec ks : keys) {
+            index.remove(ks);
+        }
+        assertEquals(0, index.size());
+        assertNull(index.sample(random));
+    }
+
+    public void testUniform() {
+        // All the keys in one shard but one, which must not be favoured
+        RandomKeyIndex index = new RandomKeyIndex(4);
+        for (int i = 0; i < 99; i++) {
+            index.add(new KeySpec("key" + i, (short) 0));
+        }
+        KeySpec lonely = new KeySpec("lonely", (short) 3);
+        index.add(lonely);
+
+        Random random = new Random(1);
+        Map<KeySpec, Integer> counts = new HashMap<KeySpec, Integer>();
+        for (int i = 0; i < 100000; i++) {
+            KeySpec ks = index.sample(random);
+            Integer count = counts.get(ks);
+            counts.put(ks, count == null ? 1 : count + 1);
+        }
+        assertEquals(100, counts.size());
+        int lonelyCount = counts.get(lonely);
+        assertTrue("Sampled " + lonelyCount + " times", lonelyCount > 700 && lonelyCount < 1300);
+    }
+
+    public void testStoreSkipsExpired() {
+        VBucketInfo[] vbi = new VBucketInfo[4];
+        for (int i = 0; i < vbi.length; i++) {
+            vbi[i] = new VBucketInfo();
+        }
+        VBucketStore store = new VBucketStore(vbi);
+        VBucketStore.ItemAction nothing = new VBucketStore.ItemAction() {
+            @Override
+            public void onAction(VBucketStore store, Item itm, VBucketCoordinates ms) {
+            }
+        };
+        store.onItemMutated = nothing;
+        store.onItemDelete = nothing;
+        assertNull(store.getRandom());
+
+        int expiry = VBucketStore.convertExpiryTime(10);
+        for (int i = 0; i < 100; i++) {
+            store.set(new Item(new KeySpec("expiring" + i, (short) (i % 4)), 0, expiry, "v".getBytes(), null, 0, (byte) 0), false);
+        }
+        KeySpec live = new KeySpec("live", (short) 1);
+        store.set(new Item(live, 0, 0, "v".getBytes(), null, 0, (byte) 0), false);
+
+        Info.timeTravel(20);
+        try {
+            // Expired items are dropped as they are sampled
+            for (int i = 0; i < 100; i++) {
+                assertEquals(live, store.getRandom().getKeySpec());
+            }
+        } finally {
+            Info.timeTravel(-20);
+        }
+
+        store.delete(live, 0, false);
+        assertNull(store.getRandom());
+    }
+}
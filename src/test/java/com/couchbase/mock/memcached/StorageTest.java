@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.protocol.Datatype;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class StorageTest extends TestCase {
+    private static final int NUM_VBUCKETS = 16;
+
+    private static Storage newStorage(File dataDir, boolean offHeap) throws IOException {
+        VBucketInfo[] vbi = new VBucketInfo[NUM_VBUCKETS];
+        for (int i = 0; i < vbi.length; i++) {
+            vbi[i] = new VBucketInfo();
+        }
+        return new Storage(vbi, null, dataDir, offHeap);
+    }
+
+    private static Storage newStorage(boolean offHeap) throws IOException {
+        return newStorage(null, offHeap);
+    }
+
+    private static KeySpec keySpec(int i) {
+        return new KeySpec("key_" + i, (short) (i % NUM_VBUCKETS));
+    }
+
+    private static Item newItem(int i, String value) {
+        return new Item(keySpec(i), 0, 0, value.getBytes(), null, 0, Datatype.RAW.value());
+    }
+
+    private static void store(Storage storage, int i, String value) {
+        MutationStatus ms = storage.getCache(keySpec(i).vbId).set(newItem(i, value), false);
+        assertEquals(ErrorCode.SUCCESS, ms.getStatus());
+    }
+
+    private void checkFlush(Storage storage) {
+        List<Item> items = new ArrayList<Item>();
+        for (int i = 0; i < 1000; i++) {
+            items.add(newItem(i, "value_" + i));
+        }
+        storage.loadItems(items);
+        Item item = storage.getCached(keySpec(1));
+        assertNotNull(storage.getPersisted(keySpec(1)));
+
+        storage.flush();
+        assertNull(storage.getRandomItem());
+        for (int i = 0; i < 1000; i++) {
+            assertNull(storage.getCached(keySpec(i)));
+            assertNull(storage.getPersisted(keySpec(i)));
+        }
+        for (short vb = 0; vb < NUM_VBUCKETS; vb++) {
+            assertTrue(storage.getCache(vb).getMap().isEmpty());
+        }
+
+        // The flushed store is usable
+        store(storage, 1, "again");
+        assertEquals("again", new String(storage.getCached(keySpec(1)).getValue()));
+        assertEquals("again", new String(storage.getPersisted(keySpec(1)).getValue()));
+        assertTrue(storage.getCached(keySpec(1)).getCas() > item.getCas());
+        assertEquals(keySpec(1), storage.getRandomItem().getKeySpec());
+    }
+
+    public void testFlush() throws IOException {
+        checkFlush(newStorage(false));
+    }
+
+    public void testFlushOffHeap() throws IOException {
+        checkFlush(newStorage(true));
+    }
+
+    public void testFlushPersistent() throws IOException {
+        File parent = File.createTempFile("storage", "");
+        assertTrue(parent.delete());
+        File dataDir = new File(parent, "node0");
+        try {
+            Storage storage = newStorage(dataDir, false);
+            checkFlush(storage);
+            storage.close();
+            // The flushed logs are gone, and only the new one is left
+            assertEquals(1, parent.list().length);
+            assertEquals(1, dataDir.list().length);
+
+            storage = newStorage(dataDir, false);
+            assertEquals("again", new String(storage.getPersisted(keySpec(1)).getValue()));
+            assertNull(storage.getPersisted(keySpec(2)));
+            storage.close();
+        } finally {
+            File[] dirs = parent.listFiles();
+            for (File dir : dirs == null ? new File[0] : dirs) {
+                File[] files = dir.listFiles();
+                for (File f : files == null ? new File[0] : files) {
+                    f.delete();
+                }
+                dir.delete();
+            }
+            parent.delete();
+        }
+    }
+
+    /**
+     * Mutations racing with a flush happen either entirely before it, and are
+     * gone from both the cache and the persisted items, or entirely after it.
+     * As the keys are stored in order, what remains is the keys stored after
+     * some point.
+     */
+    public void testMutationsRacingFlush() throws Exception {
+        final Storage storage = newStorage(false);
+        final int numKeys = 20000;
+        for (int round = 0; round < 5; round++) {
+            final String value = "round_" + round;
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < numKeys; i++) {
+                            store(storage, i, value);
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            });
+            writer.start();
+            while (storage.getCached(keySpec(numKeys / 4)) == null
+                    || !value.equals(new String(storage.getCached(keySpec(numKeys / 4)).getValue()))) {
+                Thread.yield();
+            }
+            storage.flush();
+            writer.join();
+            assertNull(failure.get());
+
+            boolean found = false;
+            for (int i = 0; i < numKeys; i++) {
+                Item cached = storage.getCached(keySpec(i));
+                Item persisted = storage.getPersisted(keySpec(i));
+                if (cached == null) {
+                    assertFalse("Key " + i + " stored before a flushed key", found);
+                    assertNull(persisted);
+                } else {
+                    found = true;
+                    assertEquals(value, new String(cached.getValue()));
+                    assertNotNull("Key " + i + " cached but not persisted", persisted);
+                    assertEquals(cached.getCas(), persisted.getCas());
+                }
+            }
+            assertTrue(found);
+            assertNull(storage.getCached(keySpec(0)));
+        }
+    }
+
+    /**
+     * Random picks racing with a flush return either items from before it
+     * or none, and never items from before it once it is done.
+     */
+    public void testRandomRacingFlush() throws Exception {
+        final Storage storage = newStorage(false);
+        final AtomicBoolean flushed = new AtomicBoolean();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int i = 0; i < 10000; i++) {
+            store(storage, i, "old");
+        }
+
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            boolean after = flushed.get();
+                            Item item = storage.getRandomItem();
+                            if (after) {
+                                assertTrue(item == null || "new".equals(new String(item.getValue())));
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        Thread.sleep(50);
+        storage.flush();
+        flushed.set(true);
+        for (int i = 0; i < 100; i++) {
+            store(storage, i, "new");
+        }
+        Thread.sleep(50);
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+    }
+}
@@ -78,4 +78,36 @@ public class ShaSaslServerTest {
 
         shaSaslClient.evaluateChallenge(saslStep);
     }
+
+    private static void authenticate(ShaSaslServer server, String password) throws SaslException {
+        SaslClient client = new ShaSaslClientFactory().createSaslClient(new String[] {"SCRAM-SHA256"}, null,
+                "couchbase", "localhost", null, new SaslCallbackHandler("foo", password));
+        byte[] serverFirstMessage = server.evaluateResponse(client.evaluateChallenge(new byte[] {}));
+        byte[] serverFinalMessage = server.evaluateResponse(client.evaluateChallenge(serverFirstMessage));
+        client.evaluateChallenge(serverFinalMessage);
+        Assert.assertTrue(client.isComplete());
+    }
+
+    @Test
+    public void testCachedCredentials() throws NoSuchAlgorithmException, SaslException {
+        ScramCredentialStore store = new ScramCredentialStore();
+        store.setIterationCount(100);
+
+        authenticate(new ShaSaslServer(new SaslCallbackHandler("foo", "bar"), 256, store), "bar");
+        ScramCredentials credentials = store.get("SCRAM-SHA256", "HmacSHA256", "SHA-256", "foo", "bar");
+        Assert.assertEquals(100, credentials.getIterationCount());
+
+        // Subsequent authentications reuse the derived credentials
+        authenticate(new ShaSaslServer(new SaslCallbackHandler("foo", "bar"), 256, store), "bar");
+        Assert.assertSame(credentials, store.get("SCRAM-SHA256", "HmacSHA256", "SHA-256", "foo", "bar"));
+
+        // Changing the password derives new credentials
+        authenticate(new ShaSaslServer(new SaslCallbackHandler("foo", "baz"), 256, store), "baz");
+        Assert.assertNotSame(credentials, store.get("SCRAM-SHA256", "HmacSHA256", "SHA-256", "foo", "baz"));
+
+        // As does changing the iteration count
+        store.setIterationCount(200);
+        authenticate(new ShaSaslServer(new SaslCallbackHandler("foo", "baz"), 256, store), "baz");
+        Assert.assertEquals(200, store.get("SCRAM-SHA256", "HmacSHA256", "SHA-256", "foo", "baz").getIterationCount());
+    }
 }
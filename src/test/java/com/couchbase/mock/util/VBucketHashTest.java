@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.util;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Test that the vBucket hashing matches the one of the clients.
+ */
+public class VBucketHashTest extends TestCase {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String[] KEYS = {
+            "", "a", "foo", "Key_12345", "été", "日本語", "emoji😀", "lone\ud83d",
+            "a much longer key which spans more than a few bytes, like some applications use"
+    };
+
+    private static short expectedVBucket(String key, int numVBuckets) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(key.getBytes(UTF8));
+        return (short) (((crc32.getValue() >> 16) & 0x7fff) & (numVBuckets - 1));
+    }
+
+    public void testMatchesCrc32() {
+        for (String key : KEYS) {
+            byte[] bytes = key.getBytes(UTF8);
+            CRC32 crc32 = new CRC32();
+            crc32.update(bytes);
+            assertEquals(key, (int) crc32.getValue(), VBucketHash.crc32(key));
+            assertEquals(key, (int) crc32.getValue(), VBucketHash.crc32(bytes, 0, bytes.length));
+            assertEquals(key, expectedVBucket(key, 1024), VBucketHash.vbucketOf(key, 1024));
+            assertEquals(key, expectedVBucket(key, 64), VBucketHash.vbucketOf(bytes, 0, bytes.length, 64));
+        }
+    }
+
+    public void testOffset() {
+        byte[] buf = "xxfooyy".getBytes(UTF8);
+        assertEquals(VBucketHash.vbucketOf("foo", 1024), VBucketHash.vbucketOf(buf, 2, 3, 1024));
+    }
+
+    public void testBatch() {
+        List<String> keys = Arrays.asList(KEYS);
+        short[] vbuckets = new short[keys.size()];
+        VBucketHash.vbucketsOf(keys, 1024, vbuckets);
+        for (int i = 0; i < KEYS.length; i++) {
+            assertEquals(expectedVBucket(KEYS[i], 1024), vbuckets[i]);
+        }
+
+        try {
+            VBucketHash.vbucketsOf(keys, 1024, new short[1]);
+            fail("Expected the output array to be rejected");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+}